@@ -0,0 +1,285 @@
+package com.hjysite.tree.btree;
+
+import java.util.Arrays;
+
+/**
+ * 树点查询前的有界热点key缓存，命中时只需要一次哈希查找，不需要从根节点向下查找，example和selfimpl中的树共用这一个实现
+ * <p>
+ * 1.缓存的键值对放在capacity个槽位组成的环中，用CLOCK算法淘汰：命中时设置槽位的访问位，
+ * 需要空槽位时指针沿环移动，清除经过的访问位，直到找到一个上一轮以来没有被访问过的槽位
+ * 2.key到槽位的映射是开放寻址的哈希表（线性探测，删除时把后面的元素向前移动填补空位），要求key的equals和hashCode与compareTo一致。
+ * 每个槽位记录key的哈希值，移动元素时不需要重新计算hashCode
+ * 3.缓存的value对象原样返回，命中时不创建新对象，value不能为null
+ * 4.按TinyLFU准入：每次查找都记录在4位计数器的count-min sketch中，每记录10 * capacity次后所有计数器减半；
+ * 缓存满了以后，只有最近被查找的次数比CLOCK选出的被淘汰key更多时，新的key才会替换它，避免只查一次的冷key把热点key挤出缓存
+ * 5.树在写入和删除时使对应的key失效；查找会修改访问位和统计数据，所以缓存不是线程安全的
+ * 6.int key的树使用子类IntHotKeyCache，它只增加不装箱的查找路径，淘汰和准入都在这里实现
+ */
+public class HotKeyCache<K, V> {
+
+    private final int capacity;
+
+    // CLOCK环，槽位上的key为null表示空闲
+    final Object[] slotKeys;
+    final int[] slotHashes;
+    private final Object[] slotVals;
+    private final boolean[] referenced;
+    private int used;
+    private int hand;
+
+    // 哈希表中存放槽位下标+1，0表示空
+    final int[] table;
+    final int mask;
+
+    // TinyLFU的频率sketch，4行计数器共用一个数组
+    private final byte[] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int sampleCount;
+
+    // 统计数据
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long invalidations;
+
+    public HotKeyCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.slotKeys = new Object[capacity];
+        this.slotHashes = new int[capacity];
+        this.slotVals = new Object[capacity];
+        this.referenced = new boolean[capacity];
+        // 哈希表最多半满
+        int buckets = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        this.table = new int[buckets];
+        this.mask = buckets - 1;
+        this.sketch = new byte[buckets * 4];
+        this.sketchMask = buckets * 4 - 1;
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * capacity);
+    }
+
+    /**
+     * 打散hashCode，Integer的hashCode就是它的值，所以int key和装箱后的key得到相同的哈希值
+     */
+    static int hash(int hashCode) {
+        int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 在频率sketch中记录一次查找，记录的次数达到sampleSize后所有计数器减半
+     */
+    final void recordAccess(int h) {
+        int step = (h >>> 13) | 1;
+        for (int i = 0; i < 4; i++) {
+            int index = (h + i * step) & sketchMask;
+            if (sketch[index] < 15) {
+                sketch[index]++;
+            }
+        }
+        if (++sampleCount == sampleSize) {
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] >>= 1;
+            }
+            sampleCount /= 2;
+        }
+    }
+
+    /**
+     * 哈希值为h的key最近被查找次数的估计值
+     */
+    private int frequency(int h) {
+        int step = (h >>> 13) | 1;
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            min = Math.min(min, sketch[(h + i * step) & sketchMask]);
+        }
+        return min;
+    }
+
+    /**
+     * key在哈希表中的桶，不在缓存中时返回-1
+     */
+    private int findBucket(int h, Object key) {
+        for (int b = h & mask; ; b = (b + 1) & mask) {
+            int slot = table[b] - 1;
+            if (slot < 0) {
+                return -1;
+            }
+            if (slotHashes[slot] == h && key.equals(slotKeys[slot])) {
+                return b;
+            }
+        }
+    }
+
+    /**
+     * 查找结束后记录命中或未命中，命中时标记为最近访问过
+     *
+     * @param b findBucket()找到的桶，未命中时为-1
+     * @return 缓存的value，未命中时返回null
+     */
+    @SuppressWarnings("unchecked")
+    final V lookup(int b) {
+        if (b < 0) {
+            misses++;
+            return null;
+        }
+        hits++;
+        int slot = table[b] - 1;
+        referenced[slot] = true;
+        return (V) slotVals[slot];
+    }
+
+    /**
+     * 查找缓存的value，命中时标记为最近访问过
+     *
+     * @return 缓存的value，不在缓存中时返回null
+     */
+    public V get(K key) {
+        int h = hash(key.hashCode());
+        recordAccess(h);
+        return lookup(findBucket(h, key));
+    }
+
+    /**
+     * 缓存树中查到的value，缓存已满时CLOCK指针找到的第一个没有被访问过的key作为被淘汰的候选，
+     * 新的key最近被查找的次数更多时才替换它
+     */
+    public void put(K key, V val) {
+        int h = hash(key.hashCode());
+        int b = findBucket(h, key);
+        if (b >= 0) {
+            slotVals[table[b] - 1] = val;
+            return;
+        }
+        int slot;
+        if (used < capacity) {
+            slot = used++;
+        } else {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = hand + 1 == capacity ? 0 : hand + 1;
+            }
+            slot = hand;
+            // 已失效的槽位不在哈希表中
+            if (slotKeys[slot] != null) {
+                if (frequency(h) <= frequency(slotHashes[slot])) {
+                    rejections++;
+                    return;
+                }
+                unlink(findBucket(slotHashes[slot], slotKeys[slot]));
+                evictions++;
+            }
+            hand = hand + 1 == capacity ? 0 : hand + 1;
+        }
+        slotKeys[slot] = key;
+        slotHashes[slot] = h;
+        slotVals[slot] = val;
+        referenced[slot] = false;
+        for (b = h & mask; ; b = (b + 1) & mask) {
+            if (table[b] == 0) {
+                table[b] = slot + 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 使key失效，它的槽位在CLOCK指针下一次经过时被复用
+     */
+    public void invalidate(K key) {
+        invalidateBucket(findBucket(hash(key.hashCode()), key));
+    }
+
+    /**
+     * 使桶b中的key失效，b为-1时什么也不做
+     */
+    final void invalidateBucket(int b) {
+        if (b < 0) {
+            return;
+        }
+        int slot = unlink(b);
+        slotKeys[slot] = null;
+        slotVals[slot] = null;
+        referenced[slot] = false;
+        invalidations++;
+    }
+
+    /**
+     * 清空缓存，保留统计数据和频率sketch
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(slotKeys, null);
+        Arrays.fill(slotVals, null);
+        Arrays.fill(referenced, false);
+        used = 0;
+        hand = 0;
+    }
+
+    /**
+     * 从哈希表中删除桶b，并把同一探测序列上后面的元素向前移动填补空位
+     *
+     * @return 桶b指向的槽位
+     */
+    private int unlink(int b) {
+        int removed = table[b] - 1;
+        int gap = b;
+        for (int next = (gap + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = slotHashes[table[next] - 1] & mask;
+            // home不在(gap, next]之间时，该元素可以移动到空位上
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                table[gap] = table[next];
+                gap = next;
+            }
+        }
+        table[gap] = 0;
+        return removed;
+    }
+
+    /**
+     * 已占用的槽位数，包括已失效但还没有被复用的槽位
+     */
+    final int usedSlots() {
+        return used;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * 因为被淘汰的候选最近被查找的次数更多而没有放入缓存的key数量
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * 命中率
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,57 @@
+package com.hjysite.tree.btree;
+
+/**
+ * int key的HotKeyCache，查找和失效直接比较拆箱后的key，不创建Integer对象。
+ * 写入缓存沿用HotKeyCache.put()，只在写入时装箱一次，CLOCK淘汰和TinyLFU准入都由HotKeyCache实现
+ */
+public class IntHotKeyCache<V> extends HotKeyCache<Integer, V> {
+
+    public IntHotKeyCache(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * key在哈希表中的桶，不在缓存中时返回-1
+     */
+    private int findBucket(int h, int key) {
+        for (int b = h & mask; ; b = (b + 1) & mask) {
+            int slot = table[b] - 1;
+            if (slot < 0) {
+                return -1;
+            }
+            if (slotHashes[slot] == h && (Integer) slotKeys[slot] == key) {
+                return b;
+            }
+        }
+    }
+
+    /**
+     * 查找缓存的value，命中时标记为最近访问过
+     *
+     * @return 缓存的value，不在缓存中时返回null
+     */
+    public V get(int key) {
+        int h = hash(key);
+        recordAccess(h);
+        return lookup(findBucket(h, key));
+    }
+
+    /**
+     * 使key失效，它的槽位在CLOCK指针下一次经过时被复用
+     */
+    public void invalidate(int key) {
+        invalidateBucket(findBucket(hash(key), key));
+    }
+
+    /**
+     * 使[lo, hi]之间的所有key失效
+     */
+    public void invalidateRange(int lo, int hi) {
+        for (int slot = 0; slot < usedSlots(); slot++) {
+            Integer key = (Integer) slotKeys[slot];
+            if (key != null && key >= lo && key <= hi) {
+                invalidate(key.intValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.hjysite.tree.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 树的占用率和内存占用报告：树高、每层节点数、节点填充率直方图、已用和空闲的槽位数以及节点占用堆内存的估算值，
+ * example和selfimpl中的树共用这一个报告
+ * <p>
+ * 1.报告由fork-join并行遍历收集：高于SEQUENTIAL_LEVELS层的子树按子节点拆分成多个任务，较矮的子树由一个任务顺序遍历
+ * 2.每种树只需要通过NodeInspector描述自己的节点：子节点的数量、第i个子节点，以及调用addNode()记录节点本身
+ * 3.堆内存按开启压缩指针的64位JVM估算：对象头12字节，数组头16字节，引用4字节，对象按8字节对齐。
+ * 只统计节点、节点中的数组和装箱的基本类型key，其他类型的key和所有value属于调用方，不计算在内
+ */
+public class TreeStats {
+
+    /**
+     * 填充率直方图的桶数，每个桶10%，满的节点计入最后一个桶
+     */
+    public static final int FILL_BUCKETS = 10;
+    private static final int SEQUENTIAL_LEVELS = 3;
+
+    public static final int OBJECT_HEADER = 12;
+    public static final int ARRAY_HEADER = 16;
+    public static final int REFERENCE = 4;
+
+    private final int height;
+    // 每层的节点数，下标0为根节点所在层
+    private final long[] nodesPerLevel;
+    private final long[] fillHistogram;
+    private long entries;
+    private long slots;
+    private long heapBytes;
+
+    /**
+     * 向遍历描述一种树的节点
+     */
+    public interface NodeInspector<N> {
+
+        /**
+         * 子节点的数量，叶子节点为0
+         */
+        int childCount(N node);
+
+        N child(N node, int index);
+
+        /**
+         * 调用stats.addNode()记录节点本身
+         */
+        void inspect(N node, int level, TreeStats stats);
+    }
+
+    private TreeStats(int height) {
+        this.height = height;
+        this.nodesPerLevel = new long[height];
+        this.fillHistogram = new long[FILL_BUCKETS];
+    }
+
+    /**
+     * 记录一个节点
+     *
+     * @param level    节点所在层，根节点为0
+     * @param used     已用的槽位数
+     * @param capacity 节点的槽位数
+     * @param bytes    节点占用的堆内存估算值
+     */
+    public void addNode(int level, int used, int capacity, long bytes) {
+        nodesPerLevel[level]++;
+        int bucket = capacity == 0 ? 0 : (int) ((long) used * FILL_BUCKETS / capacity);
+        fillHistogram[Math.min(bucket, FILL_BUCKETS - 1)]++;
+        entries += used;
+        slots += capacity;
+        heapBytes += bytes;
+    }
+
+    /**
+     * 合并另一棵子树的报告
+     */
+    private void merge(TreeStats other) {
+        for (int i = 0; i < height; i++) {
+            nodesPerLevel[i] += other.nodesPerLevel[i];
+        }
+        for (int i = 0; i < FILL_BUCKETS; i++) {
+            fillHistogram[i] += other.fillHistogram[i];
+        }
+        entries += other.entries;
+        slots += other.slots;
+        heapBytes += other.heapBytes;
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    public static long objectBytes(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    public static long arrayBytes(int length, int elementBytes) {
+        return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    /**
+     * 装箱的基本类型key占用的堆内存，自动装箱时-128到127之间的整数会复用缓存中的对象，不单独计算
+     */
+    public static long boxedKeyBytes(Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            int v = ((Number) key).intValue();
+            return v >= -128 && v <= 127 ? 0 : objectBytes(4);
+        }
+        if (key instanceof Long) {
+            long v = (Long) key;
+            return v >= -128 && v <= 127 ? 0 : objectBytes(8);
+        }
+        if (key instanceof Character) {
+            return (Character) key <= 127 ? 0 : objectBytes(2);
+        }
+        if (key instanceof Double) {
+            return objectBytes(8);
+        }
+        if (key instanceof Float) {
+            return objectBytes(4);
+        }
+        return 0;
+    }
+
+    /**
+     * 收集root下整棵树的报告，所有叶子节点都在同一层，最左侧路径的长度就是树高。统计期间不能有并发的修改
+     *
+     * @param root      根节点，空树为null
+     * @param inspector 描述树的节点
+     */
+    public static <N> TreeStats collect(N root, NodeInspector<N> inspector) {
+        int height = 0;
+        for (N node = root; node != null; node = inspector.childCount(node) > 0 ? inspector.child(node, 0) : null) {
+            height++;
+        }
+        if (height == 0) {
+            return new TreeStats(0);
+        }
+        return ForkJoinPool.commonPool().invoke(new CollectTask<>(root, 0, height, inspector));
+    }
+
+    /**
+     * 统计一棵子树的任务
+     */
+    @SuppressWarnings("serial")
+    private static class CollectTask<N> extends RecursiveTask<TreeStats> {
+        private final N node;
+        private final int level;
+        private final int height;
+        private final NodeInspector<N> inspector;
+
+        private CollectTask(N node, int level, int height, NodeInspector<N> inspector) {
+            this.node = node;
+            this.level = level;
+            this.height = height;
+            this.inspector = inspector;
+        }
+
+        @Override
+        protected TreeStats compute() {
+            TreeStats stats = new TreeStats(height);
+            if (height - level <= SEQUENTIAL_LEVELS) {
+                walk(node, level, stats);
+                return stats;
+            }
+            // 每个子节点一个任务，合并它们的报告
+            inspector.inspect(node, level, stats);
+            List<CollectTask<N>> tasks = new ArrayList<>();
+            for (int i = 0; i < inspector.childCount(node); i++) {
+                tasks.add(new CollectTask<>(inspector.child(node, i), level + 1, height, inspector));
+            }
+            for (CollectTask<N> task : invokeAll(tasks)) {
+                stats.merge(task.join());
+            }
+            return stats;
+        }
+
+        private void walk(N n, int l, TreeStats stats) {
+            inspector.inspect(n, l, stats);
+            for (int i = 0; i < inspector.childCount(n); i++) {
+                walk(inspector.child(n, i), l + 1, stats);
+            }
+        }
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 每层的节点数，下标0为根节点所在层
+     */
+    public long[] getNodesPerLevel() {
+        return nodesPerLevel.clone();
+    }
+
+    public long getNodeCount() {
+        long count = 0;
+        for (long n : nodesPerLevel) {
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * 填充率直方图，第i个桶是填充率在[i*10%, (i+1)*10%)之间的节点数
+     */
+    public long[] getFillHistogram() {
+        return fillHistogram.clone();
+    }
+
+    /**
+     * 已用的槽位数
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * 空闲的槽位数
+     */
+    public long getEmptySlots() {
+        return slots - entries;
+    }
+
+    /**
+     * 所有槽位中已用槽位的比例
+     */
+    public double getFillFactor() {
+        return slots == 0 ? 0 : (double) entries / slots;
+    }
+
+    /**
+     * 节点、节点中的数组和装箱key占用的堆内存估算值
+     */
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("height=").append(height)
+                .append(" nodes=").append(getNodeCount())
+                .append(" entries=").append(entries)
+                .append(" emptySlots=").append(getEmptySlots())
+                .append(String.format(" fill=%.1f%%", getFillFactor() * 100))
+                .append(" heapBytes=").append(heapBytes)
+                .append("\nnodesPerLevel=[");
+        for (int i = 0; i < height; i++) {
+            sb.append(i == 0 ? "" : ", ").append(nodesPerLevel[i]);
+        }
+        sb.append("]\nfillHistogram=[");
+        for (int i = 0; i < FILL_BUCKETS; i++) {
+            sb.append(i == 0 ? "" : ", ").append(i * 10).append("%:").append(fillHistogram[i]);
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,249 @@
+package com.hjysite.tree.btree.bench;
+
+import com.hjysite.tree.btree.example.BPlusTree;
+import com.hjysite.tree.btree.example.BTree;
+import com.hjysite.tree.btree.selfimpl.KeyVal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 被压测的树，key为int，value为double，三种树使用相同的负载
+ * <p>
+ * 这些树都不是线程安全的，每棵树由一把读写锁保护：读和扫描共享读锁，其他操作独占写锁。
+ * 子类只需要实现不加锁的操作，加锁由这里统一完成
+ * <p>
+ * 三种树的同一种操作做的是同样的事：更新都是原地替换value，扫描都是一次有序的范围遍历，不会退化成删除后插入或逐个点查询
+ */
+public abstract class BenchTarget {
+
+    private final String name;
+    private final Lock readLock;
+    private final Lock writeLock;
+
+    protected BenchTarget(String name) {
+        this.name = name;
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+    }
+
+    /**
+     * example.BTree，最小度数固定为4
+     */
+    public static BenchTarget exampleBTree() {
+        return new ExampleBTreeTarget();
+    }
+
+    /**
+     * example.BPlusTree
+     *
+     * @param m B+树的阶
+     */
+    public static BenchTarget bPlusTree(int m) {
+        return new BPlusTreeTarget(m);
+    }
+
+    /**
+     * selfimpl.BTree
+     *
+     * @param d 最小度数
+     */
+    public static BenchTarget selfimplBTree(int d) {
+        return new SelfimplBTreeTarget(d);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 插入下一个顺序递增的key，key在写锁中分配，所以读线程看到sequence增大后拿到读锁时key一定已经存在
+     *
+     * @param sequence 下一个要插入的key
+     */
+    public final void insert(AtomicLong sequence, double value) {
+        writeLock.lock();
+        try {
+            doInsert((int) sequence.getAndIncrement(), value);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return key是否存在
+     */
+    public final boolean read(int key) {
+        readLock.lock();
+        try {
+            return doRead(key) != null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public final void update(int key, double value) {
+        writeLock.lock();
+        try {
+            doUpdate(key, value);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 读取key的value，加上delta后写回，读和写在同一次加锁中完成
+     *
+     * @return key是否存在
+     */
+    public final boolean readModifyWrite(int key, double delta) {
+        writeLock.lock();
+        try {
+            Double value = doRead(key);
+            if (value == null) {
+                return false;
+            }
+            doUpdate(key, value + delta);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 从start开始按key的顺序读取最多count个键值对
+     *
+     * @return 读到的键值对数量
+     */
+    public final int scan(int start, int count) {
+        readLock.lock();
+        try {
+            return doScan(start, count);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    protected abstract void doInsert(int key, double value);
+
+    /**
+     * @return key的value，不存在时返回null
+     */
+    protected abstract Double doRead(int key);
+
+    protected abstract void doUpdate(int key, double value);
+
+    protected abstract int doScan(int start, int count);
+
+    private static class ExampleBTreeTarget extends BenchTarget {
+
+        private final BTree tree = new BTree();
+
+        private ExampleBTreeTarget() {
+            super("example.BTree");
+        }
+
+        @Override
+        protected void doInsert(int key, double value) {
+            tree.add(key, value);
+        }
+
+        @Override
+        protected Double doRead(int key) {
+            return (Double) tree.search(key);
+        }
+
+        @Override
+        protected void doUpdate(int key, double value) {
+            // add()在key存在时原地更新
+            tree.add(key, value);
+        }
+
+        /**
+         * 范围遍历不能提前结束，key是连续的整数，所以范围取[start, start + count)
+         */
+        @Override
+        protected int doScan(int start, int count) {
+            int[] found = new int[1];
+            int high = (int) Math.min(Integer.MAX_VALUE, (long) start + count - 1);
+            tree.forEach(start, high, (key, object) -> found[0]++);
+            return found[0];
+        }
+    }
+
+    private static class BPlusTreeTarget extends BenchTarget {
+
+        private final BPlusTree tree;
+
+        private BPlusTreeTarget(int m) {
+            super("BPlusTree");
+            this.tree = new BPlusTree(m);
+        }
+
+        @Override
+        protected void doInsert(int key, double value) {
+            tree.insert(key, value);
+        }
+
+        @Override
+        protected Double doRead(int key) {
+            return tree.search(key);
+        }
+
+        @Override
+        protected void doUpdate(int key, double value) {
+            // 插入已存在的key会产生重复的键值对，更新只替换已有键值对的value
+            tree.update(key, value);
+        }
+
+        @Override
+        protected int doScan(int start, int count) {
+            BPlusTree.Cursor cursor = tree.cursor();
+            int found = 0;
+            for (boolean valid = cursor.seek(start); valid && found < count; valid = cursor.next()) {
+                cursor.value();
+                found++;
+            }
+            return found;
+        }
+    }
+
+    private static class SelfimplBTreeTarget extends BenchTarget {
+
+        private final com.hjysite.tree.btree.selfimpl.BTree<Integer, Double> tree;
+
+        private SelfimplBTreeTarget(int d) {
+            super("selfimpl.BTree");
+            this.tree = new com.hjysite.tree.btree.selfimpl.BTree<>(d);
+        }
+
+        @Override
+        protected void doInsert(int key, double value) {
+            tree.put(key, value);
+        }
+
+        @Override
+        protected Double doRead(int key) {
+            KeyVal<Integer, Double> keyVal = tree.search(key);
+            return keyVal == null ? null : keyVal.val();
+        }
+
+        @Override
+        protected void doUpdate(int key, double value) {
+            tree.put(key, value);
+        }
+
+        /**
+         * forEachInRange不能提前结束，key是连续的整数，所以范围取[start, start + count)
+         */
+        @Override
+        protected int doScan(int start, int count) {
+            int[] found = new int[1];
+            int high = (int) Math.min(Integer.MAX_VALUE, (long) start + count);
+            tree.forEachInRange(start, high, keyVal -> found[0]++);
+            return found[0];
+        }
+    }
+}
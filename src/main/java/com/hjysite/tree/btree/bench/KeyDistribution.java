@@ -0,0 +1,73 @@
+package com.hjysite.tree.btree.bench;
+
+import java.util.SplittableRandom;
+
+/**
+ * 操作访问的key的分布，key为[0, items)之间的整数，items随插入增大
+ */
+public enum KeyDistribution {
+
+    /**
+     * 均匀分布
+     */
+    UNIFORM {
+        @Override
+        KeyChooser newChooser(long items) {
+            return SplittableRandom::nextLong;
+        }
+    },
+
+    /**
+     * 打散的Zipf分布，和YCSB的ScrambledZipfianGenerator相同：在固定的100亿个元素上生成Zipf分布，
+     * 再用FNV哈希打散后对items取模，热门的key分散在整个key空间中，而不是集中在最小的key上，items增大时也不需要重新计算zeta
+     */
+    ZIPFIAN {
+        // 100亿个元素、Zipf常数0.99时的zeta，预先计算好
+        private static final long ITEM_COUNT = 10_000_000_000L;
+        private static final double ZETAN = 26.46902820178302;
+
+        @Override
+        KeyChooser newChooser(long items) {
+            ZipfianGenerator zipfian = new ZipfianGenerator(ITEM_COUNT, ZETAN);
+            return (random, n) -> Math.floorMod(fnvHash64(zipfian.next(random, ITEM_COUNT)), n);
+        }
+    },
+
+    /**
+     * 最近插入的key最热门，和YCSB的SkewedLatestGenerator相同：距离最新key的距离服从Zipf分布
+     */
+    LATEST {
+        @Override
+        KeyChooser newChooser(long items) {
+            ZipfianGenerator zipfian = new ZipfianGenerator(items);
+            return (random, n) -> n - 1 - zipfian.next(random, n);
+        }
+    };
+
+    /**
+     * 按分布选择key，每个线程使用自己的实例
+     */
+    interface KeyChooser {
+        /**
+         * @param items 当前key的数量，已存在的key为[0, items)
+         */
+        long next(SplittableRandom random, long items);
+    }
+
+    /**
+     * 创建一个key选择器
+     *
+     * @param items 开始时key的数量
+     */
+    abstract KeyChooser newChooser(long items);
+
+    private static long fnvHash64(long value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xFF;
+            hash *= 1099511628211L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
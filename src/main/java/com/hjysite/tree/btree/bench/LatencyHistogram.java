@@ -0,0 +1,108 @@
+package com.hjysite.tree.btree.bench;
+
+/**
+ * 记录延迟的对数线性直方图，布局和HdrHistogram相同
+ * <p>
+ * 1.值按2的幂分段，每段再线性地分成1024个子桶，任意值的相对误差不超过1/1024，占用的内存与记录的次数无关
+ * 2.小于2048的值精确记录，不小于2^44（纳秒约为4.9小时）的值计入最后一个桶，最小值和最大值单独精确记录
+ * 3.每个线程使用自己的直方图，结束后合并，记录时不需要同步
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_BITS;
+    private static final long SUB_BUCKET_MASK = (1L << SUB_BUCKET_BITS) - 1;
+    private static final int HIGHEST_BIT = 44;
+    private static final long HIGHEST_TRACKABLE = (1L << HIGHEST_BIT) - 1;
+    private static final int BUCKET_COUNT = HIGHEST_BIT - SUB_BUCKET_BITS + 1;
+
+    private final long[] counts = new long[(BUCKET_COUNT + 1) * SUB_BUCKET_HALF_COUNT];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    /**
+     * 值所在的桶：先按最高位确定所在的段，再取段内的高11位作为子桶
+     */
+    private static int index(long value) {
+        int bucket = 63 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - SUB_BUCKET_HALF_BITS;
+        int subBucket = (int) (value >>> bucket);
+        return ((bucket + 1) << SUB_BUCKET_HALF_BITS) + subBucket - SUB_BUCKET_HALF_COUNT;
+    }
+
+    /**
+     * 落在桶中的最大值
+     */
+    private static long highestEquivalentValue(int index) {
+        int bucket = (index >> SUB_BUCKET_HALF_BITS) - 1;
+        int subBucket = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        if (bucket < 0) {
+            subBucket -= SUB_BUCKET_HALF_COUNT;
+            bucket = 0;
+        }
+        return ((long) (subBucket + 1) << bucket) - 1;
+    }
+
+    /**
+     * 记录一个值，负数按0记录
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[index(Math.min(value, HIGHEST_TRACKABLE))]++;
+        totalCount++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+    }
+
+    /**
+     * 把另一个直方图的记录合并进来
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    /**
+     * 不小于percentile%的记录的最小值，精度为所在桶的宽度
+     *
+     * @param percentile 百分位，在[0, 100]之间
+     */
+    public long valueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.max(min, Math.min(highestEquivalentValue(i), max));
+            }
+        }
+        return max;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+}
@@ -0,0 +1,68 @@
+package com.hjysite.tree.btree.bench;
+
+/**
+ * YCSB的核心负载A到F，每种负载是各种操作的比例和默认的key分布
+ * <p>
+ * 插入的key按顺序递增，和YCSB的insertorder=ordered相同；扫描的长度在[1, maxScanLength]之间均匀分布
+ */
+public enum Workload {
+
+    A("update heavy", 0.5, 0.5, 0, 0, 0, KeyDistribution.ZIPFIAN),
+    B("read mostly", 0.95, 0.05, 0, 0, 0, KeyDistribution.ZIPFIAN),
+    C("read only", 1, 0, 0, 0, 0, KeyDistribution.ZIPFIAN),
+    D("read latest", 0.95, 0, 0.05, 0, 0, KeyDistribution.LATEST),
+    E("short ranges", 0, 0, 0.05, 0.95, 0, KeyDistribution.ZIPFIAN),
+    F("read-modify-write", 0.5, 0, 0, 0, 0.5, KeyDistribution.ZIPFIAN);
+
+    /**
+     * 负载中的操作
+     */
+    public enum Operation {
+        READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE
+    }
+
+    private final String description;
+    // 按Operation的顺序排列的比例
+    private final double[] proportions;
+    private final KeyDistribution distribution;
+
+    Workload(String description, double read, double update, double insert, double scan, double readModifyWrite,
+             KeyDistribution distribution) {
+        this.description = description;
+        this.proportions = new double[]{read, update, insert, scan, readModifyWrite};
+        this.distribution = distribution;
+    }
+
+    /**
+     * 按比例选择一个操作
+     *
+     * @param u [0, 1)之间均匀分布的随机数
+     */
+    public Operation nextOperation(double u) {
+        Operation[] operations = Operation.values();
+        // 比例之和因为舍入误差略小于1时，返回最后一个比例不为0的操作
+        Operation last = null;
+        for (int i = 0; i < operations.length; i++) {
+            if (proportions[i] > 0) {
+                last = operations[i];
+                u -= proportions[i];
+                if (u < 0) {
+                    return last;
+                }
+            }
+        }
+        return last;
+    }
+
+    public double proportion(Operation operation) {
+        return proportions[operation.ordinal()];
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public KeyDistribution getDistribution() {
+        return distribution;
+    }
+}
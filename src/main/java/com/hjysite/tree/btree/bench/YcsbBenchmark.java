@@ -0,0 +1,281 @@
+package com.hjysite.tree.btree.bench;
+
+import com.hjysite.tree.btree.bench.KeyDistribution.KeyChooser;
+import com.hjysite.tree.btree.bench.Workload.Operation;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * YCSB风格的端到端压测工具，在相同的负载下依次运行example.BTree、BPlusTree和selfimpl.BTree，报告吞吐量和延迟的百分位
+ * <pre>
+ * 用法：java com.hjysite.tree.btree.bench.YcsbBenchmark [选项]
+ *   -workloads A,B,C,D,E,F   要运行的负载，默认全部
+ *   -trees btree,bplustree,selfimpl   要压测的树，默认全部
+ *   -distribution uniform|zipfian|latest   覆盖负载默认的key分布
+ *   -records 1000000         加载阶段插入的key数量
+ *   -operations 1000000      运行阶段的操作数量，由所有线程平分
+ *   -warmup 200000           运行阶段之前不计入结果的预热操作数量
+ *   -threads 1               运行阶段的线程数
+ *   -maxscan 100             扫描的最大长度
+ *   -order 64                BPlusTree的阶
+ *   -degree 32               selfimpl.BTree的最小度数
+ *   -seed 1                  随机数种子，相同的种子生成相同的操作序列（单线程时）
+ * </pre>
+ * 每个负载和每棵树都从一棵新树开始：先单线程顺序插入records个key（加载阶段），再由threads个线程执行预热和运行阶段。
+ * 每个操作的延迟用System.nanoTime()测量，记录在每个线程自己的直方图中，结束后合并。
+ * 线程是闭环的，一个操作完成后才发出下一个，排队等锁的时间计入延迟，但操作变慢时不会补发，所以高百分位会被低估（coordinated omission）
+ */
+public class YcsbBenchmark {
+
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    private final int records;
+    private final long operations;
+    private final long warmup;
+    private final int threads;
+    private final int maxScanLength;
+    private final long seed;
+
+    /**
+     * 一次运行的结果
+     *
+     * @param loadThroughput 加载阶段每秒的操作数
+     * @param throughput     运行阶段每秒的操作数
+     * @param load           加载阶段的延迟
+     * @param latencies      运行阶段每种操作的延迟
+     * @param notFound       没有找到key的读操作数量，正常情况下为0
+     */
+    record Result(double loadThroughput, double throughput, LatencyHistogram load,
+                  Map<Operation, LatencyHistogram> latencies, long notFound) {
+    }
+
+    public YcsbBenchmark(int records, long operations, long warmup, int threads, int maxScanLength, long seed) {
+        if (records < 1 || operations < 1 || warmup < 0 || threads < 1 || maxScanLength < 1) {
+            throw new IllegalArgumentException("records, operations, threads and maxscan must be positive");
+        }
+        this.records = records;
+        this.operations = operations;
+        this.warmup = warmup;
+        this.threads = threads;
+        this.maxScanLength = maxScanLength;
+        this.seed = seed;
+    }
+
+    /**
+     * 在一棵新树上运行一种负载
+     *
+     * @param workload     负载
+     * @param distribution key的分布
+     * @param factory      创建被压测的树
+     */
+    public Result run(Workload workload, KeyDistribution distribution, Supplier<BenchTarget> factory)
+            throws InterruptedException {
+        BenchTarget target = factory.get();
+        SplittableRandom random = new SplittableRandom(seed);
+        AtomicLong sequence = new AtomicLong();
+        LatencyHistogram load = new LatencyHistogram();
+        long loadStart = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            long start = System.nanoTime();
+            target.insert(sequence, random.nextDouble());
+            load.record(System.nanoTime() - start);
+        }
+        double loadThroughput = records / ((System.nanoTime() - loadStart) / 1e9);
+
+        // 预热和运行阶段使用同一组线程状态，预热只是不记录延迟
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Worker(workload, target, sequence, distribution.newChooser(records), seed + i + 1));
+        }
+        runPhase(workers, warmup, false);
+        long elapsed = runPhase(workers, operations, true);
+
+        Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        long notFound = 0;
+        for (Worker worker : workers) {
+            for (Map.Entry<Operation, LatencyHistogram> entry : worker.latencies.entrySet()) {
+                latencies.computeIfAbsent(entry.getKey(), k -> new LatencyHistogram()).merge(entry.getValue());
+            }
+            notFound += worker.notFound;
+        }
+        return new Result(loadThroughput, operations / (elapsed / 1e9), load, latencies, notFound);
+    }
+
+    /**
+     * 所有线程同时开始，平分count个操作
+     *
+     * @return 从开始到所有线程结束经过的纳秒数
+     */
+    private long runPhase(List<Worker> workers, long count, boolean record) throws InterruptedException {
+        CountDownLatch startGate = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<>();
+        for (int i = 0; i < workers.size(); i++) {
+            Worker worker = workers.get(i);
+            long share = count / workers.size() + (i < count % workers.size() ? 1 : 0);
+            Thread thread = new Thread(() -> {
+                try {
+                    startGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                worker.run(share, record);
+            }, "ycsb-worker-" + i);
+            thread.start();
+            running.add(thread);
+        }
+        long start = System.nanoTime();
+        startGate.countDown();
+        for (Thread thread : running) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 一个压测线程，随机数、key选择器和直方图都是线程自己的
+     */
+    private class Worker {
+        private final Workload workload;
+        private final BenchTarget target;
+        private final AtomicLong sequence;
+        private final KeyChooser chooser;
+        private final SplittableRandom random;
+        private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        private long notFound;
+
+        private Worker(Workload workload, BenchTarget target, AtomicLong sequence, KeyChooser chooser, long seed) {
+            this.workload = workload;
+            this.target = target;
+            this.sequence = sequence;
+            this.chooser = chooser;
+            this.random = new SplittableRandom(seed);
+            for (Operation operation : Operation.values()) {
+                if (workload.proportion(operation) > 0) {
+                    latencies.put(operation, new LatencyHistogram());
+                }
+            }
+        }
+
+        private void run(long count, boolean record) {
+            for (long i = 0; i < count; i++) {
+                Operation operation = workload.nextOperation(random.nextDouble());
+                // key和参数在计时之外生成
+                int key = (int) chooser.next(random, sequence.get());
+                double value = random.nextDouble();
+                int scanLength = 1 + random.nextInt(maxScanLength);
+                long start = System.nanoTime();
+                boolean found = switch (operation) {
+                    case READ -> target.read(key);
+                    case UPDATE -> {
+                        target.update(key, value);
+                        yield true;
+                    }
+                    case INSERT -> {
+                        target.insert(sequence, value);
+                        yield true;
+                    }
+                    case SCAN -> target.scan(key, scanLength) > 0;
+                    case READ_MODIFY_WRITE -> target.readModifyWrite(key, value);
+                };
+                long latency = System.nanoTime() - start;
+                if (record) {
+                    latencies.get(operation).record(latency);
+                    if (!found) {
+                        notFound++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 打印一种负载下所有树的结果，延迟单位为微秒
+     */
+    static void report(Workload workload, KeyDistribution distribution, List<String> names, List<Result> results) {
+        System.out.printf("%n== workload %s (%s), distribution=%s%n", workload, workload.getDescription(),
+                distribution.name().toLowerCase(Locale.ROOT));
+        System.out.printf("%-16s %-18s %12s %14s %10s %10s %10s %10s %10s%n",
+                "tree", "operation", "count", "ops/s", "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            printRow(names.get(i), "LOAD", result.load(), result.loadThroughput());
+            LatencyHistogram total = new LatencyHistogram();
+            for (Map.Entry<Operation, LatencyHistogram> entry : result.latencies().entrySet()) {
+                printRow(names.get(i), entry.getKey().name(), entry.getValue(), Double.NaN);
+                total.merge(entry.getValue());
+            }
+            printRow(names.get(i), "TOTAL", total, result.throughput());
+            if (result.notFound() > 0) {
+                System.out.printf("%-16s WARNING: %d operations did not find their key%n", names.get(i), result.notFound());
+            }
+        }
+    }
+
+    private static void printRow(String tree, String operation, LatencyHistogram histogram, double throughput) {
+        StringBuilder sb = new StringBuilder(String.format("%-16s %-18s %12d %14s %10.2f", tree, operation,
+                histogram.getTotalCount(), Double.isNaN(throughput) ? "" : String.format("%,.0f", throughput),
+                histogram.getMean() / 1000));
+        for (double percentile : PERCENTILES) {
+            sb.append(String.format(" %10.2f", histogram.valueAtPercentile(percentile) / 1000.0));
+        }
+        sb.append(String.format(" %10.2f", histogram.getMax() / 1000.0));
+        System.out.println(sb);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new java.util.HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("-") || i + 1 == args.length) {
+                throw new IllegalArgumentException("expected -option value, got " + args[i]);
+            }
+            options.put(args[i].substring(1), args[++i]);
+        }
+        int records = Integer.parseInt(options.getOrDefault("records", "1000000"));
+        long operations = Long.parseLong(options.getOrDefault("operations", "1000000"));
+        long warmup = Long.parseLong(options.getOrDefault("warmup", "200000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "1"));
+        int maxScanLength = Integer.parseInt(options.getOrDefault("maxscan", "100"));
+        int order = Integer.parseInt(options.getOrDefault("order", "64"));
+        int degree = Integer.parseInt(options.getOrDefault("degree", "32"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        String distributionName = options.get("distribution");
+
+        List<Workload> workloads = new ArrayList<>();
+        for (String name : options.getOrDefault("workloads", "A,B,C,D,E,F").split(",")) {
+            workloads.add(Workload.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+        }
+        List<String> names = new ArrayList<>();
+        List<Supplier<BenchTarget>> factories = new ArrayList<>();
+        for (String name : options.getOrDefault("trees", "btree,bplustree,selfimpl").split(",")) {
+            switch (name.trim().toLowerCase(Locale.ROOT)) {
+                case "btree" -> factories.add(BenchTarget::exampleBTree);
+                case "bplustree" -> factories.add(() -> BenchTarget.bPlusTree(order));
+                case "selfimpl" -> factories.add(() -> BenchTarget.selfimplBTree(degree));
+                default -> throw new IllegalArgumentException("unknown tree: " + name);
+            }
+            names.add(factories.get(factories.size() - 1).get().getName());
+        }
+
+        YcsbBenchmark benchmark = new YcsbBenchmark(records, operations, warmup, threads, maxScanLength, seed);
+        System.out.printf("records=%d operations=%d warmup=%d threads=%d maxscan=%d order=%d degree=%d seed=%d%n",
+                records, operations, warmup, threads, maxScanLength, order, degree, seed);
+        for (Workload workload : workloads) {
+            KeyDistribution distribution = distributionName == null ? workload.getDistribution()
+                    : KeyDistribution.valueOf(distributionName.trim().toUpperCase(Locale.ROOT));
+            List<Result> results = new ArrayList<>();
+            for (Supplier<BenchTarget> factory : factories) {
+                results.add(benchmark.run(workload, distribution, factory));
+            }
+            report(workload, distribution, names, results);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.hjysite.tree.btree.bench;
+
+import java.util.SplittableRandom;
+
+/**
+ * 生成[0, items)之间服从Zipf分布的整数，0最热门，算法来自Gray等人的"Quickly Generating Billion-Record Synthetic Databases"，和YCSB相同
+ * <p>
+ * 1.生成一个数只需要一次pow运算，但需要预先计算zeta(items) = sum(1 / i^theta)，i从1到items
+ * 2.items增大时（插入新的key）只累加新增的部分，每个线程使用自己的实例
+ */
+class ZipfianGenerator {
+
+    /**
+     * YCSB默认的Zipf常数
+     */
+    static final double ZIPFIAN_CONSTANT = 0.99;
+
+    private final double theta;
+    private final double alpha;
+    private final double zeta2theta;
+    // zetan对应的items
+    private long countForZeta;
+    private double zetan;
+    private double eta;
+
+    ZipfianGenerator(long items) {
+        this(items, zeta(0, items, ZIPFIAN_CONSTANT, 0));
+    }
+
+    /**
+     * @param zetan 预先计算好的zeta(items)
+     */
+    ZipfianGenerator(long items, double zetan) {
+        this.theta = ZIPFIAN_CONSTANT;
+        this.alpha = 1 / (1 - theta);
+        this.zeta2theta = zeta(0, 2, theta, 0);
+        this.countForZeta = items;
+        this.zetan = zetan;
+        this.eta = eta(items);
+    }
+
+    /**
+     * 在initial = zeta(from)的基础上累加，得到zeta(to)
+     */
+    static double zeta(long from, long to, double theta, double initial) {
+        double sum = initial;
+        for (long i = from; i < to; i++) {
+            sum += 1 / Math.pow(i + 1, theta);
+        }
+        return sum;
+    }
+
+    private double eta(long items) {
+        return (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2theta / zetan);
+    }
+
+    /**
+     * 生成[0, items)之间的整数，items只能增大
+     */
+    long next(SplittableRandom random, long items) {
+        if (items > countForZeta) {
+            zetan = zeta(countForZeta, items, theta, zetan);
+            countForZeta = items;
+            eta = eta(items);
+        }
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return Math.min(items - 1, (long) (countForZeta * Math.pow(eta * u - eta + 1, alpha)));
+    }
+}
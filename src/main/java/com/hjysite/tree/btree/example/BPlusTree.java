@@ -1,5 +1,8 @@
 package com.hjysite.tree.btree.example;
 
+import com.hjysite.tree.btree.IntHotKeyCache;
+import com.hjysite.tree.btree.TreeStats;
+
 import java.lang.*;
 import java.util.*;
 import java.io.*;
@@ -8,6 +11,25 @@ public class BPlusTree {
     int m;
     InternalNode root;
     LeafNode firstLeaf;
+    LearnedLeafIndex learnedIndex;
+    BlockedBloomFilter bloomFilter;
+    IntHotKeyCache<Double> hotKeyCache;
+
+    // Counts the changes of the node structure (splits, merges, borrowing
+    // and rebuilds), so that cursors know when their remembered path is stale
+    long structureVersion;
+
+    // Position of the incremental defragmentation: the height above the
+    // leaves and the smallest key of the next internal node to repack
+    int defragHeight = 1;
+    long defragKey = Long.MIN_VALUE;
+    boolean tombstoneDeletes;
+    double compactionThreshold;
+    long pairCount;
+    long tombstoneCount;
+
+    // The rightmost leaf, used by the append fast path of insert(), null when unknown
+    LeafNode lastLeaf;
 
     /*~~~~~~~~~~~~~~~~ HELPER FUNCTIONS ~~~~~~~~~~~~~~~~*/
 
@@ -81,21 +103,6 @@ public class BPlusTree {
         }
     }
 
-    /**
-     * Given a list of pointers to Node objects, this method returns the index of
-     * the pointer that points to the specified 'node' LeafNode object.
-     * @param pointers: a list of pointers to Node objects
-     * @param node: a specific pointer to a LeafNode
-     * @return (int) index of pointer in list of pointers
-     */
-    private int findIndexOfPointer(Node[] pointers, LeafNode node) {
-        int i;
-        for (i = 0; i < pointers.length; i++) {
-            if (pointers[i] == node) { break; }
-        }
-        return i;
-    }
-
     /**
      * This is a simple method that returns the midpoint (or lower bound
      * depending on the context of the method invocation) of the max degree m of
@@ -107,94 +114,55 @@ public class BPlusTree {
     }
 
     /**
-     * Given a deficient InternalNode in, this method remedies the deficiency
-     * through borrowing and merging.
-     * @param in: a deficient InternalNode
+     * This method returns the leaf node that holds 'key' for a point lookup.
+     * If the learned index is enabled, it is used to predict the leaf and the
+     * normal descent from the root is only taken when the prediction fails.
+     * @param key: the key being searched for
+     * @return the LeafNode object that may contain the key within its dictionary
      */
-    private void handleDeficiency(InternalNode in) {
-
-        InternalNode sibling;
-        InternalNode parent = in.parent;
-
-        // Remedy deficient root node
-        if (this.root == in) {
-            for (int i = 0; i < in.childPointers.length; i++) {
-                if (in.childPointers[i] != null) {
-                    if (in.childPointers[i] instanceof InternalNode) {
-                        this.root = (InternalNode)in.childPointers[i];
-                        this.root.parent = null;
-                    } else if (in.childPointers[i] instanceof LeafNode) {
-                        this.root = null;
-                    }
-                }
+    private LeafNode findLeafNodeForSearch(int key) {
+        if (this.root == null) { return this.firstLeaf; }
+        if (this.learnedIndex != null) {
+            if (this.learnedIndex.stale) {
+                this.learnedIndex.rebuild(this.firstLeaf);
             }
+            LeafNode ln = this.learnedIndex.findLeafNode(key);
+            if (ln != null) { return ln; }
         }
+        return findLeafNode(key);
+    }
 
-        // Borrow:
-        else if (in.leftSibling != null && in.leftSibling.isLendable()) {
-            sibling = in.leftSibling;
-
-            // Copy 1 key and pointer from sibling (atm just 1 key)
-            int borrowedKey = sibling.keys[sibling.degree - 1];
-            Node pointer = sibling.childPointers[sibling.degree];
-
-            in.keys[in.degree] = borrowedKey;
-            Arrays.sort(in.keys, 0, in.degree + 1);
-            in.insertChildPointer(pointer, 0);
-
-        } else if (in.rightSibling != null && in.rightSibling.isLendable()) {
-            sibling = in.rightSibling;
-
-            // Copy 1 key and pointer from sibling (atm just 1 key)
-            int borrowedKey = sibling.keys[0];
-            Node pointer = sibling.childPointers[0];
-
-            // Copy root key and pointer into parent
-            in.keys[in.degree - 1] = parent.keys[0];
-            in.childPointers[in.degree] = pointer;
-
-            // Copy borrowedKey into root
-            parent.keys[0] = borrowedKey;
-
-            // Delete key and pointer from sibling
-            sibling.removePointer(0);
-            Arrays.sort(sibling.keys);
-            sibling.removePointer(0);
-            shiftDown(in.childPointers, 1);
-        }
-
-        // Merge:
-        else if (in.leftSibling != null && in.leftSibling.isMergeable()) {
-
-        } else if (in.rightSibling != null && in.rightSibling.isMergeable()) {
-            sibling = in.rightSibling;
-
-            // Copy rightmost key in parent to beginning of sibling's keys &
-            // delete key from parent
-            sibling.keys[sibling.degree - 1] = parent.keys[parent.degree - 2];
-            Arrays.sort(sibling.keys, 0, sibling.degree);
-            parent.keys[parent.degree - 2] = null;
-
-            // Copy in's child pointer over to sibling's list of child pointers
-            for (int i = 0; i < in.childPointers.length; i++) {
-                if (in.childPointers[i] != null) {
-                    sibling.prependChildPointer(in.childPointers[i]);
-                    in.childPointers[i].parent = sibling;
-                    in.removePointer(i);
+    /**
+     * This method returns the rightmost leaf if 'key' is greater than every
+     * key in the B+ tree, i.e. if inserting 'key' is an append. The rightmost
+     * leaf is cached between inserts and found again by following the right
+     * siblings after it was split, so ascending inserts don't descend from
+     * the root at all.
+     * @param key: the key about to be inserted
+     * @return the rightmost LeafNode, or null if 'key' is not an append
+     */
+    private LeafNode findAppendLeaf(int key) {
+        if (isEmpty()) { return null; }
+        if (this.lastLeaf == null) {
+            if (this.root == null) {
+                this.lastLeaf = this.firstLeaf;
+            } else {
+                Node node = this.root;
+                while (node instanceof InternalNode) {
+                    InternalNode in = (InternalNode) node;
+                    node = in.childPointers[in.degree - 1];
                 }
+                this.lastLeaf = (LeafNode) node;
             }
-
-            // Delete child pointer from grandparent to deficient node
-            parent.removePointer(in);
-
-            // Remove left sibling
-            sibling.leftSibling = in.leftSibling;
         }
-
-        // Handle deficiency a level up if it exists
-        if (parent != null && parent.isDeficient()) {
-            handleDeficiency(parent);
+        while (this.lastLeaf.rightSibling != null) {
+            this.lastLeaf = this.lastLeaf.rightSibling;
         }
+        LeafNode ln = this.lastLeaf;
+        if (ln.numPairs > 0 && key > ln.dictionary[ln.numPairs - 1].key) {
+            return ln;
+        }
+        return null;
     }
 
     /**
@@ -235,20 +203,6 @@ public class BPlusTree {
         return -1;
     }
 
-    /**
-     * This method is used to shift down a set of pointers that are prepended
-     * by null values.
-     * @param pointers: the list of pointers that are to be shifted
-     * @param amount: the amount by which the pointers are to be shifted
-     */
-    private void shiftDown(Node[] pointers, int amount) {
-        Node[] newPointers = new Node[this.m + 1];
-        for (int i = amount; i < pointers.length; i++) {
-            newPointers[i - amount] = pointers[i];
-        }
-        pointers = newPointers;
-    }
-
     /**
      * This is a specialized sorting method used upon lists of DictionaryPairs
      * that may contain interspersed null values.
@@ -403,8 +357,704 @@ public class BPlusTree {
         return halfKeys;
     }
 
+    /**
+     * This method replaces the whole B+ tree with a freshly built one that
+     * holds the given dictionary pairs. The pairs are spread evenly over the
+     * fewest possible leaves and the internal levels are built bottom-up, so
+     * every node satisfies its minimum occupancy without any borrowing or
+     * merging.
+     * @param pairs: the dictionary pairs of the new B+ tree, sorted by key
+     */
+    private void bulkLoad(ArrayList<DictionaryPair> pairs) {
+        this.structureVersion++;
+        this.root = null;
+        this.firstLeaf = null;
+        this.lastLeaf = null;
+        if (pairs.isEmpty()) { return; }
+
+        // Build the leaf level and its doubly linked list
+        int maxNumPairs = this.m - 1;
+        int numLeaves = (pairs.size() + maxNumPairs - 1) / maxNumPairs;
+        ArrayList<Node> level = new ArrayList<Node>(numLeaves);
+        ArrayList<Integer> minKeys = new ArrayList<Integer>(numLeaves);
+        LeafNode prevLeaf = null;
+        int from = 0;
+        for (int i = 0; i < numLeaves; i++) {
+            int to = (int)((long)pairs.size() * (i + 1) / numLeaves);
+            DictionaryPair[] dps = new DictionaryPair[this.m];
+            for (int j = from; j < to; j++) {
+                dps[j - from] = pairs.get(j);
+            }
+            LeafNode ln = new LeafNode(this.m, dps, null);
+            ln.leftSibling = prevLeaf;
+            if (prevLeaf == null) {
+                this.firstLeaf = ln;
+            } else {
+                prevLeaf.rightSibling = ln;
+            }
+            level.add(ln);
+            minKeys.add(dps[0].key);
+            prevLeaf = ln;
+            from = to;
+        }
+
+        // Build the internal levels until a single node is left
+        while (level.size() > 1) {
+            int numNodes = (level.size() + this.m - 1) / this.m;
+            ArrayList<Node> parents = new ArrayList<Node>(numNodes);
+            ArrayList<Integer> parentMinKeys = new ArrayList<Integer>(numNodes);
+            InternalNode prevNode = null;
+            from = 0;
+            for (int i = 0; i < numNodes; i++) {
+                int to = (int)((long)level.size() * (i + 1) / numNodes);
+                Integer[] keys = new Integer[this.m];
+                Node[] pointers = new Node[this.m + 1];
+                for (int j = from; j < to; j++) {
+                    pointers[j - from] = level.get(j);
+                    if (j > from) { keys[j - from - 1] = minKeys.get(j); }
+                }
+                InternalNode in = new InternalNode(this.m, keys, pointers);
+                for (int j = from; j < to; j++) {
+                    level.get(j).parent = in;
+                }
+                in.leftSibling = prevNode;
+                if (prevNode != null) { prevNode.rightSibling = in; }
+                parents.add(in);
+                parentMinKeys.add(minKeys.get(from));
+                prevNode = in;
+                from = to;
+            }
+            level = parents;
+            minKeys = parentMinKeys;
+        }
+
+        if (level.get(0) instanceof InternalNode) {
+            this.root = (InternalNode)level.get(0);
+        }
+    }
+
+    /**
+     * This method removes all tombstones from the leaves and rebalances the
+     * B+ tree in bulk by rebuilding it from the remaining dictionary pairs.
+     */
+    public void compact() {
+        ArrayList<DictionaryPair> pairs = new ArrayList<DictionaryPair>();
+        for (LeafNode ln = this.firstLeaf; ln != null; ln = ln.rightSibling) {
+            for (int i = 0; i < ln.numPairs; i++) {
+                DictionaryPair dp = ln.dictionary[i];
+                if (dp != null && !dp.tombstone) { pairs.add(dp); }
+            }
+        }
+        bulkLoad(pairs);
+        this.pairCount = pairs.size();
+        this.tombstoneCount = 0;
+
+        // The leaf level was replaced entirely
+        if (this.learnedIndex != null) {
+            this.learnedIndex.invalidate();
+        }
+        if (this.bloomFilter != null) {
+            this.bloomFilter.rebuild(this.firstLeaf);
+        }
+    }
+
+    /**
+     * This method performs a bounded amount of online defragmentation, so it
+     * can be interleaved with normal operations. Deletes only merge nodes
+     * that fall below the minimum occupancy, which leaves sparse trees at
+     * about 50% fill; a defragmentation step instead repacks all children of
+     * one internal node toward 'targetFill' and frees the children that are
+     * no longer needed. Passes go left to right over the parents of the
+     * leaves first and then over every higher level, so that the internal
+     * nodes that lost children are packed as well. The position is kept
+     * between calls, and a call returns early once a whole pass is done.
+     * @param targetFill: the fill factor to pack nodes to, within [0.5, 1]
+     * @param maxSteps: the maximum number of internal nodes to repack
+     * @return the number of nodes that were freed
+     */
+    public int defragment(double targetFill, int maxSteps) {
+        if (targetFill < 0.5 || targetFill > 1) {
+            throw new IllegalArgumentException("targetFill must be within [0.5, 1]");
+        }
+        int freed = 0;
+        for (int step = 0; step < maxSteps && this.root != null; step++) {
+
+            // Find the internal node at defragHeight that covers defragKey
+            int height = 0;
+            for (Node n = this.root; n instanceof InternalNode; n = ((InternalNode)n).childPointers[0]) {
+                height++;
+            }
+            if (this.defragHeight > height) {
+
+                /* Flow of execution goes here when a pass is complete */
+                this.defragHeight = 1;
+                this.defragKey = Long.MIN_VALUE;
+                break;
+            }
+            InternalNode in = this.root;
+            for (int h = height; h > this.defragHeight; h--) {
+                int i = 0;
+                while (i < in.degree - 1 && this.defragKey >= in.keys[i]) { i++; }
+                in = (InternalNode)in.childPointers[i];
+            }
+
+            int before = in.degree;
+            Node last = (this.defragHeight == 1) ? repackLeaves(in, targetFill) : repackInternalNodes(in, targetFill);
+            freed += before - in.degree;
+
+            // Continue with the first key right of the subtree of 'in'
+            Node n = last;
+            while (n instanceof InternalNode) {
+                n = ((InternalNode)n).childPointers[((InternalNode)n).degree - 1];
+            }
+            LeafNode next = ((LeafNode)n).rightSibling;
+            if (next == null) {
+                this.defragHeight++;
+                this.defragKey = Long.MIN_VALUE;
+            } else {
+                this.defragKey = next.dictionary[0].key;
+            }
+
+            // The node may have become deficient or have been left with a deficient last child
+            if (before != in.degree) {
+                this.structureVersion++;
+                this.lastLeaf = null;
+                if (this.learnedIndex != null) {
+                    this.learnedIndex.invalidate();
+                }
+                if (isNodeDeficient(last)) {
+                    freed += rebalance(last);
+                } else {
+                    freed += rebalance(in);
+                }
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * This method moves all dictionary pairs below an internal node into as
+     * few of its leaves as 'targetFill' allows, spreading them evenly, and
+     * removes the emptied leaves from the node and the leaf list.
+     * @param in: an internal node whose children are leaves
+     * @param targetFill: the fill factor to pack the leaves to
+     * @return the last leaf of 'in' after repacking
+     */
+    private Node repackLeaves(InternalNode in, double targetFill) {
+        int degree = in.degree;
+        LeafNode first = (LeafNode)in.childPointers[0];
+        int total = 0;
+        for (int i = 0; i < degree; i++) {
+            total += ((LeafNode)in.childPointers[i]).numPairs;
+        }
+        int perLeaf = Math.max(1, (int)(targetFill * first.maxNumPairs));
+        int needed = Math.max(1, (total + perLeaf - 1) / perLeaf);
+
+        // Don't spread the pairs so thin that the leaves fall below their minimum
+        needed = Math.min(needed, Math.max(1, total / Math.max(1, first.minNumPairs)));
+        if (needed >= degree) { return in.childPointers[degree - 1]; }
+
+        // Gather the pairs in key order and deal them out again
+        DictionaryPair[] all = new DictionaryPair[total];
+        int count = 0;
+        for (int i = 0; i < degree; i++) {
+            LeafNode ln = (LeafNode)in.childPointers[i];
+            System.arraycopy(ln.dictionary, 0, all, count, ln.numPairs);
+            count += ln.numPairs;
+        }
+        int from = 0;
+        for (int i = 0; i < needed; i++) {
+            LeafNode ln = (LeafNode)in.childPointers[i];
+            int numPairs = total / needed + ((i < total % needed) ? 1 : 0);
+            Arrays.fill(ln.dictionary, null);
+            System.arraycopy(all, from, ln.dictionary, 0, numPairs);
+            ln.numPairs = numPairs;
+            from += numPairs;
+            if (i > 0) { in.keys[i - 1] = ln.dictionary[0].key; }
+        }
+
+        // Unlink the emptied leaves, they are the last children of 'in'
+        LeafNode lastKept = (LeafNode)in.childPointers[needed - 1];
+        LeafNode lastRemoved = (LeafNode)in.childPointers[degree - 1];
+        lastKept.rightSibling = lastRemoved.rightSibling;
+        if (lastKept.rightSibling != null) {
+            lastKept.rightSibling.leftSibling = lastKept;
+        }
+        for (int i = degree - 1; i >= needed; i--) {
+            Node removed = in.childPointers[i];
+            removeChildAt(in, i);
+            removed.parent = null;
+        }
+        return lastKept;
+    }
+
+    /**
+     * This method moves all child pointers below an internal node into as
+     * few of its internal children as 'targetFill' allows, rotating the keys
+     * through the separators of the node like rebalanceInternalNodes(), and
+     * removes the emptied children.
+     * @param in: an internal node whose children are internal nodes
+     * @param targetFill: the fill factor to pack the children to
+     * @return the last child of 'in' after repacking
+     */
+    private Node repackInternalNodes(InternalNode in, double targetFill) {
+        int degree = in.degree;
+        InternalNode first = (InternalNode)in.childPointers[0];
+        int total = 0;
+        for (int i = 0; i < degree; i++) {
+            total += ((InternalNode)in.childPointers[i]).degree;
+        }
+        int perNode = Math.max(2, (int)(targetFill * first.maxDegree));
+        int needed = Math.max(1, (total + perNode - 1) / perNode);
+        needed = Math.min(needed, Math.max(1, total / first.minDegree));
+        if (needed >= degree) { return in.childPointers[degree - 1]; }
+
+        // Gather all keys and pointers, with the separators of 'in' in between
+        Integer[] keys = new Integer[total - 1];
+        Node[] pointers = new Node[total];
+        int count = 0;
+        for (int i = 0; i < degree; i++) {
+            InternalNode child = (InternalNode)in.childPointers[i];
+            if (i > 0) { keys[count - 1] = in.keys[i - 1]; }
+            System.arraycopy(child.keys, 0, keys, count, child.degree - 1);
+            System.arraycopy(child.childPointers, 0, pointers, count, child.degree);
+            count += child.degree;
+            Arrays.fill(child.keys, null);
+            Arrays.fill(child.childPointers, null);
+        }
+        int from = 0;
+        for (int i = 0; i < needed; i++) {
+            InternalNode child = (InternalNode)in.childPointers[i];
+            int childDegree = total / needed + ((i < total % needed) ? 1 : 0);
+            System.arraycopy(keys, from, child.keys, 0, childDegree - 1);
+            System.arraycopy(pointers, from, child.childPointers, 0, childDegree);
+            child.degree = childDegree;
+            for (int j = 0; j < childDegree; j++) {
+                child.childPointers[j].parent = child;
+            }
+            if (i > 0) { in.keys[i - 1] = keys[from - 1]; }
+            from += childDegree;
+        }
+
+        // Unlink the emptied children, they are the last children of 'in'
+        InternalNode lastKept = (InternalNode)in.childPointers[needed - 1];
+        InternalNode lastRemoved = (InternalNode)in.childPointers[degree - 1];
+        lastKept.rightSibling = lastRemoved.rightSibling;
+        if (lastKept.rightSibling != null) {
+            lastKept.rightSibling.leftSibling = lastKept;
+        }
+        for (int i = degree - 1; i >= needed; i--) {
+            Node removed = in.childPointers[i];
+            removeChildAt(in, i);
+            removed.parent = null;
+        }
+        return lastKept;
+    }
+
+    /**
+     * This method builds a read-only copy of the leaf level in which the keys
+     * are frame-of-reference encoded and bit-packed in blocks. It is meant
+     * for large, rarely changing indexes: the copy answers point and range
+     * lookups in a fraction of the memory and the tree itself can be dropped.
+     * Later changes to the tree are not reflected in the copy.
+     * @param blockSize: the number of keys per block, e.g. 128
+     * @return the compressed copy of the current dictionary pairs
+     */
+    public CompressedLeafIndex compress(int blockSize) {
+        return new CompressedLeafIndex(this.firstLeaf, blockSize);
+    }
+
+    /**
+     * This method copies the dictionary pairs into a Gorilla compressed time
+     * series, treating keys as timestamps. Timestamps are delta-of-delta
+     * encoded and values are XOR encoded against their predecessor, which
+     * makes regularly sampled metrics take a few bits per sample. New samples
+     * with ascending timestamps can be appended to the copy directly.
+     * @param blockSize: the number of samples per block, e.g. 256
+     * @return the compressed copy of the current dictionary pairs
+     */
+    public GorillaTimeSeries compressTimeSeries(int blockSize) {
+        return new GorillaTimeSeries(this.firstLeaf, blockSize);
+    }
+
+    /**
+     * This method switches deletes to tombstone mode: delete() only marks the
+     * dictionary pair as deleted and returns, and compact() is triggered once
+     * the fraction of tombstones among all pairs exceeds the threshold.
+     * @param compactionThreshold: the fraction of dead pairs, e.g. 0.25, that
+     *                             triggers a compaction
+     */
+    public void enableTombstoneDeletes(double compactionThreshold) {
+        if (compactionThreshold <= 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException("compactionThreshold must be within (0, 1]");
+        }
+        this.tombstoneDeletes = true;
+        this.compactionThreshold = compactionThreshold;
+        this.pairCount = 0;
+        this.tombstoneCount = 0;
+        for (LeafNode ln = this.firstLeaf; ln != null; ln = ln.rightSibling) {
+            this.pairCount += ln.numPairs;
+        }
+    }
+
+    /**
+     * This method compacts away all pending tombstones and switches deletes
+     * back to immediate removal.
+     */
+    public void disableTombstoneDeletes() {
+        if (this.tombstoneDeletes) {
+            compact();
+            this.tombstoneDeletes = false;
+        }
+    }
+
+    /**
+     * This method determines if a node has to be rebalanced. Unlike
+     * LeafNode.isDeficient(), an empty leaf is always considered deficient.
+     * @param node: a LeafNode or InternalNode
+     * @return a boolean indicating whether or not the node is deficient
+     */
+    private boolean isNodeDeficient(Node node) {
+        if (node instanceof LeafNode) {
+            LeafNode ln = (LeafNode)node;
+            return ln.numPairs == 0 || ln.isDeficient();
+        }
+        return ((InternalNode)node).isDeficient();
+    }
+
+    /**
+     * This method removes the child pointer at 'index' (index > 0) together
+     * with the key to its left from an InternalNode, shifting the remaining
+     * keys and pointers to the left.
+     * @param in: the InternalNode whose child pointer is removed
+     * @param index: the index of the child pointer to remove
+     */
+    private void removeChildAt(InternalNode in, int index) {
+        for (int i = index; i < in.degree - 1; i++) {
+            in.childPointers[i] = in.childPointers[i + 1];
+            in.keys[i - 1] = in.keys[i];
+        }
+        in.childPointers[in.degree - 1] = null;
+        in.keys[in.degree - 2] = null;
+        in.degree--;
+    }
+
+    /**
+     * This method replaces a root with a single child by that child until the
+     * root has at least two children, and marks the B+ tree as empty once its
+     * only leaf holds no dictionary pairs.
+     * @return the number of root nodes that were removed
+     */
+    private int collapseRoot() {
+        int removed = 0;
+        while (this.root != null && this.root.degree == 1) {
+            removed++;
+            Node child = this.root.childPointers[0];
+            child.parent = null;
+            if (child instanceof InternalNode) {
+                this.root = (InternalNode)child;
+            } else {
+                this.root = null;
+                this.firstLeaf = (LeafNode)child;
+            }
+        }
+        if (this.root == null && this.firstLeaf != null && this.firstLeaf.numPairs == 0) {
+            this.firstLeaf = null;
+        }
+        return removed;
+    }
+
+    /**
+     * This method remedies the deficiency of a node by redistributing with or
+     * merging into an adjacent sibling under the same parent, and repeats the
+     * process a level up if the parent becomes deficient.
+     * @param node: a possibly deficient LeafNode or InternalNode
+     * @return the number of nodes that were merged away or collapsed
+     */
+    private int rebalance(Node node) {
+        InternalNode parent = node.parent;
+        if (parent == null) {
+            return collapseRoot();
+        }
+        if (!isNodeDeficient(node)) { return 0; }
+
+        // A parent with a single child has to be fixed first to give node a sibling
+        int removed = 0;
+        if (parent.degree == 1) {
+            removed += rebalance(parent);
+            parent = node.parent;
+            if (parent == null) {
+                return removed + collapseRoot();
+            }
+            if (parent.degree == 1) { return removed; }
+        }
+
+        int index = parent.findIndexOfPointer(node);
+        int separator = (index > 0) ? index - 1 : 0;
+        Node left = parent.childPointers[separator];
+        Node right = parent.childPointers[separator + 1];
+        int degree = parent.degree;
+        if (node instanceof LeafNode) {
+            rebalanceLeaves(parent, separator, (LeafNode)left, (LeafNode)right);
+        } else {
+            rebalanceInternalNodes(parent, separator, (InternalNode)left, (InternalNode)right);
+        }
+        removed += degree - parent.degree;
+
+        if (parent.isDeficient()) {
+            removed += rebalance(parent);
+        }
+        return removed;
+    }
+
+    /**
+     * This method evens out two adjacent leaves if they hold enough pairs for
+     * two leaves, otherwise it merges the right leaf into the left one.
+     * @param parent: the common parent of both leaves
+     * @param separator: the index of the key in parent between both leaves
+     * @param left: the left leaf
+     * @param right: the right leaf
+     */
+    private void rebalanceLeaves(InternalNode parent, int separator, LeafNode left, LeafNode right) {
+        int total = left.numPairs + right.numPairs;
+        int min = Math.max(1, left.minNumPairs);
+        if (total >= 2 * min) {
+
+            // Redistribute the pairs evenly between both leaves
+            DictionaryPair[] all = new DictionaryPair[total];
+            System.arraycopy(left.dictionary, 0, all, 0, left.numPairs);
+            System.arraycopy(right.dictionary, 0, all, left.numPairs, right.numPairs);
+            int leftNumPairs = total / 2;
+            Arrays.fill(left.dictionary, null);
+            Arrays.fill(right.dictionary, null);
+            System.arraycopy(all, 0, left.dictionary, 0, leftNumPairs);
+            System.arraycopy(all, leftNumPairs, right.dictionary, 0, total - leftNumPairs);
+            left.numPairs = leftNumPairs;
+            right.numPairs = total - leftNumPairs;
+            parent.keys[separator] = right.dictionary[0].key;
+
+        } else {
+
+            // Merge the right leaf into the left one and unlink it
+            System.arraycopy(right.dictionary, 0, left.dictionary, left.numPairs, right.numPairs);
+            left.numPairs = total;
+            left.rightSibling = right.rightSibling;
+            if (left.rightSibling != null) {
+                left.rightSibling.leftSibling = left;
+            }
+            removeChildAt(parent, separator + 1);
+            right.parent = null;
+        }
+    }
+
+    /**
+     * This method evens out two adjacent internal nodes if they hold enough
+     * child pointers for two nodes, otherwise it merges the right node into
+     * the left one. The key in parent between both nodes is rotated through.
+     * @param parent: the common parent of both internal nodes
+     * @param separator: the index of the key in parent between both nodes
+     * @param left: the left internal node
+     * @param right: the right internal node
+     */
+    private void rebalanceInternalNodes(InternalNode parent, int separator, InternalNode left, InternalNode right) {
+        int total = left.degree + right.degree;
+
+        // Gather all keys and pointers, with the parent key in between
+        Integer[] keys = new Integer[total - 1];
+        Node[] pointers = new Node[total];
+        System.arraycopy(left.keys, 0, keys, 0, left.degree - 1);
+        keys[left.degree - 1] = parent.keys[separator];
+        System.arraycopy(right.keys, 0, keys, left.degree, right.degree - 1);
+        System.arraycopy(left.childPointers, 0, pointers, 0, left.degree);
+        System.arraycopy(right.childPointers, 0, pointers, left.degree, right.degree);
+        Arrays.fill(left.keys, null);
+        Arrays.fill(left.childPointers, null);
+        Arrays.fill(right.keys, null);
+        Arrays.fill(right.childPointers, null);
+
+        if (total >= 2 * left.minDegree) {
+
+            // Redistribute the pointers evenly between both nodes
+            int leftDegree = total / 2;
+            System.arraycopy(keys, 0, left.keys, 0, leftDegree - 1);
+            System.arraycopy(pointers, 0, left.childPointers, 0, leftDegree);
+            parent.keys[separator] = keys[leftDegree - 1];
+            System.arraycopy(keys, leftDegree, right.keys, 0, total - leftDegree - 1);
+            System.arraycopy(pointers, leftDegree, right.childPointers, 0, total - leftDegree);
+            left.degree = leftDegree;
+            right.degree = total - leftDegree;
+            for (int i = 0; i < right.degree; i++) {
+                right.childPointers[i].parent = right;
+            }
+
+        } else {
+
+            // Merge the right node into the left one and unlink it
+            System.arraycopy(keys, 0, left.keys, 0, total - 1);
+            System.arraycopy(pointers, 0, left.childPointers, 0, total);
+            left.degree = total;
+            left.rightSibling = right.rightSibling;
+            if (left.rightSibling != null) {
+                left.rightSibling.leftSibling = left;
+            }
+            removeChildAt(parent, separator + 1);
+            right.parent = null;
+        }
+        for (int i = 0; i < left.degree; i++) {
+            left.childPointers[i].parent = left;
+        }
+    }
+
+    /**
+     * This method removes all dictionary pairs with lo <= key <= hi from a
+     * leaf, keeping the remaining pairs packed at the front of the dictionary.
+     * @param ln: the leaf to trim
+     * @param lo: the lower bound of the range (inclusive)
+     * @param hi: the upper bound of the range (inclusive)
+     * @param removed: removed[0] counts all removed pairs, removed[1] the
+     *                 removed tombstones
+     */
+    private void trimLeaf(LeafNode ln, int lo, int hi, long[] removed) {
+        int kept = 0;
+        for (int i = 0; i < ln.numPairs; i++) {
+            DictionaryPair dp = ln.dictionary[i];
+            if (lo <= dp.key && dp.key <= hi) {
+                removed[0]++;
+                if (dp.tombstone) { removed[1]++; }
+            } else {
+                ln.dictionary[kept++] = dp;
+            }
+        }
+        Arrays.fill(ln.dictionary, kept, ln.dictionary.length, null);
+        ln.numPairs = kept;
+    }
+
     /*~~~~~~~~~~~~~~~~ API: DELETE, INSERT, SEARCH ~~~~~~~~~~~~~~~~*/
 
+    /**
+     * Given a range of keys, this method removes all dictionary pairs whose
+     * keys lie within the range. Only the two boundary leaves are trimmed;
+     * the leaves between them are unlinked from the leaf list and the
+     * internal subtrees covering them are pruned as a whole. The tree is
+     * rebalanced once along the two boundary paths afterwards.
+     * @param lo: the lower bound of the range (inclusive)
+     * @param hi: the upper bound of the range (inclusive)
+     */
+    public void deleteRange(int lo, int hi) {
+        if (isEmpty() || lo > hi) { return; }
+
+        // Leaves may be merged away, the rightmost leaf is looked up again on the next append
+        this.lastLeaf = null;
+        this.structureVersion++;
+        if (this.hotKeyCache != null) {
+            this.hotKeyCache.invalidateRange(lo, hi);
+        }
+
+        long[] removed = new long[2];
+        LeafNode leftLeaf = (this.root == null) ? this.firstLeaf : findLeafNode(lo);
+        LeafNode rightLeaf = (this.root == null) ? this.firstLeaf : findLeafNode(hi);
+        trimLeaf(leftLeaf, lo, hi, removed);
+
+        if (leftLeaf == rightLeaf) {
+            rebalance(leftLeaf);
+        } else {
+            trimLeaf(rightLeaf, lo, hi, removed);
+
+            // Count the pairs within the leaves that are dropped as a whole,
+            // only the tombstone counters and the Bloom filter need them
+            if (this.tombstoneDeletes || this.bloomFilter != null) {
+                for (LeafNode ln = leftLeaf.rightSibling; ln != rightLeaf; ln = ln.rightSibling) {
+                    removed[0] += ln.numPairs;
+                    for (int i = 0; i < ln.numPairs; i++) {
+                        if (ln.dictionary[i].tombstone) { removed[1]++; }
+                    }
+                }
+            }
+
+            // Walk up both boundary paths, pruning everything between them
+            ArrayList<Node> leftPath = new ArrayList<Node>();
+            ArrayList<Node> rightPath = new ArrayList<Node>();
+            Node a = leftLeaf;
+            Node b = rightLeaf;
+            while (true) {
+                leftPath.add(a);
+                rightPath.add(b);
+                if (a instanceof LeafNode) {
+                    ((LeafNode)a).rightSibling = (LeafNode)b;
+                    ((LeafNode)b).leftSibling = (LeafNode)a;
+                } else {
+                    ((InternalNode)a).rightSibling = (InternalNode)b;
+                    ((InternalNode)b).leftSibling = (InternalNode)a;
+                }
+
+                InternalNode pa = a.parent;
+                InternalNode pb = b.parent;
+                int ia = pa.findIndexOfPointer(a);
+                if (pa == pb) {
+
+                    // Lowest common ancestor: drop the children between a and b
+                    int ib = pb.findIndexOfPointer(b);
+                    for (int i = ia + 1; i < ib; i++) {
+                        removeChildAt(pa, ia + 1);
+                    }
+                    leftPath.add(pa);
+                    break;
+                }
+
+                // Drop all children of pa right of a
+                Arrays.fill(pa.childPointers, ia + 1, pa.childPointers.length, null);
+                Arrays.fill(pa.keys, ia, pa.keys.length, null);
+                pa.degree = ia + 1;
+
+                // Drop all children of pb left of b
+                int ib = pb.findIndexOfPointer(b);
+                int degree = pb.degree - ib;
+                System.arraycopy(pb.childPointers, ib, pb.childPointers, 0, degree);
+                Arrays.fill(pb.childPointers, degree, pb.childPointers.length, null);
+                System.arraycopy(pb.keys, ib, pb.keys, 0, degree - 1);
+                Arrays.fill(pb.keys, degree - 1, pb.keys.length, null);
+                pb.degree = degree;
+
+                a = pa;
+                b = pb;
+            }
+
+            // Rebalance once, bottom-up along both boundary paths
+            for (int i = 0; i < leftPath.size(); i++) {
+                if (i < rightPath.size() && isAttached(rightPath.get(i))) {
+                    rebalance(rightPath.get(i));
+                }
+                if (isAttached(leftPath.get(i))) {
+                    rebalance(leftPath.get(i));
+                }
+            }
+        }
+        collapseRoot();
+
+        // Keep the optional structures in sync
+        if (this.tombstoneDeletes) {
+            this.pairCount -= removed[0];
+            this.tombstoneCount -= removed[1];
+        }
+        if (this.learnedIndex != null) {
+            this.learnedIndex.invalidate();
+        }
+        if (this.bloomFilter != null) {
+            this.bloomFilter.recordDeletes(removed[0] - removed[1]);
+        }
+    }
+
+    /**
+     * This method determines if a node is still part of the B+ tree, i.e. it
+     * was not merged away during rebalancing.
+     * @param node: a LeafNode or InternalNode
+     * @return a boolean indicating whether or not the node is still reachable
+     */
+    private boolean isAttached(Node node) {
+        if (node.parent != null) { return true; }
+        return node == this.root || (this.root == null && node == this.firstLeaf);
+    }
+
     /**
      * Given a key, this method will remove the dictionary pair with the
      * corresponding key from the B+ tree.
@@ -412,6 +1062,23 @@ public class BPlusTree {
      *             pair
      */
     public void delete(int key) {
+        delete(key, null);
+    }
+
+    /**
+     * This method deletes the dictionary pair of 'key', starting from a leaf
+     * that is already known to cover 'key'.
+     * @param key: an integer key that corresponds with an existing dictionary pair
+     * @param leaf: the leaf that covers 'key', or null to descend from the root
+     */
+    private void delete(int key, LeafNode leaf) {
+
+        // Leaves may be merged away, the rightmost leaf is looked up again on the next append
+        this.lastLeaf = null;
+        if (this.hotKeyCache != null) {
+            this.hotKeyCache.invalidate(key);
+        }
+
         if (isEmpty()) {
 
             /* Flow of execution goes here when B+ tree has no dictionary pairs */
@@ -421,7 +1088,7 @@ public class BPlusTree {
         } else {
 
             // Get leaf node and attempt to find index of key to delete
-            LeafNode ln = (this.root == null) ? this.firstLeaf : findLeafNode(key);
+            LeafNode ln = (leaf != null) ? leaf : (this.root == null) ? this.firstLeaf : findLeafNode(key);
             int dpIndex = binarySearch(ln.dictionary, ln.numPairs, key);
 
 
@@ -431,114 +1098,77 @@ public class BPlusTree {
 
                 System.err.println("Invalid Delete: Key unable to be found.");
 
-            } else {
-
-                // Successfully delete the dictionary pair
-                ln.delete(dpIndex);
-
-                // Check for deficiencies
-                if (ln.isDeficient()) {
-
-                    LeafNode sibling;
-                    InternalNode parent = ln.parent;
+            } else if (this.tombstoneDeletes) {
 
-                    // Borrow: First, check the left sibling, then the right sibling
-                    if (ln.leftSibling != null &&
-                            ln.leftSibling.parent == ln.parent &&
-                            ln.leftSibling.isLendable()) {
+                /* Flow of execution goes here in tombstone mode: mark the pair as
+                   deleted and defer the rebalancing to compact() */
 
-                        sibling = ln.leftSibling;
-                        DictionaryPair borrowedDP = sibling.dictionary[sibling.numPairs - 1];
+                DictionaryPair dp = ln.dictionary[dpIndex];
+                if (dp.tombstone) {
+                    System.err.println("Invalid Delete: Key unable to be found.");
+                    return;
+                }
+                dp.tombstone = true;
+                this.tombstoneCount++;
+                if (this.bloomFilter != null) {
+                    this.bloomFilter.recordDelete();
+                }
+                if (this.tombstoneCount > this.compactionThreshold * this.pairCount) {
+                    compact();
+                }
 
-						/* Insert borrowed dictionary pair, sort dictionary,
-						   and delete dictionary pair from sibling */
-                        ln.insert(borrowedDP);
-                        sortDictionary(ln.dictionary);
-                        sibling.delete(sibling.numPairs - 1);
+            } else {
 
-                        // Update key in parent if necessary
-                        int pointerIndex = findIndexOfPointer(parent.childPointers, ln);
-                        if (!(borrowedDP.key >= parent.keys[pointerIndex - 1])) {
-                            parent.keys[pointerIndex - 1] = ln.dictionary[0].key;
-                        }
+                // Successfully delete the dictionary pair
+                this.structureVersion++;
+                int oldFirstKey = ln.dictionary[0].key;
+                ln.delete(dpIndex);
+                sortDictionary(ln.dictionary);
+                if (this.bloomFilter != null) {
+                    this.bloomFilter.recordDelete();
+                }
 
-                    } else if (ln.rightSibling != null &&
-                            ln.rightSibling.parent == ln.parent &&
-                            ln.rightSibling.isLendable()) {
+                if (this.root == null) {
 
-                        sibling = ln.rightSibling;
-                        DictionaryPair borrowedDP = sibling.dictionary[0];
+					/* Flow of execution goes here when the leaf is the only
+					   node of the B+ tree */
 
-						/* Insert borrowed dictionary pair, sort dictionary,
-					       and delete dictionary pair from sibling */
-                        ln.insert(borrowedDP);
-                        sibling.delete(0);
-                        sortDictionary(sibling.dictionary);
+                    if (ln.numPairs == 0) {
 
-                        // Update key in parent if necessary
-                        int pointerIndex = findIndexOfPointer(parent.childPointers, ln);
-                        if (!(borrowedDP.key < parent.keys[pointerIndex])) {
-                            parent.keys[pointerIndex] = sibling.dictionary[0].key;
+                        // Set first leaf as null to indicate B+ tree is empty
+                        this.firstLeaf = null;
+                        if (this.learnedIndex != null) {
+                            this.learnedIndex.leafRemoved(ln, oldFirstKey);
                         }
-
+                    } else if (this.learnedIndex != null) {
+                        this.learnedIndex.leafUpdated(ln, oldFirstKey);
                     }
 
-                    // Merge: First, check the left sibling, then the right sibling
-                    else if (ln.leftSibling != null &&
-                            ln.leftSibling.parent == ln.parent &&
-                            ln.leftSibling.isMergeable()) {
-
-                        sibling = ln.leftSibling;
-                        int pointerIndex = findIndexOfPointer(parent.childPointers, ln);
-
-                        // Remove key and child pointer from parent
-                        parent.removeKey(pointerIndex - 1);
-                        parent.removePointer(ln);
-
-                        // Update sibling pointer
-                        sibling.rightSibling = ln.rightSibling;
-
-                        // Check for deficiencies in parent
-                        if (parent.isDeficient()) {
-                            handleDeficiency(parent);
-                        }
-
-                    } else if (ln.rightSibling != null &&
-                            ln.rightSibling.parent == ln.parent &&
-                            ln.rightSibling.isMergeable()) {
-
-                        sibling = ln.rightSibling;
-                        int pointerIndex = findIndexOfPointer(parent.childPointers, ln);
-
-                        // Remove key and child pointer from parent
-                        parent.removeKey(pointerIndex);
-                        parent.removePointer(pointerIndex);
+                } else if (isNodeDeficient(ln)) {
 
-                        // Update sibling pointer
-                        sibling.leftSibling = ln.leftSibling;
-                        if (sibling.leftSibling == null) {
-                            firstLeaf = sibling;
-                        }
+					/* Borrow from or merge with an adjacent leaf under the same
+					   parent, and fix the internal levels on the way up */
 
-                        if (parent.isDeficient()) {
-                            handleDeficiency(parent);
+                    InternalNode parent = ln.parent;
+                    int index = parent.findIndexOfPointer(ln);
+                    LeafNode left = (LeafNode)parent.childPointers[(index > 0) ? index - 1 : 0];
+                    LeafNode right = (LeafNode)parent.childPointers[(index > 0) ? index : 1];
+                    int leftFirstKey = (left == ln) ? oldFirstKey : left.dictionary[0].key;
+                    int rightFirstKey = (right == ln) ? oldFirstKey : right.dictionary[0].key;
+                    rebalance(ln);
+
+                    // The right leaf may be merged away, both may have a new smallest key
+                    if (this.learnedIndex != null) {
+                        if (right.parent == null) {
+                            this.learnedIndex.leafRemoved(right, rightFirstKey);
+                        } else {
+                            this.learnedIndex.leafUpdated(right, rightFirstKey);
                         }
+                        this.learnedIndex.leafUpdated(left, leftFirstKey);
                     }
 
-                } else if (this.root == null && this.firstLeaf.numPairs == 0) {
-
-					/* Flow of execution goes here when the deleted dictionary
-					   pair was the only pair within the tree */
-
-                    // Set first leaf as null to indicate B+ tree is empty
-                    this.firstLeaf = null;
-
-                } else {
-
-					/* The dictionary of the LeafNode object may need to be
-					   sorted after a successful delete */
-                    sortDictionary(ln.dictionary);
-
+                } else if (this.learnedIndex != null) {
+                    this.learnedIndex.leafUpdated(ln, oldFirstKey);
                 }
             }
         }
@@ -551,33 +1181,106 @@ public class BPlusTree {
      * @param value: a floating point number to be used in the dictionary pair
      */
     public void insert(int key, double value){
+        insert(key, value, null);
+    }
+
+    /**
+     * This method inserts a dictionary pair, starting from a leaf that is
+     * already known to cover 'key'.
+     * @param key: an integer key to be used in the dictionary pair
+     * @param value: a floating point number to be used in the dictionary pair
+     * @param leaf: the leaf that covers 'key', or null to descend from the root
+     */
+    private void insert(int key, double value, LeafNode leaf) {
+        if (this.bloomFilter != null) {
+            this.bloomFilter.put(key);
+        }
+        if (this.hotKeyCache != null) {
+            this.hotKeyCache.invalidate(key);
+        }
+
+        // Keys greater than every key go to the rightmost leaf without a descent
+        LeafNode appendLeaf = findAppendLeaf(key);
+
+        if (this.tombstoneDeletes) {
+
+            // Revive a deleted dictionary pair in place instead of inserting it again
+            if (!isEmpty() && appendLeaf == null) {
+                LeafNode ln = (leaf != null) ? leaf : (this.root == null) ? this.firstLeaf : findLeafNode(key);
+                int index = binarySearch(ln.dictionary, ln.numPairs, key);
+                if (index >= 0 && ln.dictionary[index].tombstone) {
+                    ln.dictionary[index].value = value;
+                    ln.dictionary[index].tombstone = false;
+                    this.tombstoneCount--;
+                    return;
+                }
+
+                // Insert into the same leaf below instead of descending again
+                leaf = ln;
+            }
+            this.pairCount++;
+        }
+
         if (isEmpty()) {
 
             /* Flow of execution goes here only when first insert takes place */
 
             // Create leaf node as first node in B plus tree (root is null)
+            this.structureVersion++;
             LeafNode ln = new LeafNode(this.m, new DictionaryPair(key, value));
 
             // Set as first leaf node (can be used later for in-order leaf traversal)
             this.firstLeaf = ln;
+            if (this.learnedIndex != null) {
+                this.learnedIndex.invalidate();
+            }
 
         } else {
 
             // Find leaf node to insert into
-            LeafNode ln = (this.root == null) ? this.firstLeaf :
-                    findLeafNode(key);
+            LeafNode ln = (appendLeaf != null) ? appendLeaf : (leaf != null) ? leaf :
+                    (this.root == null) ? this.firstLeaf : findLeafNode(key);
+            int oldFirstKey = (ln.numPairs > 0) ? ln.dictionary[0].key : key;
 
-            // Insert into leaf node fails if node becomes overfull
-            if (!ln.insert(new DictionaryPair(key, value))) {
+            if (ln == appendLeaf && !ln.isFull()) {
 
-                // Sort all the dictionary pairs with the included pair to be inserted
+                // The key is greater than all keys of the leaf, so it simply goes last
                 ln.dictionary[ln.numPairs] = new DictionaryPair(key, value);
                 ln.numPairs++;
-                sortDictionary(ln.dictionary);
 
-                // Split the sorted pairs into two halves
-                int midpoint = getMidpoint();
-                DictionaryPair[] halfDict = splitDictionary(ln, midpoint);
+            // Insert into leaf node fails if node becomes overfull
+            } else if (ln.insert(new DictionaryPair(key, value))) {
+
+                // Keep the learned index in sync with the smallest key of the leaf
+                if (this.learnedIndex != null) {
+                    this.learnedIndex.leafUpdated(ln, oldFirstKey);
+                }
+
+            } else {
+
+                this.structureVersion++;
+                DictionaryPair[] halfDict;
+                if (ln == appendLeaf) {
+
+                    /* Appending at the right edge: the full leaf stays as it is
+                       and the new pair starts the next leaf (a 100/0 split),
+                       so leaves filled by ascending keys are left full instead
+                       of half empty. Only the rightmost leaf stays below the
+                       minimum occupancy until the following appends fill it */
+                    halfDict = new DictionaryPair[this.m];
+                    halfDict[0] = new DictionaryPair(key, value);
+
+                } else {
+
+                    // Sort all the dictionary pairs with the included pair to be inserted
+                    ln.dictionary[ln.numPairs] = new DictionaryPair(key, value);
+                    ln.numPairs++;
+                    sortDictionary(ln.dictionary);
+
+                    // Split the sorted pairs into two halves
+                    int midpoint = getMidpoint();
+                    halfDict = splitDictionary(ln, midpoint);
+                }
 
                 if (ln.parent == null) {
 
@@ -615,6 +1318,11 @@ public class BPlusTree {
                 ln.rightSibling = newLeafNode;
                 newLeafNode.leftSibling = ln;
 
+                // Incrementally add the new leaf to the learned index
+                if (this.learnedIndex != null) {
+                    this.learnedIndex.leafSplit(ln, oldFirstKey, newLeafNode);
+                }
+
                 if (this.root == null) {
 
                     // Set the root of B+ tree to be the parent
@@ -649,19 +1357,185 @@ public class BPlusTree {
         // If B+ tree is completely empty, simply return null
         if (isEmpty()) { return null; }
 
+        // Hot keys are answered by the cache without a descent
+        if (this.hotKeyCache != null) {
+            Double cached = this.hotKeyCache.get(key);
+            if (cached != null) { return cached; }
+        }
+
+        // Skip the descent if the Bloom filter rules the key out
+        if (this.bloomFilter != null) {
+            if (this.bloomFilter.needsRebuild()) {
+                this.bloomFilter.rebuild(this.firstLeaf);
+            }
+            if (!this.bloomFilter.mightContain(key)) { return null; }
+        }
+
         // Find leaf node that holds the dictionary key
-        LeafNode ln = (this.root == null) ? this.firstLeaf : findLeafNode(key);
+        LeafNode ln = findLeafNodeForSearch(key);
 
         // Perform binary search to find index of key within dictionary
         DictionaryPair[] dps = ln.dictionary;
         int index = binarySearch(dps, ln.numPairs, key);
 
-        // If index negative, the key doesn't exist in B+ tree
-        if (index < 0) {
+        // If index negative or the pair is a tombstone, the key doesn't exist in B+ tree
+        if (index < 0 || dps[index].tombstone) {
+            if (this.bloomFilter != null) {
+                this.bloomFilter.recordFalsePositive();
+            }
             return null;
         } else {
-            return dps[index].value;
+            Double value = dps[index].value;
+            if (this.hotKeyCache != null) {
+                this.hotKeyCache.put(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * This method replaces the value of an existing dictionary pair in
+     * place. Unlike insert(), it never adds a second pair for the same key,
+     * and unlike delete() followed by insert() it leaves the structure of the
+     * tree untouched.
+     * @param key: the key whose value is replaced
+     * @param value: the new value
+     * @return false if the key doesn't exist in the B+ tree
+     */
+    public boolean update(int key, double value) {
+        if (isEmpty()) { return false; }
+        LeafNode ln = findLeafNodeForSearch(key);
+        int index = binarySearch(ln.dictionary, ln.numPairs, key);
+        if (index < 0 || ln.dictionary[index].tombstone) { return false; }
+        ln.dictionary[index].value = value;
+        if (this.hotKeyCache != null) {
+            this.hotKeyCache.invalidate(key);
+        }
+        return true;
+    }
+
+    /**
+     * This method looks up a batch of keys at once. The keys are sorted
+     * first, so consecutive lookups share their descents: the path of
+     * internal nodes is kept on a stack and a lookup only climbs back to the
+     * lowest node whose key range still covers the next key. Keys landing in
+     * the same leaf skip the descent entirely and continue the leaf search
+     * from the position of the previous key.
+     * @param keys: the keys to look up, duplicates are allowed
+     * @param values: receives the value of keys[i] at index i
+     * @param missingValue: the value written for keys that don't exist in the B+ tree
+     * @return the number of keys that were found
+     */
+    public int getAll(int[] keys, double[] values, double missingValue) {
+        if (values.length < keys.length) {
+            throw new IllegalArgumentException("values array is shorter than keys array");
+        }
+        if (isEmpty()) {
+            Arrays.fill(values, 0, keys.length, missingValue);
+            return 0;
+        }
+        if (this.bloomFilter != null && this.bloomFilter.needsRebuild()) {
+            this.bloomFilter.rebuild(this.firstLeaf);
+        }
+
+        // Sort key/index pairs by key, so results can be written back in the caller's order
+        long[] probes = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            probes[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(probes);
+
+        /* path[d] is the internal node at depth d of the current descent,
+           all keys of its subtree are smaller than upperBounds[d] */
+        int height = 0;
+        for (Node node = this.root; node instanceof InternalNode; node = ((InternalNode) node).childPointers[0]) {
+            height++;
+        }
+        InternalNode[] path = new InternalNode[height];
+        long[] upperBounds = new long[height];
+        int depth = 0;
+        LeafNode ln = null;
+        long leafUpperBound = Long.MAX_VALUE;
+        if (this.root == null) {
+            ln = this.firstLeaf;
+        } else {
+            path[0] = this.root;
+            upperBounds[0] = Long.MAX_VALUE;
+        }
+
+        int found = 0;
+        int pos = 0;
+        for (long probe : probes) {
+            int key = (int) (probe >> 32);
+            int index = (int) probe;
+
+            if (this.bloomFilter != null && !this.bloomFilter.mightContain(key)) {
+                values[index] = missingValue;
+                continue;
+            }
+
+            // Probes are ascending, so only the upper bound has to be checked
+            if (ln == null || key >= leafUpperBound) {
+                while (key >= upperBounds[depth]) {
+                    depth--;
+                }
+                InternalNode in = path[depth];
+                while (true) {
+                    // Binary search for the first separator key greater than key
+                    int i = 0;
+                    int j = in.degree - 1;
+                    while (i < j) {
+                        int middle = (i + j) >>> 1;
+                        if (key < in.keys[middle]) {
+                            j = middle;
+                        } else {
+                            i = middle + 1;
+                        }
+                    }
+                    long upperBound = (i < in.degree - 1) ? in.keys[i] : upperBounds[depth];
+                    Node child = in.childPointers[i];
+                    if (child instanceof LeafNode) {
+                        ln = (LeafNode) child;
+                        leafUpperBound = upperBound;
+                        pos = 0;
+                        break;
+                    }
+                    in = (InternalNode) child;
+                    path[++depth] = in;
+                    upperBounds[depth] = upperBound;
+                }
+            }
+
+            // Binary search the rest of the leaf, smaller keys were passed by earlier probes
+            DictionaryPair[] dps = ln.dictionary;
+            int low = pos;
+            int high = ln.numPairs - 1;
+            int match = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int k = dps[middle].key;
+                if (k < key) {
+                    low = middle + 1;
+                } else if (k > key) {
+                    high = middle - 1;
+                } else {
+                    match = middle;
+                    break;
+                }
+            }
+            if (match >= 0 && !dps[match].tombstone) {
+                values[index] = dps[match].value;
+                found++;
+                pos = match;
+            } else {
+                values[index] = missingValue;
+                pos = (match >= 0) ? match : low;
+                if (this.bloomFilter != null) {
+                    this.bloomFilter.recordFalsePositive();
+                }
+            }
         }
+        return found;
     }
 
     /**
@@ -690,6 +1564,9 @@ public class BPlusTree {
 				   as this the indicates the end of non-null values */
                 if (dp == null) { break; }
 
+                // Skip dictionary pairs that were deleted in tombstone mode
+                if (dp.tombstone) { continue; }
+
                 // Include value if its key fits within the provided range
                 if (lowerBound <= dp.key && dp.key <= upperBound) {
                     values.add(dp.value);
@@ -705,6 +1582,139 @@ public class BPlusTree {
         return values;
     }
 
+    /**
+     * This method creates a cursor that remembers its position between
+     * operations, so that searches, inserts and deletes of nearby keys don't
+     * descend from the root again. See Cursor.
+     * @return a new cursor, positioned on nothing
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * This method enables the learned index layer for point lookups. The
+     * index is built lazily on the next search and is kept up to date
+     * incrementally as leaves split, merge or change their smallest key.
+     * @param maxError: the error bound (in leaves) of the piecewise-linear model
+     */
+    public void enableLearnedIndex(int maxError) {
+        this.learnedIndex = new LearnedLeafIndex(maxError);
+    }
+
+    /**
+     * This method disables the learned index layer, so that all point lookups
+     * descend from the root again.
+     */
+    public void disableLearnedIndex() {
+        this.learnedIndex = null;
+    }
+
+    /**
+     * This method enables a blocked Bloom filter in front of point lookups, so
+     * that searches for absent keys return without descending the tree. The
+     * filter is built from the current leaves, maintained on insert and
+     * rebuilt lazily after deletes.
+     * @param falsePositiveRate: the targeted false positive rate, e.g. 0.01
+     * @param maxMemoryBytes: the upper bound of the memory used by the filter
+     * @param rebuildDeleteFraction: the fraction of deleted keys after which
+     *                               the filter is rebuilt, within (0, 1]
+     * @return the Bloom filter, which can be used to read its counters
+     */
+    public BlockedBloomFilter enableBloomFilter(double falsePositiveRate, long maxMemoryBytes,
+                                                double rebuildDeleteFraction) {
+        if (!(rebuildDeleteFraction > 0 && rebuildDeleteFraction <= 1)) {
+            throw new IllegalArgumentException("rebuildDeleteFraction must be within (0, 1]");
+        }
+        this.bloomFilter = new BlockedBloomFilter(falsePositiveRate, maxMemoryBytes, rebuildDeleteFraction);
+        this.bloomFilter.rebuild(this.firstLeaf);
+        return this.bloomFilter;
+    }
+
+    /**
+     * This method disables the Bloom filter in front of point lookups.
+     */
+    public void disableBloomFilter() {
+        this.bloomFilter = null;
+    }
+
+    /**
+     * @return the Bloom filter in front of point lookups, or null if disabled
+     */
+    public BlockedBloomFilter getBloomFilter() {
+        return this.bloomFilter;
+    }
+
+    /**
+     * This method enables a bounded CLOCK cache in front of point lookups.
+     * Keys found by search() are cached, and insert() and delete() drop the
+     * keys they touch from the cache.
+     * @param capacity: the maximum number of cached keys
+     * @return the cache, which can be used to read its hit rate
+     */
+    public IntHotKeyCache<Double> enableHotKeyCache(int capacity) {
+        this.hotKeyCache = new IntHotKeyCache<Double>(capacity);
+        return this.hotKeyCache;
+    }
+
+    /**
+     * This method disables the cache in front of point lookups.
+     */
+    public void disableHotKeyCache() {
+        this.hotKeyCache = null;
+    }
+
+    /**
+     * @return the cache in front of point lookups, or null if disabled
+     */
+    public IntHotKeyCache<Double> getHotKeyCache() {
+        return this.hotKeyCache;
+    }
+
+    /**
+     * This method reports the occupancy and estimated memory footprint of
+     * the tree, see TreeStats. Entry slots are the m-1 dictionary pairs of a
+     * leaf and the m-1 keys of an internal node; tombstoned pairs count as
+     * occupied. The heap bytes include the dictionary pairs and the boxed
+     * keys of internal nodes (except those in the Integer cache) but not the
+     * learned index or the Bloom filter.
+     * @return the report, collected by a parallel fork-join traversal
+     */
+    public TreeStats stats() {
+        Node top = (this.root != null) ? this.root : this.firstLeaf;
+        return TreeStats.collect(top, new TreeStats.NodeInspector<Node>() {
+            public int childCount(Node node) {
+                return (node instanceof InternalNode) ? ((InternalNode) node).degree : 0;
+            }
+
+            public Node child(Node node, int index) {
+                return ((InternalNode) node).childPointers[index];
+            }
+
+            public void inspect(Node node, int level, TreeStats stats) {
+                if (node instanceof InternalNode) {
+                    /* parent, three ints, two siblings, two arrays and the reference to the tree */
+                    InternalNode in = (InternalNode) node;
+                    long bytes = TreeStats.objectBytes(12 + 6 * TreeStats.REFERENCE)
+                            + TreeStats.arrayBytes(in.keys.length, TreeStats.REFERENCE)
+                            + TreeStats.arrayBytes(in.childPointers.length, TreeStats.REFERENCE);
+                    for (int i = 0; i < in.degree - 1; i++) {
+                        bytes += TreeStats.boxedKeyBytes(in.keys[i]);
+                    }
+                    stats.addNode(level, in.degree - 1, in.maxDegree - 1, bytes);
+                } else {
+                    /* parent, three ints, two siblings, the dictionary and the reference to the tree;
+                       a pair holds key, value, tombstone and the reference to the tree */
+                    LeafNode ln = (LeafNode) node;
+                    long bytes = TreeStats.objectBytes(12 + 5 * TreeStats.REFERENCE)
+                            + TreeStats.arrayBytes(ln.dictionary.length, TreeStats.REFERENCE)
+                            + ln.numPairs * TreeStats.objectBytes(4 + 8 + 1 + TreeStats.REFERENCE);
+                    stats.addNode(level, ln.numPairs, ln.maxNumPairs, bytes);
+                }
+            }
+        });
+    }
+
     /**
      * Constructor
      * @param m: the order (fanout) of the B+ tree
@@ -727,7 +1737,7 @@ public class BPlusTree {
      * all search/insert/delete operations. An internal node only holds keys; it
      * does not hold dictionary pairs.
      */
-    private class InternalNode extends Node {
+    class InternalNode extends Node {
         int maxDegree;
         int minDegree;
         int degree;
@@ -1019,6 +2029,7 @@ public class BPlusTree {
     public class DictionaryPair implements Comparable<DictionaryPair> {
         int key;
         double value;
+        boolean tombstone;
 
         /**
          * Constructor
@@ -1044,6 +2055,261 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * This class is a finger into the B+ tree that remembers the leaf of its
+     * last operation together with the path of internal nodes above it and
+     * the key range [low, high) every node on that path covers. An operation
+     * on a key within the range of the current leaf skips the descent
+     * entirely; any other key climbs the remembered path only up to the
+     * lowest node whose range still covers it and descends from there. Keys
+     * that are d leaves apart share all but about log_m(d) levels of their
+     * paths, so operations on nearby keys cost close to O(1) instead of a
+     * full descent from the root.
+     *
+     * Inserts and deletes made through the cursor keep it usable. Whenever
+     * the node structure changes (a split, merge, borrow or rebuild, made
+     * through this cursor or not) the remembered path is dropped and the next
+     * operation descends from the root again.
+     */
+    public class Cursor {
+        InternalNode[] path = new InternalNode[8];
+        int[] slots = new int[8];
+        long[] lows = new long[8];
+        long[] highs = new long[8];
+        int depth;
+
+        LeafNode leaf;
+        long leafLow;
+        long leafHigh;
+        long version = -1;
+
+        // Iteration state: the index of the current pair within leaf and its key
+        int index = -1;
+        int currentKey;
+
+        private Cursor() { }
+
+        /**
+         * This method positions the cursor on the leaf that covers 'key'.
+         * @return the leaf, or null if the B+ tree is empty
+         */
+        private LeafNode locate(int key) {
+            if (isEmpty()) {
+                this.leaf = null;
+                return null;
+            }
+            if (this.leaf == null || this.version != structureVersion) {
+
+                // Descend from the root, the remembered path is stale
+                this.version = structureVersion;
+                if (root == null) {
+                    this.depth = 0;
+                    this.leaf = firstLeaf;
+                    this.leafLow = Long.MIN_VALUE;
+                    this.leafHigh = Long.MAX_VALUE;
+                    return this.leaf;
+                }
+                this.path[0] = root;
+                this.lows[0] = Long.MIN_VALUE;
+                this.highs[0] = Long.MAX_VALUE;
+                descend(0, key);
+            } else if (key < this.leafLow || key >= this.leafHigh) {
+
+                // Climb to the lowest node that covers the key, the root covers every key
+                int l = this.depth - 1;
+                while (l > 0 && (key < this.lows[l] || key >= this.highs[l])) { l--; }
+                descend(l, key);
+            }
+            return this.leaf;
+        }
+
+        /**
+         * This method descends from path[l] to the leaf that covers 'key'.
+         */
+        private void descend(int l, int key) {
+            while (true) {
+                InternalNode in = this.path[l];
+
+                // Find the first separator greater than key
+                int lo = 0;
+                int hi = in.degree - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (key < in.keys[mid]) { hi = mid; } else { lo = mid + 1; }
+                }
+                if (!enter(l, lo)) { return; }
+                l++;
+            }
+        }
+
+        /**
+         * This method moves from path[l] to its child at 'slot'.
+         * @return true if the child is an internal node and was pushed on the
+         *         path, false if it is the leaf
+         */
+        private boolean enter(int l, int slot) {
+            InternalNode in = this.path[l];
+            this.slots[l] = slot;
+            long low = (slot > 0) ? in.keys[slot - 1] : this.lows[l];
+            long high = (slot < in.degree - 1) ? in.keys[slot] : this.highs[l];
+            Node child = in.childPointers[slot];
+            if (child instanceof LeafNode) {
+                this.leaf = (LeafNode) child;
+                this.leafLow = low;
+                this.leafHigh = high;
+                this.depth = l + 1;
+                return false;
+            }
+            if (l + 1 == this.path.length) {
+                int capacity = this.path.length * 2;
+                this.path = Arrays.copyOf(this.path, capacity);
+                this.slots = Arrays.copyOf(this.slots, capacity);
+                this.lows = Arrays.copyOf(this.lows, capacity);
+                this.highs = Arrays.copyOf(this.highs, capacity);
+            }
+            this.path[l + 1] = (InternalNode) child;
+            this.lows[l + 1] = low;
+            this.highs[l + 1] = high;
+            return true;
+        }
+
+        /**
+         * This method moves the cursor to the leaf right of the current one,
+         * climbing the path only as far as the next subtree to the right.
+         * @return false if the current leaf is the last one
+         */
+        private boolean stepRight() {
+            int l = this.depth - 1;
+            while (l >= 0 && this.slots[l] == this.path[l].degree - 1) { l--; }
+            if (l < 0) { return false; }
+            boolean internal = enter(l, this.slots[l] + 1);
+            while (internal) {
+                l++;
+                internal = enter(l, 0);
+            }
+            return true;
+        }
+
+        /**
+         * Given a key, this method returns the value associated with the key,
+         * starting from the position of the cursor.
+         * @param key: the key to be searched
+         * @return the value associated with the key, or null if it doesn't exist
+         */
+        public Double search(int key) {
+            LeafNode ln = locate(key);
+            if (ln == null) { return null; }
+            int i = binarySearch(ln.dictionary, ln.numPairs, key);
+            if (i < 0 || ln.dictionary[i].tombstone) { return null; }
+            return ln.dictionary[i].value;
+        }
+
+        /**
+         * This method inserts a dictionary pair like BPlusTree.insert(),
+         * starting from the position of the cursor.
+         * @param key: an integer key to be used in the dictionary pair
+         * @param value: a floating point number to be used in the dictionary pair
+         */
+        public void insert(int key, double value) {
+            BPlusTree.this.insert(key, value, locate(key));
+        }
+
+        /**
+         * This method deletes a dictionary pair like BPlusTree.delete(),
+         * starting from the position of the cursor.
+         * @param key: an integer key that corresponds with an existing dictionary pair
+         */
+        public void delete(int key) {
+            BPlusTree.this.delete(key, locate(key));
+        }
+
+        /**
+         * This method positions the cursor on the first live dictionary pair
+         * whose key is greater than or equal to 'key'.
+         * @param key: the key to seek to
+         * @return false if there is no such pair
+         */
+        public boolean seek(int key) {
+            LeafNode ln = locate(key);
+            if (ln == null) {
+                this.index = -1;
+                return false;
+            }
+            int i = binarySearch(ln.dictionary, ln.numPairs, key);
+            this.index = (i >= 0) ? i : -i - 1;
+            return skipToLive();
+        }
+
+        /**
+         * This method moves the cursor to the next live dictionary pair. If
+         * the tree was changed since the last move, the cursor seeks to the
+         * first pair after the key it was positioned on.
+         * @return false if there is no next pair
+         */
+        public boolean next() {
+            if (this.index < 0) { return false; }
+            if (this.version == structureVersion && this.index < this.leaf.numPairs
+                    && this.leaf.dictionary[this.index].key == this.currentKey) {
+                this.index++;
+                return skipToLive();
+            }
+            if (this.currentKey == Integer.MAX_VALUE) {
+                this.index = -1;
+                return false;
+            }
+            return seek(this.currentKey + 1);
+        }
+
+        /**
+         * This method moves forward from 'index' to the first pair that is
+         * not a tombstone, following the leaves to the right.
+         */
+        private boolean skipToLive() {
+            while (true) {
+                while (this.index < this.leaf.numPairs && this.leaf.dictionary[this.index].tombstone) {
+                    this.index++;
+                }
+                if (this.index < this.leaf.numPairs) {
+                    this.currentKey = this.leaf.dictionary[this.index].key;
+                    return true;
+                }
+                if (!stepRight()) {
+                    this.index = -1;
+                    return false;
+                }
+                this.index = 0;
+            }
+        }
+
+        /**
+         * @return true if the cursor is positioned on a dictionary pair
+         */
+        public boolean isValid() { return this.index >= 0; }
+
+        /**
+         * @return the key of the pair the cursor is positioned on
+         */
+        public int key() {
+            if (this.index < 0) { throw new NoSuchElementException(); }
+            return this.currentKey;
+        }
+
+        /**
+         * @return the value of the pair the cursor is positioned on
+         */
+        public double value() {
+            if (this.index < 0) { throw new NoSuchElementException(); }
+            if (this.version != structureVersion || this.index >= this.leaf.numPairs
+                    || this.leaf.dictionary[this.index].key != this.currentKey
+                    || this.leaf.dictionary[this.index].tombstone) {
+                Double value = search(this.currentKey);
+                if (value == null) { throw new NoSuchElementException(); }
+                return value;
+            }
+            return this.leaf.dictionary[this.index].value;
+        }
+    }
+
     public static void main(String[] args) {
 
         // Ensure correct number of arguments
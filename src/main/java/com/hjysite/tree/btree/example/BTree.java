@@ -1,6 +1,9 @@
 package com.hjysite.tree.btree.example;
 
+import com.hjysite.tree.btree.TreeStats;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class BTree {
     private static final int T = 4;
@@ -194,24 +197,20 @@ public class BTree {
                 Node rightChildNode = node.mChildNodes[i + 1];
                 if (leftChildNode.mNumKeys >= T) { // 2a. If the predecessor child node has at least T keys...
                     Node predecessorNode = leftChildNode;
-                    Node erasureNode = predecessorNode; // Make sure not to delete a key from a node with only T - 1 elements.
-                    while (!predecessorNode.mIsLeafNode) { // Therefore only descend to the previous node (erasureNode) of the predecessor node and delete the key using 3.
-                        erasureNode = predecessorNode;
-                        predecessorNode = predecessorNode.mChildNodes[node.mNumKeys - 1];
+                    while (!predecessorNode.mIsLeafNode) {
+                        predecessorNode = predecessorNode.mChildNodes[predecessorNode.mNumKeys];
                     }
                     node.mKeys[i] = predecessorNode.mKeys[predecessorNode.mNumKeys - 1];
                     node.mObjects[i] = predecessorNode.mObjects[predecessorNode.mNumKeys - 1];
-                    delete(erasureNode, node.mKeys[i]);
+                    delete(leftChildNode, node.mKeys[i]); // Delete the predecessor starting at leftChildNode, so every node on the way down is refilled using 3.
                 } else if (rightChildNode.mNumKeys >= T) { // 2b. If the successor child node has at least T keys...
                     Node successorNode = rightChildNode;
-                    Node erasureNode = successorNode; // Make sure not to delete a key from a node with only T - 1 elements.
-                    while (!successorNode.mIsLeafNode) { // Therefore only descend to the previous node (erasureNode) of the predecessor node and delete the key using 3.
-                        erasureNode = successorNode;
+                    while (!successorNode.mIsLeafNode) {
                         successorNode = successorNode.mChildNodes[0];
                     }
                     node.mKeys[i] = successorNode.mKeys[0];
                     node.mObjects[i] = successorNode.mObjects[0];
-                    delete(erasureNode, node.mKeys[i]);
+                    delete(rightChildNode, node.mKeys[i]); // Delete the successor starting at rightChildNode, so every node on the way down is refilled using 3.
                 } else {
                     // 2c. If both the predecessor and the successor child node have only T - 1 keys...
                     // If both of the two child nodes to the left and right of the deleted element have the minimum number of elements,
@@ -394,6 +393,113 @@ public class BTree {
         return null;
     }
 
+    /**
+     * This method looks up a batch of keys at once. The keys are sorted
+     * first, so consecutive lookups share the upper part of their descents:
+     * the path from the root is kept on a stack and each lookup only climbs
+     * back to the lowest node whose key range still covers the next key.
+     * @param keys: the keys to look up, duplicates are allowed
+     * @param objects: receives the object of keys[i] at index i, or null if the key is absent
+     * @return the number of keys that were found
+     */
+    public int getAll(int[] keys, Object[] objects) {
+        if (objects.length < keys.length) {
+            throw new IllegalArgumentException("objects array is shorter than keys array");
+        }
+
+        // Sort key/index pairs by key, so results can be written back in the caller's order
+        long[] probes = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            probes[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(probes);
+
+        int height = 1;
+        for (Node node = mRootNode; !node.mIsLeafNode; node = node.mChildNodes[0]) {
+            height++;
+        }
+        // path[d] is the node at depth d of the current descent, all keys of
+        // its subtree are smaller than upperBounds[d]
+        Node[] path = new Node[height];
+        long[] upperBounds = new long[height];
+        path[0] = mRootNode;
+        upperBounds[0] = Long.MAX_VALUE;
+        int depth = 0;
+
+        int found = 0;
+        for (long probe : probes) {
+            int key = (int) (probe >> 32);
+            int index = (int) probe;
+
+            // Probes are ascending, so only the upper bound has to be checked
+            while (key >= upperBounds[depth]) {
+                depth--;
+            }
+            Node node = path[depth];
+            Object object = null;
+            while (true) {
+                int i = 0;
+                while (i < node.mNumKeys && key > node.mKeys[i]) {
+                    i++;
+                }
+                if (i < node.mNumKeys && key == node.mKeys[i]) {
+                    object = node.mObjects[i];
+                    found++;
+                    break;
+                }
+                if (node.mIsLeafNode) {
+                    break;
+                }
+                upperBounds[depth + 1] = (i < node.mNumKeys) ? node.mKeys[i] : upperBounds[depth];
+                node = node.mChildNodes[i];
+                path[++depth] = node;
+            }
+            objects[index] = object;
+        }
+        return found;
+    }
+
+    /**
+     * This interface receives the entries of a range scan.
+     */
+    public interface EntryConsumer {
+        void accept(int key, Object object);
+    }
+
+    /**
+     * This method streams all entries whose keys are within the range
+     * specified by lowerBound and upperBound to 'consumer' in key order,
+     * only the subtrees overlapping the range are visited.
+     * @param lowerBound: the lower bound of the range, inclusive
+     * @param upperBound: the upper bound of the range, inclusive
+     * @param consumer: receives the entries
+     */
+    public void forEach(int lowerBound, int upperBound, EntryConsumer consumer) {
+        if (lowerBound <= upperBound) {
+            forEach(mRootNode, lowerBound, upperBound, consumer);
+        }
+    }
+
+    private void forEach(Node node, int lowerBound, int upperBound, EntryConsumer consumer) {
+        // Keys smaller than lowerBound and the subtrees left of them are skipped
+        int i = 0;
+        while (i < node.mNumKeys && node.mKeys[i] < lowerBound) {
+            i++;
+        }
+        for (; i < node.mNumKeys; i++) {
+            if (!node.mIsLeafNode) {
+                forEach(node.mChildNodes[i], lowerBound, upperBound, consumer);
+            }
+            if (node.mKeys[i] > upperBound) {
+                return;
+            }
+            consumer.accept(node.mKeys[i], node.mObjects[i]);
+        }
+        if (!node.mIsLeafNode) {
+            forEach(node.mChildNodes[i], lowerBound, upperBound, consumer);
+        }
+    }
+
     private boolean update(Node node, int key, Object object) {
         while (node != null) {
             int i = 0;
@@ -413,6 +519,33 @@ public class BTree {
         return false;
     }
 
+    /**
+     * This method reports the occupancy and estimated memory footprint of
+     * the tree, see TreeStats. Entry slots are the 2T-1 key slots of every
+     * node; the objects stored in the tree are not included in the heap bytes.
+     * @return the report, collected by a parallel fork-join traversal
+     */
+    public TreeStats stats() {
+        /* A node holds mNumKeys, mIsLeafNode and three array references plus the reference to its tree */
+        final long nodeBytes = TreeStats.objectBytes(4 + 1 + 4 * TreeStats.REFERENCE)
+                + TreeStats.arrayBytes(2 * T - 1, 4)
+                + TreeStats.arrayBytes(2 * T - 1, TreeStats.REFERENCE)
+                + TreeStats.arrayBytes(2 * T, TreeStats.REFERENCE);
+        return TreeStats.collect(mRootNode, new TreeStats.NodeInspector<Node>() {
+            public int childCount(Node node) {
+                return node.mIsLeafNode ? 0 : node.mNumKeys + 1;
+            }
+
+            public Node child(Node node, int index) {
+                return node.mChildNodes[index];
+            }
+
+            public void inspect(Node node, int level, TreeStats stats) {
+                stats.addNode(level, node.mNumKeys, 2 * T - 1, nodeBytes);
+            }
+        });
+    }
+
     // Inorder walk over the tree.
     String printBTree(Node node) {
         String string = "";
@@ -0,0 +1,197 @@
+package com.hjysite.tree.btree.example;
+
+/**
+ * This class represents a blocked Bloom filter over int keys that lets a
+ * BPlusTree answer lookups for absent keys without descending the tree. All
+ * bits of a key are placed inside a single 512-bit block (one cache line),
+ * so a membership test touches one block only. The filter only supports
+ * adding keys; deletes are counted and the filter is rebuilt lazily from the
+ * leaves once too many of its keys are gone.
+ */
+public class BlockedBloomFilter {
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final int BITS_PER_BLOCK = WORDS_PER_BLOCK * 64;
+
+    double falsePositiveRate;
+    long maxMemoryBytes;
+    double rebuildDeleteFraction;
+
+    long[] words;
+    int numBlocks;
+    int numHashes;
+    long capacity;
+    long numKeys;
+    long numDeletes;
+
+    // Statistics
+    long lookups;
+    long descentsSaved;
+    long falsePositives;
+    long rebuilds;
+
+    /**
+     * Constructor
+     * @param falsePositiveRate: the targeted false positive rate, e.g. 0.01
+     * @param maxMemoryBytes: the upper bound of the memory used by the bit array
+     * @param rebuildDeleteFraction: the fraction of deleted keys after which
+     *                               the filter is rebuilt from the leaves,
+     *                               within (0, 1]
+     */
+    public BlockedBloomFilter(double falsePositiveRate, long maxMemoryBytes, double rebuildDeleteFraction) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be within (0, 1)");
+        }
+        if (maxMemoryBytes < WORDS_PER_BLOCK * 8) {
+            throw new IllegalArgumentException("maxMemoryBytes must hold at least one block");
+        }
+        if (!(rebuildDeleteFraction > 0 && rebuildDeleteFraction <= 1)) {
+            throw new IllegalArgumentException("rebuildDeleteFraction must be within (0, 1]");
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.rebuildDeleteFraction = rebuildDeleteFraction;
+        allocate(0);
+    }
+
+    /**
+     * This method (re)allocates an empty bit array sized for 'expectedKeys'
+     * keys, limited by maxMemoryBytes.
+     * @param expectedKeys: the number of keys currently stored in the tree
+     */
+    private void allocate(long expectedKeys) {
+        this.capacity = Math.max(1024, expectedKeys * 2);
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        bits = Math.min(bits, maxMemoryBytes * 8);
+        long blocks = Math.max(1, Math.min(Integer.MAX_VALUE / WORDS_PER_BLOCK, bits / BITS_PER_BLOCK));
+        this.numBlocks = (int) blocks;
+        this.words = new long[numBlocks * WORDS_PER_BLOCK];
+        long bitsPerKey = (long) numBlocks * BITS_PER_BLOCK / capacity;
+        this.numHashes = (int) Math.max(1, Math.min(16, Math.round(bitsPerKey * ln2)));
+        this.numKeys = 0;
+        this.numDeletes = 0;
+    }
+
+    /**
+     * This method mixes the bits of a key (the murmur3 finalizer).
+     */
+    private static long hash(int key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    /**
+     * This method adds a key to the filter.
+     * @param key: the key that was inserted into the B+ tree
+     */
+    public void put(int key) {
+        long h = hash(key);
+        int base = (int) (((h >>> 32) * numBlocks) >>> 32) * WORDS_PER_BLOCK;
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 41) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (h1 + i * h2) & (BITS_PER_BLOCK - 1);
+            words[base + (bit >>> 6)] |= 1L << bit;
+        }
+        numKeys++;
+    }
+
+    /**
+     * This method tests whether a key may be within the B+ tree.
+     * @param key: the key being searched for
+     * @return false if the key is definitely absent, true if it may be present
+     */
+    public boolean mightContain(int key) {
+        lookups++;
+        long h = hash(key);
+        int base = (int) (((h >>> 32) * numBlocks) >>> 32) * WORDS_PER_BLOCK;
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 41) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (h1 + i * h2) & (BITS_PER_BLOCK - 1);
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                descentsSaved++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This method records that a key the filter answered positively for was
+     * not found in the B+ tree.
+     */
+    void recordFalsePositive() {
+        falsePositives++;
+    }
+
+    /**
+     * This method records that a key was deleted from the B+ tree. The bits of
+     * the key stay set until the next rebuild.
+     */
+    void recordDelete() {
+        numDeletes++;
+    }
+
+    /**
+     * This method records that 'count' keys were deleted from the B+ tree.
+     */
+    void recordDeletes(long count) {
+        numDeletes += count;
+    }
+
+    /**
+     * This method determines if the filter has to be rebuilt, either because
+     * too many keys were deleted or because more keys were inserted than the
+     * filter was sized for.
+     * @return a boolean indicating whether or not the filter should be rebuilt
+     */
+    boolean needsRebuild() {
+        return numDeletes > numKeys * rebuildDeleteFraction || numKeys > capacity;
+    }
+
+    /**
+     * This method rebuilds the filter from all keys held by the leaves.
+     * @param firstLeaf: the leftmost leaf of the B+ tree
+     */
+    void rebuild(BPlusTree.LeafNode firstLeaf) {
+        long count = 0;
+        for (BPlusTree.LeafNode ln = firstLeaf; ln != null; ln = ln.rightSibling) {
+            count += ln.numPairs;
+        }
+        allocate(count);
+        for (BPlusTree.LeafNode ln = firstLeaf; ln != null; ln = ln.rightSibling) {
+            for (BPlusTree.DictionaryPair dp : ln.dictionary) {
+                if (dp != null && !dp.tombstone) { put(dp.key); }
+            }
+        }
+        rebuilds++;
+    }
+
+    public long getLookups() { return lookups; }
+
+    public long getDescentsSaved() { return descentsSaved; }
+
+    public long getFalsePositives() { return falsePositives; }
+
+    public long getRebuilds() { return rebuilds; }
+
+    /**
+     * @return the number of bytes used by the bit array
+     */
+    public long getMemoryBytes() { return (long) words.length * 8; }
+
+    /**
+     * @return the false positive rate observed so far, i.e. the fraction of
+     * lookups for absent keys that the filter did not reject
+     */
+    public double getObservedFalsePositiveRate() {
+        long absent = falsePositives + descentsSaved;
+        return absent == 0 ? 0.0 : (double) falsePositives / absent;
+    }
+}
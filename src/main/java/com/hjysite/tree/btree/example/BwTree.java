@@ -0,0 +1,960 @@
+package com.hjysite.tree.btree.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a latch-free variant of BPlusTree in the style of a
+ * Bw-tree. Nodes are addressed through a mapping table from logical node
+ * ids (pids) to immutable records. A node is a chain of delta records on
+ * top of a base node, and every change to a node is a single CAS on its
+ * mapping table entry that installs a new delta in front of the chain:
+ * inserts and deletes add InsertDelta / DeleteDelta records to a leaf, a
+ * split adds a SplitDelta to the node that hands its upper half to a new
+ * sibling, and the parent learns about the sibling through an
+ * IndexEntryDelta. Long chains are consolidated into a new base node.
+ *
+ * A split is finished by whichever thread notices it: a thread descending
+ * from a parent to a child whose key range ends before the range the
+ * parent routes to it posts the missing index entry. Until then keys above
+ * the child's range are found by following its right sibling.
+ *
+ * A leaf that shrinks below a quarter of its capacity is merged into its
+ * left sibling in three steps, each a single CAS that any thread can help
+ * to finish: a RemoveNodeDelta freezes the leaf, a NodeMergeDelta on the
+ * left sibling takes over its key range and entries, and an
+ * IndexTermDeleteDelta removes its separator from the parent. A thread
+ * that reaches a frozen leaf completes the merge and searches again from
+ * the left sibling. Only leaves that are not the first child of their
+ * parent are merged, so the low key of every inner node stays fixed and
+ * inner nodes are never merged.
+ *
+ * Records that are no longer reachable from the mapping table are
+ * reclaimed by the garbage collector. The pid of a merged leaf is recycled
+ * with epoch-based reclamation: every operation announces the global epoch
+ * it started in, a pid is retired with the epoch in which its last index
+ * entry was removed, and it is reused only after every operation that
+ * might still hold it has finished.
+ */
+public class BwTree {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << 14;
+    private static final int NO_SIBLING = -1;
+    private static final long IDLE = Long.MAX_VALUE;
+
+    int maxLeafSize;
+    int minLeafSize;
+    int maxInnerSize;
+    int maxChainLength;
+
+    // Mapping table, allocated in chunks as pids are handed out
+    AtomicReferenceArray<AtomicReferenceArray<Node>> mappingTable = new AtomicReferenceArray<>(MAX_CHUNKS);
+    AtomicInteger nextPid = new AtomicInteger();
+    AtomicInteger rootPid = new AtomicInteger();
+
+    // Epoch-based reclamation: the epoch announced by every thread, retired pids and pids ready for reuse
+    AtomicLong epoch = new AtomicLong();
+    CopyOnWriteArrayList<AtomicLong> announcedEpochs = new CopyOnWriteArrayList<>();
+    ThreadLocal<AtomicLong> localEpoch = ThreadLocal.withInitial(() -> {
+        AtomicLong announced = new AtomicLong(IDLE);
+        announcedEpochs.add(announced);
+        return announced;
+    });
+    ConcurrentLinkedQueue<RetiredPid> retiredPids = new ConcurrentLinkedQueue<>();
+    ConcurrentLinkedQueue<Integer> freePids = new ConcurrentLinkedQueue<>();
+    AtomicBoolean reclaiming = new AtomicBoolean();
+
+    // Statistics
+    LongAdder casFailures = new LongAdder();
+    LongAdder consolidations = new LongAdder();
+    LongAdder splits = new LongAdder();
+    LongAdder merges = new LongAdder();
+    LongAdder reclaimedPids = new LongAdder();
+
+    /*~~~~~~~~~~~~~~~~ NODE RECORDS ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * This class represents a record in the mapping table, either a base
+     * node or a delta. The key range [low, high), the right sibling and the
+     * length of the delta chain are copied into every record so that they
+     * can be read from the top of the chain.
+     */
+    abstract static class Node {
+        final boolean leaf;
+        final long low;
+        final long high;
+        final int right;
+        final int chainLength;
+
+        Node(boolean leaf, long low, long high, int right, int chainLength) {
+            this.leaf = leaf;
+            this.low = low;
+            this.high = high;
+            this.right = right;
+            this.chainLength = chainLength;
+        }
+    }
+
+    static final class LeafBase extends Node {
+        final int[] keys;
+        final double[] values;
+
+        LeafBase(long low, long high, int right, int[] keys, double[] values) {
+            super(true, low, high, right, 0);
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    /**
+     * An inner base node routes keys below keys[0] to children[0] and keys
+     * within [keys[i - 1], keys[i]) to children[i].
+     */
+    static final class InnerBase extends Node {
+        final int[] keys;
+        final int[] children;
+
+        InnerBase(long low, long high, int right, int[] keys, int[] children) {
+            super(false, low, high, right, 0);
+            this.keys = keys;
+            this.children = children;
+        }
+    }
+
+    abstract static class Delta extends Node {
+        final Node next;
+
+        Delta(Node next, long high, int right) {
+            this(next, high, right, next.chainLength + 1);
+        }
+
+        Delta(Node next, long high, int right, int chainLength) {
+            super(next.leaf, next.low, high, right, chainLength);
+            this.next = next;
+        }
+
+        Delta(Node next) {
+            this(next, next.high, next.right);
+        }
+    }
+
+    static final class InsertDelta extends Delta {
+        final int key;
+        final double value;
+
+        InsertDelta(Node next, int key, double value) {
+            super(next);
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    static final class DeleteDelta extends Delta {
+        final int key;
+
+        DeleteDelta(Node next, int key) {
+            super(next);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Keys at or above the separator have moved to the sibling.
+     */
+    static final class SplitDelta extends Delta {
+        final int separator;
+
+        SplitDelta(Node next, int separator, int sibling) {
+            super(next, separator, sibling);
+            this.separator = separator;
+        }
+    }
+
+    /**
+     * Keys within [separator, entryHigh) are routed to child.
+     */
+    static final class IndexEntryDelta extends Delta {
+        final int separator;
+        final long entryHigh;
+        final int child;
+
+        IndexEntryDelta(Node next, int separator, long entryHigh, int child) {
+            super(next);
+            this.separator = separator;
+            this.entryHigh = entryHigh;
+            this.child = child;
+        }
+    }
+
+    /**
+     * The leaf is frozen and being merged into its left sibling, nothing
+     * may be added on top of it.
+     */
+    static final class RemoveNodeDelta extends Delta {
+        RemoveNodeDelta(Node next) {
+            super(next);
+        }
+    }
+
+    /**
+     * The node has taken over the key range of its removed right sibling:
+     * keys at or above the separator are found in the merged chain.
+     */
+    static final class NodeMergeDelta extends Delta {
+        final int separator;
+        final Node merged;
+
+        NodeMergeDelta(Node next, RemoveNodeDelta removed) {
+            super(next, removed.high, removed.right, next.chainLength + removed.chainLength);
+            this.separator = (int) removed.low;
+            this.merged = removed.next;
+        }
+    }
+
+    /**
+     * The separator and the child to its right are removed, keys within
+     * [entryLow, entryHigh) are routed to child.
+     */
+    static final class IndexTermDeleteDelta extends Delta {
+        final int separator;
+        final long entryLow;
+        final long entryHigh;
+        final int child;
+
+        IndexTermDeleteDelta(Node next, int separator, long entryLow, long entryHigh, int child) {
+            super(next);
+            this.separator = separator;
+            this.entryLow = entryLow;
+            this.entryHigh = entryHigh;
+            this.child = child;
+        }
+    }
+
+    /*~~~~~~~~~~~~~~~~ MAPPING TABLE ~~~~~~~~~~~~~~~~*/
+
+    private AtomicReferenceArray<Node> chunk(int pid) {
+        int index = pid >>> CHUNK_BITS;
+        AtomicReferenceArray<Node> chunk = mappingTable.get(index);
+        if (chunk == null) {
+            mappingTable.compareAndSet(index, null, new AtomicReferenceArray<>(CHUNK_SIZE));
+            chunk = mappingTable.get(index);
+        }
+        return chunk;
+    }
+
+    private Node get(int pid) {
+        return chunk(pid).get(pid & (CHUNK_SIZE - 1));
+    }
+
+    private boolean cas(int pid, Node expected, Node update) {
+        if (chunk(pid).compareAndSet(pid & (CHUNK_SIZE - 1), expected, update)) {
+            return true;
+        }
+        casFailures.increment();
+        return false;
+    }
+
+    /**
+     * This method stores a new node under a fresh pid.
+     * @return the pid of the node
+     */
+    private int install(Node node) {
+        Integer free = freePids.poll();
+        int pid = (free != null) ? free : nextPid.getAndIncrement();
+        if (pid < 0 || pid >= MAX_CHUNKS * CHUNK_SIZE) {
+            throw new IllegalStateException("mapping table is full");
+        }
+        chunk(pid).set(pid & (CHUNK_SIZE - 1), node);
+        return pid;
+    }
+
+    /**
+     * This method returns a pid that was installed but never published, so
+     * no other thread can hold it.
+     */
+    private void uninstall(int pid) {
+        chunk(pid).set(pid & (CHUNK_SIZE - 1), null);
+        freePids.add(pid);
+    }
+
+    /*~~~~~~~~~~~~~~~~ EPOCHS ~~~~~~~~~~~~~~~~*/
+
+    record RetiredPid(int pid, long epoch) { }
+
+    /**
+     * This method announces that the calling thread starts an operation in
+     * the current epoch. Pids retired from now on are not reused before the
+     * operation calls exit().
+     * @return the announcement to pass to exit()
+     */
+    private AtomicLong enter() {
+        AtomicLong announced = localEpoch.get();
+        announced.set(epoch.get());
+        return announced;
+    }
+
+    private void exit(AtomicLong announced) {
+        announced.set(IDLE);
+        if (!retiredPids.isEmpty()) {
+            reclaim();
+        }
+    }
+
+    /**
+     * This method retires a pid that is no longer reachable from the root.
+     * Operations that started in this epoch or before may still hold it, the
+     * epoch is advanced so that operations starting later are told apart.
+     */
+    private void retire(int pid) {
+        retiredPids.add(new RetiredPid(pid, epoch.getAndIncrement()));
+    }
+
+    /**
+     * This method frees the retired pids that were retired before the
+     * oldest running operation started. Only one thread reclaims at a time,
+     * the others leave the work to it.
+     */
+    private void reclaim() {
+        if (!reclaiming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long oldest = IDLE;
+            for (AtomicLong announced : announcedEpochs) {
+                oldest = Math.min(oldest, announced.get());
+            }
+            RetiredPid retired;
+            while ((retired = retiredPids.peek()) != null && retired.epoch() < oldest) {
+                retiredPids.poll();
+                uninstall(retired.pid());
+                reclaimedPids.increment();
+            }
+        } finally {
+            reclaiming.set(false);
+        }
+    }
+
+    /*~~~~~~~~~~~~~~~~ SEARCHING WITHIN A NODE ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * This method looks a key up in the delta chain of a leaf.
+     * @param node: the top of the chain, the key has to be within its range
+     * @return the value of the key or null if it is not present
+     */
+    private static Double findInLeaf(Node node, int key) {
+        Node n = node;
+        while (n instanceof Delta d) {
+            if (d instanceof InsertDelta ins && ins.key == key) {
+                return ins.value;
+            }
+            if (d instanceof DeleteDelta del && del.key == key) {
+                return null;
+            }
+            n = (d instanceof NodeMergeDelta merge && key >= merge.separator) ? merge.merged : d.next;
+        }
+        LeafBase base = (LeafBase) n;
+        int i = Arrays.binarySearch(base.keys, key);
+        return i >= 0 ? base.values[i] : null;
+    }
+
+    /**
+     * This method finds the index of the first key that is larger than 'key'.
+     */
+    private static int upperBound(int[] keys, int length, int key) {
+        int lo = 0;
+        int hi = length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * This method finds the child of an inner node that a key is routed to.
+     * @param node: the top of the chain, the key has to be within its range
+     * @param childHigh: receives the upper bound of the child's range as
+     *                   seen by this node
+     * @return the pid of the child
+     */
+    private static int route(Node node, int key, long[] childHigh) {
+        long bound = node.high;
+        Node n = node;
+        while (n instanceof Delta d) {
+            if (d instanceof IndexEntryDelta entry) {
+                if (key >= entry.separator && key < entry.entryHigh) {
+                    childHigh[0] = Math.min(entry.entryHigh, bound);
+                    return entry.child;
+                }
+                // Newer entries split the ranges of older ones
+                if (entry.separator > key) {
+                    bound = Math.min(bound, entry.separator);
+                }
+            } else if (d instanceof IndexTermDeleteDelta entry) {
+                if (key >= entry.entryLow && key < entry.entryHigh) {
+                    childHigh[0] = Math.min(entry.entryHigh, bound);
+                    return entry.child;
+                }
+                if (entry.entryLow > key) {
+                    bound = Math.min(bound, entry.entryLow);
+                }
+            }
+            n = d.next;
+        }
+        InnerBase base = (InnerBase) n;
+        int i = upperBound(base.keys, base.keys.length, key);
+        long high = i < base.keys.length ? base.keys[i] : base.high;
+        childHigh[0] = Math.min(high, bound);
+        return base.children[i];
+    }
+
+    /*~~~~~~~~~~~~~~~~ TRAVERSAL ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * This method descends from the root to the leaf responsible for a key,
+     * finishing any split or merge it comes across on the way.
+     * @param key: the key being searched for
+     * @param parentOut: receives the pid of the leaf's parent, or NO_SIBLING
+     *                   if the leaf was reached by following a right sibling
+     * @return the pid of the leaf
+     */
+    private int findLeaf(int key, int[] parentOut) {
+        long[] childHigh = new long[1];
+        // The key used to descend, moved left of a removed leaf after its merge
+        int routeKey = key;
+        restart:
+        while (true) {
+            int pid = rootPid.get();
+            Node node = get(pid);
+            if (node.high != Long.MAX_VALUE) {
+                // The root has split, add a new level above it
+                growRoot(pid, node);
+                continue;
+            }
+            int parent = NO_SIBLING;
+            long expectedHigh = Long.MAX_VALUE;
+            while (true) {
+                if (node instanceof RemoveNodeDelta removed) {
+                    // The left sibling takes over the keys of the leaf, descend to it and move right from there
+                    completeMerge(pid, removed);
+                    routeKey = (int) (removed.low - 1);
+                    continue restart;
+                }
+                if ((node.leaf ? key : routeKey) >= node.high) {
+                    // The node has split and the parent does not know yet
+                    pid = node.right;
+                    node = get(pid);
+                    parent = NO_SIBLING;
+                    continue;
+                }
+                if (parent != NO_SIBLING && node.high < expectedHigh) {
+                    postIndexEntry(parent, pid);
+                }
+                if (node.leaf) {
+                    if (parentOut != null) {
+                        parentOut[0] = parent;
+                    }
+                    return pid;
+                }
+                if (node.chainLength > maxChainLength) {
+                    consolidate(pid, parent);
+                    node = get(pid);
+                    continue;
+                }
+                parent = pid;
+                pid = route(node, routeKey, childHigh);
+                expectedHigh = childHigh[0];
+                node = get(pid);
+            }
+        }
+    }
+
+    /**
+     * This method adds a new root above a root that has split.
+     */
+    private void growRoot(int pid, Node root) {
+        InnerBase newRoot = new InnerBase(Long.MIN_VALUE, Long.MAX_VALUE, NO_SIBLING,
+                new int[]{(int) root.high}, new int[]{pid, root.right});
+        int newRootPid = install(newRoot);
+        if (!rootPid.compareAndSet(pid, newRootPid)) {
+            uninstall(newRootPid);
+        }
+    }
+
+    /**
+     * This method posts the index entry for the right sibling of a child
+     * whose split the parent does not know about yet.
+     * @param parentPid: the pid of the parent
+     * @param childPid: the pid of the child that has split
+     */
+    private void postIndexEntry(int parentPid, int childPid) {
+        Node parent = get(parentPid);
+        // The child is read after the parent: if the sibling has already been merged away
+        // and its entry deleted from this version of the parent, the child no longer ends at it
+        Node child = get(childPid);
+        if (child instanceof RemoveNodeDelta) {
+            return;
+        }
+        long separator = child.high;
+        if (separator < parent.low || separator >= parent.high) {
+            // The parent has split as well, the entry belongs to its sibling
+            return;
+        }
+        long[] childHigh = new long[1];
+        if (route(parent, (int) separator, childHigh) != childPid) {
+            // Somebody else has already posted the entry
+            return;
+        }
+        cas(parentPid, parent, new IndexEntryDelta(parent, (int) separator, childHigh[0], child.right));
+    }
+
+    /*~~~~~~~~~~~~~~~~ CONSOLIDATION AND SPLITS ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * This method replaces the delta chain of a node by a new base node. A
+     * node holding too many entries is split first by installing its upper
+     * half as a new sibling and posting a SplitDelta, the lower half is then
+     * consolidated in the next round.
+     * @param pid: the pid of the node
+     * @param parentPid: the pid of its parent if known, or NO_SIBLING
+     */
+    private void consolidate(int pid, int parentPid) {
+        while (true) {
+            Node top = get(pid);
+            if (!(top instanceof Delta) || top instanceof RemoveNodeDelta) {
+                return;
+            }
+            Node base = top.leaf ? materializeLeaf(top) : materializeInner(top);
+            if (base instanceof LeafBase leaf && leaf.keys.length > maxLeafSize) {
+                int mid = leaf.keys.length / 2;
+                LeafBase upper = new LeafBase(leaf.keys[mid], leaf.high, leaf.right,
+                        Arrays.copyOfRange(leaf.keys, mid, leaf.keys.length),
+                        Arrays.copyOfRange(leaf.values, mid, leaf.keys.length));
+                if (!split(pid, top, leaf.keys[mid], upper, parentPid)) {
+                    return;
+                }
+            } else if (base instanceof InnerBase inner && inner.children.length > maxInnerSize) {
+                // The middle separator becomes the low key of the new sibling
+                int mid = inner.keys.length / 2;
+                InnerBase upper = new InnerBase(inner.keys[mid], inner.high, inner.right,
+                        Arrays.copyOfRange(inner.keys, mid + 1, inner.keys.length),
+                        Arrays.copyOfRange(inner.children, mid + 1, inner.children.length));
+                if (!split(pid, top, inner.keys[mid], upper, parentPid)) {
+                    return;
+                }
+            } else {
+                if (cas(pid, top, base)) {
+                    consolidations.increment();
+                    if (base instanceof LeafBase leaf && leaf.keys.length < minLeafSize && parentPid != NO_SIBLING) {
+                        merge(pid, leaf, parentPid);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * This method installs the upper half of a node as a new sibling, posts
+     * a SplitDelta on the node and tries to post the index entry right away.
+     * @return a boolean indicating whether the split was installed
+     */
+    private boolean split(int pid, Node top, int separator, Node upper, int parentPid) {
+        int siblingPid = install(upper);
+        SplitDelta delta = new SplitDelta(top, separator, siblingPid);
+        if (!cas(pid, top, delta)) {
+            uninstall(siblingPid);
+            return false;
+        }
+        splits.increment();
+        if (parentPid != NO_SIBLING) {
+            postIndexEntry(parentPid, pid);
+        } else if (pid == rootPid.get()) {
+            growRoot(pid, delta);
+        }
+        return true;
+    }
+
+    /*~~~~~~~~~~~~~~~~ MERGES ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * This method starts merging an underfull leaf into its left sibling.
+     * The leaf is only merged if the parent already routes to it and it is
+     * not the parent's first child, so that its left sibling shares the
+     * parent and the parent's entry can be deleted afterwards.
+     * @param pid: the pid of the leaf
+     * @param top: the top of the leaf's chain
+     * @param parentPid: the pid of its parent
+     */
+    private void merge(int pid, Node top, int parentPid) {
+        Node parent = get(parentPid);
+        if (top.low <= parent.low || top.low >= parent.high) {
+            return;
+        }
+        InnerBase view = materializeInner(parent);
+        int i = Arrays.binarySearch(view.keys, (int) top.low);
+        if (i < 0 || view.children[i + 1] != pid) {
+            return;
+        }
+        RemoveNodeDelta removed = new RemoveNodeDelta(top);
+        if (!cas(pid, top, removed)) {
+            return;
+        }
+        merges.increment();
+        completeMerge(pid, removed);
+        deleteIndexTerm(parentPid, pid, removed);
+    }
+
+    /**
+     * This method makes sure that the left sibling of a frozen leaf has
+     * taken over its key range, posting the NodeMergeDelta if nobody has
+     * done so yet.
+     * @param pid: the pid of the frozen leaf
+     * @param removed: its RemoveNodeDelta
+     */
+    private void completeMerge(int pid, RemoveNodeDelta removed) {
+        while (true) {
+            int leftPid = findLeaf((int) (removed.low - 1), null);
+            Node left = get(leftPid);
+            while (!(left instanceof RemoveNodeDelta) && left.high <= removed.low && left.right != pid) {
+                leftPid = left.right;
+                left = get(leftPid);
+            }
+            if (left instanceof RemoveNodeDelta removedLeft) {
+                // The left sibling is being merged itself, finish that first
+                completeMerge(leftPid, removedLeft);
+                continue;
+            }
+            if (left.high > removed.low) {
+                // The range of the frozen leaf has already been taken over
+                return;
+            }
+            if (cas(leftPid, left, new NodeMergeDelta(left, removed))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * This method removes the separator of a merged leaf from its parent
+     * and retires the leaf's pid. If the parent has split in the meantime
+     * so that the leaf became the first child of the new sibling, the entry
+     * is kept and the frozen leaf keeps redirecting to its left sibling.
+     */
+    private void deleteIndexTerm(int parentPid, int pid, RemoveNodeDelta removed) {
+        while (true) {
+            Node parent = get(parentPid);
+            if (removed.low >= parent.high) {
+                parentPid = parent.right;
+                continue;
+            }
+            if (removed.low <= parent.low) {
+                return;
+            }
+            InnerBase view = materializeInner(parent);
+            int i = Arrays.binarySearch(view.keys, (int) removed.low);
+            if (i < 0 || view.children[i + 1] != pid) {
+                return;
+            }
+            long entryLow = (i > 0) ? view.keys[i - 1] : view.low;
+            long entryHigh = (i + 1 < view.keys.length) ? view.keys[i + 1] : view.high;
+            if (cas(parentPid, parent, new IndexTermDeleteDelta(parent, (int) removed.low, entryLow, entryHigh,
+                    view.children[i]))) {
+                retire(pid);
+                return;
+            }
+        }
+    }
+
+    /**
+     * This method applies the deltas of a leaf chain to its base node.
+     * @param top: the top of the chain
+     * @return a base node holding the current entries of the leaf
+     */
+    private static LeafBase materializeLeaf(Node top) {
+        ArrayList<Delta> deltas = new ArrayList<>();
+        Node n = top;
+        while (n instanceof Delta d && !(d instanceof NodeMergeDelta)) {
+            deltas.add(d);
+            n = d.next;
+        }
+        LeafBase base;
+        if (n instanceof NodeMergeDelta merge) {
+            // The entries of the merged sibling all follow those of the node itself
+            LeafBase lower = materializeLeaf(merge.next);
+            LeafBase upper = materializeLeaf(merge.merged);
+            int[] keys = Arrays.copyOf(lower.keys, lower.keys.length + upper.keys.length);
+            double[] values = Arrays.copyOf(lower.values, keys.length);
+            System.arraycopy(upper.keys, 0, keys, lower.keys.length, upper.keys.length);
+            System.arraycopy(upper.values, 0, values, lower.keys.length, upper.keys.length);
+            base = new LeafBase(merge.low, merge.high, merge.right, keys, values);
+        } else {
+            base = (LeafBase) n;
+        }
+        if (deltas.isEmpty()) {
+            return base;
+        }
+        int[] keys = Arrays.copyOf(base.keys, base.keys.length + deltas.size());
+        double[] values = Arrays.copyOf(base.values, keys.length);
+        int size = base.keys.length;
+        // Apply the deltas from the oldest to the newest
+        for (int j = deltas.size() - 1; j >= 0; j--) {
+            Delta d = deltas.get(j);
+            if (d instanceof InsertDelta ins) {
+                int i = Arrays.binarySearch(keys, 0, size, ins.key);
+                if (i >= 0) {
+                    values[i] = ins.value;
+                } else {
+                    i = -i - 1;
+                    System.arraycopy(keys, i, keys, i + 1, size - i);
+                    System.arraycopy(values, i, values, i + 1, size - i);
+                    keys[i] = ins.key;
+                    values[i] = ins.value;
+                    size++;
+                }
+            } else if (d instanceof DeleteDelta del) {
+                int i = Arrays.binarySearch(keys, 0, size, del.key);
+                if (i >= 0) {
+                    System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                }
+            }
+        }
+        // Drop the keys that have moved to a sibling
+        while (size > 0 && keys[size - 1] >= top.high) {
+            size--;
+        }
+        return new LeafBase(top.low, top.high, top.right, Arrays.copyOf(keys, size), Arrays.copyOf(values, size));
+    }
+
+    /**
+     * This method applies the index entries of an inner chain to its base node.
+     * @param top: the top of the chain
+     * @return a base node holding the current separators and children
+     */
+    private static InnerBase materializeInner(Node top) {
+        ArrayList<Delta> entries = new ArrayList<>();
+        Node n = top;
+        while (n instanceof Delta d) {
+            if (d instanceof IndexEntryDelta || d instanceof IndexTermDeleteDelta) {
+                entries.add(d);
+            }
+            n = d.next;
+        }
+        InnerBase base = (InnerBase) n;
+        int[] keys = Arrays.copyOf(base.keys, base.keys.length + entries.size());
+        int[] children = Arrays.copyOf(base.children, keys.length + 1);
+        int size = base.keys.length;
+        // An entry splits the range of the child currently covering its separator,
+        // a deleted term hands the range of the child to its right over to its left neighbour
+        for (int j = entries.size() - 1; j >= 0; j--) {
+            if (entries.get(j) instanceof IndexTermDeleteDelta del) {
+                int i = Arrays.binarySearch(keys, 0, size, del.separator);
+                if (i >= 0) {
+                    System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+                    System.arraycopy(children, i + 2, children, i + 1, size - i - 1);
+                    size--;
+                }
+                continue;
+            }
+            IndexEntryDelta entry = (IndexEntryDelta) entries.get(j);
+            int i = upperBound(keys, size, entry.separator);
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(children, i + 1, children, i + 2, size - i);
+            keys[i] = entry.separator;
+            children[i + 1] = entry.child;
+            size++;
+        }
+        // Drop the separators and children that have moved to a sibling
+        while (size > 0 && keys[size - 1] >= top.high) {
+            size--;
+        }
+        return new InnerBase(top.low, top.high, top.right, Arrays.copyOf(keys, size), Arrays.copyOf(children, size + 1));
+    }
+
+    /*~~~~~~~~~~~~~~~~ PUBLIC API ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * Constructor
+     * @param m: the maximum number of entries of a leaf and of children of
+     *           an inner node
+     */
+    public BwTree(int m) {
+        this(m, 8);
+    }
+
+    /**
+     * Constructor
+     * @param m: the maximum number of entries of a leaf and of children of
+     *           an inner node
+     * @param maxChainLength: the length of a delta chain after which the
+     *                        node is consolidated
+     */
+    public BwTree(int m, int maxChainLength) {
+        if (m < 3) {
+            throw new IllegalArgumentException("m must be at least 3");
+        }
+        this.maxLeafSize = m;
+        this.minLeafSize = Math.max(1, m / 4);
+        this.maxInnerSize = m;
+        this.maxChainLength = maxChainLength;
+        LeafBase leaf = new LeafBase(Long.MIN_VALUE, Long.MAX_VALUE, NO_SIBLING, new int[0], new double[0]);
+        rootPid.set(install(leaf));
+    }
+
+    /**
+     * This method inserts a key-value pair, replacing the value if the key
+     * is already present.
+     * @param key: an integer key to be used in the dictionary pair
+     * @param value: a floating-point value to be used in the dictionary pair
+     */
+    public void insert(int key, double value) {
+        AtomicLong announced = enter();
+        try {
+            update(key, value, false);
+        } finally {
+            exit(announced);
+        }
+    }
+
+    /**
+     * This method removes a key and its value if present.
+     * @param key: the key to be deleted
+     */
+    public void delete(int key) {
+        AtomicLong announced = enter();
+        try {
+            update(key, 0, true);
+        } finally {
+            exit(announced);
+        }
+    }
+
+    private void update(int key, double value, boolean delete) {
+        int[] parent = new int[1];
+        int pid = findLeaf(key, parent);
+        while (true) {
+            Node node = get(pid);
+            if (node instanceof RemoveNodeDelta) {
+                // Merged away after findLeaf() returned, look again
+                pid = findLeaf(key, parent);
+                continue;
+            }
+            if (key >= node.high) {
+                pid = node.right;
+                parent[0] = NO_SIBLING;
+                continue;
+            }
+            Delta delta = delete ? new DeleteDelta(node, key) : new InsertDelta(node, key, value);
+            if (cas(pid, node, delta)) {
+                if (delta.chainLength > maxChainLength) {
+                    consolidate(pid, parent[0]);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * This method finds the value associated with a key.
+     * @param key: the key being searched for
+     * @return the value, or null if the key is not present
+     */
+    public Double search(int key) {
+        AtomicLong announced = enter();
+        try {
+            int pid = findLeaf(key, null);
+            while (true) {
+                Node node = get(pid);
+                if (node instanceof RemoveNodeDelta) {
+                    pid = findLeaf(key, null);
+                } else if (key >= node.high) {
+                    pid = node.right;
+                } else {
+                    return findInLeaf(node, key);
+                }
+            }
+        } finally {
+            exit(announced);
+        }
+    }
+
+    /**
+     * This method returns the values of all keys within [lowerBound,
+     * upperBound] in key order. Every leaf is read atomically, but the
+     * result is not a snapshot of the whole tree.
+     */
+    public ArrayList<Double> search(int lowerBound, int upperBound) {
+        ArrayList<Double> values = new ArrayList<>();
+        if (lowerBound > upperBound) {
+            return values;
+        }
+        AtomicLong announced = enter();
+        try {
+            collect(lowerBound, upperBound, values);
+        } finally {
+            exit(announced);
+        }
+        return values;
+    }
+
+    private void collect(int lowerBound, int upperBound, ArrayList<Double> values) {
+        int pid = findLeaf(lowerBound, null);
+        long from = lowerBound;
+        while (pid != NO_SIBLING) {
+            Node node = get(pid);
+            if (node instanceof RemoveNodeDelta) {
+                // Its entries have moved to the left sibling, which may hold newer values
+                pid = findLeaf((int) from, null);
+                continue;
+            }
+            if (from >= node.high) {
+                // The leaf has split since it was found, its keys up to 'from' are behind us
+                pid = node.right;
+                continue;
+            }
+            LeafBase leaf = materializeLeaf(node);
+            int i = Arrays.binarySearch(leaf.keys, (int) from);
+            for (i = i >= 0 ? i : -i - 1; i < leaf.keys.length && leaf.keys[i] <= upperBound; i++) {
+                if (leaf.keys[i] >= from) {
+                    values.add(leaf.values[i]);
+                }
+            }
+            if (node.high > upperBound) {
+                break;
+            }
+            // Continue after the range this leaf covered when it was read
+            from = node.high;
+            pid = node.right;
+        }
+    }
+
+    public long getCasFailures() { return casFailures.sum(); }
+
+    public long getConsolidations() { return consolidations.sum(); }
+
+    public long getSplits() { return splits.sum(); }
+
+    public long getMerges() { return merges.sum(); }
+
+    public long getReclaimedPids() { return reclaimedPids.sum(); }
+
+    /**
+     * This method returns the number of pids in use, including retired pids
+     * that are not reusable yet.
+     */
+    public int getPidCount() { return nextPid.get() - freePids.size(); }
+}
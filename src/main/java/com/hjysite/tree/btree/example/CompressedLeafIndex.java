@@ -0,0 +1,206 @@
+package com.hjysite.tree.btree.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class is a read-only, compressed copy of the leaf level of a
+ * BPlusTree. The sorted keys are cut into blocks of blockSize keys and every
+ * block is stored frame-of-reference encoded: the first key of the block is
+ * kept in a plain header array and every key of the block is stored as its
+ * distance to that first key, bit-packed with the smallest bit width that
+ * fits the largest distance. Because every key of a block has the same
+ * width, a key can be extracted without decoding its neighbours, so a point
+ * lookup binary searches the block headers and then binary searches inside
+ * the one target block. Values are kept uncompressed in key order.
+ */
+public class CompressedLeafIndex {
+    int blockSize;
+    int size;
+
+    // Block headers: first key, bit width and first word of the packed keys
+    int[] blockFirstKeys;
+    byte[] blockBits;
+    int[] blockWordOffsets;
+    int blockCount;
+
+    long[] packedKeys;
+    double[] values;
+
+    /**
+     * Constructor
+     * @param firstLeaf: the leftmost leaf of the B+ tree to copy, tombstones are skipped
+     * @param blockSize: the number of keys per block
+     */
+    CompressedLeafIndex(BPlusTree.LeafNode firstLeaf, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.blockSize = blockSize;
+
+        // Gather the live pairs in key order
+        int count = 0;
+        for (BPlusTree.LeafNode ln = firstLeaf; ln != null; ln = ln.rightSibling) {
+            for (int i = 0; i < ln.numPairs; i++) {
+                if (!ln.dictionary[i].tombstone) { count++; }
+            }
+        }
+        int[] keys = new int[count];
+        this.values = new double[count];
+        this.size = 0;
+        for (BPlusTree.LeafNode ln = firstLeaf; ln != null; ln = ln.rightSibling) {
+            for (int i = 0; i < ln.numPairs; i++) {
+                BPlusTree.DictionaryPair dp = ln.dictionary[i];
+                if (dp.tombstone) { continue; }
+                keys[size] = dp.key;
+                values[size] = dp.value;
+                size++;
+            }
+        }
+
+        // Encode the blocks, the packed words are sized for the worst case and trimmed afterwards
+        this.blockCount = (size + blockSize - 1) / blockSize;
+        this.blockFirstKeys = new int[blockCount];
+        this.blockBits = new byte[blockCount];
+        this.blockWordOffsets = new int[blockCount + 1];
+        long[] words = new long[(int) (((long) size * 32 + 63) / 64) + blockCount];
+        int wordOffset = 0;
+        for (int b = 0; b < blockCount; b++) {
+            int from = b * blockSize;
+            int to = Math.min(from + blockSize, size);
+            int bits = 64 - Long.numberOfLeadingZeros((long) keys[to - 1] - keys[from]);
+            blockFirstKeys[b] = keys[from];
+            blockBits[b] = (byte) bits;
+            blockWordOffsets[b] = wordOffset;
+            for (int i = from; i < to; i++) {
+                pack(words, wordOffset, i - from, bits, (long) keys[i] - keys[from]);
+            }
+            wordOffset += (int) (((long) (to - from) * bits + 63) / 64);
+        }
+        blockWordOffsets[blockCount] = wordOffset;
+        this.packedKeys = Arrays.copyOf(words, wordOffset);
+    }
+
+    private static void pack(long[] words, int wordOffset, int index, int bits, long delta) {
+        if (bits == 0) { return; }
+        long bit = (long) index * bits;
+        int word = wordOffset + (int) (bit >>> 6);
+        int shift = (int) (bit & 63);
+        words[word] |= delta << shift;
+        if (shift + bits > 64) {
+            words[word + 1] |= delta >>> (64 - shift);
+        }
+    }
+
+    /**
+     * This method extracts the key at 'index' within block 'b'.
+     */
+    private int keyAt(int b, int index) {
+        int bits = blockBits[b];
+        if (bits == 0) { return blockFirstKeys[b]; }
+        long bit = (long) index * bits;
+        int word = blockWordOffsets[b] + (int) (bit >>> 6);
+        int shift = (int) (bit & 63);
+        long delta = packedKeys[word] >>> shift;
+        if (shift + bits > 64) {
+            delta |= packedKeys[word + 1] << (64 - shift);
+        }
+        delta &= (1L << bits) - 1;
+        return (int) (blockFirstKeys[b] + delta);
+    }
+
+    private int blockLength(int b) {
+        return (b == blockCount - 1) ? size - b * blockSize : blockSize;
+    }
+
+    /**
+     * This method returns the index of the last block whose first key is
+     * smaller than or equal to 'key', or -1 if 'key' is smaller than all keys.
+     */
+    private int findBlock(int key) {
+        int lo = 0;
+        int hi = blockCount - 1;
+        if (hi < 0 || key < blockFirstKeys[0]) { return -1; }
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blockFirstKeys[mid] <= key) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * This method returns the position of the first key that is greater than
+     * or equal to 'key' within block 'b'.
+     */
+    private int lowerBound(int b, int key) {
+        int lo = 0;
+        int hi = blockLength(b);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyAt(b, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Given a key, this method returns the value associated with the key.
+     * @param key: the key to be searched
+     * @return the value associated with the key, or null if the key doesn't exist
+     */
+    public Double search(int key) {
+        int b = findBlock(key);
+        if (b < 0) { return null; }
+        int i = lowerBound(b, key);
+        if (i < blockLength(b) && keyAt(b, i) == key) {
+            return values[b * blockSize + i];
+        }
+        return null;
+    }
+
+    /**
+     * This method records all values whose keys are within the range
+     * specified by lowerBound and upperBound, only the blocks overlapping
+     * the range are decoded.
+     * @param lowerBound: (int) the lower bound of the range
+     * @param upperBound: (int) the upper bound of the range
+     * @return an ArrayList<Double> that holds the values in key order
+     */
+    public ArrayList<Double> search(int lowerBound, int upperBound) {
+        ArrayList<Double> result = new ArrayList<Double>();
+        if (lowerBound > upperBound || size == 0) { return result; }
+        int b = Math.max(findBlock(lowerBound), 0);
+        int i = lowerBound(b, lowerBound);
+        for (; b < blockCount; b++, i = 0) {
+            int length = blockLength(b);
+            for (; i < length; i++) {
+                if (keyAt(b, i) > upperBound) { return result; }
+                result.add(values[b * blockSize + i]);
+            }
+        }
+        return result;
+    }
+
+    public int size() { return size; }
+
+    /**
+     * @return the number of bytes used by the packed keys and block headers
+     */
+    public long getKeyMemoryBytes() {
+        return (long) packedKeys.length * 8 + (long) blockCount * (4 + 1 + 4) + 4;
+    }
+
+    /**
+     * @return the number of bytes used by the keys, block headers and values
+     */
+    public long getMemoryBytes() {
+        return getKeyMemoryBytes() + (long) values.length * 8;
+    }
+}
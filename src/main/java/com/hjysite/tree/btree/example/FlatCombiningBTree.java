@@ -0,0 +1,195 @@
+package com.hjysite.tree.btree.example;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class wraps a BTree for concurrent use with flat combining. Every
+ * thread owns a slot in a shared publication list. To run an operation a
+ * thread writes the request into its slot and then either waits for the
+ * result, spinning for a while and then parking until the combiner wakes it
+ * up, or, if the combiner lock is free, becomes the combiner: it walks
+ * the publication list and applies all pending requests in one pass while
+ * the tree is still hot in its cache, posting each result back into the
+ * owning slot. Slots that stay idle for a number of passes are unlinked by
+ * the combiner and re-published by their owner on the next operation.
+ */
+public class FlatCombiningBTree {
+    private static final int OP_ADD = 1;
+    private static final int OP_DELETE = 2;
+    private static final int OP_SEARCH = 3;
+
+    // Number of combining passes a slot may stay idle before it is unlinked
+    private static final int MAX_IDLE_PASSES = 1024;
+    // Number of spins a waiting thread makes before it parks
+    private static final int MAX_SPINS = 256;
+    // Upper bound of one park, the combiner may have passed the slot already
+    private static final long PARK_NANOS = 50_000L;
+
+    BTree tree;
+    AtomicBoolean lock = new AtomicBoolean();
+    AtomicReference<Slot> head = new AtomicReference<>();
+    ThreadLocal<Slot> slots = ThreadLocal.withInitial(Slot::new);
+    long passes;
+
+    // Statistics
+    long combinedOps;
+    long combiningPasses;
+
+    /**
+     * This class represents the publication slot of one thread. The request
+     * fields are written by the owner before 'pending' is set and read by the
+     * combiner after it has seen 'pending', the result is written by the
+     * combiner before 'pending' is cleared.
+     */
+    static class Slot {
+        int op;
+        int key;
+        Object object;
+        Object result;
+        RuntimeException error;
+        Thread owner = Thread.currentThread();
+        volatile boolean pending;
+        volatile boolean waiting;
+        volatile boolean linked;
+        long lastUsedPass;
+        Slot next;
+    }
+
+    /**
+     * Constructor
+     * @param tree: the tree that is only accessed through this wrapper from now on
+     */
+    public FlatCombiningBTree(BTree tree) {
+        this.tree = tree;
+    }
+
+    public FlatCombiningBTree() {
+        this(new BTree());
+    }
+
+    public void add(int key, Object object) {
+        execute(OP_ADD, key, object);
+    }
+
+    public void delete(int key) {
+        execute(OP_DELETE, key, null);
+    }
+
+    public Object search(int key) {
+        return execute(OP_SEARCH, key, null);
+    }
+
+    /**
+     * This method publishes a request and waits until it has been applied,
+     * either by the current combiner or by this thread becoming the combiner.
+     */
+    private Object execute(int op, int key, Object object) {
+        Slot slot = slots.get();
+        slot.op = op;
+        slot.key = key;
+        slot.object = object;
+        slot.pending = true;
+        if (!slot.linked) {
+            slot.linked = true;
+            Slot h;
+            do {
+                h = head.get();
+                slot.next = h;
+            } while (!head.compareAndSet(h, slot));
+        }
+        int spins = 0;
+        while (slot.pending) {
+            if (!lock.get() && lock.compareAndSet(false, true)) {
+                try {
+                    // The slot may have been unlinked after it was checked
+                    // above, so it is always served by its own combining pass
+                    if (slot.pending) {
+                        apply(slot);
+                    }
+                    combine();
+                } finally {
+                    lock.set(false);
+                }
+            } else if (spins < MAX_SPINS) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                // 'waiting' is set before 'pending' is checked again and the
+                // combiner clears 'pending' before it checks 'waiting', so one
+                // of the two always sees the other and no wakeup is lost
+                slot.waiting = true;
+                if (slot.pending && lock.get()) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                slot.waiting = false;
+            }
+        }
+        Object result = slot.result;
+        RuntimeException error = slot.error;
+        slot.result = null;
+        slot.error = null;
+        slot.object = null;
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+
+    /**
+     * This method applies all pending requests of the publication list and
+     * unlinks slots that have been idle for too long. The head slot is never
+     * unlinked, so the combiner is the only thread changing 'next' pointers
+     * behind the head while other threads push new slots in front of it.
+     */
+    private void combine() {
+        passes++;
+        combiningPasses++;
+        Slot prev = null;
+        Slot s = head.get();
+        while (s != null) {
+            // Read 'next' before 'linked' is cleared, the owner may re-push
+            // the slot and overwrite 'next' right after that
+            Slot next = s.next;
+            if (s.pending) {
+                apply(s);
+                prev = s;
+            } else if (prev != null && passes - s.lastUsedPass > MAX_IDLE_PASSES) {
+                prev.next = next;
+                s.linked = false;
+            } else {
+                prev = s;
+            }
+            s = next;
+        }
+    }
+
+    private void apply(Slot s) {
+        try {
+            switch (s.op) {
+                case OP_ADD -> tree.add(s.key, s.object);
+                case OP_DELETE -> tree.delete(s.key);
+                default -> s.result = tree.search(s.key);
+            }
+        } catch (RuntimeException e) {
+            // Hand the failure back to the owner instead of the combiner
+            s.error = e;
+        }
+        s.lastUsedPass = passes;
+        combinedOps++;
+        s.pending = false;
+        if (s.waiting) {
+            LockSupport.unpark(s.owner);
+        }
+    }
+
+    public long getCombinedOps() { return combinedOps; }
+
+    /**
+     * @return the average number of requests applied per combining pass
+     */
+    public double getAverageCombinedOps() {
+        return combiningPasses == 0 ? 0.0 : (double) combinedOps / combiningPasses;
+    }
+}
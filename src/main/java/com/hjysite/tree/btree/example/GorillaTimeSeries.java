@@ -0,0 +1,349 @@
+package com.hjysite.tree.btree.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class stores int timestamp -> double value samples in the
+ * compressed format of Facebook's Gorilla time series database. Samples are
+ * appended in strictly ascending timestamp order and grouped into blocks of
+ * blockSize samples. Inside a block every sample is written into one bit
+ * stream:
+ * - the first sample stores its timestamp (32 bits) and value (64 bits) raw
+ * - timestamps store the delta-of-delta to the previous sample in a
+ *   variable length bucket ('0', '10'+7, '110'+9, '1110'+12 or '1111'+34 bits)
+ * - values store the XOR with the previous value: '0' if equal, otherwise
+ *   '10' + the meaningful bits if they fit into the previous window of
+ *   leading/trailing zeros, or '11' + 5 bits leading zeros + 6 bits length +
+ *   the meaningful bits
+ * Block headers (first timestamp and bit offset) are kept in plain arrays,
+ * so lookups binary search the headers and decode only the blocks they need
+ * in a streaming fashion.
+ */
+public class GorillaTimeSeries {
+    int blockSize;
+    int size;
+
+    // Block headers: first timestamp, bit offset of the block and number of samples
+    int[] blockFirstTimestamps;
+    long[] blockBitOffsets;
+    int[] blockSampleCounts;
+    int blockCount;
+
+    // The bit stream of all blocks, written from the most significant bit of every word
+    long[] words;
+    long bitLength;
+
+    // Encoder state of the last (open) block
+    int lastTimestamp;
+    long lastDelta;
+    long lastValueBits;
+    int lastLeadingZeros;
+    int lastTrailingZeros;
+
+    /**
+     * This interface receives decoded samples, so range scans don't have to
+     * box the values.
+     */
+    public interface SampleConsumer {
+        void accept(int timestamp, double value);
+    }
+
+    /**
+     * Constructor
+     * @param blockSize: the number of samples per block
+     */
+    public GorillaTimeSeries(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.blockSize = blockSize;
+        this.blockFirstTimestamps = new int[8];
+        this.blockBitOffsets = new long[8];
+        this.blockSampleCounts = new int[8];
+        this.words = new long[16];
+    }
+
+    /**
+     * Constructor that copies all live dictionary pairs of a B+ tree.
+     * @param firstLeaf: the leftmost leaf of the B+ tree to copy, tombstones are skipped
+     * @param blockSize: the number of samples per block
+     */
+    GorillaTimeSeries(BPlusTree.LeafNode firstLeaf, int blockSize) {
+        this(blockSize);
+        for (BPlusTree.LeafNode ln = firstLeaf; ln != null; ln = ln.rightSibling) {
+            for (int i = 0; i < ln.numPairs; i++) {
+                BPlusTree.DictionaryPair dp = ln.dictionary[i];
+                if (!dp.tombstone) { append(dp.key, dp.value); }
+            }
+        }
+    }
+
+    /**
+     * This method appends a sample to the end of the series.
+     * @param timestamp: the timestamp, must be greater than the last appended one
+     * @param value: the value of the sample
+     */
+    public void append(int timestamp, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (size > 0 && timestamp <= lastTimestamp) {
+            throw new IllegalArgumentException("timestamp " + timestamp
+                    + " is not greater than the last timestamp " + lastTimestamp);
+        }
+
+        if (blockCount == 0 || blockSampleCounts[blockCount - 1] == blockSize) {
+            // Open a new block that starts with a raw sample
+            if (blockCount == blockFirstTimestamps.length) {
+                int capacity = blockCount * 2;
+                blockFirstTimestamps = Arrays.copyOf(blockFirstTimestamps, capacity);
+                blockBitOffsets = Arrays.copyOf(blockBitOffsets, capacity);
+                blockSampleCounts = Arrays.copyOf(blockSampleCounts, capacity);
+            }
+            blockFirstTimestamps[blockCount] = timestamp;
+            blockBitOffsets[blockCount] = bitLength;
+            blockSampleCounts[blockCount] = 1;
+            blockCount++;
+            writeBits(timestamp & 0xFFFFFFFFL, 32);
+            writeBits(valueBits, 64);
+            lastDelta = 0;
+            lastLeadingZeros = Integer.MAX_VALUE;
+            lastTrailingZeros = 0;
+        } else {
+            long delta = (long) timestamp - lastTimestamp;
+            writeDeltaOfDelta(delta - lastDelta);
+            lastDelta = delta;
+            writeValue(valueBits ^ lastValueBits);
+            blockSampleCounts[blockCount - 1]++;
+        }
+        lastTimestamp = timestamp;
+        lastValueBits = valueBits;
+        size++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            writeBits(0b0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            writeBits(0b10, 2);
+            writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            writeBits(0b110, 3);
+            writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            writeBits(0b1110, 4);
+            writeBits(dod, 12);
+        } else {
+            // Deltas are within [1, 2^32), so the delta-of-delta fits into 34 signed bits
+            writeBits(0b1111, 4);
+            writeBits(dod, 34);
+        }
+    }
+
+    private void writeValue(long xor) {
+        if (xor == 0) {
+            writeBits(0b0, 1);
+            return;
+        }
+        int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        if (leadingZeros >= lastLeadingZeros && trailingZeros >= lastTrailingZeros) {
+            // The meaningful bits fit into the window of the previous value
+            writeBits(0b10, 2);
+            writeBits(xor >>> lastTrailingZeros, 64 - lastLeadingZeros - lastTrailingZeros);
+        } else {
+            int length = 64 - leadingZeros - trailingZeros;
+            writeBits(0b11, 2);
+            writeBits(leadingZeros, 5);
+            // A length of 64 is stored as 0, a meaningful length is never 0
+            writeBits(length & 63, 6);
+            writeBits(xor >>> trailingZeros, length);
+            lastLeadingZeros = leadingZeros;
+            lastTrailingZeros = trailingZeros;
+        }
+    }
+
+    /**
+     * This method writes the lowest 'count' bits of 'bits', most significant first.
+     */
+    private void writeBits(long bits, int count) {
+        if (count == 0) { return; }
+        int needed = (int) ((bitLength + count + 63) >>> 6);
+        if (needed > words.length) {
+            words = Arrays.copyOf(words, Math.max(needed, words.length * 2));
+        }
+        if (count < 64) {
+            bits &= (1L << count) - 1;
+        }
+        int word = (int) (bitLength >>> 6);
+        int free = 64 - (int) (bitLength & 63);
+        if (count <= free) {
+            words[word] |= bits << (free - count);
+        } else {
+            words[word] |= bits >>> (count - free);
+            words[word + 1] |= bits << (64 - (count - free));
+        }
+        bitLength += count;
+    }
+
+    /**
+     * This method reads the next 'count' bits at 'position' as an unsigned value.
+     */
+    private long readBits(long position, int count) {
+        int word = (int) (position >>> 6);
+        int offset = (int) (position & 63);
+        int available = 64 - offset;
+        long bits = (words[word] << offset) >>> (64 - count);
+        if (count > available) {
+            bits |= words[word + 1] >>> (64 - (count - available));
+        }
+        return bits;
+    }
+
+    /**
+     * This class decodes the samples of one block in order, every call to
+     * next() moves 'timestamp' and 'value' to the following sample.
+     */
+    private class BlockDecoder {
+        long position;
+        int remaining;
+        boolean first = true;
+        int timestamp;
+        long delta;
+        long valueBits;
+        int leadingZeros;
+        int trailingZeros;
+
+        BlockDecoder(int block) {
+            this.position = blockBitOffsets[block];
+            this.remaining = blockSampleCounts[block];
+        }
+
+        boolean hasNext() { return remaining > 0; }
+
+        double value() { return Double.longBitsToDouble(valueBits); }
+
+        void next() {
+            remaining--;
+            if (first) {
+                first = false;
+                timestamp = (int) read(32);
+                valueBits = read(64);
+                return;
+            }
+            delta += readDeltaOfDelta();
+            timestamp = (int) (timestamp + delta);
+            if (read(1) == 0) {
+                // Same value as before
+                return;
+            }
+            if (read(1) == 1) {
+                leadingZeros = (int) read(5);
+                int length = (int) read(6);
+                if (length == 0) { length = 64; }
+                trailingZeros = 64 - leadingZeros - length;
+            }
+            valueBits ^= read(64 - leadingZeros - trailingZeros) << trailingZeros;
+        }
+
+        private long readDeltaOfDelta() {
+            if (read(1) == 0) { return 0; }
+            if (read(1) == 0) { return signed(read(7), 7); }
+            if (read(1) == 0) { return signed(read(9), 9); }
+            if (read(1) == 0) { return signed(read(12), 12); }
+            return signed(read(34), 34);
+        }
+
+        private long read(int count) {
+            long bits = readBits(position, count);
+            position += count;
+            return bits;
+        }
+    }
+
+    private static long signed(long bits, int count) {
+        return (bits << (64 - count)) >> (64 - count);
+    }
+
+    /**
+     * This method returns the index of the last block whose first timestamp
+     * is smaller than or equal to 'timestamp', or -1 if there is none.
+     */
+    private int findBlock(int timestamp) {
+        if (blockCount == 0 || timestamp < blockFirstTimestamps[0]) { return -1; }
+        int lo = 0;
+        int hi = blockCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blockFirstTimestamps[mid] <= timestamp) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Given a timestamp, this method returns the value of the sample at that
+     * timestamp, decoding at most one block.
+     * @param timestamp: the timestamp to be searched
+     * @return the value of the sample, or null if there is no sample at that timestamp
+     */
+    public Double search(int timestamp) {
+        int b = findBlock(timestamp);
+        if (b < 0) { return null; }
+        BlockDecoder decoder = new BlockDecoder(b);
+        while (decoder.hasNext()) {
+            decoder.next();
+            if (decoder.timestamp >= timestamp) {
+                return (decoder.timestamp == timestamp) ? decoder.value() : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method streams all samples whose timestamps are within the range
+     * specified by lowerBound and upperBound to 'consumer' in timestamp
+     * order, only the blocks overlapping the range are decoded.
+     * @param lowerBound: (int) the lower bound of the range
+     * @param upperBound: (int) the upper bound of the range
+     * @param consumer: receives the samples
+     */
+    public void forEach(int lowerBound, int upperBound, SampleConsumer consumer) {
+        if (lowerBound > upperBound) { return; }
+        for (int b = Math.max(findBlock(lowerBound), 0); b < blockCount; b++) {
+            if (blockFirstTimestamps[b] > upperBound) { return; }
+            BlockDecoder decoder = new BlockDecoder(b);
+            while (decoder.hasNext()) {
+                decoder.next();
+                if (decoder.timestamp > upperBound) { return; }
+                if (decoder.timestamp >= lowerBound) {
+                    consumer.accept(decoder.timestamp, decoder.value());
+                }
+            }
+        }
+    }
+
+    /**
+     * This method records all values whose timestamps are within the range
+     * specified by lowerBound and upperBound, like BPlusTree.search(int, int).
+     * @param lowerBound: (int) the lower bound of the range
+     * @param upperBound: (int) the upper bound of the range
+     * @return an ArrayList<Double> that holds the values in timestamp order
+     */
+    public ArrayList<Double> search(int lowerBound, int upperBound) {
+        ArrayList<Double> values = new ArrayList<Double>();
+        forEach(lowerBound, upperBound, (timestamp, value) -> values.add(value));
+        return values;
+    }
+
+    public int size() { return size; }
+
+    /**
+     * @return the number of bytes used by the bit stream and block headers
+     */
+    public long getMemoryBytes() {
+        return (long) words.length * 8 + (long) blockFirstTimestamps.length * (4 + 8 + 4);
+    }
+}
@@ -0,0 +1,367 @@
+package com.hjysite.tree.btree.example;
+
+import java.util.Arrays;
+
+/**
+ * This class is an optional learned index layer over the leaf level of a
+ * BPlusTree. It keeps the leaves in key order together with their smallest
+ * keys and fits a piecewise-linear model (key -> leaf position) whose error
+ * is bounded by maxError. A point lookup predicts a leaf position, performs
+ * a last-mile binary search inside the predicted window and only falls back
+ * to the normal root-to-leaf descent when the window turns out to be wrong.
+ */
+class LearnedLeafIndex {
+    int maxError;
+
+    // Leaves in key order along with the smallest key of every leaf
+    BPlusTree.LeafNode[] leaves;
+    int[] firstKeys;
+    int size;
+
+    // Linear segments: start position, key and slope of every segment
+    int[] segStartPos;
+    int[] segStartKey;
+    double[] segSlope;
+    int[] segDrift;
+    int segCount;
+
+    // Set when the leaf level changed in a way the index cannot follow
+    boolean stale;
+
+    // Statistics
+    long hits;
+    long fallbacks;
+    long rebuilds;
+
+    /**
+     * Constructor
+     * @param maxError: the maximum distance (in leaves) between a predicted
+     *                  and the actual position of a leaf
+     */
+    LearnedLeafIndex(int maxError) {
+        if (maxError < 0) {
+            throw new IllegalArgumentException("maxError must not be negative");
+        }
+        this.maxError = maxError;
+        this.stale = true;
+    }
+
+    /**
+     * This method rebuilds the whole index by walking the doubly linked list
+     * of leaves starting at firstLeaf.
+     * @param firstLeaf: the leftmost leaf of the B+ tree
+     */
+    void rebuild(BPlusTree.LeafNode firstLeaf) {
+        int count = 0;
+        for (BPlusTree.LeafNode ln = firstLeaf; ln != null; ln = ln.rightSibling) {
+            count++;
+        }
+        this.leaves = new BPlusTree.LeafNode[Math.max(count, 8)];
+        this.firstKeys = new int[this.leaves.length];
+        this.size = 0;
+        for (BPlusTree.LeafNode ln = firstLeaf; ln != null; ln = ln.rightSibling) {
+            if (ln.numPairs == 0) {
+                continue;
+            }
+            leaves[size] = ln;
+            firstKeys[size] = ln.dictionary[0].key;
+            size++;
+        }
+        this.segStartPos = new int[8];
+        this.segStartKey = new int[8];
+        this.segSlope = new double[8];
+        this.segDrift = new int[8];
+        this.segCount = 0;
+        fitSegments(0, size, 0);
+        this.stale = false;
+        this.rebuilds++;
+    }
+
+    /**
+     * This method fits linear segments over the points [from, to) with the
+     * shrinking cone algorithm and inserts them into the list of segments
+     * starting at segment index 'at'.
+     * @param from: first leaf position (inclusive)
+     * @param to: last leaf position (exclusive)
+     * @param at: the segment index where the new segments are inserted
+     * @return the number of segments that were inserted
+     */
+    private int fitSegments(int from, int to, int at) {
+        int inserted = 0;
+        int start = from;
+        while (start < to) {
+            double lo = Double.NEGATIVE_INFINITY;
+            double hi = Double.POSITIVE_INFINITY;
+            int end = start + 1;
+            while (end < to) {
+                double dx = (double) firstKeys[end] - firstKeys[start];
+                double dy = end - start;
+                double newLo = Math.max(lo, (dy - maxError) / dx);
+                double newHi = Math.min(hi, (dy + maxError) / dx);
+                if (newLo > newHi) { break; }
+                lo = newLo;
+                hi = newHi;
+                end++;
+            }
+            double slope = (end - start == 1) ? 0.0 : (lo + hi) / 2;
+            insertSegment(at + inserted, start, firstKeys[start], slope);
+            inserted++;
+            start = end;
+        }
+        return inserted;
+    }
+
+    private void insertSegment(int index, int pos, int key, double slope) {
+        if (segCount == segStartPos.length) {
+            int capacity = segCount * 2;
+            segStartPos = Arrays.copyOf(segStartPos, capacity);
+            segStartKey = Arrays.copyOf(segStartKey, capacity);
+            segSlope = Arrays.copyOf(segSlope, capacity);
+            segDrift = Arrays.copyOf(segDrift, capacity);
+        }
+        System.arraycopy(segStartPos, index, segStartPos, index + 1, segCount - index);
+        System.arraycopy(segStartKey, index, segStartKey, index + 1, segCount - index);
+        System.arraycopy(segSlope, index, segSlope, index + 1, segCount - index);
+        System.arraycopy(segDrift, index, segDrift, index + 1, segCount - index);
+        segStartPos[index] = pos;
+        segStartKey[index] = key;
+        segSlope[index] = slope;
+        segDrift[index] = 0;
+        segCount++;
+    }
+
+    private void removeSegment(int index) {
+        System.arraycopy(segStartPos, index + 1, segStartPos, index, segCount - index - 1);
+        System.arraycopy(segStartKey, index + 1, segStartKey, index, segCount - index - 1);
+        System.arraycopy(segSlope, index + 1, segSlope, index, segCount - index - 1);
+        System.arraycopy(segDrift, index + 1, segDrift, index, segCount - index - 1);
+        segCount--;
+    }
+
+    /**
+     * This method returns the index of the last segment whose first key is
+     * smaller than or equal to 'key'.
+     */
+    private int findSegment(int key) {
+        int lo = 0;
+        int hi = segCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (firstKeys[segStartPos[mid]] <= key) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * This method returns the index of the segment covering leaf position 'pos'.
+     */
+    private int findSegmentOfPosition(int pos) {
+        int lo = 0;
+        int hi = segCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segStartPos[mid] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * This method returns the position of the leaf whose key range holds
+     * 'key', or -1 if the prediction window of the model did not contain it.
+     * @param key: the key being searched for
+     * @return the position of the leaf within 'leaves', or -1
+     */
+    private int predictPosition(int key) {
+        if (key <= firstKeys[0]) { return 0; }
+
+        int s = findSegment(key);
+        int segEnd = (s + 1 < segCount) ? segStartPos[s + 1] - 1 : size - 1;
+
+        // Predict and clamp the search window to the segment
+        double offset = segSlope[s] * ((double) key - segStartKey[s]);
+        long predicted = segStartPos[s] + Math.round(offset);
+        int error = maxError + segDrift[s] + 1;
+        int lo = (int) Math.max(segStartPos[s], predicted - error);
+        int hi = (int) Math.min(segEnd, predicted + error);
+        if (lo > hi || firstKeys[lo] > key || (hi < size - 1 && firstKeys[hi + 1] <= key)) {
+            return -1;
+        }
+
+        // Last-mile search: find the last leaf whose first key is <= key
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (firstKeys[mid] <= key) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * This method returns the leaf that holds 'key' if it exists within the
+     * B+ tree, or null when the caller has to fall back to the normal descent.
+     * @param key: the key being searched for
+     * @return the LeafNode that may hold 'key', or null
+     */
+    BPlusTree.LeafNode findLeafNode(int key) {
+        if (stale || size == 0) {
+            fallbacks++;
+            return null;
+        }
+        int pos = predictPosition(key);
+        if (pos < 0) {
+            fallbacks++;
+            return null;
+        }
+        hits++;
+        return leaves[pos];
+    }
+
+    /**
+     * This method locates the position of a leaf, using its (old) first key
+     * to find it quickly. It returns -1 if the leaf is not indexed.
+     */
+    private int positionOf(BPlusTree.LeafNode ln, int firstKey) {
+        int pos = predictPosition(firstKey);
+        if (pos < 0) {
+            int lo = 0;
+            int hi = size - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (firstKeys[mid] <= firstKey) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            pos = lo;
+        }
+        return (pos < size && leaves[pos] == ln) ? pos : -1;
+    }
+
+    /**
+     * This method is called after a key was inserted into a leaf without the
+     * leaf splitting. The index only needs to change if the smallest key of
+     * the leaf changed.
+     * @param ln: the leaf the key was inserted into
+     * @param oldFirstKey: the smallest key of the leaf before the insert
+     */
+    void leafUpdated(BPlusTree.LeafNode ln, int oldFirstKey) {
+        if (stale) { return; }
+        int newFirstKey = ln.dictionary[0].key;
+        if (newFirstKey == oldFirstKey) { return; }
+
+        int pos = positionOf(ln, oldFirstKey);
+        if (pos < 0) {
+            stale = true;
+            return;
+        }
+        firstKeys[pos] = newFirstKey;
+        segDrift[findSegmentOfPosition(pos)]++;
+    }
+
+    /**
+     * This method incrementally updates the index after the leaf 'ln' was
+     * split and 'newLeaf' was linked in as its right sibling. All segments
+     * after the split leaf are shifted by one position, and the segment that
+     * holds the split leaf is refitted once its drift exceeds maxError.
+     * @param ln: the leaf that was split
+     * @param oldFirstKey: the smallest key of 'ln' before the split
+     * @param newLeaf: the newly created right sibling of 'ln'
+     */
+    void leafSplit(BPlusTree.LeafNode ln, int oldFirstKey, BPlusTree.LeafNode newLeaf) {
+        if (stale) { return; }
+        int pos = positionOf(ln, oldFirstKey);
+        if (pos < 0) {
+            stale = true;
+            return;
+        }
+        firstKeys[pos] = ln.dictionary[0].key;
+
+        // Insert the new leaf right after the split leaf
+        if (size == leaves.length) {
+            leaves = Arrays.copyOf(leaves, size * 2);
+            firstKeys = Arrays.copyOf(firstKeys, size * 2);
+        }
+        System.arraycopy(leaves, pos + 1, leaves, pos + 2, size - pos - 1);
+        System.arraycopy(firstKeys, pos + 1, firstKeys, pos + 2, size - pos - 1);
+        leaves[pos + 1] = newLeaf;
+        firstKeys[pos + 1] = newLeaf.dictionary[0].key;
+        size++;
+
+        // Shift all following segments and account for the drift
+        int s = findSegmentOfPosition(pos);
+        for (int i = s + 1; i < segCount; i++) {
+            segStartPos[i]++;
+        }
+        segDrift[s]++;
+
+        // Refit the affected segment once its error bound is exceeded
+        if (segDrift[s] > maxError) {
+            int from = segStartPos[s];
+            int to = (s + 1 < segCount) ? segStartPos[s + 1] : size;
+            removeSegment(s);
+            fitSegments(from, to, s);
+        }
+    }
+
+    /**
+     * This method incrementally updates the index after the leaf 'ln' was
+     * merged away by a delete. All segments after the removed leaf are
+     * shifted back by one position, a segment that held only the removed
+     * leaf is dropped, and the affected segment is refitted once its drift
+     * exceeds maxError.
+     * @param ln: the leaf that was removed from the leaf level
+     * @param oldFirstKey: the smallest key of 'ln' before the delete
+     */
+    void leafRemoved(BPlusTree.LeafNode ln, int oldFirstKey) {
+        if (stale) { return; }
+        int pos = positionOf(ln, oldFirstKey);
+        if (pos < 0) {
+            stale = true;
+            return;
+        }
+        System.arraycopy(leaves, pos + 1, leaves, pos, size - pos - 1);
+        System.arraycopy(firstKeys, pos + 1, firstKeys, pos, size - pos - 1);
+        size--;
+        leaves[size] = null;
+
+        // Shift all following segments and account for the drift
+        int s = findSegmentOfPosition(pos);
+        for (int i = s + 1; i < segCount; i++) {
+            segStartPos[i]--;
+        }
+        int to = (s + 1 < segCount) ? segStartPos[s + 1] : size;
+        if (segStartPos[s] == to) {
+            removeSegment(s);
+            return;
+        }
+        segStartKey[s] = firstKeys[segStartPos[s]];
+        segDrift[s]++;
+
+        // Refit the affected segment once its error bound is exceeded
+        if (segDrift[s] > maxError) {
+            int from = segStartPos[s];
+            removeSegment(s);
+            fitSegments(from, to, s);
+        }
+    }
+
+    /**
+     * This method marks the index as stale. It is rebuilt lazily by the
+     * next lookup that goes through the B+ tree.
+     */
+    void invalidate() {
+        this.stale = true;
+    }
+}
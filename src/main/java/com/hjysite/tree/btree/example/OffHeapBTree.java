@@ -0,0 +1,548 @@
+package com.hjysite.tree.btree.example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * This class is a variant of BTree whose nodes live outside of the Java
+ * heap. Nodes are fixed-size records in an arena of direct ByteBuffers and
+ * refer to each other through int handles instead of references, and the
+ * values are stored as longs inside the nodes (an Object value can be kept
+ * in a side table and stored as its index). The only heap objects are the
+ * tree itself and one ByteBuffer per arena chunk, so the garbage collector
+ * does not have to trace the nodes. Nodes released by merges are kept on a
+ * free list and reused.
+ *
+ * The arena grows geometrically: the last chunk starts with a few nodes and
+ * is copied into a buffer of twice the size whenever it fills up, until it
+ * reaches the chunk size given to the constructor; then a new small chunk is
+ * started. A small tree therefore reserves little more memory than it uses,
+ * and a large one never copies more than one chunk at a time. close() drops
+ * the chunks, their memory is returned when the buffers are collected.
+ *
+ * Node layout: numKeys (int), isLeaf (int), values (long[2T-1]),
+ * keys (int[2T-1]), children (int[2T]).
+ */
+public class OffHeapBTree implements AutoCloseable {
+    private static final int DEFAULT_CHUNK_BYTES = 64 * 1024 * 1024;
+    private static final int INITIAL_CHUNK_NODES = 64;
+    private static final int NIL = -1;
+    private static final int LEFT_CHILD_NODE = 0;
+    private static final int RIGHT_CHILD_NODE = 1;
+
+    private final int T;
+    private final int nodeSize;
+    private final int valuesOffset;
+    private final int keysOffset;
+    private final int childrenOffset;
+    private final int nodesPerChunk;
+
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<>();
+    // Capacity of the last chunk in nodes, all other chunks hold nodesPerChunk nodes
+    private int lastChunkNodes;
+    private int nodeCount;
+    private int freeList = NIL;
+    private int mRootNode;
+
+    /**
+     * Constructor
+     * @param t: the minimum degree, every node holds at most 2t-1 keys
+     * @param chunkBytes: the size of a full arena chunk, the arena grows up to
+     *                  this size by doubling and then adds chunks of this size
+     */
+    public OffHeapBTree(int t, int chunkBytes) {
+        if (t < 2) {
+            throw new IllegalArgumentException("t must be at least 2");
+        }
+        this.T = t;
+        this.valuesOffset = 8;
+        this.keysOffset = valuesOffset + 8 * (2 * t - 1);
+        this.childrenOffset = keysOffset + 4 * (2 * t - 1);
+        this.nodeSize = childrenOffset + 4 * 2 * t;
+        if (chunkBytes < nodeSize) {
+            throw new IllegalArgumentException("chunkBytes must hold at least one node of " + nodeSize + " bytes");
+        }
+        this.nodesPerChunk = chunkBytes / nodeSize;
+        mRootNode = allocate(true);
+    }
+
+    /**
+     * Constructor
+     * @param t: the minimum degree, every node holds at most 2t-1 keys
+     */
+    public OffHeapBTree(int t) {
+        this(t, DEFAULT_CHUNK_BYTES);
+    }
+
+    public OffHeapBTree() {
+        this(4);
+    }
+
+    /*~~~~~~~~~~~~~~~~ ARENA ~~~~~~~~~~~~~~~~*/
+
+    private int allocate(boolean isLeafNode) {
+        int node;
+        if (freeList != NIL) {
+            node = freeList;
+            freeList = numKeys(node);
+        } else {
+            if (chunks.isEmpty() || nodeCount == (chunks.size() - 1) * nodesPerChunk + lastChunkNodes) {
+                grow();
+            }
+            node = nodeCount++;
+        }
+        setNumKeys(node, 0);
+        setLeaf(node, isLeafNode);
+        return node;
+    }
+
+    // Double the last chunk, or start a new chunk once the last one is full.
+    private void grow() {
+        if (chunks.isEmpty() || lastChunkNodes == nodesPerChunk) {
+            lastChunkNodes = Math.min(INITIAL_CHUNK_NODES, nodesPerChunk);
+            chunks.add(ByteBuffer.allocateDirect(lastChunkNodes * nodeSize).order(ByteOrder.nativeOrder()));
+            return;
+        }
+        lastChunkNodes = (int) Math.min((long) lastChunkNodes * 2, nodesPerChunk);
+        ByteBuffer last = chunks.get(chunks.size() - 1);
+        ByteBuffer bigger = ByteBuffer.allocateDirect(lastChunkNodes * nodeSize).order(ByteOrder.nativeOrder());
+        bigger.put(last.clear());
+        chunks.set(chunks.size() - 1, bigger);
+    }
+
+    // The next free node is kept in the numKeys field of a released node.
+    private void release(int node) {
+        setNumKeys(node, freeList);
+        freeList = node;
+    }
+
+    private ByteBuffer chunk(int node) {
+        return chunks.get(node / nodesPerChunk);
+    }
+
+    private int base(int node) {
+        return (node % nodesPerChunk) * nodeSize;
+    }
+
+    private int numKeys(int node) { return chunk(node).getInt(base(node)); }
+
+    private void setNumKeys(int node, int n) { chunk(node).putInt(base(node), n); }
+
+    private boolean isLeaf(int node) { return chunk(node).getInt(base(node) + 4) != 0; }
+
+    private void setLeaf(int node, boolean leaf) { chunk(node).putInt(base(node) + 4, leaf ? 1 : 0); }
+
+    private long value(int node, int i) { return chunk(node).getLong(base(node) + valuesOffset + 8 * i); }
+
+    private void setValue(int node, int i, long value) { chunk(node).putLong(base(node) + valuesOffset + 8 * i, value); }
+
+    private int key(int node, int i) { return chunk(node).getInt(base(node) + keysOffset + 4 * i); }
+
+    private void setKey(int node, int i, int key) { chunk(node).putInt(base(node) + keysOffset + 4 * i, key); }
+
+    private int child(int node, int i) { return chunk(node).getInt(base(node) + childrenOffset + 4 * i); }
+
+    private void setChild(int node, int i, int child) { chunk(node).putInt(base(node) + childrenOffset + 4 * i, child); }
+
+    // Copy the i-th element (key and value) of one node to the j-th element of another.
+    private void copyElement(int src, int i, int dst, int j) {
+        setKey(dst, j, key(src, i));
+        setValue(dst, j, value(src, i));
+    }
+
+    /*~~~~~~~~~~~~~~~~ NODE HELPERS ~~~~~~~~~~~~~~~~*/
+
+    private int binarySearch(int node, int key) {
+        int leftIndex = 0;
+        int rightIndex = numKeys(node) - 1;
+        while (leftIndex <= rightIndex) {
+            final int middleIndex = leftIndex + ((rightIndex - leftIndex) / 2);
+            int middleKey = key(node, middleIndex);
+            if (middleKey < key) {
+                leftIndex = middleIndex + 1;
+            } else if (middleKey > key) {
+                rightIndex = middleIndex - 1;
+            } else {
+                return middleIndex;
+            }
+        }
+        return -1;
+    }
+
+    // Find the index of the first key that is larger than 'key', i.e. the child to descend into.
+    private int subtreeRootNodeIndex(int node, int key) {
+        int leftIndex = 0;
+        int rightIndex = numKeys(node);
+        while (leftIndex < rightIndex) {
+            int middleIndex = (leftIndex + rightIndex) >>> 1;
+            if (key < key(node, middleIndex)) {
+                rightIndex = middleIndex;
+            } else {
+                leftIndex = middleIndex + 1;
+            }
+        }
+        return leftIndex;
+    }
+
+    // Remove an element from a node and also the left (0) or right (+1) child.
+    private void remove(int node, int index, int leftOrRightChild) {
+        int n = numKeys(node);
+        boolean leaf = isLeaf(node);
+        for (int i = index; i < n - 1; i++) {
+            copyElement(node, i + 1, node, i);
+        }
+        if (!leaf) {
+            for (int i = index + leftOrRightChild; i < n; i++) {
+                setChild(node, i, child(node, i + 1));
+            }
+        }
+        setNumKeys(node, n - 1);
+    }
+
+    private void shiftRightByOne(int node) {
+        int n = numKeys(node);
+        boolean leaf = isLeaf(node);
+        if (!leaf) {
+            setChild(node, n + 1, child(node, n));
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            copyElement(node, i, node, i + 1);
+            if (!leaf) {
+                setChild(node, i + 1, child(node, i));
+            }
+        }
+    }
+
+    /*~~~~~~~~~~~~~~~~ INSERTION ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * This method inserts a key, replacing the value if the key is already present.
+     * @param key: the key to be inserted
+     * @param value: the value stored with the key
+     */
+    public void add(int key, long value) {
+        checkOpen();
+        int rootNode = mRootNode;
+        if (!update(rootNode, key, value)) {
+            if (numKeys(rootNode) == (2 * T - 1)) {
+                int newRootNode = allocate(false);
+                mRootNode = newRootNode;
+                setChild(newRootNode, 0, rootNode);
+                splitChildNode(newRootNode, 0, rootNode);
+                insertIntoNonFullNode(newRootNode, key, value);
+            } else {
+                insertIntoNonFullNode(rootNode, key, value);
+            }
+        }
+    }
+
+    private boolean update(int node, int key, long value) {
+        while (true) {
+            int i = binarySearch(node, key);
+            if (i != -1) {
+                setValue(node, i, value);
+                return true;
+            }
+            if (isLeaf(node)) {
+                return false;
+            }
+            node = child(node, subtreeRootNodeIndex(node, key));
+        }
+    }
+
+    // Split the full node, the i-th child of parentNode, into two nodes with T-1 elements each and move its median key up.
+    private void splitChildNode(int parentNode, int i, int node) {
+        int newNode = allocate(isLeaf(node));
+        setNumKeys(newNode, T - 1);
+        for (int j = 0; j < T - 1; j++) {
+            copyElement(node, j + T, newNode, j);
+        }
+        if (!isLeaf(node)) {
+            for (int j = 0; j < T; j++) {
+                setChild(newNode, j, child(node, j + T));
+            }
+        }
+        setNumKeys(node, T - 1);
+
+        int parentKeys = numKeys(parentNode);
+        for (int j = parentKeys; j >= i + 1; j--) {
+            setChild(parentNode, j + 1, child(parentNode, j));
+        }
+        setChild(parentNode, i + 1, newNode);
+        for (int j = parentKeys - 1; j >= i; j--) {
+            copyElement(parentNode, j, parentNode, j + 1);
+        }
+        copyElement(node, T - 1, parentNode, i);
+        setNumKeys(parentNode, parentKeys + 1);
+    }
+
+    private void insertIntoNonFullNode(int node, int key, long value) {
+        while (!isLeaf(node)) {
+            int i = subtreeRootNodeIndex(node, key);
+            if (numKeys(child(node, i)) == (2 * T - 1)) {
+                splitChildNode(node, i, child(node, i));
+                if (key > key(node, i)) {
+                    i++;
+                }
+            }
+            node = child(node, i);
+        }
+        int i = numKeys(node) - 1;
+        while (i >= 0 && key < key(node, i)) {
+            copyElement(node, i, node, i + 1);
+            i--;
+        }
+        setKey(node, i + 1, key);
+        setValue(node, i + 1, value);
+        setNumKeys(node, numKeys(node) + 1);
+    }
+
+    /*~~~~~~~~~~~~~~~~ DELETION ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * This method removes a key and its value if present.
+     * @param key: the key to be deleted
+     */
+    public void delete(int key) {
+        checkOpen();
+        delete(mRootNode, key);
+    }
+
+    // Same one-pass algorithm as BTree.delete: every node the deletion descends into holds at least T keys.
+    private void delete(int node, int key) {
+        while (true) {
+            int i = binarySearch(node, key);
+            if (isLeaf(node)) {
+                if (i != -1) {
+                    remove(node, i, LEFT_CHILD_NODE);
+                }
+                return;
+            }
+            if (i != -1) {
+                int leftChildNode = child(node, i);
+                int rightChildNode = child(node, i + 1);
+                if (numKeys(leftChildNode) >= T) {
+                    // Replace the key by its predecessor and delete the predecessor from the left subtree.
+                    int predecessorNode = leftChildNode;
+                    while (!isLeaf(predecessorNode)) {
+                        predecessorNode = child(predecessorNode, numKeys(predecessorNode));
+                    }
+                    copyElement(predecessorNode, numKeys(predecessorNode) - 1, node, i);
+                    key = key(node, i);
+                    node = leftChildNode;
+                } else if (numKeys(rightChildNode) >= T) {
+                    // Replace the key by its successor and delete the successor from the right subtree.
+                    int successorNode = rightChildNode;
+                    while (!isLeaf(successorNode)) {
+                        successorNode = child(successorNode, 0);
+                    }
+                    copyElement(successorNode, 0, node, i);
+                    key = key(node, i);
+                    node = rightChildNode;
+                } else {
+                    // Both children have T - 1 keys, merge them around the key and delete it from the merged node.
+                    int medianKeyIndex = mergeNodes(leftChildNode, rightChildNode);
+                    moveKey(node, i, RIGHT_CHILD_NODE, leftChildNode, medianKeyIndex);
+                    release(rightChildNode);
+                    node = leftChildNode;
+                }
+                continue;
+            }
+
+            // The key is not in this node, make sure the child to descend into has at least T keys.
+            i = subtreeRootNodeIndex(node, key);
+            int childNode = child(node, i);
+            if (numKeys(childNode) == T - 1) {
+                int leftChildSibling = (i - 1 >= 0) ? child(node, i - 1) : NIL;
+                int rightChildSibling = (i + 1 <= numKeys(node)) ? child(node, i + 1) : NIL;
+                if (leftChildSibling != NIL && numKeys(leftChildSibling) >= T) {
+                    // Rotate a key from the left sibling through the parent into childNode.
+                    shiftRightByOne(childNode);
+                    copyElement(node, i - 1, childNode, 0);
+                    int leftKeys = numKeys(leftChildSibling);
+                    if (!isLeaf(childNode)) {
+                        setChild(childNode, 0, child(leftChildSibling, leftKeys));
+                    }
+                    setNumKeys(childNode, numKeys(childNode) + 1);
+                    copyElement(leftChildSibling, leftKeys - 1, node, i - 1);
+                    remove(leftChildSibling, leftKeys - 1, RIGHT_CHILD_NODE);
+                } else if (rightChildSibling != NIL && numKeys(rightChildSibling) >= T) {
+                    // Rotate a key from the right sibling through the parent into childNode.
+                    int childKeys = numKeys(childNode);
+                    copyElement(node, i, childNode, childKeys);
+                    if (!isLeaf(childNode)) {
+                        setChild(childNode, childKeys + 1, child(rightChildSibling, 0));
+                    }
+                    setNumKeys(childNode, childKeys + 1);
+                    copyElement(rightChildSibling, 0, node, i);
+                    remove(rightChildSibling, 0, LEFT_CHILD_NODE);
+                } else if (leftChildSibling != NIL) {
+                    int medianKeyIndex = mergeNodes(childNode, leftChildSibling);
+                    moveKey(node, i - 1, LEFT_CHILD_NODE, childNode, medianKeyIndex);
+                    release(leftChildSibling);
+                } else if (rightChildSibling != NIL) {
+                    int medianKeyIndex = mergeNodes(childNode, rightChildSibling);
+                    moveKey(node, i, RIGHT_CHILD_NODE, childNode, medianKeyIndex);
+                    release(rightChildSibling);
+                }
+            }
+            node = childNode;
+        }
+    }
+
+    // Merge srcNode into dstNode and keep the median element empty.
+    private int mergeNodes(int dstNode, int srcNode) {
+        int medianKeyIndex;
+        int dstKeys = numKeys(dstNode);
+        int srcKeys = numKeys(srcNode);
+        boolean leaf = isLeaf(dstNode);
+        if (key(srcNode, 0) < key(dstNode, dstKeys - 1)) {
+            // Shift all elements of dstNode right by srcKeys + 1 to make place for srcNode and the median key.
+            if (!leaf) {
+                setChild(dstNode, srcKeys + dstKeys + 1, child(dstNode, dstKeys));
+            }
+            for (int i = dstKeys; i > 0; i--) {
+                copyElement(dstNode, i - 1, dstNode, srcKeys + i);
+                if (!leaf) {
+                    setChild(dstNode, srcKeys + i, child(dstNode, i - 1));
+                }
+            }
+            medianKeyIndex = srcKeys;
+            int i;
+            for (i = 0; i < srcKeys; i++) {
+                copyElement(srcNode, i, dstNode, i);
+                if (!leaf) {
+                    setChild(dstNode, i, child(srcNode, i));
+                }
+            }
+            if (!leaf) {
+                setChild(dstNode, i, child(srcNode, i));
+            }
+        } else {
+            medianKeyIndex = dstKeys;
+            int offset = medianKeyIndex + 1;
+            int i;
+            for (i = 0; i < srcKeys; i++) {
+                copyElement(srcNode, i, dstNode, offset + i);
+                if (!leaf) {
+                    setChild(dstNode, offset + i, child(srcNode, i));
+                }
+            }
+            if (!leaf) {
+                setChild(dstNode, offset + i, child(srcNode, i));
+            }
+        }
+        setNumKeys(dstNode, dstKeys + srcKeys);
+        return medianKeyIndex;
+    }
+
+    // Move the element at srcKeyIndex of srcNode into the empty median slot of dstNode.
+    private void moveKey(int srcNode, int srcKeyIndex, int childIndex, int dstNode, int medianKeyIndex) {
+        copyElement(srcNode, srcKeyIndex, dstNode, medianKeyIndex);
+        setNumKeys(dstNode, numKeys(dstNode) + 1);
+        remove(srcNode, srcKeyIndex, childIndex);
+        if (srcNode == mRootNode && numKeys(srcNode) == 0) {
+            mRootNode = dstNode;
+            release(srcNode);
+        }
+    }
+
+    /*~~~~~~~~~~~~~~~~ SEARCH ~~~~~~~~~~~~~~~~*/
+
+    /**
+     * This method finds the value of a key.
+     * @param key: the key being searched for
+     * @param missingValue: the value returned if the key is not present
+     * @return the value of the key, or missingValue
+     */
+    public long search(int key, long missingValue) {
+        checkOpen();
+        int node = mRootNode;
+        while (true) {
+            int i = binarySearch(node, key);
+            if (i != -1) {
+                return value(node, i);
+            }
+            if (isLeaf(node)) {
+                return missingValue;
+            }
+            node = child(node, subtreeRootNodeIndex(node, key));
+        }
+    }
+
+    public boolean contains(int key) {
+        checkOpen();
+        int node = mRootNode;
+        while (true) {
+            if (binarySearch(node, key) != -1) {
+                return true;
+            }
+            if (isLeaf(node)) {
+                return false;
+            }
+            node = child(node, subtreeRootNodeIndex(node, key));
+        }
+    }
+
+    /**
+     * @return the number of nodes allocated in the arena, including released ones
+     */
+    public int getNodeCount() { return nodeCount; }
+
+    /**
+     * @return the number of off-heap bytes reserved by the arena
+     */
+    public long getOffHeapBytes() {
+        if (chunks.isEmpty()) { return 0; }
+        return ((long) (chunks.size() - 1) * nodesPerChunk + lastChunkNodes) * nodeSize;
+    }
+
+    /**
+     * This method releases the arena. The tree can't be used afterwards, the
+     * off-heap memory is freed when the garbage collector clears the chunks.
+     */
+    @Override
+    public void close() {
+        chunks.clear();
+        lastChunkNodes = 0;
+        nodeCount = 0;
+        freeList = NIL;
+        mRootNode = NIL;
+    }
+
+    private void checkOpen() {
+        if (mRootNode == NIL) {
+            throw new IllegalStateException("tree is closed");
+        }
+    }
+
+    // Inorder walk over the tree.
+    ArrayList<Integer> getKeys() {
+        return getKeys(mRootNode);
+    }
+
+    ArrayList<Integer> getKeys(int node) {
+        ArrayList<Integer> array = new ArrayList<Integer>();
+        int i;
+        for (i = 0; i < numKeys(node); i++) {
+            if (!isLeaf(node)) {
+                array.addAll(getKeys(child(node, i)));
+            }
+            array.add(key(node, i));
+        }
+        if (!isLeaf(node)) {
+            array.addAll(getKeys(child(node, i)));
+        }
+        return array;
+    }
+
+    void validate() throws Exception {
+        ArrayList<Integer> array = getKeys();
+        for (int i = 0; i < array.size() - 1; i++) {
+            if (array.get(i) >= array.get(i + 1)) {
+                throw new Exception("B-Tree invalid: " + array.get(i) + " greater than " + array.get(i + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32C;
+
+/**
+ * 异步B树，所有操作返回CompletableFuture
+ * 1.调用方（可以是大量虚拟线程）只把操作放入队列，不会竞争锁，B树只由一个写线程访问
+ * 2.写线程每次从队列中取出一批操作，先把批次中的写操作作为一条记录追加到日志并只调用一次force，再按顺序应用到B树，
+ * 最后完成这一批的所有future，future完成时写操作已经持久化（组提交）
+ * 3.日志记录的格式和快照的数据块相同：entryCount(int) payloadLength(int) payload crc32c(int)，
+ * payload中每个操作为 type(byte) key [value]，恢复时遇到不完整或校验失败的记录即停止
+ */
+public class AsyncBTree<K extends Comparable<K>, V> implements AutoCloseable {
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte SEARCH = 3;
+    private static final byte CLOSE = 4;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final BTree<K, V> tree;
+
+    /**
+     * 日志，为null时不持久化
+     */
+    private final FileChannel log;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valSerializer;
+
+    /**
+     * 一批最多包含的操作数
+     */
+    private final int maxBatchSize;
+
+    private final BlockingQueue<Request<K, V>> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * 日志写入失败或应用到B树时抛出异常后，之后的所有操作都以该异常失败
+     */
+    private Throwable failure;
+
+    private volatile long batches;
+    private volatile long operations;
+
+    /**
+     * @param tree          被访问的B树，之后只能通过当前对象访问
+     * @param log           日志，追加到当前位置之后，为null时不持久化
+     * @param keySerializer key的序列化器
+     * @param valSerializer value的序列化器
+     * @param maxBatchSize  一批最多包含的操作数
+     * @param threadFactory 用于创建写线程
+     */
+    public AsyncBTree(BTree<K, V> tree, FileChannel log, Serializer<K> keySerializer, Serializer<V> valSerializer,
+                      int maxBatchSize, ThreadFactory threadFactory) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.tree = tree;
+        this.log = log;
+        this.keySerializer = keySerializer;
+        this.valSerializer = valSerializer;
+        this.maxBatchSize = maxBatchSize;
+        this.writer = threadFactory.newThread(this::run);
+        this.writer.start();
+    }
+
+    public AsyncBTree(BTree<K, V> tree, FileChannel log, Serializer<K> keySerializer, Serializer<V> valSerializer) {
+        this(tree, log, keySerializer, valSerializer, 1024, r -> {
+            Thread thread = new Thread(r, "async-btree-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class Request<K extends Comparable<K>, V> {
+        private final byte type;
+        private final K key;
+        private final V val;
+        private final CompletableFuture<KeyVal<K, V>> future = new CompletableFuture<>();
+
+        private Request(byte type, K key, V val) {
+            this.type = type;
+            this.key = key;
+            this.val = val;
+        }
+    }
+
+    public CompletableFuture<Void> put(K key, V val) {
+        return submit(new Request<>(PUT, key, val)).thenApply(kv -> null);
+    }
+
+    public CompletableFuture<Void> delete(K key) {
+        return submit(new Request<>(DELETE, key, null)).thenApply(kv -> null);
+    }
+
+    /**
+     * 查找，和之前提交的写操作按顺序执行，能读到它们的结果
+     */
+    public CompletableFuture<KeyVal<K, V>> search(K key) {
+        return submit(new Request<>(SEARCH, key, null));
+    }
+
+    private CompletableFuture<KeyVal<K, V>> submit(Request<K, V> request) {
+        if (closed) {
+            request.future.completeExceptionally(new IllegalStateException("closed"));
+            return request.future;
+        }
+        queue.add(request);
+        // 和close()并发时，请求可能排在关闭请求之后，如果还没有被写线程取走，由调用方自己完成
+        if (closed && queue.remove(request)) {
+            request.future.completeExceptionally(new IllegalStateException("closed"));
+        }
+        return request.future;
+    }
+
+    /**
+     * 写线程，批量取出操作并组提交
+     */
+    private void run() {
+        List<Request<K, V>> batch = new ArrayList<>(maxBatchSize);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, maxBatchSize - 1);
+            // 和close()并发提交的请求可能排在关闭请求之后，并且和它一起被取出，这些请求不再执行
+            int end = batch.size();
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i).type == CLOSE) {
+                    end = i + 1;
+                    stop = true;
+                    break;
+                }
+            }
+            List<Request<K, V>> accepted = batch.subList(0, end);
+            try {
+                process(accepted);
+            } catch (Throwable e) {
+                failure = e;
+                fail(accepted, e);
+            }
+            fail(batch.subList(end, batch.size()), new IllegalStateException("closed"));
+            batch.clear();
+        }
+        // 写线程退出后，队列中剩余的操作不会再执行
+        for (Request<K, V> request; (request = queue.poll()) != null; ) {
+            request.future.completeExceptionally(new IllegalStateException("closed"));
+        }
+    }
+
+    /**
+     * 以异常完成还没有完成的请求
+     */
+    private static <K extends Comparable<K>, V> void fail(List<Request<K, V>> requests, Throwable cause) {
+        for (Request<K, V> request : requests) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * 写日志并应用到B树，应用时抛出的异常由run()处理，之后的所有操作都失败，因为B树可能处于中间状态
+     */
+    private void process(List<Request<K, V>> batch) {
+        if (failure == null) {
+            try {
+                appendToLog(batch);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                // 序列化在写入日志之前完成，日志和B树都没有被修改，只有这一批失败
+                fail(batch, e);
+                return;
+            }
+        }
+        if (failure != null) {
+            // 写入失败的批次不应用到B树，保证B树和日志一致
+            fail(batch, failure);
+            return;
+        }
+        for (Request<K, V> request : batch) {
+            switch (request.type) {
+                case PUT -> {
+                    tree.upsert(new KeyVal<>(request.key, request.val));
+                    request.future.complete(null);
+                }
+                case DELETE -> {
+                    tree.delete(request.key);
+                    request.future.complete(null);
+                }
+                case SEARCH -> request.future.complete(tree.search(request.key));
+                default -> request.future.complete(null);
+            }
+        }
+        batches++;
+        operations += batch.size();
+    }
+
+    /**
+     * 将一批中的写操作作为一条记录写入日志，并只调用一次force
+     */
+    private void appendToLog(List<Request<K, V>> batch) throws IOException {
+        if (log == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = 0;
+        for (Request<K, V> request : batch) {
+            if (request.type == PUT) {
+                out.writeByte(PUT);
+                keySerializer.serialize(request.key, out);
+                valSerializer.serialize(request.val, out);
+                count++;
+            } else if (request.type == DELETE) {
+                out.writeByte(DELETE);
+                keySerializer.serialize(request.key, out);
+                count++;
+            }
+        }
+        if (count == 0) {
+            // 只有读操作的批次不需要写日志
+            return;
+        }
+        out.flush();
+        byte[] payload = bytes.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length + 4);
+        buf.putInt(count).putInt(payload.length).put(payload).putInt((int) crc.getValue()).flip();
+        while (buf.hasRemaining()) {
+            log.write(buf);
+        }
+        log.force(false);
+    }
+
+    /**
+     * 把日志中的写操作重放到B树中，用于重启后恢复
+     * 末尾不完整或校验失败的记录（写入过程中崩溃）会被忽略
+     *
+     * @return 最后一条完整记录结束的位置，之后的内容可以截断
+     */
+    public static <K extends Comparable<K>, V> long replay(FileChannel log, BTree<K, V> tree, Serializer<K> keySerializer,
+                                                           Serializer<V> valSerializer) throws IOException {
+        long position = 0;
+        long size = log.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(log, header, position);
+            int count = header.getInt();
+            int length = header.getInt();
+            if (count <= 0 || length < 0 || position + RECORD_HEADER_SIZE + length + 4 > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length + 4);
+            readFully(log, payload, position + RECORD_HEADER_SIZE);
+            CRC32C crc = new CRC32C();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != payload.getInt(length)) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array(), 0, length));
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                K key = keySerializer.deserialize(in);
+                if (type == PUT) {
+                    tree.upsert(new KeyVal<>(key, valSerializer.deserialize(in)));
+                } else if (type == DELETE) {
+                    tree.delete(key);
+                } else {
+                    throw new IOException("unknown log entry type: " + type);
+                }
+            }
+            position += RECORD_HEADER_SIZE + length + 4;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new EOFException("unexpected end of log");
+            }
+            position += n;
+        }
+        buf.flip();
+    }
+
+    /**
+     * 已经提交的批次数
+     */
+    public long batchCount() {
+        return batches;
+    }
+
+    /**
+     * 平均每批包含的操作数
+     */
+    public double averageBatchSize() {
+        long b = batches;
+        return b == 0 ? 0 : (double) operations / b;
+    }
+
+    /**
+     * 执行完关闭之前提交的所有操作后停止写线程，并发调用时都等待写线程结束
+     * 等待时被中断则恢复中断标记并返回，写线程仍会在执行完之前的操作后停止
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                queue.add(new Request<>(CLOSE, null, null));
+            }
+        }
+        // future的回调在写线程中执行，回调中调用close()时不能等待自己
+        if (Thread.currentThread() == writer) {
+            return;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
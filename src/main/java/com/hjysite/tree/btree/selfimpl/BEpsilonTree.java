@@ -0,0 +1,408 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bε树
+ * 1.叶子节点保存有序的键值对，内部节点只保存分隔key（pivot）和子节点，并且每个内部节点带有一个消息缓冲区
+ * 2.插入、删除、upsert都作为消息写入根节点的缓冲区，缓冲区满了之后，把消息最多的那个子节点对应的消息整体下推一层
+ * 3.消息到达叶子节点时才真正生效，所以一次下推的IO/缓存开销被一批消息分摊，随机写入的代价比B树的insertNonFull低
+ * 4.查询从根节点向下，收集路径上该key的待处理消息，再按从旧到新的顺序应用到叶子节点中的值上
+ * 5.删除导致的节点不足不做借/合并，只在叶子节点被删空时把它从父节点中摘除
+ * <p>
+ * 节点的大小和BTree一致：叶子节点最多2d-1个键值对，内部节点最多2d个子节点
+ */
+public class BEpsilonTree<K extends Comparable<K>, V> {
+
+    /**
+     * 最小度数
+     */
+    private final int d;
+
+    /**
+     * 每个内部节点缓冲区最多容纳的消息数
+     */
+    private final int bufferCapacity;
+
+    private Node<K, V> root;
+
+    public BEpsilonTree(int d, int bufferCapacity) {
+        if (d < 2) {
+            throw new IllegalArgumentException("d must be at least 2");
+        }
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException("bufferCapacity must be positive");
+        }
+        this.d = d;
+        this.bufferCapacity = bufferCapacity;
+        this.root = new Node<>(true);
+    }
+
+    public void put(K key, V val) {
+        send(key, Message.insert(val));
+    }
+
+    public void delete(K key) {
+        send(key, Message.delete());
+    }
+
+    /**
+     * 读-改-写，不需要先查询：function的参数是当前值（不存在时为null），返回null表示删除
+     */
+    public void upsert(K key, UnaryOperator<V> function) {
+        send(key, Message.upsert(function));
+    }
+
+    /**
+     * 查找
+     */
+    public KeyVal<K, V> search(K key) {
+        // 从根节点向下收集待处理的消息，越靠上的消息越新
+        List<Message<V>> pending = new ArrayList<>();
+        Node<K, V> node = root;
+        V val = null;
+        boolean resolved = false;
+        while (!node.isLeaf) {
+            Message<V> message = node.buffer.get(key);
+            if (message != null) {
+                if (message.type != Message.Type.UPSERT) {
+                    // 插入和删除会覆盖下面所有更旧的状态，不需要继续向下查找
+                    val = message.apply(null);
+                    resolved = true;
+                    break;
+                }
+                pending.add(message);
+            }
+            node = node.children.get(node.childIndex(key));
+        }
+        if (!resolved) {
+            int index = node.entryIndex(key);
+            val = index < 0 ? null : node.entries.get(index).val();
+        }
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            val = pending.get(i).apply(val);
+        }
+        return val == null ? null : new KeyVal<>(key, val);
+    }
+
+    /**
+     * 将所有缓冲区中的消息下推到叶子节点
+     */
+    public void flushAll() {
+        flushAll(root);
+        fixRoot();
+    }
+
+    private void flushAll(Node<K, V> node) {
+        if (node.isLeaf) {
+            return;
+        }
+        while (!node.buffer.isEmpty()) {
+            flush(node);
+        }
+        for (Node<K, V> child : new ArrayList<>(node.children)) {
+            flushAll(child);
+        }
+        restructureChildren(node);
+    }
+
+    private void send(K key, Message<V> message) {
+        if (root.isLeaf) {
+            root.applyToLeaf(key, message);
+        } else {
+            root.buffer.merge(key, message, Message::combine);
+            while (root.buffer.size() > bufferCapacity) {
+                flush(root);
+            }
+        }
+        fixRoot();
+    }
+
+    /**
+     * 处理根节点：过满时分裂并生成新根，只剩一个子节点且缓冲区为空时降低树高
+     */
+    private void fixRoot() {
+        while (isOverfull(root)) {
+            Node<K, V> newRoot = new Node<>(false);
+            newRoot.children.add(root);
+            split(newRoot, 0);
+            root = newRoot;
+        }
+        while (!root.isLeaf && root.children.size() == 1 && root.buffer.isEmpty()) {
+            root = root.children.get(0);
+        }
+    }
+
+    /**
+     * 把node缓冲区中，发往消息最多的那个子节点的消息整体下推一层
+     */
+    private void flush(Node<K, V> node) {
+        // 缓冲区是有序的，按顺序统计每个子节点收到的消息数
+        int[] counts = new int[node.children.size()];
+        int childIndex = 0;
+        for (K key : node.buffer.keySet()) {
+            while (childIndex < node.pivots.size() && key.compareTo(node.pivots.get(childIndex)) >= 0) {
+                childIndex++;
+            }
+            counts[childIndex]++;
+        }
+        int target = 0;
+        for (int i = 1; i < counts.length; i++) {
+            if (counts[i] > counts[target]) {
+                target = i;
+            }
+        }
+
+        // 取出发往该子节点的消息
+        NavigableMap<K, Message<V>> range = node.buffer;
+        if (target > 0) {
+            range = range.tailMap(node.pivots.get(target - 1), true);
+        }
+        if (target < node.pivots.size()) {
+            range = range.headMap(node.pivots.get(target), false);
+        }
+        TreeMap<K, Message<V>> batch = new TreeMap<>(range);
+        range.clear();
+
+        Node<K, V> child = node.children.get(target);
+        if (child.isLeaf) {
+            for (Map.Entry<K, Message<V>> entry : batch.entrySet()) {
+                child.applyToLeaf(entry.getKey(), entry.getValue());
+            }
+        } else {
+            // 父节点中的消息比子节点中的新
+            for (Map.Entry<K, Message<V>> entry : batch.entrySet()) {
+                child.buffer.merge(entry.getKey(), entry.getValue(), Message::combine);
+            }
+            while (child.buffer.size() > bufferCapacity) {
+                flush(child);
+            }
+        }
+        restructureChild(node, target);
+    }
+
+    private void restructureChildren(Node<K, V> node) {
+        for (int i = node.children.size() - 1; i >= 0; i--) {
+            restructureChild(node, i);
+        }
+    }
+
+    /**
+     * 子节点过满时分裂，被删空时从父节点中摘除（至少保留一个子节点）
+     */
+    private void restructureChild(Node<K, V> node, int index) {
+        Node<K, V> child = node.children.get(index);
+        if (isOverfull(child)) {
+            split(node, index);
+        } else if (isEmpty(child) && node.children.size() > 1) {
+            node.children.remove(index);
+            node.pivots.remove(index == 0 ? 0 : index - 1);
+        }
+    }
+
+    private boolean isOverfull(Node<K, V> node) {
+        return node.isLeaf ? node.entries.size() > 2 * d - 1 : node.children.size() > 2 * d;
+    }
+
+    private boolean isEmpty(Node<K, V> node) {
+        if (node.isLeaf) {
+            return node.entries.isEmpty();
+        }
+        return node.buffer.isEmpty() && node.children.size() == 1 && isEmpty(node.children.get(0));
+    }
+
+    /**
+     * 将过满的子节点平均分裂成若干个节点，分隔key插入父节点
+     * 一次下推可能让子节点超出上限很多，所以不一定只分裂成两个
+     */
+    private void split(Node<K, V> parent, int index) {
+        Node<K, V> node = parent.children.get(index);
+        List<Node<K, V>> parts = new ArrayList<>();
+        List<K> separators = new ArrayList<>();
+        if (node.isLeaf) {
+            int size = node.entries.size();
+            int n = (size + 2 * d - 2) / (2 * d - 1);
+            for (int i = 0; i < n; i++) {
+                Node<K, V> part = new Node<>(true);
+                part.entries.addAll(node.entries.subList(size * i / n, size * (i + 1) / n));
+                if (i > 0) {
+                    separators.add(part.entries.get(0).key());
+                }
+                parts.add(part);
+            }
+        } else {
+            int size = node.children.size();
+            int n = (size + 2 * d - 1) / (2 * d);
+            for (int i = 0; i < n; i++) {
+                int from = size * i / n;
+                int to = size * (i + 1) / n;
+                Node<K, V> part = new Node<>(false);
+                part.children.addAll(node.children.subList(from, to));
+                part.pivots.addAll(node.pivots.subList(from, to - 1));
+                if (i > 0) {
+                    separators.add(node.pivots.get(from - 1));
+                }
+                parts.add(part);
+            }
+            // 缓冲区按分隔key拆分
+            for (int i = 0; i < n; i++) {
+                NavigableMap<K, Message<V>> range = node.buffer;
+                if (i > 0) {
+                    range = range.tailMap(separators.get(i - 1), true);
+                }
+                if (i < n - 1) {
+                    range = range.headMap(separators.get(i), false);
+                }
+                parts.get(i).buffer.putAll(range);
+            }
+        }
+        parent.children.remove(index);
+        parent.children.addAll(index, parts);
+        parent.pivots.addAll(index, separators);
+    }
+
+    /**
+     * 节点
+     */
+    private static class Node<K extends Comparable<K>, V> {
+        private final boolean isLeaf;
+        // 叶子节点的键值对
+        private final List<KeyVal<K, V>> entries;
+        // 内部节点的分隔key，pivots[i]是children[i + 1]中最小的key的下界
+        private final List<K> pivots;
+        private final List<Node<K, V>> children;
+        // 内部节点的消息缓冲区
+        private final TreeMap<K, Message<V>> buffer;
+
+        private Node(boolean isLeaf) {
+            this.isLeaf = isLeaf;
+            this.entries = isLeaf ? new ArrayList<>() : null;
+            this.pivots = isLeaf ? null : new ArrayList<>();
+            this.children = isLeaf ? null : new ArrayList<>();
+            this.buffer = isLeaf ? null : new TreeMap<>();
+        }
+
+        /**
+         * 子节点索引：第一个大于key的分隔key的索引
+         */
+        private int childIndex(K key) {
+            int low = 0;
+            int high = pivots.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (key.compareTo(pivots.get(middle)) >= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 叶子节点内部二分查找，不存在时返回 -(插入位置) - 1
+         */
+        private int entryIndex(K key) {
+            int low = 0;
+            int high = entries.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int cmp = key.compareTo(entries.get(middle).key());
+                if (cmp < 0) {
+                    high = middle - 1;
+                } else if (cmp > 0) {
+                    low = middle + 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -low - 1;
+        }
+
+        private void applyToLeaf(K key, Message<V> message) {
+            int index = entryIndex(key);
+            V old = index < 0 ? null : entries.get(index).val();
+            V val = message.apply(old);
+            if (val == null) {
+                if (index >= 0) {
+                    entries.remove(index);
+                }
+            } else if (index >= 0) {
+                entries.set(index, new KeyVal<>(key, val));
+            } else {
+                entries.add(-index - 1, new KeyVal<>(key, val));
+            }
+        }
+    }
+
+    /**
+     * 消息：插入、删除或者upsert
+     */
+    private static class Message<V> {
+        enum Type {INSERT, DELETE, UPSERT}
+
+        private final Type type;
+        private final V val;
+        // upsert的函数，按从旧到新的顺序排列
+        private final List<UnaryOperator<V>> functions;
+
+        private Message(Type type, V val, List<UnaryOperator<V>> functions) {
+            this.type = type;
+            this.val = val;
+            this.functions = functions;
+        }
+
+        static <V> Message<V> insert(V val) {
+            return new Message<>(Type.INSERT, val, null);
+        }
+
+        static <V> Message<V> delete() {
+            return new Message<>(Type.DELETE, null, null);
+        }
+
+        static <V> Message<V> upsert(UnaryOperator<V> function) {
+            List<UnaryOperator<V>> functions = new ArrayList<>(1);
+            functions.add(function);
+            return new Message<>(Type.UPSERT, null, functions);
+        }
+
+        /**
+         * 将消息应用到旧值上，返回新值，null表示不存在
+         */
+        V apply(V old) {
+            switch (type) {
+                case INSERT:
+                    return val;
+                case DELETE:
+                    return null;
+                default:
+                    V val = old;
+                    for (UnaryOperator<V> function : functions) {
+                        val = function.apply(val);
+                    }
+                    return val;
+            }
+        }
+
+        /**
+         * 合并同一个key的两条消息，newer比older新
+         */
+        static <V> Message<V> combine(Message<V> older, Message<V> newer) {
+            if (newer.type != Type.UPSERT) {
+                return newer;
+            }
+            if (older.type == Type.UPSERT) {
+                // 消息只会在节点之间移动而不会被共享，可以直接追加到旧消息上
+                older.functions.addAll(newer.functions);
+                return older;
+            }
+            V val = newer.apply(older.apply(null));
+            return val == null ? delete() : insert(val);
+        }
+    }
+}
@@ -1,7 +1,19 @@
 package com.hjysite.tree.btree.selfimpl;
 
+import com.hjysite.tree.btree.HotKeyCache;
+import com.hjysite.tree.btree.TreeStats;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * B树
@@ -25,6 +37,27 @@ public class BTree<K extends Comparable<K>, V> {
 
     private BTreeNode<K, V> root;
 
+    /**
+     * 键值对数量
+     */
+    private int size;
+
+    /**
+     * 点查询前的热点key缓存，为null时不使用缓存
+     */
+    private HotKeyCache<K, KeyVal<K, V>> hotKeyCache;
+
+    /**
+     * 带TTL的键值对的过期时间，为null时没有开启TTL
+     */
+    private TimerWheel<K> timerWheel;
+    private LongSupplier clock;
+
+    /**
+     * 在线碎片整理的位置：正在整理的层（叶子节点的父节点为1）以及已经整理过的最大key，null表示从最左侧开始
+     */
+    private int defragHeight = 1;
+    private K defragAfter;
 
     public BTree(int d) {
         this.d = d;
@@ -32,35 +65,183 @@ public class BTree<K extends Comparable<K>, V> {
     }
 
     /**
-     * 查找
+     * 键值对数量，开启TTL时包括已经过期但还没有被清理的键值对
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 查找，开启TTL时已经过期的键值对视为不存在，查找不修改树，过期的键值对由下一次写操作或expire()清理
      */
     public KeyVal<K, V> search(K key) {
         if (root == null) {
             return null;
         }
-        return root.search(key);
+        KeyVal<K, V> keyVal;
+        if (hotKeyCache == null) {
+            keyVal = root.search(key);
+        } else {
+            keyVal = hotKeyCache.get(key);
+            if (keyVal == null) {
+                keyVal = root.search(key);
+                if (keyVal != null) {
+                    hotKeyCache.put(key, keyVal);
+                }
+            }
+        }
+        return liveOrNull(keyVal);
+    }
+
+    /**
+     * 在locate()返回的节点中查找key，和search一样，开启TTL时已经过期的键值对视为不存在
+     */
+    KeyVal<K, V> searchLocated(BTreeNode<K, V> node, K key) {
+        return liveOrNull(node.insideBinarySearch(key));
+    }
+
+    /**
+     * 开启TTL时已经过期的键值对返回null
+     */
+    private KeyVal<K, V> liveOrNull(KeyVal<K, V> keyVal) {
+        if (keyVal != null && isExpired(keyVal.key())) {
+            return null;
+        }
+        return keyVal;
     }
 
-    public void put(K key, V val) {
-        put(new KeyVal<>(key, val));
+    /**
+     * 开启TTL，时间来自System.currentTimeMillis()
+     */
+    public void enableTtl() {
+        enableTtl(System::currentTimeMillis);
+    }
+
+    /**
+     * 开启TTL，之后可以用put(key, val, ttl, unit)写入会过期的键值对
+     * 过期时间记录在分层时间轮中，put和delete会先推进时间轮，通过正常的删除流程批量删除已经过期的键值对，不需要扫描整棵树；
+     * 读操作只跳过已经过期的键值对。过期时间不会写入快照
+     *
+     * @param clock 毫秒时间
+     */
+    public void enableTtl(LongSupplier clock) {
+        this.clock = clock;
+        this.timerWheel = new TimerWheel<>(clock.getAsLong());
+    }
+
+    /**
+     * 关闭TTL，所有键值对都不再过期
+     */
+    public void disableTtl() {
+        timerWheel = null;
+        clock = null;
+    }
+
+    /**
+     * 插入或更新一个在ttl之后过期的键值对
+     *
+     * @param ttl  存活时间
+     * @param unit ttl的单位
+     */
+    public void put(K key, V val, long ttl, TimeUnit unit) {
+        if (timerWheel == null) {
+            throw new IllegalStateException("TTL is not enabled");
+        }
+        put(key, val);
+        timerWheel.schedule(key, clock.getAsLong() + unit.toMillis(ttl));
+    }
+
+    /**
+     * 推进时间轮，删除所有已经过期的键值对
+     *
+     * @return 删除的键值对数量
+     */
+    public int expire() {
+        if (timerWheel == null) {
+            return 0;
+        }
+        List<K> expired = new ArrayList<>();
+        timerWheel.advance(clock.getAsLong(), expired);
+        for (K key : expired) {
+            remove(key);
+        }
+        return expired.size();
+    }
+
+    private boolean isExpired(K key) {
+        return timerWheel != null && timerWheel.isExpired(key, clock.getAsLong());
+    }
+
+    /**
+     * 开启TTL时跳过已经过期的键值对
+     */
+    private Consumer<KeyVal<K, V>> liveOnly(Consumer<KeyVal<K, V>> action) {
+        if (timerWheel == null) {
+            return action;
+        }
+        long now = clock.getAsLong();
+        return keyVal -> {
+            if (!timerWheel.isExpired(keyVal.key(), now)) {
+                action.accept(keyVal);
+            }
+        };
+    }
+
+    /**
+     * 开启点查询前的有界CLOCK缓存，search查到的键值对会被缓存，put、upsert和delete会使对应的key失效
+     * 开启后search会修改缓存，不能再在读锁下并发调用search
+     *
+     * @param capacity 最多缓存的key数量
+     * @return 缓存，可以用来读取命中率
+     */
+    public HotKeyCache<K, KeyVal<K, V>> enableHotKeyCache(int capacity) {
+        hotKeyCache = new HotKeyCache<>(capacity);
+        return hotKeyCache;
+    }
+
+    public void disableHotKeyCache() {
+        hotKeyCache = null;
+    }
+
+    /**
+     * 点查询前的缓存，没有开启时返回null
+     */
+    public HotKeyCache<K, KeyVal<K, V>> getHotKeyCache() {
+        return hotKeyCache;
     }
 
     public void put(KeyVal<K, V> keyVal) {
-        BTreeNode<K, V> node = root.searchNode(keyVal.key());
+        put(keyVal.key(), keyVal.val());
+    }
+
+    /**
+     * 插入或更新，开启TTL时写入的键值对不会过期
+     */
+    public void put(K key, V val) {
+        if (timerWheel != null) {
+            expire();
+            timerWheel.cancel(key);
+        }
+        if (hotKeyCache != null) {
+            hotKeyCache.invalidate(key);
+        }
+        BTreeNode<K, V> node = root.searchNode(key);
         if (node != null) {
-            node.update(keyVal);
+            node.update(key, val);
             return;
         }
-        insert(keyVal);
+        insert(key, val);
     }
 
     /**
      * 插入
      * 注意此时树当中一定不能存在该key
      *
-     * @param keyVal
+     * @param key
+     * @param val
      */
-    private void insert(KeyVal<K, V> keyVal) {
+    private void insert(K key, V val) {
+        size++;
         BTreeNode<K, V> r = root;
         if (root.isFull()) {
             // 根节点已满，需要分裂
@@ -68,9 +249,121 @@ public class BTree<K extends Comparable<K>, V> {
             newRoot.children[0] = r;
             root = newRoot;
             splitFullNode(newRoot, 0, r);
-            insertNonFull(newRoot, keyVal);
+            insertNonFull(newRoot, key, val);
         } else {
-            insertNonFull(root, keyVal);
+            insertNonFull(root, key, val);
+        }
+    }
+
+    /**
+     * 插入或更新，和put不同，只需要向下查找一次：向下的过程中遇到相同的key直接更新，否则按插入的流程继续
+     * 向下的过程中可能会提前分裂路径上已满的节点，即使最终只是更新，树依然是合法的
+     *
+     * @param keyVal
+     */
+    void upsert(KeyVal<K, V> keyVal) {
+        upsert(keyVal.key(), keyVal.val(), null);
+    }
+
+    void upsert(K key, V val) {
+        upsert(key, val, null);
+    }
+
+    /**
+     * 记录上一次插入到达的叶子节点，以及该叶子节点中key的范围(low, high)，null表示没有边界
+     * 按key升序批量写入时，相邻的key大多落在同一个叶子节点中，可以跳过从根节点向下的查找
+     * 树的结构被其他操作（例如删除）修改后，需要调用reset()
+     */
+    static class Finger<K extends Comparable<K>, V> {
+        private BTreeNode<K, V> leaf;
+        private K low;
+        private K high;
+
+        void reset() {
+            leaf = null;
+        }
+
+        private boolean covers(K key) {
+            return leaf != null && !leaf.isFull()
+                    && (low == null || key.compareTo(low) > 0)
+                    && (high == null || key.compareTo(high) < 0);
+        }
+    }
+
+    /**
+     * 插入或更新，如果key落在finger记录的叶子节点范围内，直接在该叶子节点中插入或更新
+     *
+     * @param keyVal
+     * @param finger 可以为null
+     */
+    void upsert(KeyVal<K, V> keyVal, Finger<K, V> finger) {
+        upsert(keyVal.key(), keyVal.val(), finger);
+    }
+
+    private void upsert(K key, V val, Finger<K, V> finger) {
+        // 这里不推进时间轮，删除会改变树的结构，使调用方持有的finger失效
+        if (timerWheel != null) {
+            timerWheel.cancel(key);
+        }
+        if (hotKeyCache != null) {
+            hotKeyCache.invalidate(key);
+        }
+        if (finger != null && finger.covers(key)) {
+            BTreeNode<K, V> leaf = finger.leaf;
+            int i = leaf.insideBinarySearchIndex(key);
+            if (i != -1) {
+                leaf.vals[i] = val;
+                leaf.version++;
+            } else {
+                leaf.insertInside(key, val);
+                size++;
+            }
+            return;
+        }
+        if (root.isFull()) {
+            BTreeNode<K, V> r = root;
+            BTreeNode<K, V> newRoot = new BTreeNode<>(d, false);
+            newRoot.children[0] = r;
+            root = newRoot;
+            splitFullNode(newRoot, 0, r);
+        }
+        BTreeNode<K, V> node = root;
+        K low = null;
+        K high = null;
+        while (true) {
+            int i = node.insideBinarySearchIndex(key);
+            if (i != -1) {
+                node.vals[i] = val;
+                node.version++;
+                if (finger != null) {
+                    finger.reset();
+                }
+                return;
+            }
+            if (node.isLeaf) {
+                node.insertInside(key, val);
+                size++;
+                if (finger != null) {
+                    finger.leaf = node;
+                    finger.low = low;
+                    finger.high = high;
+                }
+                return;
+            }
+            int index = node.findCanInsertChildrenIndex(key);
+            if (node.children[index].isFull()) {
+                splitFullNode(node, index, node.children[index]);
+                // 分裂后提升上来的key可能就是要找的key，回到当前节点重新查找
+                continue;
+            }
+            // 子节点中的key都在它左右两侧的key之间
+            if (index > 0) {
+                low = node.keys[index - 1];
+            }
+            if (index < node.keyNum) {
+                high = node.keys[index];
+            }
+            node = node.children[index];
         }
     }
 
@@ -84,10 +377,10 @@ public class BTree<K extends Comparable<K>, V> {
     private void splitFullNode(BTreeNode<K, V> parent, int index, BTreeNode<K, V> node) {
         BTreeNode<K, V> newNode = new BTreeNode<>(d, node.isLeaf);
         // 将分裂节点的后半部分数据复制到新节点，这里分裂的键值对索引范围是[d, 2d-1)
-        for (int i = 0; i < d - 1; i++) {
-            newNode.dictionaries[i] = node.dictionaries[i + d];
-            node.dictionaries[i + d] = null;
-        }
+        System.arraycopy(node.keys, d, newNode.keys, 0, d - 1);
+        System.arraycopy(node.vals, d, newNode.vals, 0, d - 1);
+        Arrays.fill(node.keys, d, 2 * d - 1, null);
+        Arrays.fill(node.vals, d, 2 * d - 1, null);
 
         if (!node.isLeaf) {
             // 将分裂节点的后半部分子节点复制到新节点，注意子节点的最大数量比键值对最大数量多1，所以这里分裂的子节点索引范围是[d, 2d)
@@ -102,39 +395,53 @@ public class BTree<K extends Comparable<K>, V> {
         for (int i = parent.keyNum - 1; i >= index; i--) {
             // 将index（包含）及其后面的键值对向后移动一位，为提升到父节点的键值对和子树腾出位置
             // 因为node是在index位置的子节点，所以node里面所有值都小于index位置的键值对
-            parent.dictionaries[i + 1] = parent.dictionaries[i];
+            parent.copyEntry(i + 1, parent, i);
         }
         for (int i = parent.keyNum; i > index; i--) {
             // 将index（不包含）及其后面的子节点向后移动一位，为提升到父节点的子树腾出位置
             parent.children[i + 1] = parent.children[i];
         }
-        parent.dictionaries[index] = node.dictionaries[d - 1];
-        node.dictionaries[d - 1] = null;
+        parent.copyEntry(index, node, d - 1);
+        node.clearEntry(d - 1);
         parent.children[index + 1] = newNode;
         node.keyNum = d - 1;
         parent.keyNum++;
+        node.version++;
+        parent.version++;
     }
 
 
-    private void insertNonFull(BTreeNode<K, V> node, KeyVal<K, V> keyVal) {
+    private void insertNonFull(BTreeNode<K, V> node, K key, V val) {
         if (node.isLeaf) {
             // 叶子节点直接插入
-            node.insertInside(keyVal);
+            node.insertInside(key, val);
         } else {
-            int index = node.findCanInsertChildrenIndex(keyVal.key());
+            int index = node.findCanInsertChildrenIndex(key);
             if (node.children[index].isFull()) {
                 splitFullNode(node, index, node.children[index]);
-                index = node.findCanInsertChildrenIndex(keyVal.key());
+                index = node.findCanInsertChildrenIndex(key);
             }
-            insertNonFull(node.children[index], keyVal);
+            insertNonFull(node.children[index], key, val);
         }
     }
 
     public void delete(K key) {
-        if (search(key) == null) {
+        expire();
+        remove(key);
+    }
+
+    private void remove(K key) {
+        if (root.search(key) == null) {
             return;
         }
+        size--;
         delete(root, key);
+        if (hotKeyCache != null) {
+            hotKeyCache.invalidate(key);
+        }
+        if (timerWheel != null) {
+            timerWheel.cancel(key);
+        }
     }
 
     private void delete(BTreeNode<K, V> node, K key) {
@@ -152,23 +459,23 @@ public class BTree<K extends Comparable<K>, V> {
                 if (leftChildNode.leanable()) {
                     // 2a. 如果左子节点至少含有 d 个 key，向下查找最大的key，即最左边的key（一定小于被删除的key）
                     BTreeNode<K, V> predecessor = leftChildNode;
-                    BTreeNode<K, V> erasureNode = leftChildNode;
                     while (!predecessor.isLeaf) {
-                        erasureNode = predecessor;
                         predecessor = predecessor.children[predecessor.keyNum];
                     }
-                    node.dictionaries[i] = predecessor.dictionaries[predecessor.keyNum - 1];
-                    delete(erasureNode, node.dictionaries[i].key());
+                    node.copyEntry(i, predecessor, predecessor.keyNum - 1);
+                    node.version++;
+                    // 从左子节点开始向下删除，保证路径上的节点都会被重新平衡
+                    delete(leftChildNode, node.keys[i]);
                 } else if (rightChildNode.leanable()) {
                     // 2b. 如果左子节点少于 d 个 key，又子节点至少含有 d 个 key，向下查找最小的key，即最右边的key（一定大于被删除的key）
                     BTreeNode<K, V> successor = rightChildNode;
-                    BTreeNode<K, V> erasureNode = rightChildNode;
                     while (!successor.isLeaf) {
-                        erasureNode = successor;
                         successor = successor.children[0];
                     }
-                    node.dictionaries[i] = successor.dictionaries[0];
-                    delete(erasureNode, node.dictionaries[i].key());
+                    node.copyEntry(i, successor, 0);
+                    node.version++;
+                    // 从右子节点开始向下删除，保证路径上的节点都会被重新平衡
+                    delete(rightChildNode, node.keys[i]);
                 } else {
                     // 2c. 如果左子节点少于 d 个 key, 右子节点少于 d 个 key，合并左右子节点，并将合并后最中间的key提升到父节点
                     int middleIndex = mergeNode(rightChildNode, leftChildNode);
@@ -190,23 +497,27 @@ public class BTree<K extends Comparable<K>, V> {
                     // 3a. 如果子节点的左兄弟至少含有 d 个 key，左边的key下城，子节点左兄弟的最后一个key上升到父节点
                     child.shiftRightByOne();
                     // i -1 位置的key一定比child的所有值都小
-                    child.dictionaries[0] = node.dictionaries[i - 1];
+                    child.copyEntry(0, node, i - 1);
                     if (!child.isLeaf) {
                         child.children[0] = leftChildSibling.children[leftChildSibling.keyNum];
                     }
                     child.keyNum++;
 
-                    node.dictionaries[i - 1] = leftChildSibling.dictionaries[leftChildSibling.keyNum - 1];
+                    node.copyEntry(i - 1, leftChildSibling, leftChildSibling.keyNum - 1);
+                    node.version++;
+                    child.version++;
                     leftChildSibling.deleteInside(leftChildSibling.keyNum - 1, BTreeNode.RIGHT_CHILD_NODE);
                 } else if (rightChildSibling != null && rightChildSibling.keyNum >= d) {
                     // 3b. 如果子节点的右兄弟至少含有 d 个 key，右边的key下城，子节点右兄弟的第一个key上升到父节点
-                    child.dictionaries[child.keyNum] = node.dictionaries[i];
+                    child.copyEntry(child.keyNum, node, i);
                     if (!child.isLeaf) {
                         child.children[child.keyNum + 1] = rightChildSibling.children[0];
                     }
                     child.keyNum++;
 
-                    node.dictionaries[i] = rightChildSibling.dictionaries[0];
+                    node.copyEntry(i, rightChildSibling, 0);
+                    node.version++;
+                    child.version++;
                     rightChildSibling.deleteInside(0, BTreeNode.LEFT_CHILD_NODE);
                 } else {
                     if (leftChildSibling != null) {
@@ -234,18 +545,21 @@ public class BTree<K extends Comparable<K>, V> {
      */
     private int mergeNode(BTreeNode<K, V> src, BTreeNode<K, V> dest) {
         int middleIndex;
-        if (src.dictionaries[src.keyNum - 1].key().compareTo(dest.dictionaries[0].key()) < 0) {
+        if (src.keys[src.keyNum - 1].compareTo(dest.keys[0]) < 0) {
             middleIndex = src.keyNum;
             // src 的所有值都小于 dest 的所有值, 将所有dest的键值对向右移动src.keyNum + 1（多空出一位），为src的键值对腾出空间,
             for (int j = dest.keyNum - 1; j >= 0; j--) {
-                dest.dictionaries[j + src.keyNum + 1] = dest.dictionaries[j];
+                dest.copyEntry(j + src.keyNum + 1, dest, j);
                 if (!dest.isLeaf) {
                     dest.children[j + src.keyNum + 2] = dest.children[j + 1];
                 }
             }
+            if (!dest.isLeaf) {
+                dest.children[src.keyNum + 1] = dest.children[0];
+            }
             // 将src的键值对复制到dest中
             for (int j = 0; j < src.keyNum; j++) {
-                dest.dictionaries[j] = src.dictionaries[j];
+                dest.copyEntry(j, src, j);
                 if (!src.isLeaf) {
                     dest.children[j] = src.children[j];
                 }
@@ -259,9 +573,9 @@ public class BTree<K extends Comparable<K>, V> {
             middleIndex = dest.keyNum;
             int offset = dest.keyNum + 1;
             for (int j = 0; j < src.keyNum; j++) {
-                dest.dictionaries[j + offset] = src.dictionaries[j];
+                dest.copyEntry(j + offset, src, j);
                 if (!src.isLeaf) {
-                    dest.children[j + offset] = src.children[j + 1];
+                    dest.children[j + offset] = src.children[j];
                 }
             }
             if (!src.isLeaf) {
@@ -270,6 +584,9 @@ public class BTree<K extends Comparable<K>, V> {
 
         }
         dest.keyNum += src.keyNum;
+        // src被合并后不再使用，同样增加版本号，让之前读到它的事务失效
+        src.version++;
+        dest.version++;
         return middleIndex;
     }
 
@@ -283,14 +600,429 @@ public class BTree<K extends Comparable<K>, V> {
      * @param emptyKeyIndex 目标节点中空出来的位置的索引
      */
     private void moveKey(BTreeNode<K, V> src, int srcKeyIndex, int childIndex, BTreeNode<K, V> dest, int emptyKeyIndex) {
-        dest.dictionaries[emptyKeyIndex] = src.dictionaries[srcKeyIndex];
+        dest.copyEntry(emptyKeyIndex, src, srcKeyIndex);
         dest.keyNum++;
+        dest.version++;
         src.deleteInside(srcKeyIndex, childIndex);
         if (src == root && src.keyNum == 0) {
             root = dest;
         }
     }
 
+    /**
+     * 中序遍历，按key从小到大依次访问所有键值对
+     */
+    private void forEachInOrder(BTreeNode<K, V> node, Consumer<KeyVal<K, V>> action) {
+        for (int i = 0; i < node.keyNum; i++) {
+            if (!node.isLeaf) {
+                forEachInOrder(node.children[i], action);
+            }
+            action.accept(new KeyVal<>(node.keys[i], node.vals[i]));
+        }
+        if (!node.isLeaf) {
+            forEachInOrder(node.children[node.keyNum], action);
+        }
+    }
+
+    /**
+     * 返回包含key的节点，如果key不存在，返回查找结束的叶子节点（插入key时会插入的节点）
+     */
+    BTreeNode<K, V> locate(K key) {
+        BTreeNode<K, V> node = root;
+        while (node.insideBinarySearchIndex(key) == -1 && !node.isLeaf) {
+            node = node.children[node.findCanInsertChildrenIndex(key)];
+        }
+        return node;
+    }
+
+    /**
+     * 按key从小到大依次访问所有键值对
+     */
+    public void forEach(Consumer<KeyVal<K, V>> action) {
+        forEachInOrder(root, liveOnly(action));
+    }
+
+    /**
+     * 按key从小到大依次访问[low, high)范围内的键值对，null表示该侧没有边界
+     * 只进入和范围有交集的子树
+     */
+    public void forEachInRange(K low, K high, Consumer<KeyVal<K, V>> action) {
+        forEachInRange(root, low, high, liveOnly(action));
+    }
+
+    private void forEachInRange(BTreeNode<K, V> node, K low, K high, Consumer<KeyVal<K, V>> action) {
+        // 跳过所有小于low的key，它们左侧的子树也都小于low
+        int i = 0;
+        if (low != null) {
+            while (i < node.keyNum && node.keys[i].compareTo(low) < 0) {
+                i++;
+            }
+        }
+        for (; i < node.keyNum; i++) {
+            if (!node.isLeaf) {
+                forEachInRange(node.children[i], low, high, action);
+            }
+            if (high != null && node.keys[i].compareTo(high) >= 0) {
+                return;
+            }
+            action.accept(new KeyVal<>(node.keys[i], node.vals[i]));
+        }
+        if (!node.isLeaf) {
+            forEachInRange(node.children[node.keyNum], low, high, action);
+        }
+    }
+
+    /**
+     * 用按key严格递增的键值对自底向上构建一棵B树
+     */
+    static <K extends Comparable<K>, V> BTree<K, V> bulkLoad(int d, Iterable<KeyVal<K, V>> sorted) {
+        BulkLoader<K, V> loader = new BulkLoader<>(d);
+        sorted.forEach(loader);
+        return loader.finish();
+    }
+
+    /**
+     * 将整棵树以快照的形式写入channel，键值对按中序遍历的顺序分块写入，每个块带有校验和
+     *
+     * @param channel       目标channel
+     * @param keySerializer key的序列化器
+     * @param valSerializer value的序列化器
+     */
+    public void writeSnapshot(WritableByteChannel channel, Serializer<K> keySerializer, Serializer<V> valSerializer) throws IOException {
+        BTreeSnapshot.Writer<K, V> writer = new BTreeSnapshot.Writer<>(channel, d, keySerializer, valSerializer);
+        forEachInOrder(root, liveOnly(writer));
+        writer.finish();
+    }
+
+    /**
+     * 从快照中恢复一棵B树，键值对已经有序，所以自底向上直接构建节点，时间复杂度为O(n)
+     *
+     * @param channel       快照所在的channel
+     * @param keySerializer key的序列化器
+     * @param valSerializer value的序列化器
+     */
+    public static <K extends Comparable<K>, V> BTree<K, V> readSnapshot(ReadableByteChannel channel, Serializer<K> keySerializer,
+                                                                        Serializer<V> valSerializer) throws IOException {
+        int d = BTreeSnapshot.readHeader(channel);
+        if (d < 2) {
+            throw new IOException("invalid minimum degree in snapshot: " + d);
+        }
+        BulkLoader<K, V> loader = new BulkLoader<>(d);
+        BTreeSnapshot.readEntries(channel, keySerializer, valSerializer, loader);
+        return loader.finish();
+    }
+
+    /**
+     * 增量在线碎片整理，每次调用只做有限的几步，可以和正常操作交替进行
+     * 删除只在子节点的key数量不足时借用或合并，大量删除后树中会留下很多只有一半左右满的节点。
+     * 每一步把一个非叶子节点的所有子节点连同它自己的分隔key重新均匀地排列到targetFill，释放多余的子节点；
+     * 这个节点因此key数量不足时，和相邻的兄弟节点合并或者平分，并沿路径向上处理，和删除后的调整相同。
+     * 先从左到右整理叶子节点的父节点，再逐层向上整理，这样失去子节点的非叶子节点也会被整理。
+     * 整理的位置在两次调用之间保留，整理完一遍后提前返回。整理会改变树的结构，持有的Finger需要reset()
+     *
+     * @param targetFill 子节点整理后的填充率，在[0.5, 1]之间
+     * @param maxSteps   最多整理的非叶子节点数量
+     * @return 释放的节点数量
+     */
+    public int defragment(double targetFill, int maxSteps) {
+        if (targetFill < 0.5 || targetFill > 1) {
+            throw new IllegalArgumentException("targetFill must be within [0.5, 1]");
+        }
+        int perChild = Math.max(d - 1, (int) (targetFill * (2 * d - 1)));
+        int freed = 0;
+        for (int step = 0; step < maxSteps && !root.isLeaf; step++) {
+            int height = 0;
+            for (BTreeNode<K, V> node = root; !node.isLeaf; node = node.children[0]) {
+                height++;
+            }
+            if (defragHeight > height) {
+                // 整理完了一遍
+                defragHeight = 1;
+                defragAfter = null;
+                break;
+            }
+            // 找到defragHeight层中第一个含有大于defragAfter的key的节点，记录路径
+            int depth = height - defragHeight;
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            BTreeNode<K, V>[] path = new BTreeNode[depth + 1];
+            int[] slots = new int[depth + 1];
+            path[0] = root;
+            // 路径右侧最近的分隔key，下一步从它之后继续，null表示这个节点是这一层最右侧的节点
+            K after = null;
+            for (int i = 0; i < depth; i++) {
+                BTreeNode<K, V> node = path[i];
+                int slot = 0;
+                if (defragAfter != null) {
+                    while (slot < node.keyNum && node.keys[slot].compareTo(defragAfter) <= 0) {
+                        slot++;
+                    }
+                }
+                if (slot < node.keyNum) {
+                    after = node.keys[slot];
+                }
+                slots[i + 1] = slot;
+                path[i + 1] = node.children[slot];
+            }
+            BTreeNode<K, V> node = path[depth];
+
+            // 子节点共有total-(n-1)个key，每个子节点perChild个key时n = (total+1)/(perChild+1)，并且每个子节点不少于d-1个key
+            int total = node.keyNum;
+            for (int i = 0; i <= node.keyNum; i++) {
+                total += node.children[i].keyNum;
+            }
+            int n = Math.max(1, Math.min((total + perChild + 1) / (perChild + 1), (total + 1) / d));
+            if (n < node.keyNum + 1) {
+                freed += repackChildren(node, 0, node.keyNum + 1, n);
+                // 自底向上处理key数量不足的节点
+                for (int i = depth; i > 0 && path[i].keyNum < d - 1; i--) {
+                    BTreeNode<K, V> parent = path[i - 1];
+                    int left = slots[i] > 0 ? slots[i] - 1 : 0;
+                    int count = parent.children[left].keyNum + parent.children[left + 1].keyNum + 1;
+                    freed += repackChildren(parent, left, left + 2, count <= 2 * d - 1 ? 1 : 2);
+                }
+                // 根节点没有key时，树高减一
+                while (!root.isLeaf && root.keyNum == 0) {
+                    root = root.children[0];
+                    freed++;
+                }
+            }
+            if (after == null) {
+                defragHeight++;
+            }
+            defragAfter = after;
+        }
+        return freed;
+    }
+
+    /**
+     * 把node的第from到to-1个子节点中的键值对和它们之间的分隔key按顺序收集起来，重新平均分配到前n个子节点中，
+     * 释放剩下的子节点，node中后面的key和子节点向前移动
+     *
+     * @return 释放的节点数量
+     */
+    private int repackChildren(BTreeNode<K, V> node, int from, int to, int n) {
+        boolean leafChildren = node.children[from].isLeaf;
+        int total = to - from - 1;
+        for (int i = from; i < to; i++) {
+            total += node.children[i].keyNum;
+        }
+
+        // 按顺序收集所有键值对和孙子节点
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        K[] keys = (K[]) new Comparable[total];
+        @SuppressWarnings("unchecked")
+        V[] vals = (V[]) new Object[total];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        BTreeNode<K, V>[] grandchildren = leafChildren ? null : new BTreeNode[total + 1];
+        int k = 0;
+        int g = 0;
+        for (int i = from; i < to; i++) {
+            BTreeNode<K, V> child = node.children[i];
+            System.arraycopy(child.keys, 0, keys, k, child.keyNum);
+            System.arraycopy(child.vals, 0, vals, k, child.keyNum);
+            k += child.keyNum;
+            if (!leafChildren) {
+                System.arraycopy(child.children, 0, grandchildren, g, child.keyNum + 1);
+                g += child.keyNum + 1;
+            }
+            if (i < to - 1) {
+                keys[k] = node.keys[i];
+                vals[k] = node.vals[i];
+                k++;
+            }
+            Arrays.fill(child.keys, null);
+            Arrays.fill(child.vals, null);
+            Arrays.fill(child.children, null);
+            child.keyNum = 0;
+            child.version++;
+        }
+
+        // node中范围之后的key和子节点向前移动
+        int removed = to - from - n;
+        System.arraycopy(node.keys, to - 1, node.keys, from + n - 1, node.keyNum - to + 1);
+        System.arraycopy(node.vals, to - 1, node.vals, from + n - 1, node.keyNum - to + 1);
+        System.arraycopy(node.children, to, node.children, from + n, node.keyNum - to + 1);
+        node.keyNum -= removed;
+        Arrays.fill(node.keys, node.keyNum, node.keys.length, null);
+        Arrays.fill(node.vals, node.keyNum, node.vals.length, null);
+        Arrays.fill(node.children, node.keyNum + 1, node.children.length, null);
+        node.version++;
+
+        // 平均分配到前n个子节点中，子节点之间的key作为node的分隔key
+        int childKeys = total - (n - 1);
+        k = 0;
+        g = 0;
+        for (int i = 0; i < n; i++) {
+            BTreeNode<K, V> child = node.children[from + i];
+            int num = childKeys / n + (i < childKeys % n ? 1 : 0);
+            System.arraycopy(keys, k, child.keys, 0, num);
+            System.arraycopy(vals, k, child.vals, 0, num);
+            k += num;
+            if (!leafChildren) {
+                System.arraycopy(grandchildren, g, child.children, 0, num + 1);
+                g += num + 1;
+            }
+            child.keyNum = num;
+            if (i < n - 1) {
+                node.keys[from + i] = keys[k];
+                node.vals[from + i] = vals[k];
+                k++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 统计树高、每层节点数、填充率直方图、空闲槽位数和堆内存占用估算值，槽位指每个节点的2d-1个键值对位置，见TreeStats
+     * 统计期间不能有并发的修改
+     */
+    public TreeStats stats() {
+        return TreeStats.collect(root, new TreeStats.NodeInspector<BTreeNode<K, V>>() {
+            @Override
+            public int childCount(BTreeNode<K, V> node) {
+                return node.isLeaf ? 0 : node.keyNum + 1;
+            }
+
+            @Override
+            public BTreeNode<K, V> child(BTreeNode<K, V> node, int index) {
+                return node.children[index];
+            }
+
+            @Override
+            public void inspect(BTreeNode<K, V> node, int level, TreeStats stats) {
+                // 节点对象：d、keyNum、isLeaf、version和三个数组的引用；叶子节点也分配了children数组
+                long bytes = TreeStats.objectBytes(4 + 4 + 1 + 8 + 3 * TreeStats.REFERENCE)
+                        + TreeStats.arrayBytes(node.keys.length, TreeStats.REFERENCE)
+                        + TreeStats.arrayBytes(node.vals.length, TreeStats.REFERENCE)
+                        + TreeStats.arrayBytes(node.children.length, TreeStats.REFERENCE);
+                for (int i = 0; i < node.keyNum; i++) {
+                    bytes += TreeStats.boxedKeyBytes(node.keys[i]);
+                }
+                stats.addNode(level, node.keyNum, node.keys.length, bytes);
+            }
+        });
+    }
+
+    /**
+     * 自底向上批量构建B树，要求键值对按key严格递增的顺序加入
+     * 每一层只保留最右侧的节点（右脊），节点写满后下一个键值对作为分隔key提升到上一层，并在本层新建一个节点。
+     * 全部加入后，除右脊外的节点都是满的，最后再自顶向下修正右脊上key数量不足的节点
+     */
+    private static class BulkLoader<K extends Comparable<K>, V> implements Consumer<KeyVal<K, V>> {
+        private final int d;
+        // 每一层最右侧的节点，下标0为叶子层
+        private final List<BTreeNode<K, V>> spine = new ArrayList<>();
+        private int count;
+
+        private BulkLoader(int d) {
+            this.d = d;
+            spine.add(new BTreeNode<>(d, true));
+        }
+
+        @Override
+        public void accept(KeyVal<K, V> keyVal) {
+            count++;
+            BTreeNode<K, V> leaf = spine.get(0);
+            if (!leaf.isFull()) {
+                leaf.keys[leaf.keyNum] = keyVal.key();
+                leaf.vals[leaf.keyNum] = keyVal.val();
+                leaf.keyNum++;
+                return;
+            }
+            BTreeNode<K, V> newLeaf = new BTreeNode<>(d, true);
+            pushUp(1, keyVal.key(), keyVal.val(), newLeaf);
+            spine.set(0, newLeaf);
+        }
+
+        /**
+         * 将分隔key及其右子节点加入level层最右侧的节点
+         */
+        private void pushUp(int level, K key, V val, BTreeNode<K, V> rightChild) {
+            if (level == spine.size()) {
+                BTreeNode<K, V> newRoot = new BTreeNode<>(d, false);
+                newRoot.children[0] = spine.get(level - 1);
+                spine.add(newRoot);
+            }
+            BTreeNode<K, V> node = spine.get(level);
+            if (!node.isFull()) {
+                node.keys[node.keyNum] = key;
+                node.vals[node.keyNum] = val;
+                node.children[node.keyNum + 1] = rightChild;
+                node.keyNum++;
+                return;
+            }
+            // 当前节点已满，分隔key继续向上提升，本层新建节点
+            BTreeNode<K, V> newNode = new BTreeNode<>(d, false);
+            newNode.children[0] = rightChild;
+            pushUp(level + 1, key, val, newNode);
+            spine.set(level, newNode);
+        }
+
+        /**
+         * 修正右脊并返回构建好的B树
+         */
+        private BTree<K, V> finish() {
+            // 自顶向下修正，保证修正某个节点时它的父节点已经至少有d - 1个key，左兄弟一定存在
+            for (int level = spine.size() - 2; level >= 0; level--) {
+                BTreeNode<K, V> node = spine.get(level);
+                if (node.keyNum >= d - 1) {
+                    continue;
+                }
+                // 右脊节点key不足，此时它的左兄弟一定是满的，和左兄弟以及父节点中的分隔key重新分配
+                BTreeNode<K, V> parent = spine.get(level + 1);
+                BTreeNode<K, V> left = parent.children[parent.keyNum - 1];
+                redistribute(parent, parent.keyNum - 1, left, node);
+            }
+            BTree<K, V> tree = new BTree<>(d);
+            tree.root = spine.get(spine.size() - 1);
+            tree.size = count;
+            return tree;
+        }
+
+        /**
+         * 将左右两个相邻节点以及父节点中的分隔key重新分配，右节点分到d - 1个key，其余留在左节点
+         */
+        private void redistribute(BTreeNode<K, V> parent, int separatorIndex, BTreeNode<K, V> left, BTreeNode<K, V> right) {
+            int total = left.keyNum + 1 + right.keyNum;
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            K[] keys = (K[]) new Comparable[total];
+            @SuppressWarnings("unchecked")
+            V[] vals = (V[]) new Object[total];
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            BTreeNode<K, V>[] children = new BTreeNode[total + 1];
+            System.arraycopy(left.keys, 0, keys, 0, left.keyNum);
+            System.arraycopy(left.vals, 0, vals, 0, left.keyNum);
+            keys[left.keyNum] = parent.keys[separatorIndex];
+            vals[left.keyNum] = parent.vals[separatorIndex];
+            System.arraycopy(right.keys, 0, keys, left.keyNum + 1, right.keyNum);
+            System.arraycopy(right.vals, 0, vals, left.keyNum + 1, right.keyNum);
+            if (!left.isLeaf) {
+                System.arraycopy(left.children, 0, children, 0, left.keyNum + 1);
+                System.arraycopy(right.children, 0, children, left.keyNum + 1, right.keyNum + 1);
+            }
+
+            int leftKeyNum = total - d;
+            Arrays.fill(left.keys, null);
+            Arrays.fill(left.vals, null);
+            Arrays.fill(right.keys, null);
+            Arrays.fill(right.vals, null);
+            System.arraycopy(keys, 0, left.keys, 0, leftKeyNum);
+            System.arraycopy(vals, 0, left.vals, 0, leftKeyNum);
+            parent.keys[separatorIndex] = keys[leftKeyNum];
+            parent.vals[separatorIndex] = vals[leftKeyNum];
+            System.arraycopy(keys, leftKeyNum + 1, right.keys, 0, d - 1);
+            System.arraycopy(vals, leftKeyNum + 1, right.vals, 0, d - 1);
+            if (!left.isLeaf) {
+                Arrays.fill(left.children, null);
+                Arrays.fill(right.children, null);
+                System.arraycopy(children, 0, left.children, 0, leftKeyNum + 1);
+                System.arraycopy(children, leftKeyNum + 1, right.children, 0, d);
+            }
+            left.keyNum = leftKeyNum;
+            right.keyNum = d - 1;
+        }
+    }
+
     /**
      * B树节点
      */
@@ -300,17 +1032,20 @@ public class BTree<K extends Comparable<K>, V> {
         private int keyNum;
         // 是否是叶子节点
         private boolean isLeaf;
-        // 字典对
-        private KeyVal<K, V>[] dictionaries;
+        // key和value分开存放在两个数组中，查找时只访问keys，KeyVal只在返回给调用方时创建
+        private K[] keys;
+        private V[] vals;
         // 子节点
         private BTreeNode<K, V>[] children;
+        // 版本号，节点中的键值对或子节点每次被修改都会增加，用于乐观事务校验读取的数据是否被修改过
+        private long version;
 
         public static final int LEFT_CHILD_NODE = 0;
         public static final int RIGHT_CHILD_NODE = 1;
 
         private int subtreeRootNodeIndex(K key) {
             for (int i = 0; i < keyNum; i++) {
-                if (key.compareTo(dictionaries[i].key()) < 0) {
+                if (key.compareTo(keys[i]) < 0) {
                     return i;
                 }
             }
@@ -318,8 +1053,10 @@ public class BTree<K extends Comparable<K>, V> {
         }
 
         private void shiftRightByOne() {
+            version++;
             for (int i = keyNum; i > 0; i--) {
-                dictionaries[i] = dictionaries[i - 1];
+                keys[i] = keys[i - 1];
+                vals[i] = vals[i - 1];
                 if (!isLeaf) {
                     children[i + 1] = children[i];
                 }
@@ -329,7 +1066,7 @@ public class BTree<K extends Comparable<K>, V> {
             }
         }
 
-        @SuppressWarnings("unchecked")
+        @SuppressWarnings({"unchecked", "rawtypes"})
         protected BTreeNode(int d, boolean isLeaf) {
             this.d = d;
             this.keyNum = 0;
@@ -343,7 +1080,8 @@ public class BTree<K extends Comparable<K>, V> {
             // = d * t - (d + t - 1)
             // = d * t - (2 * d - 1)
             // = 1
-            this.dictionaries = new KeyVal[2 * d - 1];
+            this.keys = (K[]) new Comparable[2 * d - 1];
+            this.vals = (V[]) new Object[2 * d - 1];
             this.children = new BTreeNode[2 * d];
         }
 
@@ -352,32 +1090,39 @@ public class BTree<K extends Comparable<K>, V> {
         }
 
         public boolean isFull() {
-            return keyNum == dictionaries.length;
+            return keyNum == keys.length;
         }
 
         public int findCanInsertChildrenIndex(K key) {
             for (int index = keyNum - 1; index >= 0; index--) {
                 // 从后往前遍历，只到找到第一个比key小的键值对索引，该键值对的右子节点（index + 1）就是要插入的位置
-                if (key.compareTo(dictionaries[index].key()) < 0) {
+                if (key.compareTo(keys[index]) > 0) {
                     return index + 1;
                 }
             }
             return 0;
         }
 
-        public int insertInside(KeyVal<K, V> keyVal) {
+        public int insertInside(K key, V val) {
+            version++;
             // 从后往前遍历，找到插入位置，此时节点没满，最后一个元素一定是null
             for (int i = keyNum - 1; i >= 0; i--) {
-                if (keyVal.key().compareTo(dictionaries[i].key()) < 0) {
+                if (key.compareTo(keys[i]) < 0) {
                     // 如果插入的key比当前key小，则当前key往后移动一位，空出当前位置，并向前继续比较
-                    dictionaries[i + 1] = dictionaries[i];
+                    keys[i + 1] = keys[i];
+                    vals[i + 1] = vals[i];
                 } else {
                     // 此时插入key大于等于当前key，插入当前位置后一位
-                    dictionaries[i + 1] = keyVal;
+                    keys[i + 1] = key;
+                    vals[i + 1] = val;
                     keyNum++;
                     return i + 1;
                 }
             }
+            // 插入key比所有key都小（或节点为空），插入到第一位
+            keys[0] = key;
+            vals[0] = val;
+            keyNum++;
             return 0;
         }
 
@@ -389,13 +1134,19 @@ public class BTree<K extends Comparable<K>, V> {
          * @return
          */
         private BTreeNode<K, V> deleteInside(int index, int leftOrRightChildIndex) {
+            version++;
             BTreeNode<K, V> leftOrRightChildNode = children[index + leftOrRightChildIndex];
             // 从index开始，后面的元素往前移动一位，自然覆盖了index位置的元素
-            for (int i = index; i < keyNum - 1; i++) {
-                dictionaries[i] = dictionaries[i + 1];
-                children[i + leftOrRightChildIndex] = children[i + leftOrRightChildIndex + 1];
+            System.arraycopy(keys, index + 1, keys, index, keyNum - 1 - index);
+            System.arraycopy(vals, index + 1, vals, index, keyNum - 1 - index);
+            clearEntry(keyNum - 1);
+            if (!isLeaf) {
+                // 子节点比键值对多一个，从被删除的子节点开始，一直移动到最后一个子节点
+                for (int i = index + leftOrRightChildIndex; i < keyNum; i++) {
+                    children[i] = children[i + 1];
+                }
+                children[keyNum] = null;
             }
-            dictionaries[keyNum - 1] = null;
             keyNum--;
             return leftOrRightChildNode;
         }
@@ -405,7 +1156,7 @@ public class BTree<K extends Comparable<K>, V> {
          */
         protected KeyVal<K, V> insideBinarySearch(K key) {
             int index = insideBinarySearchIndex(key);
-            return index == -1 ? null : dictionaries[index];
+            return index == -1 ? null : new KeyVal<>(keys[index], vals[index]);
         }
 
         protected int insideBinarySearchIndex(K key) {
@@ -413,9 +1164,10 @@ public class BTree<K extends Comparable<K>, V> {
             int high = keyNum - 1;
             while (low <= high) {
                 int middle = (low + high) / 2;
-                if (key.compareTo(dictionaries[middle].key()) < 0) {
+                int cmp = key.compareTo(keys[middle]);
+                if (cmp < 0) {
                     high = middle - 1;
-                } else if (key.compareTo(dictionaries[middle].key()) > 0) {
+                } else if (cmp > 0) {
                     low = middle + 1;
                 } else {
                     return middle;
@@ -433,17 +1185,23 @@ public class BTree<K extends Comparable<K>, V> {
 
         protected BTreeNode<K, V> searchNode(K key) {
             for (int i = 0; i < keyNum; i++) {
-                if (key.compareTo(dictionaries[i].key()) == 0) {
+                int cmp = key.compareTo(keys[i]);
+                if (cmp == 0) {
                     // 存在于当前节点内部中，直接返回
                     return this;
-                } else if (key.compareTo(dictionaries[i].key()) < 0) {
+                } else if (cmp < 0) {
                     // 如果小于当前key
                     if (!isLeaf && children[i] != null) {
                         // 如果不是叶子节点，且子节点不为空，则递归查找
                         return children[i].searchNode(key);
                     }
+                    return null;
                 }
             }
+            // 比所有key都大，继续在最右侧的子树中查找
+            if (!isLeaf && children[keyNum] != null) {
+                return children[keyNum].searchNode(key);
+            }
             return null;
         }
 
@@ -451,15 +1209,33 @@ public class BTree<K extends Comparable<K>, V> {
             if (index < 0 || index >= keyNum) {
                 return null;
             }
-            return dictionaries[index];
+            return new KeyVal<>(keys[index], vals[index]);
         }
 
-        protected void update(KeyVal<K, V> keyVal) {
-            int index = insideBinarySearchIndex(keyVal.key());
+        protected void update(K key, V val) {
+            int index = insideBinarySearchIndex(key);
             if (index == -1) {
                 throw new NoSuchElementException("key not found in this btree node");
             }
-            dictionaries[index] = keyVal;
+            vals[index] = val;
+            version++;
+        }
+
+        /**
+         * 将src节点中from位置的键值对复制到当前节点的to位置
+         */
+        private void copyEntry(int to, BTreeNode<K, V> src, int from) {
+            keys[to] = src.keys[from];
+            vals[to] = src.vals[from];
+        }
+
+        private void clearEntry(int index) {
+            keys[index] = null;
+            vals[index] = null;
+        }
+
+        long version() {
+            return version;
         }
 
     }
@@ -0,0 +1,181 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * B树快照的二进制格式
+ * <pre>
+ * 头部：magic(int) version(int) d(int)
+ * 数据块：entryCount(int) payloadLength(int) payload crc32c(int)，payload为按key升序排列的键值对
+ * 结束块：entryCount = 0，payloadLength = 0，之后是键值对总数(long)
+ * </pre>
+ */
+class BTreeSnapshot {
+
+    static final int MAGIC = 0x4254534E;
+    static final int VERSION = 1;
+    /**
+     * 每个数据块payload的目标大小
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    /**
+     * 按顺序写入键值对的写入器
+     */
+    static class Writer<K extends Comparable<K>, V> implements Consumer<KeyVal<K, V>> {
+        private final WritableByteChannel channel;
+        private final Serializer<K> keySerializer;
+        private final Serializer<V> valSerializer;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+        private final DataOutputStream out = new DataOutputStream(block);
+        private int blockEntries;
+        private long totalEntries;
+        private IOException error;
+
+        Writer(WritableByteChannel channel, int d, Serializer<K> keySerializer, Serializer<V> valSerializer) throws IOException {
+            this.channel = channel;
+            this.keySerializer = keySerializer;
+            this.valSerializer = valSerializer;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(d).flip();
+            writeFully(channel, header);
+        }
+
+        @Override
+        public void accept(KeyVal<K, V> keyVal) {
+            if (error != null) {
+                return;
+            }
+            try {
+                keySerializer.serialize(keyVal.key(), out);
+                valSerializer.serialize(keyVal.val(), out);
+                blockEntries++;
+                totalEntries++;
+                if (block.size() >= BLOCK_SIZE) {
+                    flushBlock();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            out.flush();
+            byte[] payload = block.toByteArray();
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            ByteBuffer buf = ByteBuffer.allocate(BLOCK_HEADER_SIZE + payload.length + 4);
+            buf.putInt(blockEntries).putInt(payload.length).put(payload).putInt((int) crc.getValue()).flip();
+            writeFully(channel, buf);
+            block.reset();
+            blockEntries = 0;
+        }
+
+        /**
+         * 写入最后一个数据块和结束块
+         */
+        void finish() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            if (blockEntries > 0) {
+                flushBlock();
+            }
+            ByteBuffer end = ByteBuffer.allocate(BLOCK_HEADER_SIZE + 8);
+            end.putInt(0).putInt(0).putLong(totalEntries).flip();
+            writeFully(channel, end);
+        }
+    }
+
+    /**
+     * 读取快照头部
+     *
+     * @return 快照头部记录的最小度数
+     */
+    static int readHeader(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, buf);
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("not a btree snapshot");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version: " + version);
+        }
+        return buf.getInt();
+    }
+
+    /**
+     * 读取头部之后的所有数据块，校验每个数据块并将键值对按顺序交给consumer
+     */
+    static <K extends Comparable<K>, V> void readEntries(ReadableByteChannel channel, Serializer<K> keySerializer,
+                                                         Serializer<V> valSerializer,
+                                                         Consumer<KeyVal<K, V>> consumer) throws IOException {
+        long totalEntries = 0;
+        K lastKey = null;
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        while (true) {
+            blockHeader.clear();
+            readFully(channel, blockHeader);
+            int entries = blockHeader.getInt();
+            int length = blockHeader.getInt();
+            if (entries == 0 && length == 0) {
+                break;
+            }
+            if (entries < 0 || length < 0) {
+                throw new IOException("corrupted snapshot block header");
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length + 4);
+            readFully(channel, payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != payload.getInt(length)) {
+                throw new IOException("snapshot block checksum mismatch");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array(), 0, length));
+            for (int i = 0; i < entries; i++) {
+                K key = keySerializer.deserialize(in);
+                V val = valSerializer.deserialize(in);
+                if (lastKey != null && lastKey.compareTo(key) >= 0) {
+                    throw new IOException("snapshot keys are not strictly ascending");
+                }
+                lastKey = key;
+                consumer.accept(new KeyVal<>(key, val));
+            }
+            totalEntries += entries;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        readFully(channel, trailer);
+        if (trailer.getLong() != totalEntries) {
+            throw new IOException("snapshot is truncated");
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("unexpected end of snapshot");
+            }
+        }
+        buf.flip();
+    }
+}
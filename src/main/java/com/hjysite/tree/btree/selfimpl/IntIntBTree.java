@@ -0,0 +1,377 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.util.Arrays;
+
+// 由PrimitiveBTreeGenerator根据PrimitiveBTree.java.tmpl生成，不要直接修改
+
+/**
+ * key为int的B树，算法和BTree相同（最小度数为d，每个节点最多2d-1个key）
+ * 1.key直接存放在int[]中，比较不需要拆箱和调用compareTo
+ * 2.节点内部用二分查找，查找失败时的插入位置就是要继续向下查找的子节点
+ * 3.插入和删除都只从根节点向下一次：插入时提前分裂路径上已满的节点，删除时提前让路径上的节点至少有d个key
+ */
+public class IntIntBTree {
+
+    /**
+     * 最小度数
+     */
+    private final int d;
+
+    private Node root;
+
+    /**
+     * 键值对数量
+     */
+    private int size;
+
+    /**
+     * 按key从小到大访问键值对
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(int key, int val);
+    }
+
+    public IntIntBTree(int d) {
+        if (d < 2) {
+            throw new IllegalArgumentException("minimum degree must be at least 2");
+        }
+        this.d = d;
+        this.root = new Node(d, true);
+    }
+
+    /**
+     * 键值对数量
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(int key) {
+        Node node = root;
+        while (true) {
+            int i = node.indexOf(key);
+            if (i >= 0) {
+                return true;
+            }
+            if (node.isLeaf) {
+                return false;
+            }
+            node = node.children[-i - 1];
+        }
+    }
+
+    /**
+     * 查找
+     *
+     * @param defaultValue key不存在时返回的值
+     */
+    public int get(int key, int defaultValue) {
+        Node node = root;
+        while (true) {
+            int i = node.indexOf(key);
+            if (i >= 0) {
+                return node.vals[i];
+            }
+            if (node.isLeaf) {
+                return defaultValue;
+            }
+            node = node.children[-i - 1];
+        }
+    }
+
+    /**
+     * 插入或更新，向下的过程中遇到相同的key直接更新，否则提前分裂路径上已满的节点，最后插入叶子节点
+     */
+    public void put(int key, int val) {
+        if (root.isFull()) {
+            Node newRoot = new Node(d, false);
+            newRoot.children[0] = root;
+            root = newRoot;
+            splitFullNode(newRoot, 0);
+        }
+        Node node = root;
+        while (true) {
+            int i = node.indexOf(key);
+            if (i >= 0) {
+                node.vals[i] = val;
+                return;
+            }
+            int index = -i - 1;
+            if (node.isLeaf) {
+                node.insertAt(index, key, val);
+                size++;
+                return;
+            }
+            if (node.children[index].isFull()) {
+                splitFullNode(node, index);
+                // 分裂后提升上来的key可能就是要找的key，回到当前节点重新查找
+                continue;
+            }
+            node = node.children[index];
+        }
+    }
+
+    /**
+     * 分裂parent的第index个子节点，子节点的后d-1个键值对移动到新节点，中间的键值对提升到parent
+     */
+    private void splitFullNode(Node parent, int index) {
+        Node node = parent.children[index];
+        Node newNode = new Node(d, node.isLeaf);
+        System.arraycopy(node.keys, d, newNode.keys, 0, d - 1);
+        System.arraycopy(node.vals, d, newNode.vals, 0, d - 1);
+        if (!node.isLeaf) {
+            System.arraycopy(node.children, d, newNode.children, 0, d);
+            Arrays.fill(node.children, d, 2 * d, null);
+        }
+        newNode.keyNum = d - 1;
+
+        parent.insertAt(index, node.keys[d - 1], node.vals[d - 1]);
+        System.arraycopy(parent.children, index + 1, parent.children, index + 2, parent.keyNum - index - 1);
+        parent.children[index + 1] = newNode;
+        node.keyNum = d - 1;
+    }
+
+    /**
+     * 删除
+     *
+     * @return key是否存在
+     */
+    public boolean delete(int key) {
+        boolean deleted = delete(root, key);
+        if (root.keyNum == 0 && !root.isLeaf) {
+            root = root.children[0];
+        }
+        if (deleted) {
+            size--;
+        }
+        return deleted;
+    }
+
+    private boolean delete(Node node, int key) {
+        while (true) {
+            int i = node.indexOf(key);
+            if (i >= 0) {
+                if (node.isLeaf) {
+                    // 1. key在叶子节点中，向下的过程已经保证叶子节点至少有d个key（根节点除外），直接删除
+                    node.removeAt(i, i);
+                    return true;
+                }
+                Node left = node.children[i];
+                Node right = node.children[i + 1];
+                if (left.keyNum >= d) {
+                    // 2a. 左子节点至少有d个key，用前驱替换key，再从左子节点开始删除前驱
+                    Node predecessor = left;
+                    while (!predecessor.isLeaf) {
+                        predecessor = predecessor.children[predecessor.keyNum];
+                    }
+                    key = predecessor.keys[predecessor.keyNum - 1];
+                    node.keys[i] = key;
+                    node.vals[i] = predecessor.vals[predecessor.keyNum - 1];
+                    node = left;
+                } else if (right.keyNum >= d) {
+                    // 2b. 右子节点至少有d个key，用后继替换key，再从右子节点开始删除后继
+                    Node successor = right;
+                    while (!successor.isLeaf) {
+                        successor = successor.children[0];
+                    }
+                    key = successor.keys[0];
+                    node.keys[i] = key;
+                    node.vals[i] = successor.vals[0];
+                    node = right;
+                } else {
+                    // 2c. 左右子节点都只有d-1个key，把key和右子节点合并到左子节点，再从左子节点开始删除
+                    mergeChildren(node, i);
+                    node = left;
+                }
+                continue;
+            }
+            if (node.isLeaf) {
+                return false;
+            }
+            // 3. 不在当前节点中，保证要进入的子节点至少有d个key
+            int index = -i - 1;
+            if (node.children[index].keyNum < d) {
+                index = fill(node, index);
+            }
+            node = node.children[index];
+        }
+    }
+
+    /**
+     * 让node的第index个子节点至少有d个key
+     *
+     * @return key所在的子树在node中的索引，合并左兄弟时会变成index-1
+     */
+    private int fill(Node node, int index) {
+        if (index > 0 && node.children[index - 1].keyNum >= d) {
+            // 3a. 从左兄弟借一个key：父节点的key下沉到子节点，左兄弟最大的key上升到父节点
+            Node child = node.children[index];
+            Node sibling = node.children[index - 1];
+            Node siblingLastChild = sibling.isLeaf ? null : sibling.children[sibling.keyNum];
+            child.insertAt(0, node.keys[index - 1], node.vals[index - 1]);
+            if (!child.isLeaf) {
+                System.arraycopy(child.children, 0, child.children, 1, child.keyNum);
+                child.children[0] = siblingLastChild;
+            }
+            node.keys[index - 1] = sibling.keys[sibling.keyNum - 1];
+            node.vals[index - 1] = sibling.vals[sibling.keyNum - 1];
+            sibling.removeAt(sibling.keyNum - 1, sibling.keyNum);
+            return index;
+        }
+        if (index < node.keyNum && node.children[index + 1].keyNum >= d) {
+            // 3b. 从右兄弟借一个key：父节点的key下沉到子节点，右兄弟最小的key上升到父节点
+            Node child = node.children[index];
+            Node sibling = node.children[index + 1];
+            child.keys[child.keyNum] = node.keys[index];
+            child.vals[child.keyNum] = node.vals[index];
+            if (!child.isLeaf) {
+                child.children[child.keyNum + 1] = sibling.children[0];
+            }
+            child.keyNum++;
+            node.keys[index] = sibling.keys[0];
+            node.vals[index] = sibling.vals[0];
+            sibling.removeAt(0, 0);
+            return index;
+        }
+        // 3c. 左右兄弟都只有d-1个key，和其中一个合并
+        if (index < node.keyNum) {
+            mergeChildren(node, index);
+            return index;
+        }
+        mergeChildren(node, index - 1);
+        return index - 1;
+    }
+
+    /**
+     * 把node的第index个key以及第index+1个子节点合并到第index个子节点中
+     */
+    private void mergeChildren(Node node, int index) {
+        Node left = node.children[index];
+        Node right = node.children[index + 1];
+        left.keys[left.keyNum] = node.keys[index];
+        left.vals[left.keyNum] = node.vals[index];
+        System.arraycopy(right.keys, 0, left.keys, left.keyNum + 1, right.keyNum);
+        System.arraycopy(right.vals, 0, left.vals, left.keyNum + 1, right.keyNum);
+        if (!left.isLeaf) {
+            System.arraycopy(right.children, 0, left.children, left.keyNum + 1, right.keyNum + 1);
+        }
+        left.keyNum += right.keyNum + 1;
+        node.removeAt(index, index + 1);
+    }
+
+    /**
+     * 按key从小到大依次访问所有键值对
+     */
+    public void forEach(EntryConsumer action) {
+        forEachInOrder(root, action);
+    }
+
+    private void forEachInOrder(Node node, EntryConsumer action) {
+        for (int i = 0; i < node.keyNum; i++) {
+            if (!node.isLeaf) {
+                forEachInOrder(node.children[i], action);
+            }
+            action.accept(node.keys[i], node.vals[i]);
+        }
+        if (!node.isLeaf) {
+            forEachInOrder(node.children[node.keyNum], action);
+        }
+    }
+
+    /**
+     * 按key从小到大依次访问[low, high)范围内的键值对，只进入和范围有交集的子树
+     */
+    public void forEachInRange(int low, int high, EntryConsumer action) {
+        if (low < high) {
+            forEachInRange(root, low, high, action);
+        }
+    }
+
+    private boolean forEachInRange(Node node, int low, int high, EntryConsumer action) {
+        // 跳过所有小于low的key，它们左侧的子树也都小于low
+        int i = node.indexOf(low);
+        i = i >= 0 ? i : -i - 1;
+        for (; i < node.keyNum; i++) {
+            if (!node.isLeaf && !forEachInRange(node.children[i], low, high, action)) {
+                return false;
+            }
+            if (node.keys[i] >= high) {
+                return false;
+            }
+            action.accept(node.keys[i], node.vals[i]);
+        }
+        return node.isLeaf || forEachInRange(node.children[node.keyNum], low, high, action);
+    }
+
+    /**
+     * B树节点
+     */
+    private static class Node {
+        // key数量
+        private int keyNum;
+        // 是否是叶子节点
+        private final boolean isLeaf;
+        private final int[] keys;
+        private final int[] vals;
+        // 子节点
+        private final Node[] children;
+
+        private Node(int d, boolean isLeaf) {
+            this.isLeaf = isLeaf;
+            this.keys = new int[2 * d - 1];
+            this.vals = new int[2 * d - 1];
+            this.children = isLeaf ? null : new Node[2 * d];
+        }
+
+        private boolean isFull() {
+            return keyNum == keys.length;
+        }
+
+        /**
+         * 内部二分查找
+         *
+         * @return key的索引，不存在时返回-(插入位置)-1，插入位置也是要继续查找的子节点的索引
+         */
+        private int indexOf(int key) {
+            int low = 0;
+            int high = keyNum - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int k = keys[middle];
+                if (key < k) {
+                    high = middle - 1;
+                } else if (key > k) {
+                    low = middle + 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        /**
+         * 在index位置插入键值对，子节点由调用方移动
+         */
+        private void insertAt(int index, int key, int val) {
+            System.arraycopy(keys, index, keys, index + 1, keyNum - index);
+            System.arraycopy(vals, index, vals, index + 1, keyNum - index);
+            keys[index] = key;
+            vals[index] = val;
+            keyNum++;
+        }
+
+        /**
+         * 删除index位置的键值对以及childIndex位置的子节点（叶子节点忽略childIndex）
+         */
+        private void removeAt(int index, int childIndex) {
+            System.arraycopy(keys, index + 1, keys, index, keyNum - index - 1);
+            System.arraycopy(vals, index + 1, vals, index, keyNum - index - 1);
+            if (!isLeaf) {
+                System.arraycopy(children, childIndex + 1, children, childIndex, keyNum - childIndex);
+                children[keyNum] = null;
+            }
+            keyNum--;
+        }
+    }
+}
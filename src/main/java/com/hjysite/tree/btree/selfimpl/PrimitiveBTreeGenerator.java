@@ -0,0 +1,89 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 根据模板PrimitiveBTree.java.tmpl生成key为基本类型的B树，所有特化版本来自同一份模板，修改算法时只需要修改模板后重新生成
+ * <pre>
+ * 用法：java PrimitiveBTreeGenerator [模板路径] [输出目录]
+ * 默认在项目根目录下执行：模板为src/main/template/.../PrimitiveBTree.java.tmpl，输出到src/main/java/.../selfimpl
+ * </pre>
+ * 模板中的占位符：
+ * 1.$Class$ 类名，$TP$ 类型参数（value为对象时是&lt;V&gt;，否则为空）
+ * 2.$k$ key的基本类型，$v$ value在接口上的类型，$vStore$ value在节点数组中的类型，$vCast$ 从节点数组读取value时的强制转换
+ * 3.//#if obj 和 //#if prim 到 //#endif 之间的行只保留在value为对象或基本类型的版本中
+ */
+public class PrimitiveBTreeGenerator {
+
+    private static final String PACKAGE_PATH = "com/hjysite/tree/btree/selfimpl";
+
+    /**
+     * 一个特化版本
+     *
+     * @param className 类名
+     * @param key       key的基本类型
+     * @param val       value的基本类型，为null时value为对象
+     */
+    record Spec(String className, String key, String val) {
+
+        boolean objectValue() {
+            return val == null;
+        }
+    }
+
+    static final List<Spec> SPECS = List.of(
+            new Spec("LongObjBTree", "long", null),
+            new Spec("IntObjBTree", "int", null),
+            new Spec("LongLongBTree", "long", "long"),
+            new Spec("IntIntBTree", "int", "int"),
+            new Spec("LongDoubleBTree", "long", "double")
+    );
+
+    public static void main(String[] args) throws IOException {
+        Path template = Path.of(args.length > 0 ? args[0] : "src/main/template/" + PACKAGE_PATH + "/PrimitiveBTree.java.tmpl");
+        Path outputDir = Path.of(args.length > 1 ? args[1] : "src/main/java/" + PACKAGE_PATH);
+        String source = Files.readString(template, StandardCharsets.UTF_8);
+        for (Spec spec : SPECS) {
+            Path output = outputDir.resolve(spec.className() + ".java");
+            Files.writeString(output, generate(source, spec), StandardCharsets.UTF_8);
+            System.out.println("generated " + output);
+        }
+    }
+
+    static String generate(String template, Spec spec) {
+        StringBuilder out = new StringBuilder(template.length());
+        // 当前是否在被排除的条件块中
+        boolean skipping = false;
+        for (String line : template.split("\n", -1)) {
+            String directive = line.trim();
+            if (directive.startsWith("//#if ")) {
+                String condition = directive.substring("//#if ".length()).trim();
+                if (!condition.equals("obj") && !condition.equals("prim")) {
+                    throw new IllegalArgumentException("unknown condition in template: " + condition);
+                }
+                skipping = condition.equals("obj") != spec.objectValue();
+                continue;
+            }
+            if (directive.equals("//#endif")) {
+                skipping = false;
+                continue;
+            }
+            if (!skipping) {
+                out.append(line).append('\n');
+            }
+        }
+        // split保留了最后一个换行之后的空字符串，这里去掉多追加的换行
+        out.setLength(out.length() - 1);
+        return out.toString()
+                .replace("$Class$", spec.className())
+                .replace("$TP$", spec.objectValue() ? "<V>" : "")
+                .replace("$k$", spec.key())
+                .replace("$vStore$", spec.objectValue() ? "Object" : spec.val())
+                .replace("$vCast$", spec.objectValue() ? "(V) " : "")
+                .replace("$v$", spec.objectValue() ? "V" : spec.val());
+    }
+}
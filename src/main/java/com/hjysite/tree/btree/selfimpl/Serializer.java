@@ -0,0 +1,52 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 序列化器，用于快照中key和value的读写
+ */
+public interface Serializer<T> {
+
+    void serialize(T t, DataOutput out) throws IOException;
+
+    T deserialize(DataInput in) throws IOException;
+
+    Serializer<Integer> INTEGER = new Serializer<>() {
+        @Override
+        public void serialize(Integer t, DataOutput out) throws IOException {
+            out.writeInt(t);
+        }
+
+        @Override
+        public Integer deserialize(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    };
+
+    Serializer<Long> LONG = new Serializer<>() {
+        @Override
+        public void serialize(Long t, DataOutput out) throws IOException {
+            out.writeLong(t);
+        }
+
+        @Override
+        public Long deserialize(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    Serializer<String> STRING = new Serializer<>() {
+        @Override
+        public void serialize(String t, DataOutput out) throws IOException {
+            out.writeUTF(t);
+        }
+
+        @Override
+        public String deserialize(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+}
@@ -0,0 +1,336 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 按key范围分片的B树
+ * 1.key空间被切分成若干个连续的范围，每个范围由一棵独立的B树和一把读写锁负责，落在不同分片上的写入可以并行
+ * 2.分片的边界来自实际写入的key：开始时只有一个分片，某个分片的键值对数量超过阈值后，从中位数处一分为二，
+ * 分片数达到上限时，同时合并键值对最少的两个相邻分片，只有被拆分和合并的分片需要重建
+ * 3.跨分片的顺序遍历和范围查询依次锁住每个分片，单个分片内的结果是一致的，不同分片之间不保证是同一时刻的数据
+ */
+public class ShardedBTree<K extends Comparable<K>, V> {
+
+    /**
+     * 每棵B树的最小度数
+     */
+    private final int d;
+
+    /**
+     * 分片数的上限
+     */
+    private final int maxShards;
+
+    /**
+     * 分片拆分后每一半至少包含的键值对数量，避免数据量很小时频繁拆分
+     */
+    private final int minShardSize;
+
+    /**
+     * 按key范围从小到大排列的分片，只在持有rebalanceLock时整体替换
+     */
+    private volatile Shard<K, V>[] shards;
+
+    /**
+     * 分片的键值对数量超过该值时拆分
+     */
+    private volatile int splitThreshold;
+
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+    private volatile long rebalances;
+
+    public ShardedBTree(int d, int maxShards, int minShardSize) {
+        if (maxShards < 1) {
+            throw new IllegalArgumentException("maxShards must be positive");
+        }
+        if (minShardSize < 1) {
+            throw new IllegalArgumentException("minShardSize must be positive");
+        }
+        this.d = d;
+        this.maxShards = maxShards;
+        this.minShardSize = minShardSize;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Shard<K, V>[] initial = new Shard[]{new Shard<K, V>(null, new BTree<>(d))};
+        this.shards = initial;
+        this.splitThreshold = 2 * minShardSize;
+    }
+
+    public ShardedBTree(int d, int maxShards) {
+        this(d, maxShards, 1024);
+    }
+
+    /**
+     * 分片，负责[low, 下一个分片的low)范围内的key
+     */
+    private static class Shard<K extends Comparable<K>, V> {
+        // 第一个分片为null，表示没有下界
+        private final K low;
+        private final BTree<K, V> tree;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // 键值对数量，持有写锁时更新，用于在不加锁的情况下判断是否需要重新划分
+        private volatile int size;
+        // 被拆分或合并后不再使用，持有写锁时设置，拿到锁后发现已废弃需要重新定位分片
+        private boolean retired;
+
+        private Shard(K low, BTree<K, V> tree) {
+            this.low = low;
+            this.tree = tree;
+            this.size = tree.size();
+        }
+    }
+
+    /**
+     * 二分查找key所在分片的下标，即最后一个low不大于key的分片，key为null时返回第一个分片
+     */
+    private static <K extends Comparable<K>, V> int shardIndex(Shard<K, V>[] shards, K key) {
+        if (key == null) {
+            return 0;
+        }
+        int low = 1;
+        int high = shards.length - 1;
+        int index = 0;
+        while (low <= high) {
+            int middle = (low + high) / 2;
+            if (shards[middle].low.compareTo(key) <= 0) {
+                index = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 锁住key所在的分片，如果分片在加锁前已经被废弃，重新定位
+     */
+    private Shard<K, V> lockShard(K key, boolean write) {
+        while (true) {
+            Shard<K, V> shard = shards[shardIndex(shards, key)];
+            Lock lock = write ? shard.lock.writeLock() : shard.lock.readLock();
+            lock.lock();
+            if (!shard.retired) {
+                return shard;
+            }
+            lock.unlock();
+        }
+    }
+
+    public KeyVal<K, V> search(K key) {
+        Shard<K, V> shard = lockShard(key, false);
+        try {
+            return shard.tree.search(key);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    public void put(K key, V val) {
+        put(new KeyVal<>(key, val));
+    }
+
+    public void put(KeyVal<K, V> keyVal) {
+        Shard<K, V> shard = lockShard(keyVal.key(), true);
+        try {
+            shard.tree.put(keyVal);
+            shard.size = shard.tree.size();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if (shard.size > splitThreshold) {
+            rebalance(shard);
+        }
+    }
+
+    public void delete(K key) {
+        Shard<K, V> shard = lockShard(key, true);
+        try {
+            shard.tree.delete(key);
+            shard.size = shard.tree.size();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 键值对总数，各分片的数量不是同一时刻读取的
+     */
+    public int size() {
+        int size = 0;
+        for (Shard<K, V> shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    /**
+     * 当前的分片数
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 重新划分分片的次数
+     */
+    public long rebalanceCount() {
+        return rebalances;
+    }
+
+    /**
+     * 按key从小到大依次访问所有键值对
+     */
+    public void forEach(Consumer<KeyVal<K, V>> action) {
+        forEachInRange(null, null, action);
+    }
+
+    /**
+     * 按key从小到大依次访问[low, high)范围内的键值对，null表示该侧没有边界
+     * 访问某个分片时持有该分片的读锁，action中不能再修改这棵树
+     */
+    public void forEachInRange(K low, K high, Consumer<KeyVal<K, V>> action) {
+        K cursor = low;
+        while (true) {
+            Shard<K, V>[] current = shards;
+            int index = shardIndex(current, cursor);
+            Shard<K, V> shard = current[index];
+            shard.lock.readLock().lock();
+            K next;
+            try {
+                if (shard.retired) {
+                    // 分片已经被重新划分，从cursor开始在新的分片中继续
+                    continue;
+                }
+                // 分片没有废弃，说明它在current中的范围依然有效
+                next = index + 1 < current.length ? current[index + 1].low : null;
+                K end = next == null || (high != null && high.compareTo(next) < 0) ? high : next;
+                shard.tree.forEachInRange(cursor, end, action);
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+            if (next == null || (high != null && high.compareTo(next) <= 0)) {
+                return;
+            }
+            cursor = next;
+        }
+    }
+
+    /**
+     * 范围查询，返回[low, high)范围内按key升序排列的键值对
+     */
+    public List<KeyVal<K, V>> rangeSearch(K low, K high) {
+        List<KeyVal<K, V>> result = new ArrayList<>();
+        forEachInRange(low, high, result::add);
+        return result;
+    }
+
+    /**
+     * 将超过阈值的分片从中位数处拆分，分片数已经达到上限时合并键值对最少的两个相邻分片
+     * 同一时刻只有一个线程重新划分，其他线程直接返回，由后续的写入再次触发
+     */
+    private void rebalance(Shard<K, V> hot) {
+        if (!rebalanceLock.tryLock()) {
+            return;
+        }
+        try {
+            Shard<K, V>[] current = shards;
+            int hotIndex = -1;
+            long total = 0;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == hot) {
+                    hotIndex = i;
+                }
+                total += current[i].size;
+            }
+            if (hotIndex == -1 || hot.size <= splitThreshold) {
+                // 已经被其他线程重新划分过了
+                return;
+            }
+
+            // 分片数达到上限时，找到不包括hot在内的键值对最少的两个相邻分片
+            int mergeIndex = -1;
+            if (current.length >= maxShards) {
+                long mergeSize = Long.MAX_VALUE;
+                for (int i = 0; i + 1 < current.length; i++) {
+                    if (i == hotIndex || i + 1 == hotIndex) {
+                        continue;
+                    }
+                    long pairSize = (long) current[i].size + current[i + 1].size;
+                    if (pairSize < mergeSize) {
+                        mergeSize = pairSize;
+                        mergeIndex = i;
+                    }
+                }
+                if (mergeIndex == -1 || mergeSize >= hot.size) {
+                    // 合并之后的分片不会比拆分前的hot更小，重新划分没有意义，提高阈值
+                    splitThreshold = (int) Math.max(splitThreshold, Math.min(Integer.MAX_VALUE, 2L * hot.size));
+                    return;
+                }
+            }
+
+            List<Shard<K, V>> changed = new ArrayList<>();
+            changed.add(hot);
+            if (mergeIndex != -1) {
+                changed.add(current[mergeIndex]);
+                changed.add(current[mergeIndex + 1]);
+            }
+            for (Shard<K, V> shard : changed) {
+                shard.lock.writeLock().lock();
+            }
+            try {
+                List<Shard<K, V>> result = new ArrayList<>(current.length + 1);
+                for (int i = 0; i < current.length; i++) {
+                    if (i == hotIndex) {
+                        split(hot, result);
+                    } else if (i == mergeIndex) {
+                        result.add(merge(current[i], current[i + 1]));
+                        i++;
+                    } else {
+                        result.add(current[i]);
+                    }
+                }
+                for (Shard<K, V> shard : changed) {
+                    shard.retired = true;
+                }
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                Shard<K, V>[] updated = result.toArray(new Shard[0]);
+                shards = updated;
+                splitThreshold = (int) Math.max(2L * minShardSize, Math.min(Integer.MAX_VALUE, 2 * total / maxShards));
+                rebalances++;
+            } finally {
+                for (Shard<K, V> shard : changed) {
+                    shard.lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /**
+     * 将分片从中位数处拆分成两个分片
+     */
+    private void split(Shard<K, V> shard, List<Shard<K, V>> result) {
+        List<KeyVal<K, V>> entries = new ArrayList<>(shard.tree.size());
+        shard.tree.forEach(entries::add);
+        int middle = entries.size() / 2;
+        result.add(new Shard<>(shard.low, BTree.bulkLoad(d, entries.subList(0, middle))));
+        result.add(new Shard<>(entries.get(middle).key(), BTree.bulkLoad(d, entries.subList(middle, entries.size()))));
+    }
+
+    /**
+     * 合并两个相邻的分片
+     */
+    private Shard<K, V> merge(Shard<K, V> left, Shard<K, V> right) {
+        List<KeyVal<K, V>> entries = new ArrayList<>(left.tree.size() + right.tree.size());
+        left.tree.forEach(entries::add);
+        right.tree.forEach(entries::add);
+        return new Shard<>(left.low, BTree.bulkLoad(d, entries));
+    }
+}
@@ -0,0 +1,169 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分层时间轮，记录key的过期时间，用于B树的TTL
+ * <p>
+ * 1.时间以毫秒为单位，共LEVELS层，每层64个桶，第i层每个桶覆盖2^(6i)毫秒：第0层每个桶1毫秒，第4层每个桶约4.7小时
+ * 2.key放入能容纳它剩余时间的最低一层，超出最高层范围的key也放入最高层，桶被处理时如果还没有过期就重新放入
+ * 3.时间前进时，每一层只处理上次时间到当前时间之间经过的桶（最多64个），桶中已经过期的key被收集起来，
+ * 没有过期的key按照剩余时间重新放入更低的层。每个key最多下降LEVELS次，所以均摊到每个key是O(1)，与经过的时间长短无关
+ * 4.每个桶是带哨兵的双向链表，取消一个key的过期时间是O(1)
+ * 5.key到定时器的映射使用HashMap，要求key的equals和hashCode与compareTo一致
+ */
+class TimerWheel<K> {
+
+    private static final int BUCKET_BITS = 6;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int LEVELS = 5;
+
+    private static final class Timer<K> {
+        private K key;
+        private long deadline;
+        private Timer<K> prev;
+        private Timer<K> next;
+    }
+
+    // 每个桶的哨兵节点
+    private final Timer<K>[][] wheel;
+    private final Map<K, Timer<K>> timers = new HashMap<>();
+    // 时间轮当前的时间
+    private long time;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long now) {
+        this.time = now;
+        this.wheel = new Timer[LEVELS][BUCKETS];
+        for (Timer<K>[] level : wheel) {
+            for (int i = 0; i < BUCKETS; i++) {
+                Timer<K> sentinel = new Timer<>();
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * 设置key的过期时间，覆盖之前的过期时间
+     *
+     * @param deadline 过期的时间点，毫秒
+     */
+    void schedule(K key, long deadline) {
+        Timer<K> timer = timers.get(key);
+        if (timer == null) {
+            timer = new Timer<>();
+            timer.key = key;
+            timers.put(key, timer);
+        } else {
+            unlink(timer);
+        }
+        timer.deadline = deadline;
+        link(bucket(deadline), timer);
+    }
+
+    /**
+     * 取消key的过期时间
+     */
+    void cancel(K key) {
+        Timer<K> timer = timers.remove(key);
+        if (timer != null) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * key是否已经过期，没有设置过期时间的key永不过期
+     */
+    boolean isExpired(K key, long now) {
+        Timer<K> timer = timers.get(key);
+        return timer != null && timer.deadline <= now;
+    }
+
+    /**
+     * 带有过期时间的key数量
+     */
+    int size() {
+        return timers.size();
+    }
+
+    /**
+     * 时间前进到now，已经过期的key从时间轮中移除并加入expired
+     */
+    void advance(long now, List<K> expired) {
+        long previous = time;
+        if (now <= previous) {
+            return;
+        }
+        time = now;
+        for (int i = 0; i < LEVELS; i++) {
+            int shift = BUCKET_BITS * i;
+            long previousTicks = previous >>> shift;
+            long delta = (now >>> shift) - previousTicks;
+            // 低层没有跨过一个高层的桶，高层不需要处理
+            if (delta <= 0) {
+                break;
+            }
+            expire(i, previousTicks, delta, expired);
+        }
+    }
+
+    /**
+     * 处理第level层从previousTicks开始经过的桶，包括previousTicks所在的桶
+     */
+    private void expire(int level, long previousTicks, long delta, List<K> expired) {
+        int steps = (int) Math.min(delta + 1, BUCKETS);
+        int start = (int) (previousTicks & (BUCKETS - 1));
+        for (int s = 0; s < steps; s++) {
+            Timer<K> sentinel = wheel[level][(start + s) & (BUCKETS - 1)];
+            // 先把整个桶摘下来，重新放入的key不会在本次被重复处理
+            Timer<K> timer = sentinel.next;
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (timer != sentinel) {
+                Timer<K> next = timer.next;
+                if (timer.deadline <= time) {
+                    timers.remove(timer.key);
+                    expired.add(timer.key);
+                } else {
+                    link(bucket(timer.deadline), timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * 剩余时间能被容纳的最低一层中deadline所在的桶
+     */
+    private Timer<K> bucket(long deadline) {
+        long duration = deadline - time;
+        // 已经过期的key放入当前时间所在的桶，下次时间前进时就会被处理
+        if (duration <= 0) {
+            return wheel[0][(int) (time & (BUCKETS - 1))];
+        }
+        for (int i = 0; i < LEVELS - 1; i++) {
+            if (duration < 1L << (BUCKET_BITS * (i + 1))) {
+                return wheel[i][(int) ((deadline >>> (BUCKET_BITS * i)) & (BUCKETS - 1))];
+            }
+        }
+        return wheel[LEVELS - 1][(int) ((deadline >>> (BUCKET_BITS * (LEVELS - 1))) & (BUCKETS - 1))];
+    }
+
+    private void link(Timer<K> sentinel, Timer<K> timer) {
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+
+    private void unlink(Timer<K> timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+}
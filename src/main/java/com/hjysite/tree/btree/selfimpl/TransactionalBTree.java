@@ -0,0 +1,183 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * 支持乐观多key事务的B树
+ * 1.事务执行期间的读取持有读锁，不同事务的读取可以并行；写操作只缓存在事务自己的写集合中，不修改B树
+ * 2.每次读取都记录读到的节点（包含该key的节点，或者查找结束的叶子节点）以及该节点当时的版本号，节点每次被修改都会增加版本号
+ * 3.提交时持有写锁，先校验读集合中所有节点的版本号都没有变化，再应用写集合。版本号变化说明有冲突的事务先提交了，事务被放弃，
+ * 由execute自动重试。写锁只覆盖校验和应用写集合，事务的执行过程是完全并行的
+ */
+public class TransactionalBTree<K extends Comparable<K>, V> {
+
+    private final BTree<K, V> tree;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * execute最多重试的次数
+     */
+    private final int maxRetries;
+
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+
+    public TransactionalBTree(BTree<K, V> tree, int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        }
+        this.tree = tree;
+        this.maxRetries = maxRetries;
+    }
+
+    public TransactionalBTree(int d) {
+        this(new BTree<>(d), 100);
+    }
+
+    /**
+     * 开始一个事务，事务只能在一个线程中使用
+     */
+    public Transaction begin() {
+        return new Transaction();
+    }
+
+    /**
+     * 在事务中执行body并提交，提交失败时重新执行，body可能被执行多次，不应该有事务之外的副作用
+     *
+     * @return body最后一次执行的返回值
+     */
+    public <R> R execute(Function<Transaction, R> body) {
+        for (int attempt = 0; ; attempt++) {
+            Transaction tx = begin();
+            R result = body.apply(tx);
+            if (tx.commit()) {
+                return result;
+            }
+            if (attempt == maxRetries) {
+                throw new IllegalStateException("transaction aborted after " + (maxRetries + 1) + " attempts");
+            }
+            // 冲突时让出CPU，给先提交的事务留出时间
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 不在事务中的单个key查找
+     */
+    public KeyVal<K, V> search(K key) {
+        lock.readLock().lock();
+        try {
+            return tree.search(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long commitCount() {
+        return commits.sum();
+    }
+
+    public long abortCount() {
+        return aborts.sum();
+    }
+
+    public class Transaction {
+        // 读到的节点以及第一次读到时的版本号
+        private final Map<BTree.BTreeNode<K, V>, Long> readSet = new IdentityHashMap<>();
+        // 缓存的写操作，value为null表示删除
+        private final Map<K, KeyVal<K, V>> writeSet = new HashMap<>();
+        private boolean finished;
+
+        private Transaction() {
+        }
+
+        /**
+         * 查找，能读到当前事务自己的写操作
+         */
+        public KeyVal<K, V> search(K key) {
+            checkActive();
+            if (writeSet.containsKey(key)) {
+                return writeSet.get(key);
+            }
+            lock.readLock().lock();
+            try {
+                BTree.BTreeNode<K, V> node = tree.locate(key);
+                // 同一个节点只记录第一次读到的版本号，之后版本号变化说明前后读到的数据不一致，提交时一定校验失败
+                readSet.putIfAbsent(node, node.version());
+                return tree.searchLocated(node, key);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public void put(K key, V val) {
+            checkActive();
+            writeSet.put(key, new KeyVal<>(key, val));
+        }
+
+        public void delete(K key) {
+            checkActive();
+            writeSet.put(key, null);
+        }
+
+        /**
+         * 提交
+         *
+         * @return 是否提交成功，失败时事务中的写操作都不会生效
+         */
+        public boolean commit() {
+            checkActive();
+            finished = true;
+            // 只读事务不修改B树，读锁下校验即可
+            ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
+            ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+            boolean readOnly = writeSet.isEmpty();
+            if (readOnly) {
+                readLock.lock();
+            } else {
+                writeLock.lock();
+            }
+            try {
+                for (Map.Entry<BTree.BTreeNode<K, V>, Long> entry : readSet.entrySet()) {
+                    if (entry.getKey().version() != entry.getValue()) {
+                        aborts.increment();
+                        return false;
+                    }
+                }
+                for (Map.Entry<K, KeyVal<K, V>> entry : writeSet.entrySet()) {
+                    if (entry.getValue() == null) {
+                        tree.delete(entry.getKey());
+                    } else {
+                        tree.upsert(entry.getValue());
+                    }
+                }
+                commits.increment();
+                return true;
+            } finally {
+                if (readOnly) {
+                    readLock.unlock();
+                } else {
+                    writeLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * 放弃事务
+         */
+        public void abort() {
+            finished = true;
+        }
+
+        private void checkActive() {
+            if (finished) {
+                throw new IllegalStateException("transaction already finished");
+            }
+        }
+    }
+}
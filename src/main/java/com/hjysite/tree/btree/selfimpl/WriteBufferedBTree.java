@@ -0,0 +1,179 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * 带写缓冲的B树（类似LSM的写优化模式）
+ * 1.写入和删除先进入内存中的有序缓冲区，删除以墓碑（value为null的条目）的形式记录
+ * 2.缓冲区写满后，按key从小到大的顺序批量合并到B树中，落在同一个叶子节点中的相邻key直接写入该叶子节点，不需要从根节点向下查找
+ * 3.读取时先查缓冲区（缓冲区中的数据总是比B树中的新），再查B树，读取的代价最多多一次缓冲区查找
+ * 4.有序遍历不合并缓冲区，而是把B树的遍历和缓冲区的遍历按key归并，相同的key以缓冲区为准，墓碑隐藏B树中的键值对
+ */
+public class WriteBufferedBTree<K extends Comparable<K>, V> {
+
+    private final BTree<K, V> tree;
+
+    /**
+     * 缓冲区最多容纳的条目数
+     */
+    private final int bufferCapacity;
+
+    /**
+     * 写缓冲区，value为null表示该key已被删除（墓碑）
+     */
+    private final TreeMap<K, KeyVal<K, V>> buffer = new TreeMap<>();
+
+    public WriteBufferedBTree(int d, int bufferCapacity) {
+        this(new BTree<>(d), bufferCapacity);
+    }
+
+    public WriteBufferedBTree(BTree<K, V> tree, int bufferCapacity) {
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException("bufferCapacity must be positive");
+        }
+        this.tree = tree;
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public void put(K key, V val) {
+        put(new KeyVal<>(key, val));
+    }
+
+    public void put(KeyVal<K, V> keyVal) {
+        buffer.put(keyVal.key(), keyVal);
+        flushIfFull();
+    }
+
+    /**
+     * 删除，只在缓冲区中记录墓碑，合并时才真正从B树中删除
+     */
+    public void delete(K key) {
+        buffer.put(key, null);
+        flushIfFull();
+    }
+
+    /**
+     * 查找，缓冲区中的记录（包括墓碑）优先于B树
+     */
+    public KeyVal<K, V> search(K key) {
+        if (buffer.containsKey(key)) {
+            return buffer.get(key);
+        }
+        return tree.search(key);
+    }
+
+    /**
+     * 按key从小到大依次访问所有键值对，不合并缓冲区
+     */
+    public void forEach(Consumer<KeyVal<K, V>> action) {
+        forEachInRange(null, null, action);
+    }
+
+    /**
+     * 按key从小到大依次访问[low, high)范围内的键值对，null表示该侧没有边界，不合并缓冲区
+     */
+    public void forEachInRange(K low, K high, Consumer<KeyVal<K, V>> action) {
+        NavigableMap<K, KeyVal<K, V>> pending = buffer;
+        if (low != null) {
+            pending = pending.tailMap(low, true);
+        }
+        if (high != null) {
+            pending = pending.headMap(high, false);
+        }
+        Merge merge = new Merge(pending.entrySet().iterator(), action);
+        tree.forEachInRange(low, high, merge);
+        merge.finish();
+    }
+
+    /**
+     * 接收B树按顺序访问到的键值对，先输出缓冲区中key更小的条目；key相同时输出缓冲区中的条目，墓碑什么也不输出
+     */
+    private class Merge implements Consumer<KeyVal<K, V>> {
+        private final Iterator<Map.Entry<K, KeyVal<K, V>>> pending;
+        private final Consumer<KeyVal<K, V>> action;
+        // 缓冲区中下一个还没有输出的条目，没有时为null
+        private Map.Entry<K, KeyVal<K, V>> next;
+
+        private Merge(Iterator<Map.Entry<K, KeyVal<K, V>>> pending, Consumer<KeyVal<K, V>> action) {
+            this.pending = pending;
+            this.action = action;
+            advance();
+        }
+
+        @Override
+        public void accept(KeyVal<K, V> keyVal) {
+            int cmp = -1;
+            while (next != null && (cmp = next.getKey().compareTo(keyVal.key())) < 0) {
+                emitNext();
+            }
+            if (next != null && cmp == 0) {
+                emitNext();
+            } else {
+                action.accept(keyVal);
+            }
+        }
+
+        /**
+         * B树遍历结束后输出缓冲区中剩下的条目
+         */
+        private void finish() {
+            while (next != null) {
+                emitNext();
+            }
+        }
+
+        private void emitNext() {
+            if (next.getValue() != null) {
+                action.accept(next.getValue());
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = pending.hasNext() ? pending.next() : null;
+        }
+    }
+
+    private void flushIfFull() {
+        if (buffer.size() >= bufferCapacity) {
+            flush();
+        }
+    }
+
+    /**
+     * 将缓冲区按key的顺序批量合并到B树中
+     */
+    public void flush() {
+        BTree.Finger<K, V> finger = new BTree.Finger<>();
+        for (Map.Entry<K, KeyVal<K, V>> entry : buffer.entrySet()) {
+            KeyVal<K, V> keyVal = entry.getValue();
+            if (keyVal == null) {
+                tree.delete(entry.getKey());
+                // 删除可能会合并节点，之前记录的叶子节点不再可靠
+                finger.reset();
+            } else {
+                tree.upsert(keyVal, finger);
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * 缓冲区中尚未合并的条目数
+     */
+    public int bufferedSize() {
+        return buffer.size();
+    }
+
+    /**
+     * 合并缓冲区后返回底层的B树
+     */
+    public BTree<K, V> getTree() {
+        flush();
+        return tree;
+    }
+}
@@ -0,0 +1,110 @@
+package com.hjysite.tree.btree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HotKeyCacheTest {
+
+    /**
+     * 随机执行put、get和invalidate：命中时必须返回最后一次放入的value，失效后不能再命中，
+     * 同样的操作序列下int缓存和通用缓存的命中、淘汰和准入完全相同
+     */
+    @Test
+    void neverReturnsStaleValues() {
+        for (int capacity : new int[]{1, 2, 7, 64}) {
+            Random random = new Random(capacity);
+            IntHotKeyCache<Integer> intCache = new IntHotKeyCache<>(capacity);
+            HotKeyCache<Integer, Integer> cache = new HotKeyCache<>(capacity);
+            Map<Integer, Integer> latest = new HashMap<>();
+            for (int op = 0; op < 200000; op++) {
+                // 包括负数和Integer缓存以外的key
+                int key = (random.nextInt(capacity * 4) - capacity) * 1009;
+                int choice = random.nextInt(10);
+                if (choice < 3) {
+                    intCache.put(key, op);
+                    cache.put(key, op);
+                    latest.put(key, op);
+                } else if (choice < 4) {
+                    intCache.invalidate(key);
+                    cache.invalidate(key);
+                    assertNull(intCache.get(key));
+                    assertNull(cache.get(key));
+                    latest.remove(key);
+                } else if (choice < 5 && random.nextInt(100) == 0) {
+                    int hi = key + random.nextInt(capacity * 1009 + 1);
+                    intCache.invalidateRange(key, hi);
+                    for (int k : latest.keySet().toArray(new Integer[0])) {
+                        if (k >= key && k <= hi) {
+                            cache.invalidate(k);
+                            latest.remove(k);
+                        }
+                    }
+                } else {
+                    Integer val = intCache.get(key);
+                    assertEquals(val, cache.get(key));
+                    if (val != null) {
+                        assertEquals(latest.get(key), val);
+                    }
+                }
+            }
+            assertEquals(cache.getHits(), intCache.getHits());
+            assertEquals(cache.getEvictions(), intCache.getEvictions());
+            assertEquals(cache.getRejections(), intCache.getRejections());
+            assertTrue(intCache.getHits() > 0);
+        }
+    }
+
+    /**
+     * 缓存满了以后，只查一次的冷key不能把反复查找的热点key挤出缓存
+     */
+    @Test
+    void coldScanDoesNotFlushHotKeys() {
+        IntHotKeyCache<Integer> cache = new IntHotKeyCache<>(100);
+        for (int round = 0; round < 10; round++) {
+            for (int key = 0; key < 100; key++) {
+                if (cache.get(key) == null) {
+                    cache.put(key, key);
+                }
+            }
+        }
+        // 热点key继续被查找，同时有大量只查一次的冷key
+        for (int i = 0; i < 50000; i++) {
+            int key = (i % 2 == 0) ? i / 2 % 100 : 1000 + i;
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        }
+        int hot = 0;
+        for (int key = 0; key < 100; key++) {
+            if (cache.get(key) != null) {
+                hot++;
+            }
+        }
+        assertTrue(hot > 90, "hot keys left " + hot);
+        assertTrue(cache.getRejections() > 0);
+    }
+
+    @Test
+    void clearDropsEverything() {
+        HotKeyCache<String, String> cache = new HotKeyCache<>(8);
+        for (int i = 0; i < 8; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        assertEquals("v3", cache.get("k3"));
+        cache.clear();
+        for (int i = 0; i < 8; i++) {
+            assertNull(cache.get("k" + i));
+        }
+        cache.put("k1", "w1");
+        assertEquals("w1", cache.get("k1"));
+        assertThrows(IllegalArgumentException.class, () -> new HotKeyCache<String, String>(0));
+    }
+}
@@ -0,0 +1,774 @@
+package com.hjysite.tree.btree.example;
+
+import com.hjysite.tree.btree.IntHotKeyCache;
+import com.hjysite.tree.btree.TreeStats;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BPlusTreeTest {
+
+    /**
+     * This method applies a random mix of inserts, deletes and lookups to
+     * 'tree' and to a TreeMap, comparing every lookup and the whole tree at
+     * regular intervals.
+     * @param tree: the tree under test, already configured
+     * @param seed: the seed of the operation sequence
+     * @param ops: the number of operations to apply
+     * @param range: keys are drawn from [0, range)
+     * @param pointDeletes: whether delete(key) is part of the mix
+     * @param rangeDeletes: whether deleteRange(lo, hi) is part of the mix
+     * @return the model holding the expected contents of the tree
+     */
+    static TreeMap<Integer, Double> runRandomOps(BPlusTree tree, long seed, int ops, int range,
+                                                 boolean pointDeletes, boolean rangeDeletes) {
+        Random random = new Random(seed);
+        TreeMap<Integer, Double> model = new TreeMap<>();
+        for (int op = 0; op < ops; op++) {
+            int key = random.nextInt(range);
+            int choice = random.nextInt(20);
+            if (choice < 9) {
+                if (!model.containsKey(key)) {
+                    tree.insert(key, op);
+                    model.put(key, (double) op);
+                }
+            } else if (choice < 13 && pointDeletes) {
+                if (model.containsKey(key)) {
+                    tree.delete(key);
+                    model.remove(key);
+                }
+            } else if (choice == 13 && rangeDeletes && random.nextInt(10) == 0) {
+                int hi = key + random.nextInt(range / 4 + 1);
+                tree.deleteRange(key, hi);
+                model.subMap(key, true, hi, true).clear();
+            } else {
+                assertEquals(model.get(key), tree.search(key), "search(" + key + ") after op " + op);
+            }
+            if (op % 1000 == 999) {
+                assertMatches(tree, model, range);
+            }
+        }
+        assertMatches(tree, model, range);
+        return model;
+    }
+
+    /**
+     * This method checks every point lookup of [-1, range], the full range
+     * scan and the doubly linked list of leaves against the model.
+     */
+    static void assertMatches(BPlusTree tree, TreeMap<Integer, Double> model, int range) {
+        for (int key = -1; key <= range; key++) {
+            assertEquals(model.get(key), tree.search(key), "search(" + key + ")");
+        }
+        assertEquals(new ArrayList<>(model.values()), tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE));
+
+        // Leaves are linked in both directions and hold strictly ascending keys
+        BPlusTree.LeafNode prev = null;
+        long last = Long.MIN_VALUE;
+        for (BPlusTree.LeafNode ln = tree.firstLeaf; ln != null; ln = ln.rightSibling) {
+            assertSame(prev, ln.leftSibling);
+            assertTrue(ln.numPairs > 0 || (prev == null && ln.rightSibling == null), "empty leaf");
+            for (int i = 0; i < ln.numPairs; i++) {
+                assertTrue(ln.dictionary[i].key > last, "leaf keys out of order");
+                last = ln.dictionary[i].key;
+            }
+            prev = ln;
+        }
+        if (tree.root != null) {
+            assertValid(tree.root, null, Long.MIN_VALUE, Long.MAX_VALUE, depthOf(tree.firstLeaf));
+        }
+    }
+
+    private static int depthOf(BPlusTree.Node node) {
+        int depth = 0;
+        for (; node.parent != null; node = node.parent) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * This method checks the parent pointers, the minimum occupancy and the
+     * separator keys of the subtree of 'node', and that all of its leaves lie
+     * at the same depth.
+     * @param node: the root of the subtree
+     * @param parent: the expected parent of 'node'
+     * @param lo: every key of the subtree is >= lo
+     * @param hi: every key of the subtree is < hi
+     * @param depth: the remaining depth down to the leaves
+     */
+    private static void assertValid(BPlusTree.Node node, BPlusTree.InternalNode parent, long lo, long hi, int depth) {
+        assertSame(parent, node.parent);
+        if (node instanceof BPlusTree.LeafNode ln) {
+            assertEquals(0, depth, "leaves at different depths");
+            // Appends leave the rightmost leaf below the minimum occupancy (100/0 splits)
+            int min = (parent == null) ? 0 : (ln.rightSibling == null) ? 1 : Math.max(1, ln.minNumPairs);
+            assertTrue(ln.numPairs >= min, "deficient leaf");
+            for (int i = 0; i < ln.numPairs; i++) {
+                assertTrue(lo <= ln.dictionary[i].key && ln.dictionary[i].key < hi, "key outside of its separators");
+            }
+            return;
+        }
+        BPlusTree.InternalNode in = (BPlusTree.InternalNode) node;
+        assertTrue(in.degree >= (parent == null ? 2 : in.minDegree), "deficient internal node");
+        for (int i = 0; i < in.degree; i++) {
+            long childLo = (i == 0) ? lo : in.keys[i - 1];
+            long childHi = (i == in.degree - 1) ? hi : in.keys[i];
+            assertTrue(childLo <= childHi, "separator keys out of order");
+            assertValid(in.childPointers[i], in, childLo, childHi, depth - 1);
+        }
+    }
+
+    /**
+     * This method checks that the learned index holds exactly the non-empty
+     * leaves in key order together with their smallest keys.
+     */
+    static void assertLearnedIndexInSync(BPlusTree tree) {
+        LearnedLeafIndex index = tree.learnedIndex;
+        if (index.stale) { return; }
+        int pos = 0;
+        for (BPlusTree.LeafNode ln = tree.firstLeaf; ln != null; ln = ln.rightSibling) {
+            if (ln.numPairs == 0) { continue; }
+            assertSame(ln, index.leaves[pos]);
+            assertEquals(ln.dictionary[0].key, index.firstKeys[pos]);
+            pos++;
+        }
+        assertEquals(pos, index.size);
+    }
+
+    @Test
+    void learnedIndexMatchesPlainLookups() {
+        for (int seed = 0; seed < 10; seed++) {
+            BPlusTree tree = new BPlusTree(4 + seed % 5);
+            tree.enableLearnedIndex(seed % 4);
+            tree.enableTombstoneDeletes(0.3);
+            runRandomOps(tree, seed, 20000, 1 + 3000 * (seed + 1), true, true);
+            assertTrue(tree.learnedIndex.hits > 0);
+        }
+    }
+
+    @Test
+    void learnedIndexFollowsSplitsWithoutRebuilding() {
+        BPlusTree tree = new BPlusTree(8);
+        tree.enableLearnedIndex(2);
+        tree.insert(0, 0);
+        tree.search(0);
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(1 << 20);
+            if (tree.search(key) == null) {
+                tree.insert(key, key);
+            }
+            if (i % 500 == 0) {
+                assertLearnedIndexInSync(tree);
+            }
+        }
+        assertFalse(tree.learnedIndex.stale);
+        assertEquals(1, tree.learnedIndex.rebuilds);
+    }
+
+    @Test
+    void learnedIndexFollowsDeletesWithoutRebuilding() {
+
+        // Ascending inserts fill the leaves, so taking a few of the smallest
+        // keys of every leaf changes its first key without rebalancing
+        BPlusTree tree = new BPlusTree(16);
+        tree.enableLearnedIndex(1);
+        TreeMap<Integer, Double> model = new TreeMap<>();
+        for (int key = 0; key < 3000; key++) {
+            tree.insert(key, key);
+            model.put(key, (double) key);
+        }
+        tree.search(0);
+        long rebuilds = tree.learnedIndex.rebuilds;
+        for (int round = 0; round < 5; round++) {
+            ArrayList<Integer> firstKeys = new ArrayList<>();
+            for (BPlusTree.LeafNode ln = tree.firstLeaf; ln != null; ln = ln.rightSibling) {
+                if (ln.isLendable()) { firstKeys.add(ln.dictionary[0].key); }
+            }
+            for (int key : firstKeys) {
+                tree.delete(key);
+                model.remove(key);
+            }
+            assertLearnedIndexInSync(tree);
+        }
+        assertMatches(tree, model, 3000);
+        assertEquals(rebuilds, tree.learnedIndex.rebuilds);
+        assertTrue(tree.learnedIndex.hits > 3000);
+    }
+
+    @Test
+    void learnedIndexFollowsRebalancingDeletes() {
+        for (int seed = 0; seed < 10; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 6);
+            tree.enableLearnedIndex(seed % 3);
+            TreeMap<Integer, Double> model = runRandomOps(tree, seed, 20000, 200 + 300 * seed, true, false);
+            assertLearnedIndexInSync(tree);
+            assertEquals(1, tree.learnedIndex.rebuilds);
+
+            // Emptying the tree merges every leaf away one by one
+            for (int key : new ArrayList<>(model.keySet())) {
+                tree.delete(key);
+                model.remove(key);
+                if (key % 50 == 0) {
+                    assertLearnedIndexInSync(tree);
+                }
+            }
+            assertMatches(tree, model, 200 + 300 * seed);
+        }
+    }
+
+    @Test
+    void immediateDeletesMatchModel() {
+        for (int seed = 0; seed < 24; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 8);
+            runRandomOps(tree, seed, 20000, 20 + 200 * seed, true, seed % 3 == 0);
+        }
+    }
+
+    @Test
+    void immediateDeletesCanEmptyTheTree() {
+        for (int m = 3; m <= 10; m++) {
+            BPlusTree tree = new BPlusTree(m);
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            Random random = new Random(m);
+            for (int key = 0; key < 2000; key++) {
+                tree.insert(key, key);
+                model.put(key, (double) key);
+            }
+            ArrayList<Integer> keys = new ArrayList<>(model.keySet());
+            Collections.shuffle(keys, random);
+            for (int i = 0; i < keys.size(); i++) {
+                tree.delete(keys.get(i));
+                model.remove(keys.get(i));
+                if (i % 100 == 0) {
+                    assertMatches(tree, model, 2000);
+                }
+            }
+            assertMatches(tree, model, 2000);
+            assertNull(tree.firstLeaf);
+            assertNull(tree.root);
+            tree.insert(5, 5);
+            assertEquals(5.0, tree.search(5));
+        }
+    }
+
+    @Test
+    void bloomFilterMatchesPlainLookups() {
+        for (int seed = 0; seed < 10; seed++) {
+            BPlusTree tree = new BPlusTree(4 + seed % 5);
+            BlockedBloomFilter filter = tree.enableBloomFilter(0.01, 1 << 20, 0.2);
+            tree.enableTombstoneDeletes(0.3);
+            runRandomOps(tree, seed, 20000, 1 + 3000 * (seed + 1), true, true);
+            assertTrue(filter.getDescentsSaved() > 0);
+            assertTrue(filter.getRebuilds() > 1);
+        }
+    }
+
+    @Test
+    void bloomFilterRejectsMostAbsentKeys() {
+        BPlusTree tree = new BPlusTree(16);
+        BlockedBloomFilter filter = tree.enableBloomFilter(0.01, 1 << 20, 0.5);
+        for (int key = 0; key < 100000; key += 2) {
+            tree.insert(key, key);
+        }
+        for (int key = 1; key < 100000; key += 2) {
+            assertNull(tree.search(key));
+        }
+        assertTrue(filter.getObservedFalsePositiveRate() < 0.03, "rate " + filter.getObservedFalsePositiveRate());
+        assertEquals(filter.getLookups(), filter.getDescentsSaved() + filter.getFalsePositives());
+    }
+
+    @Test
+    void bloomFilterRejectsInvalidRebuildDeleteFraction() {
+        BPlusTree tree = new BPlusTree(4);
+        for (double fraction : new double[]{0, -0.5, 1.5, Double.NaN}) {
+            assertThrows(IllegalArgumentException.class, () -> tree.enableBloomFilter(0.01, 1 << 20, fraction));
+            assertThrows(IllegalArgumentException.class, () -> new BlockedBloomFilter(0.01, 1 << 20, fraction));
+        }
+        assertNull(tree.getBloomFilter());
+        tree.enableBloomFilter(0.01, 1 << 20, 1);
+    }
+
+    @Test
+    void tombstoneDeletesMatchModel() {
+        for (int seed = 0; seed < 10; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 6);
+            tree.enableTombstoneDeletes(0.1 + 0.1 * (seed % 5));
+            TreeMap<Integer, Double> model = runRandomOps(tree, seed, 20000, 50 + 500 * seed, true, false);
+            assertEquals(model.size(), tree.pairCount - tree.tombstoneCount);
+            assertTrue(tree.tombstoneCount <= tree.compactionThreshold * tree.pairCount);
+        }
+    }
+
+    @Test
+    void tombstonedKeysAreRevivedAndCompacted() {
+        BPlusTree tree = new BPlusTree(5);
+        tree.enableTombstoneDeletes(0.5);
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, key);
+        }
+        for (int key = 0; key < 100; key += 4) {
+            tree.delete(key);
+        }
+        assertEquals(25, tree.tombstoneCount);
+        assertNull(tree.search(40));
+
+        // Inserting a deleted key again revives its pair in place
+        tree.insert(40, -40);
+        assertEquals(-40.0, tree.search(40));
+        assertEquals(24, tree.tombstoneCount);
+        assertEquals(100, tree.pairCount);
+
+        tree.disableTombstoneDeletes();
+        TreeMap<Integer, Double> model = new TreeMap<>();
+        for (int key = 0; key < 100; key++) {
+            if (key % 4 != 0) { model.put(key, (double) key); }
+        }
+        model.put(40, -40.0);
+        assertMatches(tree, model, 100);
+        for (BPlusTree.LeafNode ln = tree.firstLeaf; ln != null; ln = ln.rightSibling) {
+            for (int i = 0; i < ln.numPairs; i++) {
+                assertFalse(ln.dictionary[i].tombstone);
+            }
+        }
+    }
+
+    @Test
+    void deleteRangeMatchesModel() {
+        for (int seed = 0; seed < 20; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 6);
+            runRandomOps(tree, seed, 20000, 50 + 300 * seed, false, true);
+        }
+    }
+
+    @Test
+    void deleteRangeKeepsCountersInTombstoneMode() {
+        for (int seed = 0; seed < 10; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 6);
+            tree.enableTombstoneDeletes(0.3);
+            BlockedBloomFilter filter = tree.enableBloomFilter(0.01, 1 << 20, 0.2);
+            TreeMap<Integer, Double> model = runRandomOps(tree, seed, 20000, 50 + 500 * seed, true, true);
+            assertEquals(model.size(), tree.pairCount - tree.tombstoneCount);
+            assertTrue(filter.numDeletes <= filter.numKeys);
+        }
+    }
+
+    @Test
+    void deleteRangeCanEmptyTheTree() {
+        BPlusTree tree = new BPlusTree(4);
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(key, key);
+        }
+        tree.deleteRange(100, 899);
+        TreeMap<Integer, Double> model = new TreeMap<>();
+        for (int key = 0; key < 1000; key++) {
+            if (key < 100 || key > 899) { model.put(key, (double) key); }
+        }
+        assertMatches(tree, model, 1000);
+        tree.deleteRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        assertMatches(tree, new TreeMap<>(), 1000);
+        tree.insert(7, 7);
+        assertEquals(7.0, tree.search(7));
+    }
+
+    @Test
+    void defragmentInterleavedWithUpdates() {
+        Random random = new Random(9);
+        for (int round = 0; round < 50; round++) {
+            BPlusTree tree = new BPlusTree(3 + random.nextInt(14));
+            if (round % 2 == 0) {
+                tree.enableLearnedIndex(2);
+            }
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            for (int i = random.nextInt(5000); i > 0; i--) {
+                int key = random.nextInt(20000);
+                if (!model.containsKey(key)) {
+                    tree.insert(key, i);
+                    model.put(key, (double) i);
+                }
+            }
+            for (int i = 0; i < 20; i++) {
+                int lo = random.nextInt(20000);
+                int hi = lo + random.nextInt(800);
+                tree.deleteRange(lo, hi);
+                model.subMap(lo, true, hi, true).clear();
+            }
+            double targetFill = 0.5 + random.nextDouble() / 2;
+            for (int step = 0; step < 100; step++) {
+                tree.defragment(targetFill, 1 + random.nextInt(5));
+                int key = random.nextInt(20000);
+                if (random.nextBoolean()) {
+                    if (!model.containsKey(key)) {
+                        tree.insert(key, step);
+                        model.put(key, (double) step);
+                    }
+                } else {
+                    int hi = key + random.nextInt(50);
+                    tree.deleteRange(key, hi);
+                    model.subMap(key, true, hi, true).clear();
+                }
+            }
+            assertMatches(tree, model, 20000);
+        }
+    }
+
+    @Test
+    void defragmentPacksSparseTree() {
+        BPlusTree tree = new BPlusTree(64);
+        TreeMap<Integer, Double> model = new TreeMap<>();
+        for (int key = 0; key < 200000; key++) {
+            tree.insert(key, key);
+            if (key % 10 > 6) { model.put(key, (double) key); }
+        }
+        for (int lo = 0; lo < 200000; lo += 10) {
+            tree.deleteRange(lo, lo + 6);
+        }
+        TreeStats before = tree.stats();
+
+        // One call returns once a whole pass is done
+        int freed = tree.defragment(0.9, Integer.MAX_VALUE);
+        TreeStats after = tree.stats();
+        assertMatches(tree, model, 200000);
+        assertTrue(freed > 0);
+        assertEquals(before.getNodeCount() - freed, after.getNodeCount());
+        assertTrue(after.getFillFactor() > 0.8, "fill factor " + after.getFillFactor());
+        assertThrows(IllegalArgumentException.class, () -> tree.defragment(1.5, 1));
+    }
+
+    @Test
+    void getAllMatchesSearch() {
+        for (int seed = 0; seed < 12; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 6);
+            if (seed % 2 == 0) {
+                tree.enableTombstoneDeletes(0.3);
+            }
+            if (seed % 3 == 0) {
+                tree.enableBloomFilter(0.01, 1 << 20, 0.2);
+            }
+            int range = 100 + 1000 * seed;
+            TreeMap<Integer, Double> model = runRandomOps(tree, seed, 10000, range, true, seed % 4 == 0);
+
+            // Unsorted keys with duplicates, absent keys and the int extremes
+            Random random = new Random(seed);
+            int[] keys = new int[3000];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(range + 20) - 10;
+            }
+            keys[0] = Integer.MIN_VALUE;
+            keys[1] = Integer.MAX_VALUE;
+            keys[2] = keys[3];
+            double[] values = new double[keys.length + 2];
+            Arrays.fill(values, 7.5);
+            int found = tree.getAll(keys, values, -1);
+
+            int expectedFound = 0;
+            for (int i = 0; i < keys.length; i++) {
+                Double expected = model.get(keys[i]);
+                if (expected != null) { expectedFound++; }
+                assertEquals((expected == null) ? -1 : expected, values[i], "getAll(" + keys[i] + ")");
+            }
+            assertEquals(expectedFound, found);
+            assertEquals(7.5, values[keys.length]);
+        }
+    }
+
+    @Test
+    void getAllHandlesSmallTrees() {
+        BPlusTree tree = new BPlusTree(4);
+        double[] values = new double[3];
+        assertEquals(0, tree.getAll(new int[]{1, 2, 3}, values, -1));
+        assertArrayEquals(new double[]{-1, -1, -1}, values);
+
+        // A single leaf without a root
+        tree.insert(2, 20);
+        assertEquals(1, tree.getAll(new int[]{3, 2, 1}, values, -1));
+        assertArrayEquals(new double[]{-1, 20, -1}, values);
+        assertEquals(0, tree.getAll(new int[0], values, -1));
+        assertThrows(IllegalArgumentException.class, () -> tree.getAll(new int[]{1, 2}, new double[1], -1));
+    }
+
+    @Test
+    void appendsLeaveFullLeaves() {
+        for (int m = 3; m <= 16; m++) {
+            BPlusTree tree = new BPlusTree(m);
+            tree.enableLearnedIndex(1);
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            for (int key = -5000; key < 5000; key++) {
+                tree.insert(key, key);
+                model.put(key, (double) key);
+                if (key == 0) {
+                    tree.search(0);
+                }
+            }
+
+            // 100/0 splits leave every leaf but the rightmost one full
+            BPlusTree.LeafNode ln = tree.firstLeaf;
+            for (; ln.rightSibling != null; ln = ln.rightSibling) {
+                assertEquals(ln.maxNumPairs, ln.numPairs);
+            }
+            // the cached rightmost leaf may lag behind the last split, but it must still reach it
+            BPlusTree.LeafNode hint = tree.lastLeaf;
+            while (hint.rightSibling != null) {
+                hint = hint.rightSibling;
+            }
+            assertSame(ln, hint);
+            assertMatches(tree, model, 5000);
+            assertLearnedIndexInSync(tree);
+        }
+    }
+
+    @Test
+    void appendsInterleavedWithUpdatesMatchModel() {
+        for (int seed = 0; seed < 12; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 8);
+            if (seed % 2 == 0) {
+                tree.enableTombstoneDeletes(0.3);
+            }
+            Random random = new Random(seed);
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            int next = 0;
+            for (int op = 0; op < 20000; op++) {
+                int choice = random.nextInt(10);
+                if (choice < 5) {
+
+                    // Appends, with gaps so later inserts can go between them
+                    next += 1 + random.nextInt(3);
+                    tree.insert(next, op);
+                    model.put(next, (double) op);
+                } else if (choice < 7) {
+                    int key = random.nextInt(next + 1);
+                    if (!model.containsKey(key)) {
+                        tree.insert(key, op);
+                        model.put(key, (double) op);
+                    }
+                } else if (choice < 9) {
+
+                    // Deletes favour the right edge, so the rightmost leaf shrinks and merges
+                    int key = next - random.nextInt(20);
+                    if (model.containsKey(key)) {
+                        tree.delete(key);
+                        model.remove(key);
+                    }
+                } else if (random.nextInt(20) == 0) {
+                    int lo = next - random.nextInt(200);
+                    tree.deleteRange(lo, next);
+                    model.subMap(lo, true, next, true).clear();
+                }
+                if (op % 2000 == 1999) {
+                    assertMatches(tree, model, next + 1);
+                }
+            }
+            assertMatches(tree, model, next + 1);
+        }
+    }
+
+
+    @Test
+    void hotKeyCacheFollowsUpdates() {
+        for (int seed = 0; seed < 12; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 6);
+            if (seed % 3 == 1) {
+                tree.enableTombstoneDeletes(0.3);
+            }
+            IntHotKeyCache<Double> cache = tree.enableHotKeyCache(1 + seed * 8);
+
+            // A small key range, so searched keys are cached and then updated
+            runRandomOps(tree, seed, 30000, 100 + 50 * seed, true, true);
+            assertTrue(cache.getHits() > 0);
+            assertTrue(cache.getInvalidations() > 0);
+        }
+    }
+
+    @Test
+    void hotKeyCacheIsInvalidatedByEveryUpdate() {
+        for (boolean tombstones : new boolean[]{false, true}) {
+            BPlusTree tree = new BPlusTree(4);
+            if (tombstones) {
+                tree.enableTombstoneDeletes(0.5);
+            }
+            IntHotKeyCache<Double> cache = tree.enableHotKeyCache(64);
+            for (int key = 0; key < 100; key++) {
+                tree.insert(key, key);
+            }
+            for (int key = 0; key < 100; key++) {
+                assertEquals(key, tree.search(key));
+                assertEquals(key, tree.search(key));
+            }
+            assertTrue(cache.getHits() > 0);
+
+            // Delete and insert again with another value
+            tree.delete(10);
+            assertNull(tree.search(10));
+            tree.insert(10, -10);
+            assertEquals(-10.0, tree.search(10));
+
+            tree.deleteRange(20, 29);
+            for (int key = 20; key < 30; key++) {
+                assertNull(tree.search(key));
+            }
+            tree.insert(25, -25);
+            assertEquals(-25.0, tree.search(25));
+
+            // Updates through a cursor go through the same invalidation
+            BPlusTree.Cursor cursor = tree.cursor();
+            assertEquals(40.0, cursor.search(40));
+            assertEquals(40.0, tree.search(40));
+            cursor.delete(40);
+            assertNull(tree.search(40));
+            cursor.insert(40, -40);
+            assertEquals(-40.0, tree.search(40));
+
+            tree.compact();
+            assertEquals(-40.0, tree.search(40));
+            assertEquals(41.0, tree.search(41));
+        }
+    }
+
+
+    @Test
+    void cursorMatchesModel() {
+        for (int seed = 0; seed < 12; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 6);
+            if (seed % 2 == 1) {
+                tree.enableTombstoneDeletes(0.3);
+            }
+            Random random = new Random(seed);
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            BPlusTree.Cursor cursor = tree.cursor();
+            int range = 200 + 300 * seed;
+            for (int op = 0; op < 20000; op++) {
+                int key = random.nextInt(range);
+                int choice = random.nextInt(10);
+                if (choice < 4) {
+                    if (!model.containsKey(key)) {
+                        cursor.insert(key, op);
+                        model.put(key, (double) op);
+                    }
+                } else if (choice < 7) {
+                    if (model.containsKey(key)) {
+                        cursor.delete(key);
+                        model.remove(key);
+                    }
+                } else if (choice < 9) {
+                    assertEquals(model.get(key), cursor.search(key), "search(" + key + ")");
+                } else {
+
+                    // A short scan from a random key
+                    Integer expected = model.ceilingKey(key);
+                    assertEquals(expected != null, cursor.seek(key));
+                    for (int step = 0; step < 10 && expected != null; step++) {
+                        assertTrue(cursor.isValid());
+                        assertEquals(expected, cursor.key());
+                        assertEquals(model.get(expected), cursor.value());
+                        expected = model.higherKey(expected);
+                        assertEquals(expected != null, cursor.next());
+                    }
+                }
+            }
+            assertMatches(tree, model, range);
+
+            // A full scan visits every live pair once
+            ArrayList<Integer> keys = new ArrayList<>();
+            for (boolean valid = cursor.seek(Integer.MIN_VALUE); valid; valid = cursor.next()) {
+                keys.add(cursor.key());
+            }
+            assertEquals(new ArrayList<>(model.keySet()), keys);
+            assertFalse(cursor.isValid());
+            assertFalse(cursor.next());
+            assertThrows(NoSuchElementException.class, cursor::key);
+        }
+    }
+
+    @Test
+    void cursorReseeksAfterStructuralChanges() {
+        for (int seed = 0; seed < 12; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed % 6);
+            if (seed % 2 == 1) {
+                tree.enableTombstoneDeletes(0.3);
+            }
+            Random random = new Random(seed);
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            for (int key = 0; key < 2000; key += 2) {
+                tree.insert(key, key);
+                model.put(key, (double) key);
+            }
+
+            // Scan the tree while changing it around and ahead of the cursor
+            BPlusTree.Cursor cursor = tree.cursor();
+            Integer expected = model.firstKey();
+            assertTrue(cursor.seek(Integer.MIN_VALUE));
+            while (expected != null) {
+                assertEquals(expected, cursor.key());
+                int pos = cursor.key();
+                int key = pos + random.nextInt(41) - 20;
+                int choice = random.nextInt(4);
+                if (choice == 0 && !model.containsKey(key)) {
+                    tree.insert(key, -key);
+                    model.put(key, (double) -key);
+                } else if (choice == 1 && key != pos && model.containsKey(key)) {
+                    tree.delete(key);
+                    model.remove(key);
+                } else if (choice == 2 && key > pos) {
+                    int hi = key + random.nextInt(10);
+                    tree.deleteRange(key, hi);
+                    model.subMap(key, true, hi, true).clear();
+                }
+                assertEquals(model.get(pos), cursor.value());
+                expected = model.higherKey(pos);
+                assertEquals(expected != null, cursor.next());
+            }
+            assertMatches(tree, model, 2000);
+
+            // The pair under the cursor itself is deleted, next() continues after its key
+            int pos = model.firstKey();
+            assertTrue(cursor.seek(pos));
+            tree.delete(pos);
+            model.remove(pos);
+            assertThrows(NoSuchElementException.class, cursor::value);
+            assertTrue(cursor.next());
+            assertEquals(model.higherKey(pos), cursor.key());
+        }
+    }
+
+
+    @Test
+    void updateReplacesValuesInPlace() {
+        for (int seed = 0; seed < 6; seed++) {
+            BPlusTree tree = new BPlusTree(3 + seed);
+            if (seed % 2 == 1) {
+                tree.enableTombstoneDeletes(0.5);
+            }
+            tree.enableHotKeyCache(16);
+            TreeMap<Integer, Double> model = runRandomOps(tree, seed, 5000, 500, true, false);
+            long pairs = tree.pairCount;
+            long version = tree.structureVersion;
+            for (int key = -1; key <= 500; key++) {
+                assertEquals(model.get(key), tree.search(key));
+                assertEquals(model.containsKey(key), tree.update(key, -key));
+                if (model.containsKey(key)) {
+                    model.put(key, (double) -key);
+                }
+            }
+
+            // Updates neither add pairs nor change the structure
+            assertEquals(pairs, tree.pairCount);
+            assertEquals(version, tree.structureVersion);
+            assertMatches(tree, model, 500);
+        }
+        assertFalse(new BPlusTree(3).update(1, 1));
+    }
+}
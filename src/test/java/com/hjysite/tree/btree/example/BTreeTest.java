@@ -0,0 +1,118 @@
+package com.hjysite.tree.btree.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BTreeTest {
+
+    /**
+     * This method applies a random mix of adds, deletes and lookups to
+     * 'tree' and to a TreeMap, comparing every lookup.
+     * @return the model holding the expected contents of the tree
+     */
+    static TreeMap<Integer, Object> runRandomOps(BTree tree, long seed, int ops, int range) {
+        Random random = new Random(seed);
+        TreeMap<Integer, Object> model = new TreeMap<>();
+        for (int op = 0; op < ops; op++) {
+            int key = random.nextInt(range);
+            int choice = random.nextInt(10);
+            if (choice < 5) {
+                tree.add(key, "v" + op);
+                model.put(key, "v" + op);
+            } else if (choice < 7) {
+                if (model.remove(key) != null) {
+                    tree.delete(key);
+                }
+            } else {
+                assertEquals(model.get(key), tree.search(key), "search(" + key + ") after op " + op);
+            }
+        }
+        return model;
+    }
+
+    @Test
+    void getAllMatchesSearch() {
+        for (int seed = 0; seed < 10; seed++) {
+            BTree tree = new BTree();
+            int range = 50 + 2000 * seed;
+            TreeMap<Integer, Object> model = runRandomOps(tree, seed, 20000, range);
+
+            // Unsorted keys with duplicates, absent keys and the int extremes
+            Random random = new Random(seed);
+            int[] keys = new int[3000];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(range + 20) - 10;
+            }
+            keys[0] = Integer.MIN_VALUE;
+            keys[1] = Integer.MAX_VALUE;
+            keys[2] = keys[3];
+            Object[] objects = new Object[keys.length + 1];
+            objects[keys.length] = "untouched";
+            int found = tree.getAll(keys, objects);
+
+            int expectedFound = 0;
+            for (int i = 0; i < keys.length; i++) {
+                Object expected = model.get(keys[i]);
+                if (expected != null) { expectedFound++; }
+                assertEquals(expected, objects[i], "getAll(" + keys[i] + ")");
+            }
+            assertEquals(expectedFound, found);
+            assertEquals("untouched", objects[keys.length]);
+        }
+    }
+
+    @Test
+    void getAllHandlesSmallTrees() {
+        BTree tree = new BTree();
+        Object[] objects = new Object[3];
+        assertEquals(0, tree.getAll(new int[]{1, 2, 3}, objects));
+        assertArrayEquals(new Object[]{null, null, null}, objects);
+        tree.add(2, "two");
+        assertEquals(2, tree.getAll(new int[]{2, 1, 2}, objects));
+        assertArrayEquals(new Object[]{"two", null, "two"}, objects);
+        assertThrows(IllegalArgumentException.class, () -> tree.getAll(new int[]{1, 2}, new Object[1]));
+    }
+
+
+    @Test
+    void forEachMatchesModel() {
+        for (int seed = 0; seed < 10; seed++) {
+            BTree tree = new BTree();
+            int range = 50 + 2000 * seed;
+            TreeMap<Integer, Object> model = runRandomOps(tree, seed, 20000, range);
+            if (seed % 2 == 0) {
+                tree.add(Integer.MIN_VALUE, "min");
+                tree.add(Integer.MAX_VALUE, "max");
+                model.put(Integer.MIN_VALUE, "min");
+                model.put(Integer.MAX_VALUE, "max");
+            }
+
+            Random random = new Random(seed);
+            for (int i = 0; i < 200; i++) {
+                int lo = (i == 0) ? Integer.MIN_VALUE : random.nextInt(range + 20) - 10;
+                int hi = (i == 0) ? Integer.MAX_VALUE : lo + random.nextInt(range / 4 + 1) - 1;
+                ArrayList<Object> expected = new ArrayList<>();
+                if (lo <= hi) {
+                    for (Map.Entry<Integer, Object> entry : model.subMap(lo, true, hi, true).entrySet()) {
+                        expected.add(entry.getKey());
+                        expected.add(entry.getValue());
+                    }
+                }
+                ArrayList<Object> actual = new ArrayList<>();
+                tree.forEach(lo, hi, (key, object) -> {
+                    actual.add(key);
+                    actual.add(object);
+                });
+                assertEquals(expected, actual, "forEach(" + lo + ", " + hi + ")");
+            }
+        }
+    }
+}
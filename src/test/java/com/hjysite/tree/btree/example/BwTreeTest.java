@@ -0,0 +1,166 @@
+package com.hjysite.tree.btree.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BwTreeTest {
+
+    // Values encode their key, so range results can be mapped back to keys
+    private static final double KEY_FACTOR = 1_000_000;
+
+    private static double value(int key, int op) {
+        return key * KEY_FACTOR + op;
+    }
+
+    private static int keyOf(double value) {
+        return (int) Math.floor(value / KEY_FACTOR);
+    }
+
+    @Test
+    void randomOpsMatchModel() {
+        for (int seed = 0; seed < 12; seed++) {
+            Random random = new Random(seed);
+            BwTree tree = new BwTree(3 + seed % 6, 1 + seed % 5);
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            int range = 200 + 400 * seed;
+            for (int op = 0; op < 30000; op++) {
+                // Inserts follow a slowly moving window and deletes empty the leaves behind it
+                int key = (op / 10 + random.nextInt(range / 4)) % range;
+                int choice = random.nextInt(10);
+                if (choice < 5) {
+                    tree.insert(key, value(key, op));
+                    model.put(key, value(key, op));
+                } else if (choice < 8) {
+                    key = (key + range - range / 4) % range;
+                    tree.delete(key);
+                    model.remove(key);
+                } else {
+                    assertEquals(model.get(key), tree.search(key), "search(" + key + ") after op " + op);
+                }
+                if (op % 101 == 0) {
+                    int lo = random.nextInt(range) - 10;
+                    int hi = lo + random.nextInt(range / 2 + 1);
+                    assertEquals(new ArrayList<>(model.subMap(lo, true, hi, true).values()), tree.search(lo, hi));
+                }
+            }
+            assertEquals(new ArrayList<>(model.values()), tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE));
+            assertTrue(tree.getMerges() > 0, "seed " + seed + " merged no leaf");
+
+            for (int key : new ArrayList<>(model.keySet())) {
+                tree.delete(key);
+                assertNull(tree.search(key));
+            }
+            assertEquals(new ArrayList<>(), tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    void mergedPidsAreReused() {
+        BwTree tree = new BwTree(8, 2);
+        int count = 20000;
+        for (int key = 0; key < count; key++) {
+            tree.insert(key, key);
+        }
+        int full = tree.getPidCount();
+        for (int round = 0; round < 5; round++) {
+            for (int key = 0; key < count; key++) {
+                tree.delete(key);
+            }
+            for (int key = 0; key < count; key++) {
+                tree.insert(key, -key);
+            }
+        }
+        assertTrue(tree.getMerges() > count / 8, "merges " + tree.getMerges());
+        assertTrue(tree.getReclaimedPids() > count / 8, "reclaimed " + tree.getReclaimedPids());
+        // Without reuse every round would need as many new pids as the first fill
+        assertTrue(tree.getPidCount() < 2 * full, "pids " + tree.getPidCount() + " after a fill of " + full);
+        for (int key = 0; key < count; key++) {
+            assertEquals(-key, tree.search(key));
+        }
+        assertEquals(count, tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE).size());
+    }
+
+    /**
+     * Every thread only writes keys whose remainder modulo the number of
+     * threads is its id, so it checks its own keys exactly against its
+     * model, and the keys of the other threads only for order and bounds.
+     */
+    @Test
+    void concurrentOpsMatchModel() throws InterruptedException {
+        int threads = 4;
+        int range = 8000;
+        BwTree tree = new BwTree(4, 3);
+        List<TreeMap<Integer, Double>> models = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            models.add(model);
+            workers.add(new Thread(() -> {
+                Random random = new Random(id);
+                try {
+                    for (int op = 0; op < 40000; op++) {
+                        int key = (op / 10 + random.nextInt(range / 8)) % range / threads * threads + id;
+                        int choice = random.nextInt(10);
+                        if (choice < 5) {
+                            tree.insert(key, value(key, op));
+                            model.put(key, value(key, op));
+                        } else if (choice < 8) {
+                            key = (key + range - range / 8) % range;
+                            tree.delete(key);
+                            model.remove(key);
+                        } else if (choice < 9) {
+                            assertEquals(model.get(key), tree.search(key));
+                        } else {
+                            int lo = random.nextInt(range);
+                            int hi = lo + random.nextInt(range / 4 + 1);
+                            List<Double> own = new ArrayList<>();
+                            int last = Integer.MIN_VALUE;
+                            for (double value : tree.search(lo, hi)) {
+                                int k = keyOf(value);
+                                assertTrue(k > last, "range result out of order");
+                                assertTrue(k >= lo && k <= hi);
+                                last = k;
+                                if (k % threads == id) {
+                                    own.add(value);
+                                }
+                            }
+                            assertEquals(new ArrayList<>(model.subMap(lo, true, hi, true).values()), own);
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(List.of(), failures);
+
+        TreeMap<Integer, Double> all = new TreeMap<>();
+        for (TreeMap<Integer, Double> model : models) {
+            all.putAll(model);
+        }
+        assertEquals(new ArrayList<>(all.values()), tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        for (int key = 0; key < range; key++) {
+            assertEquals(all.get(key), tree.search(key));
+        }
+        assertTrue(tree.getMerges() > 0);
+        assertTrue(tree.getSplits() > 0);
+    }
+}
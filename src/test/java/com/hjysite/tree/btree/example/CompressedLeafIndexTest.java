@@ -0,0 +1,145 @@
+package com.hjysite.tree.btree.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompressedLeafIndexTest {
+
+    private static final int[] EXTREMES = {Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -1, 0, 1,
+            Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+
+    /**
+     * This method builds a tree from random keys. Dense seeds draw keys from
+     * a small range, sparse seeds from the whole int range so that blocks
+     * need up to 32 bits per key, and every tree holds the int extremes.
+     * Some keys are deleted again, in tombstone mode for odd seeds.
+     */
+    private static BPlusTree buildTree(long seed, TreeMap<Integer, Double> model) {
+        Random random = new Random(seed);
+        BPlusTree tree = new BPlusTree(3 + (int) (seed % 8));
+        if (seed % 2 == 1) {
+            tree.enableTombstoneDeletes(0.5);
+        }
+        int count = 1 + random.nextInt(5000);
+        for (int i = 0; i < count + EXTREMES.length; i++) {
+            int key;
+            if (i < EXTREMES.length) {
+                key = EXTREMES[i];
+            } else if (seed % 3 == 0) {
+                key = random.nextInt();
+            } else {
+                key = random.nextInt(count * 3) - count;
+            }
+            if (!model.containsKey(key)) {
+                double value = random.nextGaussian();
+                tree.insert(key, value);
+                model.put(key, value);
+            }
+        }
+        for (Integer key : new ArrayList<>(model.keySet())) {
+            if (random.nextInt(4) == 0) {
+                tree.delete(key);
+                model.remove(key);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * This method checks point lookups of every key, its neighbours and the
+     * int extremes, and range lookups against the model and against the
+     * source tree.
+     */
+    private static void assertMatches(CompressedLeafIndex index, BPlusTree tree, TreeMap<Integer, Double> model,
+                                      Random random) {
+        assertEquals(model.size(), index.size());
+        for (int key : model.keySet()) {
+            assertEquals(model.get(key), index.search(key), "search(" + key + ")");
+            if (key != Integer.MIN_VALUE) {
+                assertEquals(model.get(key - 1), index.search(key - 1), "search(" + (key - 1) + ")");
+            }
+            if (key != Integer.MAX_VALUE) {
+                assertEquals(model.get(key + 1), index.search(key + 1), "search(" + (key + 1) + ")");
+            }
+        }
+        for (int key : EXTREMES) {
+            assertEquals(model.get(key), index.search(key));
+        }
+
+        ArrayList<Integer> keys = new ArrayList<>(model.keySet());
+        ArrayList<int[]> ranges = new ArrayList<>();
+        ranges.add(new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE});
+        ranges.add(new int[]{Integer.MIN_VALUE, Integer.MIN_VALUE});
+        ranges.add(new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE});
+        ranges.add(new int[]{Integer.MIN_VALUE + 1, Integer.MAX_VALUE - 1});
+        ranges.add(new int[]{1, -1});
+        for (int i = 0; i < 200 && !keys.isEmpty(); i++) {
+            // Bounds on existing keys, between them and outside of them
+            int lo = keys.get(random.nextInt(keys.size())) + random.nextInt(3) - 1;
+            int hi = keys.get(random.nextInt(keys.size())) + random.nextInt(3) - 1;
+            ranges.add(new int[]{Math.min(lo, hi), Math.max(lo, hi)});
+        }
+        for (int[] range : ranges) {
+            ArrayList<Double> expected = (range[0] > range[1]) ? new ArrayList<>()
+                    : new ArrayList<>(model.subMap(range[0], true, range[1], true).values());
+            assertEquals(expected, index.search(range[0], range[1]), "search(" + range[0] + ", " + range[1] + ")");
+            assertEquals(tree.search(range[0], range[1]), index.search(range[0], range[1]));
+        }
+    }
+
+    @Test
+    void matchesSourceTree() {
+        for (int seed = 0; seed < 24; seed++) {
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            BPlusTree tree = buildTree(seed, model);
+            for (int blockSize : new int[]{1, 2, 7, 64, 128, 10000}) {
+                CompressedLeafIndex index = tree.compress(blockSize);
+                assertMatches(index, tree, model, new Random(seed));
+            }
+        }
+    }
+
+    @Test
+    void blocksSpanningTheWholeIntRange() {
+        // The only block spans all ints, so every key needs the full 32 bits
+        BPlusTree tree = new BPlusTree(4);
+        TreeMap<Integer, Double> model = new TreeMap<>();
+        int[] keys = {Integer.MIN_VALUE, -1_000_000_000, -5, 0, 7, 1_000_000_000, Integer.MAX_VALUE};
+        for (int key : keys) {
+            tree.insert(key, key / 2.0);
+            model.put(key, key / 2.0);
+        }
+        CompressedLeafIndex index = tree.compress(keys.length);
+        assertEquals(1, index.blockCount);
+        assertEquals(32, index.blockBits[0]);
+        assertMatches(index, tree, model, new Random(0));
+
+        // Blocks of one key need no bits at all
+        CompressedLeafIndex singles = tree.compress(1);
+        for (int b = 0; b < singles.blockCount; b++) {
+            assertEquals(0, singles.blockBits[b]);
+        }
+        assertMatches(singles, tree, model, new Random(1));
+    }
+
+    @Test
+    void emptyTreeAndInvalidBlockSize() {
+        BPlusTree tree = new BPlusTree(3);
+        CompressedLeafIndex index = tree.compress(16);
+        assertEquals(0, index.size());
+        assertNull(index.search(0));
+        assertEquals(new ArrayList<Double>(), index.search(Integer.MIN_VALUE, Integer.MAX_VALUE));
+
+        tree.insert(5, 5);
+        tree.delete(5);
+        assertNull(tree.compress(16).search(5));
+        assertThrows(IllegalArgumentException.class, () -> tree.compress(0));
+    }
+}
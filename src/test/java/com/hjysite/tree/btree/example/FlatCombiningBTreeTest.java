@@ -0,0 +1,64 @@
+package com.hjysite.tree.btree.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class FlatCombiningBTreeTest {
+    private static final int THREADS = 6;
+    private static final int KEYS_PER_THREAD = 2000;
+
+    /**
+     * Every thread adds its own key range, deletes the even keys and checks
+     * its keys while the other threads keep the combiner busy, so waiters go
+     * through the spin and the park path.
+     */
+    @Test
+    void concurrentOperationsAreAllApplied() {
+        FlatCombiningBTree tree = new FlatCombiningBTree();
+        List<Throwable> errors = new ArrayList<>();
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int base = t * KEYS_PER_THREAD;
+                Thread thread = new Thread(() -> {
+                    for (int k = base; k < base + KEYS_PER_THREAD; k++) {
+                        tree.add(k, "v" + k);
+                    }
+                    for (int k = base; k < base + KEYS_PER_THREAD; k += 2) {
+                        tree.delete(k);
+                    }
+                    for (int k = base; k < base + KEYS_PER_THREAD; k++) {
+                        Object expected = k % 2 == 0 ? null : "v" + k;
+                        assertEquals(expected, tree.search(k));
+                    }
+                });
+                thread.setUncaughtExceptionHandler((th, e) -> {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        });
+        assertEquals(List.of(), errors);
+        for (int k = 0; k < THREADS * KEYS_PER_THREAD; k++) {
+            if (k % 2 == 0) {
+                assertNull(tree.search(k));
+            } else {
+                assertEquals("v" + k, tree.search(k));
+            }
+        }
+        assertEquals(THREADS * KEYS_PER_THREAD * 5L / 2 + THREADS * KEYS_PER_THREAD, tree.getCombinedOps());
+    }
+}
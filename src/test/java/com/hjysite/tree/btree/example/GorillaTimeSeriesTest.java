@@ -0,0 +1,198 @@
+package com.hjysite.tree.btree.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GorillaTimeSeriesTest {
+
+    private static final double[] SPECIAL_VALUES = {Double.NaN, -0.0, 0.0, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE, Double.MIN_NORMAL,
+            Double.longBitsToDouble(0x7ff0000000000001L), Double.longBitsToDouble(0xfff8000000000123L)};
+
+    /**
+     * This method compares two values bit by bit, so NaN payloads and the
+     * sign of zero are checked as well.
+     */
+    private static void assertSameBits(double expected, Double actual, String message) {
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual), message);
+    }
+
+    /**
+     * This method checks point lookups of every timestamp and its
+     * neighbours, the int extremes and random ranges against the model.
+     */
+    private static void assertMatches(GorillaTimeSeries series, TreeMap<Integer, Double> model, Random random) {
+        assertEquals(model.size(), series.size());
+        for (Map.Entry<Integer, Double> sample : model.entrySet()) {
+            int t = sample.getKey();
+            assertSameBits(sample.getValue(), series.search(t), "search(" + t + ")");
+            if (t != Integer.MIN_VALUE && !model.containsKey(t - 1)) {
+                assertNull(series.search(t - 1));
+            }
+            if (t != Integer.MAX_VALUE && !model.containsKey(t + 1)) {
+                assertNull(series.search(t + 1));
+            }
+        }
+        for (int t : new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            if (!model.containsKey(t)) {
+                assertNull(series.search(t));
+            }
+        }
+
+        ArrayList<Integer> timestamps = new ArrayList<>(model.keySet());
+        ArrayList<int[]> ranges = new ArrayList<>();
+        ranges.add(new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE});
+        ranges.add(new int[]{Integer.MIN_VALUE, Integer.MIN_VALUE});
+        ranges.add(new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE});
+        ranges.add(new int[]{1, -1});
+        for (int i = 0; i < 100 && !timestamps.isEmpty(); i++) {
+            int lo = timestamps.get(random.nextInt(timestamps.size())) + random.nextInt(3) - 1;
+            int hi = timestamps.get(random.nextInt(timestamps.size())) + random.nextInt(3) - 1;
+            ranges.add(new int[]{Math.min(lo, hi), Math.max(lo, hi)});
+        }
+        for (int[] range : ranges) {
+            ArrayList<Integer> expected = new ArrayList<>();
+            ArrayList<Long> expectedBits = new ArrayList<>();
+            if (range[0] <= range[1]) {
+                for (Map.Entry<Integer, Double> sample : model.subMap(range[0], true, range[1], true).entrySet()) {
+                    expected.add(sample.getKey());
+                    expectedBits.add(Double.doubleToRawLongBits(sample.getValue()));
+                }
+            }
+            ArrayList<Integer> actual = new ArrayList<>();
+            ArrayList<Long> actualBits = new ArrayList<>();
+            series.forEach(range[0], range[1], (timestamp, value) -> {
+                actual.add(timestamp);
+                actualBits.add(Double.doubleToRawLongBits(value));
+            });
+            assertEquals(expected, actual, "forEach(" + range[0] + ", " + range[1] + ")");
+            assertEquals(expectedBits, actualBits);
+        }
+    }
+
+    /**
+     * This method appends the same samples to a series and to a model.
+     */
+    private static void append(GorillaTimeSeries series, TreeMap<Integer, Double> model, int timestamp, double value) {
+        series.append(timestamp, value);
+        model.put(timestamp, value);
+    }
+
+    @Test
+    void matchesSourceTree() {
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            BPlusTree tree = new BPlusTree(3 + seed % 8);
+            if (seed % 2 == 1) {
+                tree.enableTombstoneDeletes(0.5);
+            }
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            int count = 1 + random.nextInt(4000);
+            double level = random.nextGaussian();
+            for (int i = 0; i < count; i++) {
+                // Regular samples with jitter and gaps, or timestamps spread over the whole int range
+                int t = (seed % 3 == 0) ? random.nextInt() : i * 60 + (random.nextInt(10) == 0 ? random.nextInt(5000) : 0);
+                int kind = random.nextInt(10);
+                double value = (kind < 4) ? level : (kind < 8) ? level + random.nextInt(100)
+                        : (kind < 9) ? SPECIAL_VALUES[random.nextInt(SPECIAL_VALUES.length)]
+                        : Double.longBitsToDouble(random.nextLong());
+                if (!model.containsKey(t)) {
+                    tree.insert(t, value);
+                    model.put(t, value);
+                }
+            }
+            for (Integer t : new ArrayList<>(model.keySet())) {
+                if (random.nextInt(5) == 0) {
+                    tree.delete(t);
+                    model.remove(t);
+                }
+            }
+            for (int blockSize : new int[]{1, 2, 16, 256, 100000}) {
+                GorillaTimeSeries series = tree.compressTimeSeries(blockSize);
+                assertMatches(series, model, new Random(seed));
+                if (!model.isEmpty()) {
+                    int lo = model.firstKey();
+                    int hi = model.lastKey();
+                    assertEquals(tree.search(lo, hi), series.search(lo, hi));
+                }
+            }
+        }
+    }
+
+    @Test
+    void deltaOfDeltaAcrossTheWholeIntRange() {
+        for (int blockSize : new int[]{2, 3, 1000}) {
+            GorillaTimeSeries series = new GorillaTimeSeries(blockSize);
+            TreeMap<Integer, Double> model = new TreeMap<>();
+
+            // delta 1, then the largest possible delta: delta-of-delta close to +2^32
+            append(series, model, Integer.MIN_VALUE, 1.0);
+            append(series, model, Integer.MIN_VALUE + 1, -0.0);
+            append(series, model, Integer.MAX_VALUE - 2, 0.0);
+            // back to delta 1: delta-of-delta close to -2^32
+            append(series, model, Integer.MAX_VALUE - 1, Double.NaN);
+            append(series, model, Integer.MAX_VALUE, Double.NEGATIVE_INFINITY);
+            assertMatches(series, model, new Random(blockSize));
+            assertThrows(IllegalArgumentException.class, () -> series.append(Integer.MAX_VALUE, 0));
+        }
+
+        // Bucket boundaries of the delta-of-delta encoding, in both directions
+        long[] dods = {0, 1, -1, 63, -64, 64, -65, 255, -256, 256, -257, 2047, -2048, 2048, -2049,
+                1L << 20, -(1L << 20), Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int blockSize : new int[]{4, 1000}) {
+            GorillaTimeSeries series = new GorillaTimeSeries(blockSize);
+            TreeMap<Integer, Double> model = new TreeMap<>();
+            long t = Integer.MIN_VALUE;
+            long delta = 1L << 30;
+            append(series, model, (int) t, 0);
+            for (int i = 0; i < 3; i++) {
+                for (long dod : dods) {
+                    long next = delta + dod;
+                    if (next < 1 || t + next > Integer.MAX_VALUE) {
+                        // Start again from a mid-sized delta
+                        next = Math.max(1, (Integer.MAX_VALUE - t) / 1000);
+                    }
+                    delta = next;
+                    t += delta;
+                    append(series, model, (int) t, SPECIAL_VALUES[(int) (t & 7)]);
+                }
+                delta = 1;
+            }
+            assertMatches(series, model, new Random(blockSize));
+        }
+    }
+
+    @Test
+    void specialValuesRoundTrip() {
+        GorillaTimeSeries series = new GorillaTimeSeries(64);
+        TreeMap<Integer, Double> model = new TreeMap<>();
+        Random random = new Random(0);
+        for (int t = 0; t < 5000; t++) {
+            // Runs of repeated values, then jumps between very different bit patterns
+            double value = (t % 7 < 3) ? SPECIAL_VALUES[t / 7 % SPECIAL_VALUES.length]
+                    : (t % 7 < 5) ? Double.longBitsToDouble(random.nextLong())
+                    : SPECIAL_VALUES[random.nextInt(SPECIAL_VALUES.length)];
+            append(series, model, t * 10, value);
+        }
+        assertMatches(series, model, random);
+        assertEquals(Double.valueOf(-0.0), series.search(70));
+        assertEquals(Double.valueOf(0.0), series.search(140));
+    }
+
+    @Test
+    void emptySeriesAndInvalidBlockSize() {
+        GorillaTimeSeries series = new BPlusTree(3).compressTimeSeries(8);
+        assertEquals(0, series.size());
+        assertNull(series.search(0));
+        assertEquals(new ArrayList<Double>(), series.search(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> new GorillaTimeSeries(0));
+    }
+}
@@ -0,0 +1,73 @@
+package com.hjysite.tree.btree.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LearnedLeafIndexTest {
+
+    /**
+     * Leaves are removed in random order; after every removal the positions,
+     * the segments and every prediction that does not fall back have to be
+     * exact.
+     */
+    @Test
+    void leafRemovedKeepsPredictionsExact() {
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            BPlusTree tree = new BPlusTree(4);
+            for (int i = 0; i < 5000; i++) {
+                int key = random.nextInt(1 << 20);
+                if (tree.search(key) == null) {
+                    tree.insert(key, key);
+                }
+            }
+            LearnedLeafIndex index = new LearnedLeafIndex(seed % 4);
+            index.rebuild(tree.firstLeaf);
+            List<BPlusTree.LeafNode> leaves = new ArrayList<>();
+            List<Integer> firstKeys = new ArrayList<>();
+            for (BPlusTree.LeafNode ln = tree.firstLeaf; ln != null; ln = ln.rightSibling) {
+                leaves.add(ln);
+                firstKeys.add(ln.dictionary[0].key);
+            }
+
+            while (!leaves.isEmpty()) {
+                int removed = random.nextInt(leaves.size());
+                index.leafRemoved(leaves.remove(removed), firstKeys.remove(removed));
+                assertFalse(index.stale);
+                assertEquals(leaves.size(), index.size);
+                for (int i = 0; i < leaves.size(); i++) {
+                    assertSame(leaves.get(i), index.leaves[i]);
+                    assertEquals((int) firstKeys.get(i), index.firstKeys[i]);
+                }
+                if (!leaves.isEmpty()) {
+                    assertEquals(0, index.segStartPos[0]);
+                }
+                for (int s = 1; s < index.segCount; s++) {
+                    assertTrue(index.segStartPos[s - 1] < index.segStartPos[s]);
+                    assertTrue(index.segStartPos[s] < index.size);
+                }
+                for (int q = 0; q < 20 && !leaves.isEmpty(); q++) {
+                    int pos = random.nextInt(leaves.size());
+                    int key = firstKeys.get(pos);
+                    if (pos + 1 < leaves.size()) {
+                        key += random.nextInt(firstKeys.get(pos + 1) - key);
+                    }
+                    BPlusTree.LeafNode found = index.findLeafNode(key);
+                    if (found != null) {
+                        assertSame(leaves.get(pos), found);
+                    }
+                }
+            }
+            assertEquals(0, index.segCount);
+            assertTrue(index.hits > index.fallbacks);
+        }
+    }
+}
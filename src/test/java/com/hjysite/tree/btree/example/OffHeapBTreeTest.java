@@ -0,0 +1,101 @@
+package com.hjysite.tree.btree.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapBTreeTest {
+
+    /**
+     * This method applies a random mix of adds, deletes and lookups to
+     * 'tree' and to a TreeMap, comparing every lookup and the inorder keys
+     * at regular intervals.
+     * @return the model holding the expected contents of the tree
+     */
+    static TreeMap<Integer, Long> runRandomOps(OffHeapBTree tree, long seed, int ops, int range) throws Exception {
+        Random random = new Random(seed);
+        TreeMap<Integer, Long> model = new TreeMap<>();
+        for (int op = 0; op < ops; op++) {
+            int key = random.nextInt(range) - range / 2;
+            int choice = random.nextInt(10);
+            if (choice < 5) {
+                tree.add(key, op);
+                model.put(key, (long) op);
+            } else if (choice < 8) {
+                tree.delete(key);
+                model.remove(key);
+            } else {
+                assertEquals(model.getOrDefault(key, -1L), tree.search(key, -1), "search(" + key + ") after op " + op);
+                assertEquals(model.containsKey(key), tree.contains(key));
+            }
+            if (op % 1000 == 999) {
+                tree.validate();
+                assertEquals(new ArrayList<>(model.keySet()), tree.getKeys());
+            }
+        }
+        return model;
+    }
+
+    @Test
+    void randomOpsMatchModel() throws Exception {
+        for (int seed = 0; seed < 12; seed++) {
+            // Small chunks, so nodes are spread over many chunks
+            OffHeapBTree tree = new OffHeapBTree(2 + seed % 5, 1 << (10 + seed % 4));
+            int range = 100 + 1000 * seed;
+            TreeMap<Integer, Long> model = runRandomOps(tree, seed, 30000, range);
+            for (int key : new ArrayList<>(model.keySet())) {
+                tree.delete(key);
+                assertFalse(tree.contains(key));
+            }
+            assertEquals(new ArrayList<>(), tree.getKeys());
+            tree.close();
+        }
+    }
+
+    @Test
+    void arenaGrowsGeometrically() throws Exception {
+        OffHeapBTree tree = new OffHeapBTree(4, 1 << 20);
+
+        // A fresh tree reserves one small chunk instead of a full one
+        long initial = tree.getOffHeapBytes();
+        assertTrue(initial > 0 && initial < 1 << 16, "initial reservation " + initial);
+
+        TreeMap<Integer, Long> model = new TreeMap<>();
+        for (int key = 0; key < 200000; key++) {
+            tree.add(key, -key);
+            model.put(key, (long) -key);
+            long used = (long) tree.getNodeCount() * (initial / 64);
+
+            // At most one partly filled chunk, which is at least half full once it has grown
+            assertTrue(tree.getOffHeapBytes() <= Math.max(initial, 2 * used));
+        }
+        assertTrue(tree.getOffHeapBytes() > 1 << 20);
+        for (int key = 0; key < 200000; key += 997) {
+            assertEquals(-key, tree.search(key, 1));
+        }
+        tree.validate();
+        assertEquals(new ArrayList<>(model.keySet()), tree.getKeys());
+    }
+
+    @Test
+    void closeReleasesTheArena() {
+        OffHeapBTree tree = new OffHeapBTree(3, 4096);
+        for (int key = 0; key < 1000; key++) {
+            tree.add(key, key);
+        }
+        assertTrue(tree.getOffHeapBytes() > 0);
+        tree.close();
+        assertEquals(0, tree.getOffHeapBytes());
+        assertEquals(0, tree.getNodeCount());
+        assertThrows(IllegalStateException.class, () -> tree.search(1, 0));
+        assertThrows(IllegalStateException.class, () -> tree.add(1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapBTree(3, 16));
+    }
+}
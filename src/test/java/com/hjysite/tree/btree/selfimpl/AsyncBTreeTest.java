@@ -0,0 +1,186 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncBTreeTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * 每次序列化前等待一段时间的value序列化器，让写线程保持忙碌
+     */
+    private static Serializer<Integer> slowSerializer(long millis) {
+        return new Serializer<>() {
+            @Override
+            public void serialize(Integer t, DataOutput out) throws IOException {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.writeInt(t);
+            }
+
+            @Override
+            public Integer deserialize(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+    }
+
+    private FileChannel openLog() throws IOException {
+        return FileChannel.open(dir.resolve("log"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    @Test
+    void putSearchDeleteAndReplay() throws Exception {
+        try (FileChannel log = openLog()) {
+            AsyncBTree<Integer, Integer> async = new AsyncBTree<>(new BTree<>(3), log, Serializer.INTEGER, Serializer.INTEGER);
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                writes.add(async.put(i, i * 2));
+            }
+            for (int i = 0; i < 1000; i += 3) {
+                writes.add(async.delete(i));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            assertEquals(14, async.search(7).get().val());
+            assertNull(async.search(9).get());
+            async.close();
+
+            BTree<Integer, Integer> replayed = new BTree<>(3);
+            assertEquals(log.size(), AsyncBTree.replay(log, replayed, Serializer.INTEGER, Serializer.INTEGER));
+            for (int i = 0; i < 1000; i++) {
+                KeyVal<Integer, Integer> keyVal = replayed.search(i);
+                if (i % 3 == 0) {
+                    assertNull(keyVal);
+                } else {
+                    assertEquals(i * 2, keyVal.val());
+                }
+            }
+        }
+    }
+
+    /**
+     * close()和查找并发时，排在关闭请求之后并和它一起被写线程取出的请求也必须完成，close()不能一直等待
+     */
+    @Test
+    void closeRacingWithSubmitsCompletesEveryFuture() {
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            for (int iteration = 0; iteration < 200; iteration++) {
+                AsyncBTree<Integer, Integer> async = new AsyncBTree<Integer, Integer>(new BTree<>(3), null, null, null);
+                AtomicBoolean stop = new AtomicBoolean();
+                List<List<CompletableFuture<KeyVal<Integer, Integer>>>> submitted = new ArrayList<>();
+                List<Thread> threads = new ArrayList<>();
+                for (int t = 0; t < 6; t++) {
+                    List<CompletableFuture<KeyVal<Integer, Integer>>> futures = new ArrayList<>();
+                    submitted.add(futures);
+                    Thread thread = new Thread(() -> {
+                        for (int k = 0; !stop.get(); k++) {
+                            futures.add(async.search(k));
+                        }
+                    });
+                    threads.add(thread);
+                    thread.start();
+                }
+                async.close();
+                stop.set(true);
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                for (List<CompletableFuture<KeyVal<Integer, Integer>>> futures : submitted) {
+                    for (CompletableFuture<KeyVal<Integer, Integer>> future : futures) {
+                        assertTrue(future.isDone(), "future not completed in iteration " + iteration);
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    void serializerFailureFailsOnlyItsBatch() throws Exception {
+        try (FileChannel log = openLog()) {
+            AsyncBTree<Integer, Integer> async = new AsyncBTree<>(new BTree<>(3), log, Serializer.INTEGER, Serializer.INTEGER);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> async.put(1, null).get(10, TimeUnit.SECONDS));
+            assertInstanceOf(NullPointerException.class, e.getCause());
+            async.put(2, 20).get(10, TimeUnit.SECONDS);
+            assertEquals(20, async.search(2).get(10, TimeUnit.SECONDS).val());
+            async.close();
+        }
+    }
+
+    @Test
+    void treeFailureFailsFast() throws Exception {
+        AsyncBTree<Integer, Integer> async = new AsyncBTree<Integer, Integer>(new BTree<>(3), null, null, null);
+        // null key在B树中比较时抛出NullPointerException
+        async.put(1, 1).get(10, TimeUnit.SECONDS);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> async.put(null, 1).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(NullPointerException.class, e.getCause());
+        // B树可能处于中间状态，之后的操作都以同一个异常失败，但future仍然会完成
+        e = assertThrows(ExecutionException.class, () -> async.search(1).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(NullPointerException.class, e.getCause());
+        async.close();
+    }
+
+    @Test
+    void interruptedCloseRestoresInterruptFlag() throws Exception {
+        try (FileChannel log = openLog()) {
+            AsyncBTree<Integer, Integer> async = new AsyncBTree<>(new BTree<>(3), log, Serializer.INTEGER, slowSerializer(500));
+            CompletableFuture<Void> slow = async.put(1, 1);
+            Thread.currentThread().interrupt();
+            async.close();
+            assertTrue(Thread.interrupted());
+            // 再次调用时等待写线程执行完之前提交的操作
+            async.close();
+            assertTrue(slow.isDone());
+        }
+    }
+
+    @Test
+    void concurrentCloseWaitsForWriter() throws Exception {
+        try (FileChannel log = openLog()) {
+            AsyncBTree<Integer, Integer> async = new AsyncBTree<>(new BTree<>(3), log, Serializer.INTEGER, slowSerializer(300));
+            CompletableFuture<Void> slow = async.put(1, 1);
+            List<Boolean> doneAfterClose = new ArrayList<>();
+            List<Thread> closers = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                Thread closer = new Thread(() -> {
+                    async.close();
+                    synchronized (doneAfterClose) {
+                        doneAfterClose.add(slow.isDone());
+                    }
+                });
+                closers.add(closer);
+                closer.start();
+            }
+            for (Thread closer : closers) {
+                closer.join();
+            }
+            assertEquals(List.of(true, true), doneAfterClose);
+        }
+    }
+}
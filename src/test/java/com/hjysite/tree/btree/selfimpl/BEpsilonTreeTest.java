@@ -0,0 +1,100 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BEpsilonTreeTest {
+
+    /**
+     * 计数器式的upsert：不存在时为1，是7的倍数时删除，否则加1
+     */
+    private static final UnaryOperator<Integer> COUNTER = v -> v == null ? Integer.valueOf(1) : v % 7 == 0 ? null : Integer.valueOf(v + 1);
+
+    private static Integer valOf(KeyVal<Integer, Integer> keyVal) {
+        return keyVal == null ? null : keyVal.val();
+    }
+
+    private static void assertMatches(BEpsilonTree<Integer, Integer> tree, TreeMap<Integer, Integer> model, int range) {
+        for (int key = -1; key <= range; key++) {
+            assertEquals(model.get(key), valOf(tree.search(key)), "search(" + key + ")");
+        }
+    }
+
+    /**
+     * 随机执行put、delete、upsert和search，消息停留在不同层的缓冲区中时查询结果也要与TreeMap一致
+     */
+    @Test
+    void randomOperationsMatchModel() {
+        for (int d : new int[]{2, 3, 8}) {
+            for (int bufferCapacity : new int[]{1, 4, 64}) {
+                for (int seed = 0; seed < 3; seed++) {
+                    Random random = new Random(seed);
+                    BEpsilonTree<Integer, Integer> tree = new BEpsilonTree<>(d, bufferCapacity);
+                    TreeMap<Integer, Integer> model = new TreeMap<>();
+                    int range = 100 + random.nextInt(5000);
+                    for (int op = 0; op < 20000; op++) {
+                        int key = random.nextInt(range);
+                        int choice = random.nextInt(12);
+                        if (choice < 5) {
+                            tree.put(key, op);
+                            model.put(key, op);
+                        } else if (choice < 7) {
+                            tree.delete(key);
+                            model.remove(key);
+                        } else if (choice < 9) {
+                            tree.upsert(key, COUNTER);
+                            Integer val = COUNTER.apply(model.get(key));
+                            if (val == null) {
+                                model.remove(key);
+                            } else {
+                                model.put(key, val);
+                            }
+                        } else {
+                            assertEquals(model.get(key), valOf(tree.search(key)), "search(" + key + ") after op " + op);
+                        }
+                        if (op % 7000 == 6999) {
+                            tree.flushAll();
+                            assertMatches(tree, model, range);
+                        }
+                    }
+                    assertMatches(tree, model, range);
+                    tree.flushAll();
+                    assertMatches(tree, model, range);
+                }
+            }
+        }
+    }
+
+    @Test
+    void upsertsApplyInOrder() {
+        BEpsilonTree<Integer, Integer> tree = new BEpsilonTree<>(2, 2);
+        for (int i = 0; i < 1000; i++) {
+            tree.upsert(i % 10, v -> v == null ? 1 : v + 1);
+        }
+        for (int key = 0; key < 10; key++) {
+            assertEquals(100, valOf(tree.search(key)));
+        }
+        tree.delete(3);
+        tree.upsert(3, v -> v == null ? -1 : v + 1);
+        assertEquals(-1, valOf(tree.search(3)));
+        tree.upsert(4, v -> null);
+        assertNull(tree.search(4));
+        tree.flushAll();
+        assertEquals(-1, valOf(tree.search(3)));
+        assertNull(tree.search(4));
+        assertEquals(100, valOf(tree.search(5)));
+    }
+
+    @Test
+    void rejectsInvalidParameters() {
+        assertThrows(IllegalArgumentException.class, () -> new BEpsilonTree<Integer, Integer>(1, 4));
+        assertThrows(IllegalArgumentException.class, () -> new BEpsilonTree<Integer, Integer>(2, 0));
+    }
+}
@@ -0,0 +1,358 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import com.hjysite.tree.btree.TreeStats;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BTreeTest {
+
+    /**
+     * 对B树和TreeMap执行相同的随机put、delete和search，每隔一段时间整体比较一次
+     */
+    static TreeMap<Integer, Integer> runRandomOps(BTree<Integer, Integer> tree, int d, long seed, int ops, int range) {
+        Random random = new Random(seed);
+        TreeMap<Integer, Integer> model = new TreeMap<>();
+        for (int op = 0; op < ops; op++) {
+            int key = random.nextInt(range);
+            int choice = random.nextInt(10);
+            if (choice < 5) {
+                tree.put(key, op);
+                model.put(key, op);
+            } else if (choice < 8) {
+                tree.delete(key);
+                model.remove(key);
+            } else {
+                assertEquals(model.get(key), valOf(tree.search(key)), "search(" + key + ") after op " + op);
+            }
+            if (op % 2000 == 1999) {
+                assertMatches(tree, model, range);
+                assertValid(tree, d);
+            }
+        }
+        assertMatches(tree, model, range);
+        assertValid(tree, d);
+        return model;
+    }
+
+    static <V> V valOf(KeyVal<Integer, V> keyVal) {
+        return keyVal == null ? null : keyVal.val();
+    }
+
+    /**
+     * 比较[-1, range]中每个key的查询结果、forEach的顺序和size
+     */
+    static <V> void assertMatches(BTree<Integer, V> tree, TreeMap<Integer, V> model, int range) {
+        for (int key = -1; key <= range; key++) {
+            assertEquals(model.get(key), valOf(tree.search(key)), "search(" + key + ")");
+        }
+        List<Map.Entry<Integer, V>> entries = new ArrayList<>();
+        tree.forEach(kv -> entries.add(Map.entry(kv.key(), kv.val())));
+        assertEquals(new ArrayList<>(model.entrySet()), entries);
+        assertEquals(model.size(), tree.size());
+    }
+
+    /**
+     * 检查B树的结构：节点内的key有序且在父节点分隔key的范围内，非根节点至少有d - 1个key，所有叶子节点在同一层
+     */
+    static void assertValid(BTree<?, ?> tree, int d) {
+        try {
+            Field root = BTree.class.getDeclaredField("root");
+            root.setAccessible(true);
+            checkNode(root.get(tree), d, true, null, null, 0, new int[]{-1});
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void checkNode(Object node, int d, boolean isRoot, Comparable low, Comparable high,
+                                  int depth, int[] leafDepth) throws ReflectiveOperationException {
+        int keyNum = (int) field("keyNum").get(node);
+        boolean isLeaf = (boolean) field("isLeaf").get(node);
+        Comparable[] keys = (Comparable[]) field("keys").get(node);
+        Object[] children = (Object[]) field("children").get(node);
+        assertTrue(keyNum <= 2 * d - 1, "overfull node");
+        assertTrue(isRoot || keyNum >= d - 1, "underfull node with " + keyNum + " keys");
+        for (int i = 0; i < keyNum; i++) {
+            assertTrue(i == 0 || keys[i - 1].compareTo(keys[i]) < 0, "keys out of order");
+            assertTrue(low == null || keys[i].compareTo(low) > 0, "key below the separator");
+            assertTrue(high == null || keys[i].compareTo(high) < 0, "key above the separator");
+        }
+        for (int i = keyNum; i < keys.length; i++) {
+            assertNull(keys[i], "stale key");
+        }
+        if (isLeaf) {
+            if (leafDepth[0] < 0) {
+                leafDepth[0] = depth;
+            }
+            assertEquals(leafDepth[0], depth, "leaves at different depths");
+            return;
+        }
+        for (int i = 0; i <= keyNum; i++) {
+            checkNode(children[i], d, false, i == 0 ? low : keys[i - 1], i == keyNum ? high : keys[i], depth + 1, leafDepth);
+        }
+        for (int i = keyNum + 1; i < children.length; i++) {
+            assertNull(children[i], "stale child");
+        }
+    }
+
+    private static Field field(String name) throws NoSuchFieldException {
+        Field field = BTree.BTreeNode.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    @Test
+    void randomPutAndDeleteMatchModel() {
+        for (int d : new int[]{2, 3, 4, 7}) {
+            for (int seed = 0; seed < 5; seed++) {
+                runRandomOps(new BTree<>(d), d, seed, 20000, 50 + 1000 * seed);
+            }
+        }
+    }
+
+    @Test
+    void deleteEveryKeyInBothOrders() {
+        for (int d : new int[]{2, 3, 5}) {
+            BTree<Integer, Integer> tree = new BTree<>(d);
+            TreeMap<Integer, Integer> model = new TreeMap<>();
+            for (int key = 0; key < 2000; key++) {
+                tree.put(key, key);
+                model.put(key, key);
+            }
+            for (int key = 0; key < 2000; key += 2) {
+                tree.delete(key);
+                model.remove(key);
+            }
+            assertValid(tree, d);
+            for (int key = 1999; key >= 0; key -= 2) {
+                tree.delete(key);
+                model.remove(key);
+                if (key % 100 == 1) {
+                    assertMatches(tree, model, 2000);
+                    assertValid(tree, d);
+                }
+            }
+            assertEquals(0, tree.size());
+            tree.put(1, 1);
+            assertEquals(1, valOf(tree.search(1)));
+        }
+    }
+
+    private static byte[] snapshotOf(BTree<Integer, String> tree) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tree.writeSnapshot(Channels.newChannel(out), Serializer.INTEGER, Serializer.STRING);
+        return out.toByteArray();
+    }
+
+    private static BTree<Integer, String> readSnapshot(byte[] bytes) throws IOException {
+        return BTree.readSnapshot(Channels.newChannel(new ByteArrayInputStream(bytes)), Serializer.INTEGER, Serializer.STRING);
+    }
+
+    @Test
+    void snapshotRoundTrip() throws IOException {
+        for (int d : new int[]{2, 3, 5}) {
+            for (int n : new int[]{0, 1, 2, 3, 4, 5, 7, 10, 31, 100, 1000, 12345}) {
+                BTree<Integer, String> tree = new BTree<>(d);
+                TreeMap<Integer, String> model = new TreeMap<>();
+                List<Integer> keys = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    keys.add(i * 2);
+                }
+                Collections.shuffle(keys, new Random(n));
+                for (int key : keys) {
+                    tree.put(key, "v" + key);
+                    model.put(key, "v" + key);
+                }
+
+                BTree<Integer, String> loaded = readSnapshot(snapshotOf(tree));
+                assertMatches(loaded, model, 2 * n);
+                assertValid(loaded, d);
+
+                // 加载后的树可以继续修改
+                for (int i = 0; i < n; i += 3) {
+                    loaded.delete(i * 2);
+                    model.remove(i * 2);
+                }
+                for (int i = 0; i < n; i++) {
+                    loaded.put(i * 2 + 1, "x");
+                    model.put(i * 2 + 1, "x");
+                }
+                assertMatches(loaded, model, 2 * n);
+                assertValid(loaded, d);
+            }
+        }
+    }
+
+    @Test
+    void corruptedSnapshotIsRejected() throws IOException {
+        BTree<Integer, String> tree = new BTree<>(3);
+        for (int i = 0; i < 10000; i++) {
+            tree.put(i, "v");
+        }
+        byte[] bytes = snapshotOf(tree);
+        bytes[100] ^= 1;
+        assertThrows(IOException.class, () -> readSnapshot(bytes));
+        byte[] truncated = Arrays.copyOf(snapshotOf(tree), 1000);
+        assertThrows(IOException.class, () -> readSnapshot(truncated));
+    }
+
+    /**
+     * 随机执行带TTL的put、普通put、delete、推进时钟、expire和search，与记录了过期时间的模型比较
+     */
+    @Test
+    void ttlMatchesModel() {
+        Random random = new Random(7);
+        long[] now = {1_700_000_000_000L};
+        for (int round = 0; round < 10; round++) {
+            int d = 2 + random.nextInt(4);
+            BTree<Integer, Integer> tree = new BTree<>(d);
+            tree.enableTtl(() -> now[0]);
+            if (round % 3 == 0) {
+                tree.enableHotKeyCache(16);
+            }
+            TreeMap<Integer, Integer> values = new TreeMap<>();
+            Map<Integer, Long> deadlines = new HashMap<>();
+            for (int op = 0; op < 20000; op++) {
+                int key = random.nextInt(3000);
+                int choice = random.nextInt(100);
+                if (choice < 30) {
+                    long ttl = (long) Math.pow(10, random.nextDouble() * 8);
+                    tree.put(key, op, ttl, TimeUnit.MILLISECONDS);
+                    values.put(key, op);
+                    deadlines.put(key, now[0] + ttl);
+                } else if (choice < 38) {
+                    tree.put(key, op);
+                    values.put(key, op);
+                    deadlines.remove(key);
+                } else if (choice < 42) {
+                    tree.delete(key);
+                    values.remove(key);
+                    deadlines.remove(key);
+                } else if (choice < 45) {
+                    now[0] += random.nextInt(10) == 0 ? (long) Math.pow(10, random.nextDouble() * 9) : random.nextInt(50);
+                } else if (choice < 46) {
+                    tree.expire();
+                    values.keySet().removeIf(k -> deadlines.containsKey(k) && deadlines.get(k) <= now[0]);
+                    deadlines.values().removeIf(deadline -> deadline <= now[0]);
+                    assertMatches(tree, values, 3000);
+                    assertValid(tree, d);
+                } else {
+                    Long deadline = deadlines.get(key);
+                    Integer expected = deadline != null && deadline <= now[0] ? null : values.get(key);
+                    assertEquals(expected, valOf(tree.search(key)), "search(" + key + ") after op " + op);
+                }
+            }
+        }
+    }
+
+    @Test
+    void expiredEntriesAreHiddenAndRemoved() {
+        long[] now = {0};
+        BTree<Integer, String> tree = new BTree<>(3);
+        assertThrows(IllegalStateException.class, () -> tree.put(1, "a", 1, TimeUnit.SECONDS));
+        tree.enableTtl(() -> now[0]);
+        for (int key = 0; key < 100; key++) {
+            tree.put(key, "v" + key, key % 2 == 0 ? 10 : 1000, TimeUnit.MILLISECONDS);
+        }
+        tree.put(100, "forever");
+
+        // 普通put会取消之前设置的过期时间
+        tree.put(2, "kept");
+        now[0] = 10;
+        assertNull(tree.search(0));
+        assertEquals("kept", valOf(tree.search(2)));
+        assertEquals("v1", valOf(tree.search(1)));
+        assertEquals(101, tree.size());
+        assertEquals(49, tree.expire());
+        assertEquals(52, tree.size());
+        assertValid(tree, 3);
+
+        now[0] = 1000;
+        tree.delete(100);
+        assertEquals(1, tree.size());
+        assertEquals("kept", valOf(tree.search(2)));
+
+        tree.disableTtl();
+        tree.put(5, "v5");
+        assertEquals(0, tree.expire());
+        assertEquals(2, tree.size());
+    }
+
+    /**
+     * 碎片整理与put、delete交替执行，每一步之后结构和内容都保持正确
+     */
+    @Test
+    void defragmentInterleavedWithUpdates() {
+        for (int d : new int[]{2, 3, 4, 7, 32}) {
+            for (int seed = 0; seed < 5; seed++) {
+                Random random = new Random(seed);
+                BTree<Integer, Integer> tree = new BTree<>(d);
+                TreeMap<Integer, Integer> model = new TreeMap<>();
+                int range = 100 + random.nextInt(20000);
+                for (int op = 0; op < 8000; op++) {
+                    int key = random.nextInt(range);
+                    int choice = random.nextInt(20);
+                    if (choice < 9) {
+                        tree.put(key, op);
+                        model.put(key, op);
+                    } else if (choice < 17) {
+                        tree.delete(key);
+                        model.remove(key);
+                    } else {
+                        tree.defragment(0.5 + random.nextDouble() / 2, 1 + random.nextInt(5));
+                        assertValid(tree, d);
+                    }
+                }
+                assertMatches(tree, model, range);
+            }
+        }
+    }
+
+    @Test
+    void defragmentPacksSparseTree() {
+        BTree<Integer, Integer> tree = new BTree<>(16);
+        TreeMap<Integer, Integer> model = new TreeMap<>();
+        for (int key = 0; key < 200000; key++) {
+            tree.put(key, key);
+            model.put(key, key);
+        }
+        Random random = new Random(1);
+        for (int key = 0; key < 200000; key++) {
+            if (random.nextInt(10) < 6) {
+                tree.delete(key);
+                model.remove(key);
+            }
+        }
+        TreeStats before = tree.stats();
+        // 一次调用在整理完一遍后返回
+        int freed = tree.defragment(0.9, Integer.MAX_VALUE);
+        TreeStats after = tree.stats();
+        assertValid(tree, 16);
+        assertMatches(tree, model, 200000);
+        assertTrue(freed > 0);
+        assertEquals(before.getNodeCount() - freed, after.getNodeCount());
+        assertTrue(after.getFillFactor() > 0.8, "fill factor " + after.getFillFactor());
+        assertThrows(IllegalArgumentException.class, () -> tree.defragment(0.4, 1));
+    }
+}
+
@@ -0,0 +1,225 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class PrimitiveBTreeTest {
+
+    /**
+     * 把五个生成的特化版本统一成key和value都是long的操作，value为对象的版本存放Long
+     */
+    private interface Ops {
+        void put(long key, long val);
+
+        boolean delete(long key);
+
+        Long get(long key);
+
+        boolean containsKey(long key);
+
+        int size();
+
+        List<Map.Entry<Long, Long>> entries();
+
+        List<Map.Entry<Long, Long>> range(long low, long high);
+    }
+
+    private static Ops longObj(int d) {
+        LongObjBTree<Long> tree = new LongObjBTree<>(d);
+        return new Ops() {
+            public void put(long key, long val) { tree.put(key, val); }
+            public boolean delete(long key) { return tree.delete(key); }
+            public Long get(long key) { return tree.get(key); }
+            public boolean containsKey(long key) { return tree.containsKey(key); }
+            public int size() { return tree.size(); }
+            public List<Map.Entry<Long, Long>> entries() {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEach((key, val) -> entries.add(Map.entry(key, val)));
+                return entries;
+            }
+            public List<Map.Entry<Long, Long>> range(long low, long high) {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEachInRange(low, high, (key, val) -> entries.add(Map.entry(key, val)));
+                return entries;
+            }
+        };
+    }
+
+    private static Ops intObj(int d) {
+        IntObjBTree<Long> tree = new IntObjBTree<>(d);
+        return new Ops() {
+            public void put(long key, long val) { tree.put((int) key, val); }
+            public boolean delete(long key) { return tree.delete((int) key); }
+            public Long get(long key) { return tree.get((int) key); }
+            public boolean containsKey(long key) { return tree.containsKey((int) key); }
+            public int size() { return tree.size(); }
+            public List<Map.Entry<Long, Long>> entries() {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEach((key, val) -> entries.add(Map.entry((long) key, val)));
+                return entries;
+            }
+            public List<Map.Entry<Long, Long>> range(long low, long high) {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEachInRange((int) low, (int) high, (key, val) -> entries.add(Map.entry((long) key, val)));
+                return entries;
+            }
+        };
+    }
+
+    private static Ops longLong(int d) {
+        LongLongBTree tree = new LongLongBTree(d);
+        return new Ops() {
+            public void put(long key, long val) { tree.put(key, val); }
+            public boolean delete(long key) { return tree.delete(key); }
+            public Long get(long key) { return tree.containsKey(key) ? tree.get(key, 0) : null; }
+            public boolean containsKey(long key) { return tree.containsKey(key); }
+            public int size() { return tree.size(); }
+            public List<Map.Entry<Long, Long>> entries() {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEach((key, val) -> entries.add(Map.entry(key, val)));
+                return entries;
+            }
+            public List<Map.Entry<Long, Long>> range(long low, long high) {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEachInRange(low, high, (key, val) -> entries.add(Map.entry(key, val)));
+                return entries;
+            }
+        };
+    }
+
+    private static Ops intInt(int d) {
+        IntIntBTree tree = new IntIntBTree(d);
+        return new Ops() {
+            public void put(long key, long val) { tree.put((int) key, (int) val); }
+            public boolean delete(long key) { return tree.delete((int) key); }
+            public Long get(long key) { return tree.containsKey((int) key) ? (long) tree.get((int) key, 0) : null; }
+            public boolean containsKey(long key) { return tree.containsKey((int) key); }
+            public int size() { return tree.size(); }
+            public List<Map.Entry<Long, Long>> entries() {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEach((key, val) -> entries.add(Map.entry((long) key, (long) val)));
+                return entries;
+            }
+            public List<Map.Entry<Long, Long>> range(long low, long high) {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEachInRange((int) low, (int) high, (key, val) -> entries.add(Map.entry((long) key, (long) val)));
+                return entries;
+            }
+        };
+    }
+
+    private static Ops longDouble(int d) {
+        LongDoubleBTree tree = new LongDoubleBTree(d);
+        return new Ops() {
+            public void put(long key, long val) { tree.put(key, val); }
+            public boolean delete(long key) { return tree.delete(key); }
+            public Long get(long key) { return tree.containsKey(key) ? (long) tree.get(key, 0) : null; }
+            public boolean containsKey(long key) { return tree.containsKey(key); }
+            public int size() { return tree.size(); }
+            public List<Map.Entry<Long, Long>> entries() {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEach((key, val) -> entries.add(Map.entry(key, (long) val)));
+                return entries;
+            }
+            public List<Map.Entry<Long, Long>> range(long low, long high) {
+                List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+                tree.forEachInRange(low, high, (key, val) -> entries.add(Map.entry(key, (long) val)));
+                return entries;
+            }
+        };
+    }
+
+    /**
+     * 随机执行put、delete、get，定期比较全部键值对和一个[low, high)范围，最后删空
+     */
+    private static void runRandomOps(IntFunction<Ops> factory, boolean intKeys) {
+        long[] extremes = intKeys
+                ? new long[]{Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MAX_VALUE - 1, Integer.MAX_VALUE}
+                : new long[]{Long.MIN_VALUE, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        for (int d : new int[]{2, 3, 4, 8}) {
+            for (int seed = 0; seed < 5; seed++) {
+                Random random = new Random(seed);
+                Ops tree = factory.apply(d);
+                TreeMap<Long, Long> model = new TreeMap<>();
+                int range = seed % 2 == 0 ? 300 : 5000;
+                for (int op = 0; op < 20000; op++) {
+                    long key = random.nextInt(20) == 0 ? extremes[random.nextInt(extremes.length)] : random.nextInt(range) - range / 3;
+                    int choice = random.nextInt(10);
+                    if (choice < 5) {
+                        tree.put(key, op);
+                        model.put(key, (long) op);
+                    } else if (choice < 8) {
+                        assertEquals(model.remove(key) != null, tree.delete(key), "delete(" + key + ")");
+                    } else {
+                        assertEquals(model.get(key), tree.get(key), "get(" + key + ")");
+                        assertEquals(model.containsKey(key), tree.containsKey(key));
+                    }
+                    assertEquals(model.size(), tree.size());
+                    if (op % 997 == 0) {
+                        assertEquals(new ArrayList<>(model.entrySet()), tree.entries());
+                        long low = random.nextInt(range) - range / 3;
+                        long high = low + random.nextInt(range / 4 + 1);
+                        assertEquals(new ArrayList<>(model.subMap(low, high).entrySet()), tree.range(low, high));
+                    }
+                }
+                // 右端点不包含，最大键不会被访问到
+                assertEquals(new ArrayList<>(model.headMap(extremes[3]).entrySet()), tree.range(extremes[0], extremes[3]));
+                for (long key : new ArrayList<>(model.keySet())) {
+                    assertEquals(true, tree.delete(key));
+                }
+                assertEquals(0, tree.size());
+                assertFalse(tree.delete(0));
+            }
+        }
+    }
+
+    @Test
+    void longObjBTreeMatchesModel() {
+        runRandomOps(PrimitiveBTreeTest::longObj, false);
+    }
+
+    @Test
+    void intObjBTreeMatchesModel() {
+        runRandomOps(PrimitiveBTreeTest::intObj, true);
+    }
+
+    @Test
+    void longLongBTreeMatchesModel() {
+        runRandomOps(PrimitiveBTreeTest::longLong, false);
+    }
+
+    @Test
+    void intIntBTreeMatchesModel() {
+        runRandomOps(PrimitiveBTreeTest::intInt, true);
+    }
+
+    @Test
+    void longDoubleBTreeMatchesModel() {
+        runRandomOps(PrimitiveBTreeTest::longDouble, false);
+    }
+
+    /**
+     * 生成的源文件必须和模板保持一致，修改模板后需要重新运行PrimitiveBTreeGenerator
+     */
+    @Test
+    void generatedSourcesAreUpToDate() throws IOException {
+        String template = Files.readString(Path.of("src/main/template/com/hjysite/tree/btree/selfimpl/PrimitiveBTree.java.tmpl"), StandardCharsets.UTF_8);
+        for (PrimitiveBTreeGenerator.Spec spec : PrimitiveBTreeGenerator.SPECS) {
+            Path source = Path.of("src/main/java/com/hjysite/tree/btree/selfimpl/" + spec.className() + ".java");
+            assertEquals(Files.readString(source, StandardCharsets.UTF_8), PrimitiveBTreeGenerator.generate(template, spec), spec.className());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedBTreeTest {
+
+    private static List<Map.Entry<Integer, Integer>> entries(List<KeyVal<Integer, Integer>> keyVals) {
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+        for (KeyVal<Integer, Integer> keyVal : keyVals) {
+            entries.add(Map.entry(keyVal.key(), keyVal.val()));
+        }
+        return entries;
+    }
+
+    /**
+     * 单线程随机执行put、delete、search和范围查询，分片很小并且很快达到上限，拆分和合并交替发生
+     */
+    @Test
+    void randomOpsMatchModel() {
+        for (int seed = 0; seed < 8; seed++) {
+            Random random = new Random(seed);
+            int maxShards = 3 + seed % 4;
+            ShardedBTree<Integer, Integer> tree = new ShardedBTree<>(2 + seed % 3, maxShards, 4 + seed);
+            TreeMap<Integer, Integer> model = new TreeMap<>();
+            int range = 200 + 500 * seed;
+            for (int op = 0; op < 30000; op++) {
+                // 写入集中在一个缓慢移动的区间，删除落在它后面，热点分片不断变化，后面的分片逐渐变空需要合并
+                int key = (op / 20 + random.nextInt(range / 4)) % range;
+                int choice = random.nextInt(10);
+                if (choice < 5) {
+                    tree.put(key, op);
+                    model.put(key, op);
+                } else if (choice < 8) {
+                    key = (key + range - range / 4) % range;
+                    tree.delete(key);
+                    model.remove(key);
+                } else {
+                    KeyVal<Integer, Integer> keyVal = tree.search(key);
+                    assertEquals(model.get(key), keyVal == null ? null : keyVal.val());
+                }
+                assertEquals(model.size(), tree.size());
+                if (op % 101 == 0) {
+                    int low = random.nextInt(range);
+                    int high = low + random.nextInt(range / 2 + 1);
+                    assertEquals(new ArrayList<>(model.subMap(low, high).entrySet()), entries(tree.rangeSearch(low, high)));
+                    assertEquals(new ArrayList<>(model.headMap(high).entrySet()), entries(tree.rangeSearch(null, high)));
+                }
+                assertTrue(tree.shardCount() <= maxShards);
+            }
+            assertEquals(new ArrayList<>(model.entrySet()), entries(tree.rangeSearch(null, null)));
+            // 没有合并时最多拆分maxShards - 1次
+            assertTrue(tree.rebalanceCount() >= maxShards, "seed " + seed + " rebalances " + tree.rebalanceCount());
+        }
+    }
+
+    /**
+     * 多个线程并发写入、删除和范围查询，每个线程只修改key % threads等于自己编号的key，
+     * 因此每个线程都能用自己的模型精确检查自己的key，其他线程的key只检查有序、不重复并且在范围内
+     */
+    @Test
+    void concurrentOpsMatchModel() throws InterruptedException {
+        int threads = 4;
+        int range = 4000;
+        int maxShards = 6;
+        ShardedBTree<Integer, Integer> tree = new ShardedBTree<>(3, maxShards, 8);
+        List<TreeMap<Integer, Integer>> models = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            TreeMap<Integer, Integer> model = new TreeMap<>();
+            models.add(model);
+            workers.add(new Thread(() -> {
+                Random random = new Random(id);
+                try {
+                    for (int op = 0; op < 20000; op++) {
+                        int key = (op / 20 + random.nextInt(range / 8)) % range / threads * threads + id;
+                        int choice = random.nextInt(10);
+                        if (choice < 5) {
+                            tree.put(key, op);
+                            model.put(key, op);
+                        } else if (choice < 8) {
+                            tree.delete(key);
+                            model.remove(key);
+                        } else if (choice < 9) {
+                            KeyVal<Integer, Integer> keyVal = tree.search(key);
+                            assertEquals(model.get(key), keyVal == null ? null : keyVal.val());
+                        } else {
+                            int low = random.nextInt(range);
+                            int high = low + random.nextInt(range / 4 + 1);
+                            List<Map.Entry<Integer, Integer>> own = new ArrayList<>();
+                            int last = Integer.MIN_VALUE;
+                            for (KeyVal<Integer, Integer> keyVal : tree.rangeSearch(low, high)) {
+                                assertTrue(keyVal.key() > last, "range result out of order");
+                                assertTrue(keyVal.key() >= low && keyVal.key() < high);
+                                last = keyVal.key();
+                                if (keyVal.key() % threads == id) {
+                                    own.add(Map.entry(keyVal.key(), keyVal.val()));
+                                }
+                            }
+                            assertEquals(new ArrayList<>(model.subMap(low, high).entrySet()), own);
+                        }
+                        assertTrue(tree.shardCount() <= maxShards);
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(List.of(), failures);
+
+        TreeMap<Integer, Integer> all = new TreeMap<>();
+        for (TreeMap<Integer, Integer> model : models) {
+            all.putAll(model);
+        }
+        assertEquals(new ArrayList<>(all.entrySet()), entries(tree.rangeSearch(null, null)));
+        assertEquals(all.size(), tree.size());
+        assertTrue(tree.rebalanceCount() >= maxShards);
+    }
+}
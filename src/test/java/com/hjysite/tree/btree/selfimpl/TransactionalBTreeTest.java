@@ -0,0 +1,224 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransactionalBTreeTest {
+
+    private static final int ACCOUNTS = 50;
+    private static final int BALANCE = 1000;
+
+    /**
+     * 多个线程并发转账，同时有线程在事务中读取所有账户的余额：提交成功的事务读到的总额必须不变，
+     * 任何时候都不能出现负的余额，最后所有转账都已生效
+     */
+    @Test
+    void concurrentTransfersKeepTheTotal() throws InterruptedException {
+        TransactionalBTree<Integer, Integer> bank = new TransactionalBTree<>(new BTree<Integer, Integer>(3), 100000);
+        bank.execute(tx -> {
+            for (int account = 0; account < ACCOUNTS; account++) {
+                tx.put(account, BALANCE);
+            }
+            return null;
+        });
+
+        int threads = 4;
+        int transfers = 3000;
+        int audits = 200;
+        AtomicInteger moved = new AtomicInteger();
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < transfers; i++) {
+                        int from = random.nextInt(ACCOUNTS);
+                        int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        int amount = 1 + random.nextInt(200);
+                        boolean done = bank.execute(tx -> {
+                            int fromBalance = tx.search(from).val();
+                            int toBalance = tx.search(to).val();
+                            if (fromBalance < amount) {
+                                return false;
+                            }
+                            tx.put(from, fromBalance - amount);
+                            tx.put(to, toBalance + amount);
+                            return true;
+                        });
+                        if (done) {
+                            moved.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        workers.add(new Thread(() -> {
+            try {
+                for (int i = 0; i < audits; i++) {
+                    // 只读事务也要校验读集合，提交成功时读到的是一致的快照
+                    int[] total = bank.execute(tx -> {
+                        int[] sum = new int[2];
+                        for (int account = 0; account < ACCOUNTS; account++) {
+                            int balance = tx.search(account).val();
+                            sum[0] += balance;
+                            if (balance < 0) {
+                                sum[1]++;
+                            }
+                        }
+                        return sum;
+                    });
+                    assertEquals(ACCOUNTS * BALANCE, total[0]);
+                    assertEquals(0, total[1]);
+                }
+            } catch (Throwable e) {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+            }
+        }));
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(List.of(), failures);
+
+        int sum = 0;
+        for (int account = 0; account < ACCOUNTS; account++) {
+            int balance = bank.search(account).val();
+            assertTrue(balance >= 0);
+            sum += balance;
+        }
+        assertEquals(ACCOUNTS * BALANCE, sum);
+        assertTrue(moved.get() > 0);
+        assertEquals(1 + threads * transfers + audits, bank.commitCount());
+    }
+
+    /**
+     * 读过的节点被先提交的事务修改后，提交失败，写操作都不生效
+     */
+    @Test
+    void conflictingCommitIsAborted() {
+        TransactionalBTree<Integer, Integer> tree = new TransactionalBTree<>(3);
+        TransactionalBTree<Integer, Integer>.Transaction setup = tree.begin();
+        for (int key = 0; key < 100; key++) {
+            setup.put(key, key);
+        }
+        assertTrue(setup.commit());
+
+        TransactionalBTree<Integer, Integer>.Transaction reader = tree.begin();
+        assertEquals(10, reader.search(10).val());
+        reader.put(90, -90);
+        reader.delete(91);
+
+        TransactionalBTree<Integer, Integer>.Transaction writer = tree.begin();
+        writer.put(10, -10);
+        assertTrue(writer.commit());
+
+        assertFalse(reader.commit());
+        assertEquals(-10, tree.search(10).val());
+        assertEquals(90, tree.search(90).val());
+        assertEquals(91, tree.search(91).val());
+        assertEquals(1, tree.abortCount());
+        assertThrows(IllegalStateException.class, reader::commit);
+
+        // 没有读到被修改的节点时不冲突，自己的写操作对后面的读取可见
+        TransactionalBTree<Integer, Integer>.Transaction other = tree.begin();
+        assertEquals(50, other.search(50).val());
+        other.delete(50);
+        assertNull(other.search(50));
+        TransactionalBTree<Integer, Integer>.Transaction unrelated = tree.begin();
+        unrelated.put(1000, 1000);
+        assertTrue(unrelated.commit());
+        assertTrue(other.commit());
+        assertNull(tree.search(50));
+    }
+
+    /**
+     * execute在冲突时重新执行事务，超过重试次数后抛出异常
+     */
+    @Test
+    void executeRetriesAfterConflicts() {
+        TransactionalBTree<Integer, Integer> tree = new TransactionalBTree<>(new BTree<Integer, Integer>(3), 2);
+        tree.execute(tx -> {
+            tx.put(1, 0);
+            return null;
+        });
+
+        // 前两次执行时另一个事务在读取之后修改了key 1
+        AtomicInteger attempts = new AtomicInteger();
+        int result = tree.execute(tx -> {
+            int val = tx.search(1).val();
+            if (attempts.incrementAndGet() <= 2) {
+                TransactionalBTree<Integer, Integer>.Transaction conflict = tree.begin();
+                conflict.put(1, val + 100);
+                assertTrue(conflict.commit());
+            }
+            tx.put(1, val + 1);
+            return val + 1;
+        });
+        assertEquals(3, attempts.get());
+        assertEquals(201, result);
+        assertEquals(201, tree.search(1).val());
+        assertEquals(2, tree.abortCount());
+
+        assertThrows(IllegalStateException.class, () -> tree.execute(tx -> {
+            int val = tx.search(1).val();
+            TransactionalBTree<Integer, Integer>.Transaction conflict = tree.begin();
+            conflict.put(1, val + 1);
+            conflict.commit();
+            tx.put(1, -1);
+            return null;
+        }));
+        assertEquals(204, tree.search(1).val());
+    }
+
+
+    /**
+     * 事务中的读取和search一样跳过已经过期的键值对，过期的键值对被清理后事务冲突
+     */
+    @Test
+    void transactionsSkipExpiredEntries() {
+        long[] now = {0};
+        BTree<Integer, Integer> inner = new BTree<>(3);
+        inner.enableTtl(() -> now[0]);
+        for (int key = 0; key < 100; key++) {
+            inner.put(key, key, key % 2 == 0 ? 10 : 1000, TimeUnit.MILLISECONDS);
+        }
+        TransactionalBTree<Integer, Integer> tree = new TransactionalBTree<>(inner, 0);
+
+        now[0] = 10;
+        TransactionalBTree<Integer, Integer>.Transaction tx = tree.begin();
+        assertNull(tx.search(10));
+        assertEquals(11, tx.search(11).val());
+        tx.put(12, 12);
+        assertEquals(12, tx.search(12).val());
+        assertTrue(tx.commit());
+        assertNull(tree.search(10));
+        assertEquals(12, tree.search(12).val());
+
+        TransactionalBTree<Integer, Integer>.Transaction reader = tree.begin();
+        assertNull(reader.search(20));
+        reader.put(20, 20);
+        inner.expire();
+        assertFalse(reader.commit());
+        assertNull(tree.search(20));
+    }
+}
@@ -0,0 +1,91 @@
+package com.hjysite.tree.btree.selfimpl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WriteBufferedBTreeTest {
+
+    private static List<Map.Entry<Integer, Integer>> entries(WriteBufferedBTree<Integer, Integer> tree, Integer low, Integer high) {
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+        tree.forEachInRange(low, high, keyVal -> entries.add(Map.entry(keyVal.key(), keyVal.val())));
+        return entries;
+    }
+
+    /**
+     * 随机执行put、delete和search，定期比较全部键值对和随机范围内的键值对，遍历不能合并缓冲区
+     */
+    @Test
+    void orderedIterationMergesBufferAndTree() {
+        for (int seed = 0; seed < 12; seed++) {
+            Random random = new Random(seed);
+            WriteBufferedBTree<Integer, Integer> tree = new WriteBufferedBTree<>(2 + seed % 4, 1 + seed * 20);
+            TreeMap<Integer, Integer> model = new TreeMap<>();
+            int range = 100 + 300 * seed;
+            for (int op = 0; op < 20000; op++) {
+                int key = random.nextInt(range);
+                int choice = random.nextInt(10);
+                if (choice < 5) {
+                    tree.put(key, op);
+                    model.put(key, op);
+                } else if (choice < 8) {
+                    tree.delete(key);
+                    model.remove(key);
+                } else {
+                    assertEquals(model.get(key), tree.search(key) == null ? null : tree.search(key).val());
+                }
+                if (op % 97 == 0) {
+                    int buffered = tree.bufferedSize();
+                    List<Map.Entry<Integer, Integer>> all = new ArrayList<>();
+                    tree.forEach(keyVal -> all.add(Map.entry(keyVal.key(), keyVal.val())));
+                    assertEquals(new ArrayList<>(model.entrySet()), all);
+
+                    int low = random.nextInt(range);
+                    int high = low + random.nextInt(range / 4 + 1);
+                    assertEquals(new ArrayList<>(model.subMap(low, high).entrySet()), entries(tree, low, high));
+                    assertEquals(new ArrayList<>(model.headMap(high).entrySet()), entries(tree, null, high));
+                    assertEquals(new ArrayList<>(model.tailMap(low).entrySet()), entries(tree, low, null));
+                    assertEquals(buffered, tree.bufferedSize());
+                }
+            }
+        }
+    }
+
+    @Test
+    void tombstonesHideTreeEntries() {
+        WriteBufferedBTree<Integer, Integer> tree = new WriteBufferedBTree<>(3, 1000);
+        for (int key = 0; key < 100; key++) {
+            tree.put(key, key);
+        }
+        tree.flush();
+
+        // 缓冲区中的墓碑、更新和新key
+        for (int key = 0; key < 100; key += 3) {
+            tree.delete(key);
+        }
+        tree.put(10, -10);
+        tree.put(150, 150);
+        tree.delete(200);
+        assertNull(tree.search(3));
+
+        TreeMap<Integer, Integer> model = new TreeMap<>();
+        for (int key = 0; key < 100; key++) {
+            if (key % 3 != 0) {
+                model.put(key, key);
+            }
+        }
+        model.put(10, -10);
+        model.put(150, 150);
+        assertEquals(new ArrayList<>(model.entrySet()), entries(tree, null, null));
+        assertEquals(new ArrayList<>(model.subMap(9, 151).entrySet()), entries(tree, 9, 151));
+        assertEquals(List.of(), entries(tree, 99, 150));
+        assertEquals(37, tree.bufferedSize());
+    }
+}